@@ -0,0 +1,114 @@
+package vismed2.group3.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Throughputs of a previous benchmark run to compare against. The file holds
+ * one case per line: the case's key, a tab and the throughput in voxels per
+ * second. Cases missing in either run are not compared, so the matrix of
+ * cases may change between runs.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class Baseline {
+
+	private final Map<String, Double> throughputs = new LinkedHashMap<String, Double>();
+
+	/**
+	 * Reads a baseline written by {@link #save(List, File)}.
+	 *
+	 * @param file
+	 *            The file to read
+	 */
+	public static Baseline load(File file) throws IOException {
+		Baseline baseline = new Baseline();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.lastIndexOf('\t');
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				} else if (tab < 0) {
+					throw new IOException("Invalid baseline entry: " + line);
+				}
+				try {
+					baseline.throughputs.put(line.substring(0, tab), Double.parseDouble(line.substring(tab + 1)));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid baseline entry: " + line, e);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return baseline;
+	}
+
+	/**
+	 * Writes the throughputs of the given results.
+	 *
+	 * @param results
+	 *            The results to store
+	 * @param file
+	 *            The file to write, replaced if it exists
+	 */
+	public static void save(List<BenchmarkRunner.Result> results, File file) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			writer.println("# case\tvoxels per second");
+			for (BenchmarkRunner.Result result : results) {
+				writer.println(result.getKey() + "\t" + String.format(Locale.ROOT, "%.0f", result.getVoxelsPerSecond()));
+			}
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError()) {
+			throw new IOException("Could not write baseline " + file + ".");
+		}
+	}
+
+	/**
+	 * Compares results against this baseline.
+	 *
+	 * @param results
+	 *            The results of the current run
+	 * @param tolerance
+	 *            The accepted drop of throughput in percent
+	 * @return A description of every case whose throughput dropped by more
+	 *         than the tolerance, empty if there is none
+	 */
+	public List<String> findRegressions(List<BenchmarkRunner.Result> results, double tolerance) {
+		List<String> regressions = new ArrayList<String>();
+		for (BenchmarkRunner.Result result : results) {
+			double change = getChange(result);
+			if (change < -tolerance) {
+				regressions.add(String.format("%s: %.1f -> %.1f Mvoxel/s (%.1f%%)", result.getKey(),
+						throughputs.get(result.getKey()) / 1e6, result.getVoxelsPerSecond() / 1e6, change));
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	 * Returns the change of throughput of a result in percent, or NaN if the
+	 * case is not part of the baseline.
+	 */
+	public double getChange(BenchmarkRunner.Result result) {
+		Double before = throughputs.get(result.getKey());
+		if (before == null || before <= 0) {
+			return Double.NaN;
+		}
+		return 100 * (result.getVoxelsPerSecond() - before) / before;
+	}
+}
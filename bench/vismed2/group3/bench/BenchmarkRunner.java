@@ -0,0 +1,242 @@
+package vismed2.group3.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Runs benchmark cases in the manner of JMH: every case is warmed up first so
+ * the JIT compiler has settled, then measured in several iterations of a
+ * minimum duration each. Per iteration the case is run as often as fits into
+ * the duration, results are kept reachable so the work cannot be optimized
+ * away.<br>
+ * <br>
+ * Besides the throughput in voxels per second, the allocation rate is
+ * reported. It is the sum of the bytes allocated by all live threads, as
+ * reported by the HotSpot thread MX bean; cases must therefore run their
+ * parallel work on threads which survive the iteration, such as a shared
+ * executor. On JVMs without this bean the allocation rate is -1.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class BenchmarkRunner {
+
+	/**
+	 * A single benchmark with fixed parameters.
+	 */
+	public interface Case {
+		/**
+		 * Returns the name of the benchmark, e.g. the filter.
+		 */
+		String getName();
+
+		/**
+		 * Returns the parameters, e.g. "256x256x256 kernel=3 threads=4".
+		 */
+		String getParams();
+
+		/**
+		 * Returns the number of voxels processed per run.
+		 */
+		long getVoxels();
+
+		/**
+		 * Prepares the input. Not measured.
+		 */
+		void setUp() throws Exception;
+
+		/**
+		 * Does the measured work once.
+		 *
+		 * @return The result, kept reachable until the next run
+		 */
+		Object run() throws Exception;
+
+		/**
+		 * Releases the input. Not measured.
+		 */
+		void tearDown() throws Exception;
+	}
+
+	/**
+	 * The measurements of a case.
+	 */
+	public static class Result {
+		private final String name;
+		private final String params;
+		private final double voxelsPerSecond;
+		private final double error;
+		private final double bytesPerSecond;
+		private final double bytesPerRun;
+
+		Result(String name, String params, double voxelsPerSecond, double error, double bytesPerSecond,
+				double bytesPerRun) {
+			this.name = name;
+			this.params = params;
+			this.voxelsPerSecond = voxelsPerSecond;
+			this.error = error;
+			this.bytesPerSecond = bytesPerSecond;
+			this.bytesPerRun = bytesPerRun;
+		}
+
+		/**
+		 * Returns the name and parameters, which identify the case in a
+		 * baseline.
+		 */
+		public String getKey() {
+			return name + " " + params;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getParams() {
+			return params;
+		}
+
+		/**
+		 * Returns the mean throughput over all measurement iterations.
+		 */
+		public double getVoxelsPerSecond() {
+			return voxelsPerSecond;
+		}
+
+		/**
+		 * Returns the standard deviation of the throughput.
+		 */
+		public double getError() {
+			return error;
+		}
+
+		/**
+		 * Returns the allocation rate in bytes per second, or -1 if unknown.
+		 */
+		public double getBytesPerSecond() {
+			return bytesPerSecond;
+		}
+
+		/**
+		 * Returns the bytes allocated per run, or -1 if unknown.
+		 */
+		public double getBytesPerRun() {
+			return bytesPerRun;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-28s %-36s %9.1f +- %6.1f Mvoxel/s %9.1f MB/s %9.1f MB/op", name, params,
+					voxelsPerSecond / 1e6, error / 1e6, bytesPerSecond / 1e6, bytesPerRun / 1e6);
+		}
+	}
+
+	private int warmupIterations = 3;
+	private int measurementIterations = 5;
+	private long iterationMillis = 1000;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private Object sink;
+
+	/**
+	 * Sets the number of iterations and their minimum duration.
+	 *
+	 * @param warmup
+	 *            Iterations run before measuring
+	 * @param measurement
+	 *            Iterations measured
+	 * @param millis
+	 *            Minimum duration of an iteration
+	 */
+	public void setIterations(int warmup, int measurement, long millis) {
+		if (warmup < 0 || measurement < 1 || millis < 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid iterations %d/%d of %d ms.", warmup, measurement, millis));
+		}
+		this.warmupIterations = warmup;
+		this.measurementIterations = measurement;
+		this.iterationMillis = millis;
+	}
+
+	/**
+	 * Runs a case.
+	 *
+	 * @param benchmark
+	 *            The case to run
+	 * @return The measurements
+	 */
+	public Result run(Case benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			for (int i = 0; i < warmupIterations; i++) {
+				iteration(benchmark);
+			}
+			double[] throughput = new double[measurementIterations];
+			long runs = 0;
+			long nanos = 0;
+			long bytes = 0;
+			for (int i = 0; i < measurementIterations; i++) {
+				System.gc();
+				long allocated = allocatedBytes();
+				long start = System.nanoTime();
+				long count = iteration(benchmark);
+				long elapsed = System.nanoTime() - start;
+				bytes += allocatedBytes() - allocated;
+				throughput[i] = count * benchmark.getVoxels() * 1e9 / elapsed;
+				runs += count;
+				nanos += elapsed;
+			}
+			double mean = 0;
+			for (double t : throughput) {
+				mean += t;
+			}
+			mean /= throughput.length;
+			double variance = 0;
+			for (double t : throughput) {
+				variance += (t - mean) * (t - mean);
+			}
+			double error = throughput.length > 1 ? Math.sqrt(variance / (throughput.length - 1)) : 0;
+			boolean known = allocatedBytes() >= 0;
+			return new Result(benchmark.getName(), benchmark.getParams(), mean, error,
+					known ? bytes * 1e9 / nanos : -1, known ? (double) bytes / runs : -1);
+		} finally {
+			sink = null;
+			benchmark.tearDown();
+		}
+	}
+
+	/**
+	 * Runs the case until the minimum duration has passed.
+	 *
+	 * @return The number of runs
+	 */
+	private long iteration(Case benchmark) throws Exception {
+		long end = System.nanoTime() + iterationMillis * 1000000;
+		long count = 0;
+		do {
+			// drop the previous result first, large volumes might not fit twice
+			sink = null;
+			sink = benchmark.run();
+			count++;
+		} while (System.nanoTime() < end);
+		return count;
+	}
+
+	/**
+	 * Returns the bytes allocated by all live threads, or -1 if unsupported.
+	 */
+	private long allocatedBytes() {
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+		if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+		long total = 0;
+		for (long bytes : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,563 @@
+package vismed2.group3.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+
+import vismed2.group3.dicom.DicomExporter;
+import vismed2.group3.dicom.DicomSeriesLoader;
+import vismed2.group3.filters.GradientFilter;
+import vismed2.group3.filters.MIP;
+import vismed2.group3.filters.MedianFilter;
+import vismed2.group3.filters.ThresholdFilter;
+import vismed2.group3.filters.VolumeFilter;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.VtkVolumeConverter;
+import vtk.vtkDICOMImageReader;
+import vtk.vtkImageData;
+import vtk.vtkNativeLibrary;
+
+/**
+ * Benchmarks of the filters' and the DICOM export's hot paths on
+ * {@link Phantom} volumes. Every combination of the given sizes, filters,
+ * kernel sizes, slice modes and thread counts is run by a
+ * {@link BenchmarkRunner}; parameters which do not apply to a filter are
+ * skipped (the kernel size applies to the median only, MIP supports active
+ * slices only, the export always writes all slices, loading a series depends
+ * on the thread count only).
+ * Throughput is measured in voxels of the input volume per second. When both
+ * layouts are run, the speedup of the bricked median over the linear one is
+ * reported at the end, likewise the speedup of writing a single multi-frame
+ * file over one file per slice.<br>
+ * <br>
+ * Usage, with the application's class path plus the benchmark classes:
+ *
+ * <pre>
+ * java -Xmx4g vismed2.group3.bench.FilterBenchmarks [options]
+ *   --sizes 128,256,512x512x600   volume sizes, N is short for NxNxN
+ *   --filters median,threshold,gradient,mip
+ *                                 export needs the VTK native libraries,
+ *                                 load reads the phantom as DICOM series
+ *   --kernels 3,5                 median kernel sizes
+ *   --modes active,all            slice modes
+ *   --layouts bricked,linear      median layouts in all-slices mode
+ *   --bricks 16,32                brick sizes of the bricked layout
+ *   --exports slices,multiframe   export modes, one file per slice or a
+ *                                 single multi-frame file
+ *   --threads 1,8                 thread counts, default 1 and all processors
+ *   --warmup 3 --iterations 5 --time 1000
+ *                                 iterations and their minimum duration in ms
+ *   --save FILE                   write the throughputs as new baseline
+ *   --baseline FILE --tolerance 10
+ *                                 fail if a throughput dropped by more than
+ *                                 the tolerance in percent
+ * </pre>
+ *
+ * The exit code is 1 if a regression against the baseline was found, 2 for
+ * invalid arguments.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class FilterBenchmarks {
+
+	private static final long SEED = 42;
+
+	private List<int[]> sizes = new ArrayList<int[]>();
+	private List<String> filters = Arrays.asList("median", "threshold", "gradient", "mip");
+	private List<Integer> kernels = Arrays.asList(3, 5);
+	private List<String> modes = Arrays.asList("active", "all");
+	private List<String> layouts = Arrays.asList("bricked", "linear");
+	private List<Integer> bricks = Arrays.asList(16, 32);
+	private List<String> exports = Arrays.asList("slices", "multiframe");
+	private List<Integer> threads = new ArrayList<Integer>();
+	private final BenchmarkRunner runner = new BenchmarkRunner();
+	private File saveFile;
+	private File baselineFile;
+	private double tolerance = 10;
+
+	public static void main(String[] args) throws Exception {
+		FilterBenchmarks benchmarks = new FilterBenchmarks();
+		try {
+			benchmarks.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+		System.exit(benchmarks.run() ? 0 : 1);
+	}
+
+	private void parse(String[] args) {
+		int warmup = 3;
+		int iterations = 5;
+		long millis = 1000;
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value of " + option + ".");
+			}
+			String value = args[++i];
+			try {
+				if (option.equals("--sizes")) {
+					sizes.clear();
+					for (String size : value.split(",")) {
+						sizes.add(parseSize(size));
+					}
+				} else if (option.equals("--filters")) {
+					filters = Arrays.asList(value.split(","));
+				} else if (option.equals("--kernels")) {
+					kernels = parseInts(value);
+				} else if (option.equals("--modes")) {
+					modes = Arrays.asList(value.split(","));
+				} else if (option.equals("--layouts")) {
+					layouts = Arrays.asList(value.split(","));
+				} else if (option.equals("--bricks")) {
+					bricks = parseInts(value);
+				} else if (option.equals("--exports")) {
+					exports = Arrays.asList(value.split(","));
+				} else if (option.equals("--threads")) {
+					threads = parseInts(value);
+				} else if (option.equals("--warmup")) {
+					warmup = Integer.parseInt(value);
+				} else if (option.equals("--iterations")) {
+					iterations = Integer.parseInt(value);
+				} else if (option.equals("--time")) {
+					millis = Long.parseLong(value);
+				} else if (option.equals("--save")) {
+					saveFile = new File(value);
+				} else if (option.equals("--baseline")) {
+					baselineFile = new File(value);
+				} else if (option.equals("--tolerance")) {
+					tolerance = Double.parseDouble(value);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + option + ".");
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value of " + option + ": " + value);
+			}
+		}
+		if (sizes.isEmpty()) {
+			sizes.add(new int[] { 128, 128, 128 });
+			sizes.add(new int[] { 256, 256, 256 });
+		}
+		if (threads.isEmpty()) {
+			threads.add(1);
+			int processors = Runtime.getRuntime().availableProcessors();
+			if (processors > 1) {
+				threads.add(processors);
+			}
+		}
+		for (String mode : modes) {
+			if (!mode.equals("active") && !mode.equals("all")) {
+				throw new IllegalArgumentException("Unknown slice mode " + mode + ".");
+			}
+		}
+		for (String layout : layouts) {
+			if (!layout.equals("bricked") && !layout.equals("linear")) {
+				throw new IllegalArgumentException("Unknown layout " + layout + ".");
+			}
+		}
+		for (String export : exports) {
+			if (!export.equals("slices") && !export.equals("multiframe")) {
+				throw new IllegalArgumentException("Unknown export mode " + export + ".");
+			}
+		}
+		runner.setIterations(warmup, iterations, millis);
+	}
+
+	private static int[] parseSize(String size) {
+		String[] parts = size.split("x");
+		if (parts.length == 1) {
+			int n = Integer.parseInt(parts[0]);
+			return new int[] { n, n, n };
+		} else if (parts.length == 3) {
+			return new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]) };
+		}
+		throw new IllegalArgumentException("Invalid size " + size + ".");
+	}
+
+	private static List<Integer> parseInts(String value) {
+		List<Integer> ints = new ArrayList<Integer>();
+		for (String part : value.split(",")) {
+			ints.add(Integer.parseInt(part));
+		}
+		return ints;
+	}
+
+	/**
+	 * Runs all cases and compares them against the baseline.
+	 *
+	 * @return false if a regression was found
+	 */
+	private boolean run() throws Exception {
+		Baseline baseline = baselineFile != null ? Baseline.load(baselineFile) : null;
+		List<BenchmarkRunner.Result> results = new ArrayList<BenchmarkRunner.Result>();
+		// long-lived threads, so their allocations are counted
+		List<ExecutorService> executors = new ArrayList<ExecutorService>();
+		for (int count : threads) {
+			executors.add(Executors.newFixedThreadPool(count));
+		}
+		try {
+			for (int[] size : sizes) {
+				// one phantom at a time, the largest take more than 300 MB
+				ShortVolume phantom = Phantom.create(size[0], size[1], size[2], SEED);
+				for (BenchmarkRunner.Case benchmark : cases(phantom, executors)) {
+					BenchmarkRunner.Result result = runner.run(benchmark);
+					results.add(result);
+					double change = baseline != null ? baseline.getChange(result) : Double.NaN;
+					System.out.println(Double.isNaN(change) ? result.toString()
+							: String.format("%s %+6.1f%%", result, change));
+				}
+			}
+		} finally {
+			for (ExecutorService executor : executors) {
+				executor.shutdown();
+			}
+		}
+
+		printSpeedups(results, "layout=bricked brick=\\d+", "layout=linear",
+				"Speedup of the bricked over the linear layout:");
+		printSpeedups(results, "export=multiframe", "export=slices",
+				"Speedup of a single multi-frame file over one file per slice:");
+		if (saveFile != null) {
+			Baseline.save(results, saveFile);
+		}
+		if (baseline == null) {
+			return true;
+		}
+		List<String> regressions = baseline.findRegressions(results, tolerance);
+		for (String regression : regressions) {
+			System.err.println("Regression " + regression);
+		}
+		return regressions.isEmpty();
+	}
+
+	private List<BenchmarkRunner.Case> cases(ShortVolume phantom, List<ExecutorService> executors) {
+		List<BenchmarkRunner.Case> cases = new ArrayList<BenchmarkRunner.Case>();
+		for (String filter : filters) {
+			if (filter.equals("export")) {
+				for (String export : exports) {
+					for (int t = 0; t < threads.size(); t++) {
+						cases.add(new ExportCase(phantom, threads.get(t), executors.get(t), export.equals("multiframe")));
+					}
+				}
+				continue;
+			} else if (filter.equals("load")) {
+				for (int t = 0; t < threads.size(); t++) {
+					cases.add(new LoadCase(phantom, threads.get(t), executors.get(t)));
+				}
+				continue;
+			}
+			for (String mode : modes) {
+				boolean allSlices = mode.equals("all");
+				if (filter.equals("mip") && allSlices) {
+					continue;
+				}
+				for (int t = 0; t < threads.size(); t++) {
+					if (filter.equals("median")) {
+						for (int kernel : kernels) {
+							// the layout only matters when all slices are filtered
+							List<String> variants = new ArrayList<String>();
+							List<Integer> brickSizes = new ArrayList<Integer>();
+							if (!allSlices) {
+								variants.add("");
+								brickSizes.add(0);
+							} else {
+								for (String layout : layouts) {
+									for (int brick : layout.equals("bricked") ? bricks : Arrays.asList(0)) {
+										variants.add(" layout=" + layout + (brick > 0 ? " brick=" + brick : ""));
+										brickSizes.add(brick);
+									}
+								}
+							}
+							for (int v = 0; v < variants.size(); v++) {
+								MedianFilter median = new MedianFilter();
+								median.SetKernelSize(kernel, kernel, kernel);
+								median.setAllSlices(allSlices);
+								median.setBrickSize(brickSizes.get(v));
+								cases.add(new FilterCase(median, phantom, mode + " kernel=" + kernel + variants.get(v),
+										threads.get(t), executors.get(t)));
+							}
+						}
+					} else if (filter.equals("threshold")) {
+						ThresholdFilter threshold = new ThresholdFilter();
+						threshold.setLowerThreshold(250);
+						threshold.setUpperThreshold(1400);
+						threshold.setAllSlices(allSlices);
+						cases.add(new FilterCase(threshold, phantom, mode, threads.get(t), executors.get(t)));
+					} else if (filter.equals("gradient")) {
+						GradientFilter gradient = new GradientFilter();
+						gradient.setFilter(GradientFilter.Type.Sobel);
+						gradient.setAllSlices(allSlices);
+						cases.add(new FilterCase(gradient, phantom, mode, threads.get(t), executors.get(t)));
+					} else if (filter.equals("mip")) {
+						cases.add(new FilterCase(new MIP(), phantom, mode, threads.get(t), executors.get(t)));
+					} else {
+						throw new IllegalArgumentException("Unknown filter " + filter + ".");
+					}
+				}
+			}
+		}
+		return cases;
+	}
+
+	/**
+	 * Prints the speedup of every case with the given parameters over its
+	 * counterpart with the other ones, e.g. of every bricked case over the
+	 * linear one.
+	 *
+	 * @param param
+	 *            A regular expression matching the parameters of the cases
+	 *            to compare
+	 * @param otherParam
+	 *            The parameters of the counterparts, replacing the match
+	 */
+	private static void printSpeedups(List<BenchmarkRunner.Result> results, String param, String otherParam,
+			String title) {
+		boolean header = false;
+		for (BenchmarkRunner.Result result : results) {
+			if (!Pattern.compile(param).matcher(result.getKey()).find()) {
+				continue;
+			}
+			String otherKey = result.getKey().replaceFirst(param, otherParam);
+			for (BenchmarkRunner.Result other : results) {
+				if (other.getKey().equals(otherKey)) {
+					if (!header) {
+						System.out.println(title);
+						header = true;
+					}
+					System.out.println(String.format("  %-72s %5.2fx", result.getKey(),
+							result.getVoxelsPerSecond() / other.getVoxelsPerSecond()));
+				}
+			}
+		}
+	}
+
+	private static String format(ShortVolume volume) {
+		return volume.getWidth() + "x" + volume.getHeight() + "x" + volume.getDepth();
+	}
+
+	/**
+	 * Runs a filter on the phantom, with the active slices in its center.
+	 */
+	private static class FilterCase implements BenchmarkRunner.Case {
+		private final VolumeFilter filter;
+		private final ShortVolume phantom;
+		private final String params;
+
+		FilterCase(VolumeFilter filter, ShortVolume phantom, String params, int threads, ExecutorService executor) {
+			this.filter = filter;
+			this.phantom = phantom;
+			this.params = format(phantom) + " " + params + " threads=" + threads;
+			filter.setParallelism(threads);
+			filter.setExecutor(executor);
+			filter.setSlice(phantom.getDepth() / 2, phantom.getHeight() / 2, phantom.getWidth() / 2);
+		}
+
+		@Override
+		public String getName() {
+			return filter.getFilterName();
+		}
+
+		@Override
+		public String getParams() {
+			return params;
+		}
+
+		@Override
+		public long getVoxels() {
+			return phantom.size();
+		}
+
+		@Override
+		public void setUp() {
+		}
+
+		@Override
+		public Object run() {
+			return filter.filter(phantom);
+		}
+
+		@Override
+		public void tearDown() {
+		}
+	}
+
+	/**
+	 * Writes the phantom as DICOM series, or as a single multi-frame file,
+	 * into a temporary directory. Needs the VTK native libraries.
+	 */
+	private static class ExportCase implements BenchmarkRunner.Case {
+		// Scalar type constant as defined in vtkType.h
+		private static final int VTK_SHORT = 4;
+		private final ShortVolume phantom;
+		private final int threads;
+		private final ExecutorService executor;
+		private final boolean multiFrame;
+		private vtkImageData image;
+		private vtkDICOMImageReader reader;
+		private File directory;
+
+		ExportCase(ShortVolume phantom, int threads, ExecutorService executor, boolean multiFrame) {
+			this.phantom = phantom;
+			this.threads = threads;
+			this.executor = executor;
+			this.multiFrame = multiFrame;
+		}
+
+		@Override
+		public String getName() {
+			return "DICOM export";
+		}
+
+		@Override
+		public String getParams() {
+			return format(phantom) + " export=" + (multiFrame ? "multiframe" : "slices") + " threads=" + threads;
+		}
+
+		@Override
+		public long getVoxels() {
+			return phantom.size();
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			if (!vtkNativeLibrary.LoadAllNativeLibraries()) {
+				throw new IllegalStateException("The DICOM export benchmark needs the VTK native libraries.");
+			}
+			vtkNativeLibrary.DisableOutputWindow(null);
+			image = new vtkImageData();
+			image.SetDimensions(phantom.getWidth(), phantom.getHeight(), phantom.getDepth());
+			image.AllocateScalars(VTK_SHORT, 1);
+			VtkVolumeConverter.update(phantom, image);
+			// the reader's patient position and orientation are defaults
+			reader = new vtkDICOMImageReader();
+			directory = File.createTempFile("vismed-bench", "");
+			if (!directory.delete() || !directory.mkdir()) {
+				throw new IllegalStateException("Could not create directory " + directory + ".");
+			}
+		}
+
+		@Override
+		public Object run() {
+			DicomExporter exporter = new DicomExporter();
+			exporter.setParallelism(threads);
+			exporter.setExecutor(executor);
+			exporter.setMultiFrame(multiFrame);
+			exporter.exportImageData(image, new File(directory, "bench").getPath(), reader);
+			return directory;
+		}
+
+		@Override
+		public void tearDown() {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Reads the phantom as DICOM series with {@link DicomSeriesLoader}. The
+	 * series is written once per case with dcm4che, so no VTK libraries are
+	 * needed.
+	 */
+	private static class LoadCase implements BenchmarkRunner.Case {
+		private final ShortVolume phantom;
+		private final int threads;
+		private final ExecutorService executor;
+		private File directory;
+
+		LoadCase(ShortVolume phantom, int threads, ExecutorService executor) {
+			this.phantom = phantom;
+			this.threads = threads;
+			this.executor = executor;
+		}
+
+		@Override
+		public String getName() {
+			return "DICOM load";
+		}
+
+		@Override
+		public String getParams() {
+			return format(phantom) + " threads=" + threads;
+		}
+
+		@Override
+		public long getVoxels() {
+			return phantom.size();
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			directory = File.createTempFile("vismed-bench", "");
+			if (!directory.delete() || !directory.mkdir()) {
+				throw new IllegalStateException("Could not create directory " + directory + ".");
+			}
+			int width = phantom.getWidth();
+			int height = phantom.getHeight();
+			short[] data = phantom.getData();
+			byte[] pixels = new byte[2 * phantom.getSliceSize()];
+			for (int z = 0; z < phantom.getDepth(); z++) {
+				Attributes dataset = new Attributes();
+				dataset.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+				dataset.setString(Tag.SOPInstanceUID, VR.UI, "2.25.1." + z);
+				dataset.setInt(Tag.Rows, VR.US, height);
+				dataset.setInt(Tag.Columns, VR.US, width);
+				dataset.setInt(Tag.BitsAllocated, VR.US, 16);
+				dataset.setInt(Tag.PixelRepresentation, VR.US, 1);
+				dataset.setString(Tag.ImageOrientationPatient, VR.DS, "1", "0", "0", "0", "1", "0");
+				dataset.setString(Tag.ImagePositionPatient, VR.DS, "0", "0", String.valueOf(z));
+				int i = 0;
+				for (int y = height - 1; y >= 0; y--) {
+					for (int x = phantom.index(0, y, z), end = x + width; x < end; x++) {
+						pixels[i++] = (byte) data[x];
+						pixels[i++] = (byte) (data[x] >> 8);
+					}
+				}
+				DicomOutputStream out = new DicomOutputStream(new File(directory, String.format("%04d.dcm", z)));
+				try {
+					out.writeDataset(dataset.createFileMetaInformation(UID.ExplicitVRLittleEndian), dataset);
+					out.writeHeader(Tag.PixelData, VR.OW, pixels.length);
+					out.write(pixels);
+					out.finish();
+				} finally {
+					out.close();
+				}
+			}
+		}
+
+		@Override
+		public Object run() throws Exception {
+			DicomSeriesLoader loader = new DicomSeriesLoader();
+			loader.setParallelism(threads);
+			loader.setExecutor(executor);
+			return loader.load(directory);
+		}
+
+		@Override
+		public void tearDown() {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package vismed2.group3.bench;
+
+import java.util.Random;
+
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * Synthetic CT volumes for benchmarks. The phantom resembles an axial scan of
+ * the trunk in Hounsfield units: air around an elliptic body of soft tissue,
+ * two lungs, a spine with cortical and cancellous bone, the aorta with contrast
+ * agent, and uniform noise of +/- 20 HU. Real data is not needed, and results
+ * are reproducible since the noise is seeded.<br>
+ * <br>
+ * The structures matter for the filters' speed: the median's histogram walk,
+ * the threshold's value range and the distribution of projections all depend
+ * on the voxel values, so random noise alone would not be representative.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public final class Phantom {
+
+	public static final short AIR = -1000;
+	public static final short LUNG = -850;
+	public static final short SOFT_TISSUE = 40;
+	public static final short CONTRAST = 300;
+	public static final short CANCELLOUS_BONE = 400;
+	public static final short CORTICAL_BONE = 1200;
+	private static final int NOISE = 20;
+
+	private Phantom() {
+	}
+
+	/**
+	 * Creates a phantom of the given dimensions.
+	 *
+	 * @param width
+	 *            Number of voxels along the x axis
+	 * @param height
+	 *            Number of voxels along the y axis
+	 * @param depth
+	 *            Number of slices
+	 * @param seed
+	 *            The seed of the noise
+	 */
+	public static ShortVolume create(int width, int height, int depth, long seed) {
+		ShortVolume volume = new ShortVolume(width, height, depth);
+		short[] data = volume.getData();
+		short[] slice = new short[volume.getSliceSize()];
+		Random random = new Random(seed);
+		for (int z = 0; z < depth; z++) {
+			// the lungs end before the last third of the slices
+			boolean lungs = z < depth * 2 / 3;
+			for (int y = 0, i = 0; y < height; y++) {
+				double v = 2.0 * y / height - 1;
+				for (int x = 0; x < width; x++, i++) {
+					double u = 2.0 * x / width - 1;
+					slice[i] = tissue(u, v, lungs);
+				}
+			}
+			int offset = z * slice.length;
+			for (int i = 0; i < slice.length; i++) {
+				data[offset + i] = (short) (slice[i] + random.nextInt(2 * NOISE + 1) - NOISE);
+			}
+		}
+		return volume;
+	}
+
+	/**
+	 * Returns the tissue at the given position, in coordinates from -1 to 1.
+	 */
+	private static short tissue(double u, double v, boolean lungs) {
+		if (!inEllipse(u, v, 0, 0, 0.9, 0.7)) {
+			return AIR;
+		}
+		double spine = (u * u + (v - 0.45) * (v - 0.45)) / (0.12 * 0.12);
+		if (spine < 1) {
+			return spine < 0.6 ? CANCELLOUS_BONE : CORTICAL_BONE;
+		}
+		if (inEllipse(u, v, 0.12, 0.25, 0.07, 0.07)) {
+			return CONTRAST;
+		}
+		if (lungs && (inEllipse(u, v, -0.42, -0.05, 0.3, 0.45) || inEllipse(u, v, 0.42, -0.05, 0.3, 0.45))) {
+			return LUNG;
+		}
+		return SOFT_TISSUE;
+	}
+
+	private static boolean inEllipse(double u, double v, double centerU, double centerV, double radiusU,
+			double radiusV) {
+		double du = (u - centerU) / radiusU;
+		double dv = (v - centerV) / radiusV;
+		return du * du + dv * dv <= 1;
+	}
+}
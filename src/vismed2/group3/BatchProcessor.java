@@ -0,0 +1,406 @@
+package vismed2.group3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import vismed2.group3.dicom.DicomExporter;
+import vismed2.group3.dicom.DicomSeries;
+import vismed2.group3.dicom.DicomSeriesLoader;
+import vismed2.group3.dicom.ExportProgressEvent;
+import vismed2.group3.filters.FilterPipeline;
+import vismed2.group3.filters.GradientFilter;
+import vismed2.group3.filters.MedianFilter;
+import vismed2.group3.filters.ThresholdFilter;
+import vismed2.group3.filters.VolumeFilter;
+import vismed2.group3.filters.WindowLevelFilter;
+import vismed2.group3.volume.MappedVolume;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.VolumePool;
+import vtk.vtkNativeLibrary;
+
+/**
+ * Command line entry point to run a chain of filters over many DICOM series
+ * without a user interface. Each input directory is read as one series, all
+ * slices are filtered by a {@link FilterPipeline} and the result is exported
+ * with {@link DicomExporter} into a directory of the same name below the
+ * output location. Neither Swing nor any render window is initialized, so
+ * this runs on machines without a display.
+ *
+ * <pre>
+ * java vismed2.group3.BatchProcessor --chain STAGE[,STAGE...] --output DIR
+ *      [--workers N] [--threads N] [--scratch DIR] [--input-list FILE] [INPUT_DIR...]
+ * </pre>
+ *
+ * Stages, applied from left to right:
+ * <ul>
+ * <li>median[:SIZE] or median:HxWxD, default 3x3x3</li>
+ * <li>threshold:LOWER:UPPER</li>
+ * <li>window:WINDOW:LEVEL</li>
+ * <li>gradient, sobel, roberts</li>
+ * </ul>
+ * The limits of threshold and window are given in stored values, as shown by
+ * the viewer, not in HU; the exported files carry the series' rescale.
+ * Series are processed concurrently by a pool of <code>--workers</code>
+ * threads (default 2), each filter and export using <code>--threads</code>
+ * threads (default: the processors divided among the workers). The number of series
+ * in memory at the same time is therefore bounded by the number of workers,
+ * no matter how many are queued. Input directories can also be listed in a
+ * file, one per line, for more series than fit onto a command line.<br>
+ * <br>
+ * With <code>--scratch</code>, series are read slice by slice into
+ * {@link MappedVolume}s in the given directory instead of the heap, each
+ * stage filters them slab by slab into a second scratch file and the result
+ * is exported from there. This handles series larger than the heap, at the
+ * cost of running every stage on its own.<br>
+ * <br>
+ * A failing series is reported and skipped; the exit code is 1 if any series
+ * failed, 2 for invalid arguments.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class BatchProcessor {
+
+	private final List<File> inputs = new ArrayList<File>();
+	private final List<String> chain = new ArrayList<String>();
+	private File output;
+	private int workers = 2;
+	private int threads = 0;
+	private File scratch;
+	private VolumePool pool;
+	private ExecutorService filterThreads;
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		BatchProcessor batch = new BatchProcessor();
+		try {
+			batch.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		} catch (IOException e) {
+			System.err.println("Could not read input list: " + e.getMessage());
+			System.exit(2);
+		}
+		loadNativeLibraries();
+		System.exit(batch.run() ? 0 : 1);
+	}
+
+	private void parse(String[] args) throws IOException {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				inputs.add(new File(arg));
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value of " + arg + ".");
+			}
+			String value = args[++i];
+			if (arg.equals("--chain")) {
+				for (String stage : value.split(",")) {
+					chain.add(stage.trim());
+				}
+			} else if (arg.equals("--output")) {
+				output = new File(value);
+			} else if (arg.equals("--workers")) {
+				workers = parsePositive(arg, value);
+			} else if (arg.equals("--threads")) {
+				threads = parsePositive(arg, value);
+			} else if (arg.equals("--scratch")) {
+				scratch = new File(value);
+			} else if (arg.equals("--input-list")) {
+				readInputList(new File(value));
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg + ".");
+			}
+		}
+		if (output == null) {
+			throw new IllegalArgumentException("No output location given, use --output DIR.");
+		} else if (inputs.isEmpty()) {
+			throw new IllegalArgumentException("No input directories given.");
+		}
+		for (File input : inputs) {
+			if (!input.isDirectory()) {
+				throw new IllegalArgumentException("Input " + input + " is not a directory.");
+			}
+		}
+		if (scratch != null && !scratch.isDirectory()) {
+			throw new IllegalArgumentException("Scratch location " + scratch + " is not a directory.");
+		}
+		// fail before anything is read if the chain is invalid
+		createPipeline();
+		if (threads == 0) {
+			threads = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+		}
+	}
+
+	private static int parsePositive(String option, String value) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number >= 1) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Invalid value of " + option + ": " + value);
+	}
+
+	private void readInputList(File list) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(list));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					inputs.add(new File(line.trim()));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Creates a new pipeline for the filter chain. Filters keep state, so
+	 * every series gets its own.
+	 */
+	private FilterPipeline createPipeline() {
+		FilterPipeline pipeline = new FilterPipeline();
+		for (String stage : chain) {
+			pipeline.add(createStage(stage));
+		}
+		return pipeline;
+	}
+
+	private static VolumeFilter createStage(String spec) {
+		String[] parts = spec.split(":");
+		String name = parts[0].toLowerCase();
+		try {
+			if (name.equals("median") && parts.length <= 2) {
+				MedianFilter median = new MedianFilter();
+				if (parts.length == 2) {
+					String[] size = parts[1].split("x");
+					if (size.length == 1) {
+						int n = Integer.parseInt(size[0]);
+						median.SetKernelSize(n, n, n);
+					} else if (size.length == 3) {
+						median.SetKernelSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+								Integer.parseInt(size[2]));
+					} else {
+						throw new IllegalArgumentException("Invalid kernel size in stage " + spec + ".");
+					}
+				}
+				median.setAllSlices(true);
+				return median;
+			} else if (name.equals("threshold") && parts.length == 3) {
+				ThresholdFilter threshold = new ThresholdFilter();
+				threshold.setLowerThreshold(Double.parseDouble(parts[1]));
+				threshold.setUpperThreshold(Double.parseDouble(parts[2]));
+				threshold.setAllSlices(true);
+				return threshold;
+			} else if (name.equals("window") && parts.length == 3) {
+				WindowLevelFilter windowLevel = new WindowLevelFilter();
+				windowLevel.setWindowLevel(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+				windowLevel.setAllSlices(true);
+				return windowLevel;
+			} else if (parts.length == 1
+					&& (name.equals("gradient") || name.equals("sobel") || name.equals("roberts"))) {
+				GradientFilter gradient = new GradientFilter();
+				if (name.equals("sobel")) {
+					gradient.setFilter(GradientFilter.Type.Sobel);
+				} else if (name.equals("roberts")) {
+					gradient.setFilter(GradientFilter.Type.Roberts);
+				} else {
+					gradient.setFilter(GradientFilter.Type.GradientXY);
+				}
+				gradient.setAllSlices(true);
+				return gradient;
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number in stage " + spec + ".");
+		}
+		throw new IllegalArgumentException("Unknown stage " + spec + ".");
+	}
+
+	/**
+	 * Processes all series.
+	 *
+	 * @return false if any series failed
+	 */
+	private boolean run() {
+		final int total = inputs.size();
+		final AtomicInteger finished = new AtomicInteger();
+		pool = new VolumePool(workers);
+		filterThreads = Executors.newFixedThreadPool(workers * threads);
+		ExecutorService series = Executors.newFixedThreadPool(workers);
+		List<Future<?>> futures = new ArrayList<Future<?>>(total);
+		Set<String> names = new HashSet<String>();
+		try {
+			for (final File input : inputs) {
+				final File target = new File(output, uniqueName(input.getName(), names));
+				futures.add(series.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						long start = System.nanoTime();
+						ExportSummary summary = new ExportSummary();
+						process(input, target, summary);
+						System.out.println(String.format("[%d/%d] %s -> %s (%s, %.1f s)", finished.incrementAndGet(),
+								total, input, target, summary, (System.nanoTime() - start) / 1e9));
+						return null;
+					}
+				}));
+			}
+			int failed = 0;
+			for (int i = 0; i < total; i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					failed++;
+					Throwable cause = e.getCause() != null ? e.getCause() : e;
+					System.err.println("Failed to process " + inputs.get(i) + ": " + cause);
+				}
+			}
+			System.out.println(String.format("Processed %d series, %d failed.", total - failed, failed));
+			return failed == 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			series.shutdownNow();
+			filterThreads.shutdown();
+		}
+	}
+
+	private static String uniqueName(String name, Set<String> names) {
+		String unique = name;
+		for (int i = 2; !names.add(unique); i++) {
+			unique = name + "-" + i;
+		}
+		return unique;
+	}
+
+	/**
+	 * Reads, filters and exports a single series. The series is read by the
+	 * same {@link DicomSeriesLoader} as with scratch files, so both keep the
+	 * stored values and export them with the series' rescale. The filtered
+	 * volume is returned to the pool for the next series.
+	 */
+	private void process(File input, File target, ExportSummary summary) throws IOException {
+		if (!target.isDirectory() && !target.mkdirs()) {
+			throw new IllegalStateException("Could not create output directory " + target + ".");
+		}
+		if (scratch != null) {
+			processMapped(input, target, summary);
+			return;
+		}
+		DicomSeriesLoader loader = new DicomSeriesLoader();
+		loader.setParallelism(threads);
+		loader.setExecutor(filterThreads);
+		DicomSeries series = loader.load(input);
+
+		FilterPipeline pipeline = createPipeline();
+		pipeline.setPool(pool);
+		pipeline.setParallelism(threads);
+		pipeline.setExecutor(filterThreads);
+		ShortVolume result = pipeline.applyFilter(series.getVolume());
+		try {
+			createExporter(series, summary).exportVolume(result, new File(target, target.getName()).getPath(),
+					series.getImageOrientationPatient(), series.getImagePositionPatient());
+		} finally {
+			pool.release(result);
+		}
+	}
+
+	/**
+	 * Reads, filters and exports a single series through memory-mapped
+	 * scratch files. Every stage reads one file and writes the other, so two
+	 * files of the series' size are needed no matter how long the chain is.
+	 */
+	private void processMapped(File input, File target, ExportSummary summary) throws IOException {
+		DicomSeriesLoader loader = new DicomSeriesLoader();
+		loader.setParallelism(threads);
+		loader.setExecutor(filterThreads);
+		DicomSeries series = loader.scan(input);
+		MappedVolume current = new MappedVolume(series.getWidth(), series.getHeight(), series.getDepth(), scratch);
+		MappedVolume next = null;
+		try {
+			loader.decode(series, current);
+			for (String stage : chain) {
+				VolumeFilter filter = createStage(stage);
+				filter.setParallelism(threads);
+				filter.setExecutor(filterThreads);
+				if (next == null) {
+					next = new MappedVolume(series.getWidth(), series.getHeight(), series.getDepth(), scratch);
+				}
+				filter.filterMapped(current, next);
+				MappedVolume filtered = next;
+				next = current;
+				current = filtered;
+			}
+			createExporter(series, summary).exportVolume(current, new File(target, target.getName()).getPath(),
+					series.getImageOrientationPatient(), series.getImagePositionPatient());
+		} finally {
+			current.close();
+			if (next != null) {
+				next.close();
+			}
+		}
+	}
+
+	private DicomExporter createExporter(DicomSeries series, ExportSummary summary) {
+		DicomExporter exporter = new DicomExporter();
+		exporter.setRescale(series.getRescaleSlope(), series.getRescaleIntercept());
+		exporter.setParallelism(threads);
+		exporter.setExecutor(filterThreads);
+		exporter.setChangeListener(summary);
+		return exporter;
+	}
+
+	/**
+	 * Keeps the last progress reported by the export of a series, which is
+	 * summed up in the single line printed per series.
+	 */
+	private static final class ExportSummary implements ChangeListener {
+		private ExportProgressEvent last;
+
+		@Override
+		public void stateChanged(ChangeEvent e) {
+			last = (ExportProgressEvent) e;
+		}
+
+		@Override
+		public String toString() {
+			if (last == null) {
+				return "nothing written";
+			}
+			return String.format("%d slices, %.1f MB", last.getSlicesWritten(), last.getBytesWritten() / 1e6);
+		}
+	}
+
+	// Load VTK library and print which library was not properly loaded
+	private static void loadNativeLibraries() {
+		if (!vtkNativeLibrary.LoadAllNativeLibraries()) {
+			for (vtkNativeLibrary lib : vtkNativeLibrary.values()) {
+				if (!lib.IsLoaded()) {
+					System.out.println(lib.GetLibraryName() + " not loaded");
+				}
+			}
+		}
+		vtkNativeLibrary.DisableOutputWindow(null);
+	}
+}
@@ -1,8 +1,12 @@
 package vismed2.group3;
 
 import java.awt.BorderLayout;
+import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
 
 import vtk.vtkCanvas;
 import vtk.vtkImageData;
@@ -143,6 +147,19 @@ public class ImageViewerPanel extends JComponent {
 	public void render() {
 		imageViewer.GetVtkImageViewer().Render();
 	}
+
+	/**
+	 * Runs the given task once the native view has been drawn on the screen
+	 * for the first time, or right away if it already has. Only then the
+	 * view's orientation and slices can be accessed. Must be called on the
+	 * event dispatch thread, the task runs there as well.
+	 * 
+	 * @param task
+	 *            The task to run
+	 */
+	public void whenRendered(Runnable task) {
+		imageViewer.whenRendered(task);
+	}
 }
 
 /**
@@ -157,6 +174,8 @@ class VtkImageViewer2Java extends vtkCanvas {
 
 	private static final long serialVersionUID = 1L;
 	private vtkImageViewer2 imageViewer;
+	private boolean rendered = false;
+	private final List<Runnable> renderedTasks = new ArrayList<Runnable>();
 
 	VtkImageViewer2Java(vtkImageData imageData) {
 		imageViewer = new vtkImageViewer2();
@@ -173,6 +192,27 @@ class VtkImageViewer2Java extends vtkCanvas {
 		super.repaint();
 	}
 
+	@Override
+	public void paint(Graphics g) {
+		super.paint(g);
+		if (!rendered) {
+			// the native window has been created by the first paint
+			rendered = true;
+			for (Runnable task : renderedTasks) {
+				SwingUtilities.invokeLater(task);
+			}
+			renderedTasks.clear();
+		}
+	}
+
+	void whenRendered(Runnable task) {
+		if (rendered) {
+			task.run();
+		} else {
+			renderedTasks.add(task);
+		}
+	}
+
 	vtkImageViewer2 GetVtkImageViewer() {
 		return imageViewer;
 	}
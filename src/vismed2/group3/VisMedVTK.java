@@ -5,6 +5,11 @@ import java.awt.Cursor;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -16,17 +21,26 @@ import javax.swing.JSlider;
 import javax.swing.ProgressMonitor;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import net.miginfocom.swing.MigLayout;
 import vismed2.group3.dicom.DicomExporter;
+import vismed2.group3.dicom.DicomSeries;
+import vismed2.group3.dicom.DicomSeriesLoader;
 import vismed2.group3.filters.GradientFilter;
 import vismed2.group3.filters.MIP;
 import vismed2.group3.filters.MedianFilter;
+import vismed2.group3.filters.Progress;
+import vismed2.group3.filters.ResultCache;
 import vismed2.group3.filters.ThresholdFilter;
-import vismed2.group3.filters.VtkJavaFilter;
-import vtk.vtkDICOMImageReader;
+import vismed2.group3.filters.VolumeFilter;
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.PlaneEdit;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.VolumeHistory;
+import vismed2.group3.volume.VtkVolumeConverter;
 import vtk.vtkImageData;
 import vtk.vtkNativeLibrary;
 
@@ -55,7 +69,8 @@ import vtk.vtkNativeLibrary;
  * </ul>
  * </li>
  * <li>Median</li>
- * <li>MIP</li>
+ * <li>MIP (also as minimum and average intensity projection, and as 20 mm
+ * thick-slab MIP following the sliders)</li>
  * <li>Thresholding</li>
  * </ul>
  * Filters can be applied by selecting the desired filter and clicking the
@@ -63,7 +78,14 @@ import vtk.vtkNativeLibrary;
  * volume, or to the actively displayed slices only. This behavior can be
  * controlled using the <i>Apply filter on...</i> combo box.<br>
  * <b>Note:</b> Some filters are only available in active-slice-mode due to
- * performance reasons.
+ * performance reasons.<br>
+ * A running filter can be stopped with the <i>Cancel</i> button; applying
+ * another filter cancels it as well. Results are cached by the content of the
+ * filtered image and the filter's settings, so toggling between filters shows
+ * known results without recomputing them.<br>
+ * Applied filters can be reverted step by step using the <i>Undo</i> and
+ * <i>Redo</i> buttons. The history only stores the slices changed by each
+ * filter.
  * 
  * <h4>DICOM export</h4> Clicking <i>Export DICOM</i> will start the export
  * process. The currently displayed image will be exported in DICOM format using
@@ -72,12 +94,19 @@ import vtk.vtkNativeLibrary;
  * not show the processed image on the default (first) slice. Data will be
  * written to data/output/. Make sure this directory exists and is writable.
  * 
+ * <h4>Loading</h4> The series is read progressively by a
+ * {@link DicomSeriesLoader}: after all headers have been parsed, the middle
+ * slice is read and the window is shown. The remaining slices are read in the
+ * background, coarse to fine (halving the distance between the slices read
+ * with every pass), so the XZ and YZ views fill evenly; the status bar shows
+ * how many slices have been read. Filters and the export are available once all slices are loaded.
+ * 
  * <h4>Implementation details</h4> This class uses
  * {@link vismed2.group3.ImageViewerPanel} to draw VTK views onto a regular
  * lightweight Swing frame. Due to restrictions of VTK's Java-Wrappings, it is
  * not possible to access the actual native views until they are initialized and
- * drawn on the screen. Since the authors did not find an event triggered at
- * this specific state, a static 1500ms timer is used as a workaround.<br>
+ * drawn on the screen, so the views' orientations are set once all three
+ * views have been painted for the first time.<br>
  * <br>
  * All filters as well as the DICOM export will run in separate non-blocking
  * worker threads to guarantee application responsiveness.
@@ -88,9 +117,27 @@ import vtk.vtkNativeLibrary;
  */
 public class VisMedVTK extends JPanel implements ChangeListener, ActionListener {
 	private static final long serialVersionUID = 1L;
-	private vtkDICOMImageReader dicomReader;
+	private static final double SLAB_THICKNESS_MM = 20.0;
+	private static final int DEFAULT_LOWER_THRESHOLD = 250;
+	private static final int DEFAULT_UPPER_THRESHOLD = 1400;
+	private static final long HISTORY_BUDGET_BYTES = 512L * 1024 * 1024;
+	private static final int PROGRESS_INTERVAL_MS = 250;
+	private static final long CACHE_BUDGET_BYTES = 256L * 1024 * 1024;
+	private static final File SERIES_DIRECTORY = new File("data/Bassin");
+	private final DicomSeriesLoader seriesLoader = new DicomSeriesLoader();
+	private DicomSeries series;
+	// slices read so far, and those not yet written into the displayed image
+	private final AtomicInteger loadedSlices = new AtomicInteger();
+	private final Queue<Integer> decodedSlices = new ConcurrentLinkedQueue<Integer>();
+	private long loadStart;
+	private long firstImageMillis = -1;
+	private Timer loadingTimer;
+	private int renderedViews = 0;
+	private boolean viewsReady = false;
 	private vtkImageData currentImageData;
-	private vtkImageData currentImageData_backup;
+	private vtkImageData previousImageData;
+	private VolumeHistory history;
+	private final ResultCache resultCache = new ResultCache(CACHE_BUDGET_BYTES);
 	private ImageViewerPanel panel0;
 	private ImageViewerPanel panel1;
 	private ImageViewerPanel panel2;
@@ -100,39 +147,56 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 	private JLabel sliceSliderLabel0;
 	private JLabel sliceSliderLabel1;
 	private JLabel sliceSliderLabel2;
+	private JSlider thresholdSliderLower;
+	private JSlider thresholdSliderUpper;
+	private JLabel thresholdSliderLabel;
 	private int currentSlice0 = 0;
 	private int currentSlice1 = 0;
 	private int currentSlice2 = 0;
+	// the slice decoded before the views are shown
+	private int firstSlice;
 	private JButton buttonApplyFilter;
+	private JButton buttonCancelFilter;
 	private JButton buttonExport;
-	private static StatusBar statusBar;
+	private JButton buttonUndo;
+	private JButton buttonRedo;
+	private StatusBar statusBar;
+	private Timer progressTimer;
+	private VolumeFilter runningFilter;
 	private ProgressMonitor progressMonitor;
 	private boolean crosshairsFlag = false;
+	private MIP slabMip;
+	private ThresholdFilter liveThreshold;
 	private JComboBox comboBoxFilterSelector;
 	private JComboBox comboBoxSliceSelector;
-	String[] filterSelectorItemsAllSlices = { "Median", "Treshold" };
-	String[] filterSelectorItemsActiveSlice = { "Gradient XY", "Median", "MIP", "Roberts", "Sobel", "Treshold" };
+	String[] filterSelectorItemsAllSlices = { "Gradient XY", "Median", "Roberts", "Sobel", "Treshold" };
+	String[] filterSelectorItemsActiveSlice = { "AvgIP", "Gradient XY", "Median", "MinIP", "MIP", "Roberts",
+			"Slab MIP", "Sobel", "Treshold" };
 	String[] filterSliceSelectorItems = { "Active slice", "All slices" };
 
 	/**
-	 * Prepares the panel and sets up all VTK components. Afterwards a sample
-	 * data set is loaded and displayed.
+	 * Prepares the panel and sets up all VTK components. The middle slice of
+	 * a sample data set is loaded and displayed, the remaining slices are
+	 * loaded in the background.
 	 */
 	public VisMedVTK() {
 		super(new BorderLayout());
 
-		// Get DICOM image data
-		dicomReader = new vtkDICOMImageReader();
-		File directory = new File("data/Bassin");
-		dicomReader.SetDirectoryName(directory.getAbsolutePath());
-		dicomReader.Update();
-		currentImageData = dicomReader.GetOutput();
-
-		currentImageData_backup = new vtkImageData();
-		currentImageData_backup.Initialize();
-		currentImageData_backup.CopyStructure(currentImageData);
-		currentImageData_backup.CopyAttributes(currentImageData);
-		currentImageData_backup.DeepCopy(currentImageData);
+		// Get DICOM image data: the headers and the middle slice, which is
+		// shown first
+		loadStart = System.nanoTime();
+		int middle;
+		try {
+			series = seriesLoader.open(SERIES_DIRECTORY);
+			middle = series.getVolume().getDepth() / 2;
+			seriesLoader.decode(series, new int[] { middle }, null);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not load " + SERIES_DIRECTORY + ": " + e.getMessage(), e);
+		}
+		firstSlice = middle;
+		loadedSlices.set(1);
+		currentImageData = VtkVolumeConverter.createImageData(series.getVolume(), series.getSpacing(),
+				series.getImagePositionPatient());
 
 		panel0 = new ImageViewerPanel(currentImageData);
 		panel1 = new ImageViewerPanel(currentImageData);
@@ -175,14 +239,48 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 		filterPanel.add(comboBoxFilterSelector, "");
 		buttonApplyFilter = new JButton("Apply");
 		buttonApplyFilter.addActionListener(this);
-		filterPanel.add(buttonApplyFilter, "wrap");
+		filterPanel.add(buttonApplyFilter, "");
+		buttonCancelFilter = new JButton("Cancel");
+		buttonCancelFilter.addActionListener(this);
+		buttonCancelFilter.setEnabled(false);
+		filterPanel.add(buttonCancelFilter, "wrap");
 
 		buttonExport = new JButton("Export as DICOM");
 		buttonExport.addActionListener(this);
-		filterPanel.add(buttonExport, "");
+		filterPanel.add(buttonExport, "wrap");
+
+		buttonUndo = new JButton("Undo");
+		buttonUndo.addActionListener(this);
+		filterPanel.add(buttonUndo, "");
+		buttonRedo = new JButton("Redo");
+		buttonRedo.addActionListener(this);
+		filterPanel.add(buttonRedo, "");
+		updateHistoryButtons();
+
+		// Threshold interval; after thresholding all slices the result follows
+		// the sliders while dragging
+		JPanel thresholdPanel = new JPanel(new MigLayout("wrap 2, fillx"));
+		thresholdPanel.setBorder(BorderFactory.createTitledBorder("Threshold"));
+		double[] range = currentImageData.GetScalarRange();
+		int rangeMin = (int) range[0];
+		int rangeMax = (int) range[1];
+		thresholdSliderLower = new JSlider(JSlider.HORIZONTAL, rangeMin, rangeMax,
+				Math.max(rangeMin, Math.min(DEFAULT_LOWER_THRESHOLD, rangeMax)));
+		thresholdSliderLower.addChangeListener(this);
+		thresholdSliderUpper = new JSlider(JSlider.HORIZONTAL, rangeMin, rangeMax,
+				Math.max(rangeMin, Math.min(DEFAULT_UPPER_THRESHOLD, rangeMax)));
+		thresholdSliderUpper.addChangeListener(this);
+		thresholdSliderLabel = new JLabel(
+				String.format("%d - %d", thresholdSliderLower.getValue(), thresholdSliderUpper.getValue()));
+		thresholdPanel.add(new JLabel("Lower:"));
+		thresholdPanel.add(thresholdSliderLower);
+		thresholdPanel.add(new JLabel("Upper:"));
+		thresholdPanel.add(thresholdSliderUpper);
+		thresholdPanel.add(thresholdSliderLabel, "span 2");
 
 		controlsPanel.add(sliderPanel, "wrap");
-		controlsPanel.add(filterPanel);
+		controlsPanel.add(filterPanel, "wrap");
+		controlsPanel.add(thresholdPanel);
 
 		content.add(panel0, "grow");
 		content.add(panel1, "grow");
@@ -192,40 +290,166 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 		add(content, BorderLayout.CENTER);
 		statusBar = new StatusBar();
 		add(statusBar, BorderLayout.SOUTH);
+		progressTimer = new Timer(PROGRESS_INTERVAL_MS, this);
+		loadingTimer = new Timer(PROGRESS_INTERVAL_MS, this);
 
-		Runnable initViewsDelayRunnable = new Runnable() {
+		// the views' orientations can only be set once their native windows
+		// exist, i.e. after they have been drawn for the first time
+		Runnable viewRendered = new Runnable() {
 			public void run() {
-				try {
-					Thread.sleep(1500);
-					panel0.setSliceOrientation(ImageViewerPanel.ORIENTATION_XY);
-					panel1.setSliceOrientation(ImageViewerPanel.ORIENTATION_XZ);
-					panel2.setSliceOrientation(ImageViewerPanel.ORIENTATION_YZ);
-					panel0.render();
-					panel1.render();
-					panel2.render();
+				renderedViews++;
+				if (renderedViews == 3) {
+					initViews();
+				}
+			}
+		};
+		panel0.whenRendered(viewRendered);
+		panel1.whenRendered(viewRendered);
+		panel2.whenRendered(viewRendered);
+
+		loadRemainingSlices(middle);
+	}
+
+	/**
+	 * Sets the views' orientations and the sliders' ranges, which depend on
+	 * them. The XY view starts at the slice decoded first; the XZ and YZ
+	 * views show it as a single row until the other slices are loaded.
+	 */
+	private void initViews() {
+		panel0.setSliceOrientation(ImageViewerPanel.ORIENTATION_XY);
+		panel1.setSliceOrientation(ImageViewerPanel.ORIENTATION_XZ);
+		panel2.setSliceOrientation(ImageViewerPanel.ORIENTATION_YZ);
+		panel0.setSlice(firstSlice);
+		panel0.render();
+		panel1.render();
+		panel2.render();
+		viewsReady = true;
+		firstImageMillis = (System.nanoTime() - loadStart) / 1000000;
+
+		// Set slider values since they depend on orientation
+		sliceSlider0.setMinimum(panel0.getSliceMin());
+		sliceSlider0.setMaximum(panel0.getSliceMax());
+		currentSlice0 = panel0.getSlice();
+		sliceSlider0.setValue(currentSlice0);
+		sliceSliderLabel0.setText(String.format("%d/%d", sliceSlider0.getValue(), sliceSlider0.getMaximum()));
+		sliceSlider1.setMinimum(panel1.getSliceMin());
+		sliceSlider1.setMaximum(panel1.getSliceMax());
+		currentSlice1 = panel1.getSlice();
+		sliceSliderLabel1.setText(String.format("%d/%d", sliceSlider1.getValue(), sliceSlider1.getMaximum()));
+		sliceSlider2.setMinimum(panel2.getSliceMin());
+		sliceSlider2.setMaximum(panel2.getSliceMax());
+		currentSlice2 = panel2.getSlice();
+		sliceSliderLabel2.setText(String.format("%d/%d", sliceSlider2.getValue(), sliceSlider2.getMaximum()));
+	}
 
-					// Set slider values since they depend on orientation
-					sliceSlider0.setMinimum(panel0.getSliceMin());
-					sliceSlider0.setMaximum(panel0.getSliceMax());
-					currentSlice0 = panel0.getSlice();
-					sliceSliderLabel0
-							.setText(String.format("%d/%d", sliceSlider0.getValue(), sliceSlider0.getMaximum()));
-					sliceSlider1.setMinimum(panel1.getSliceMin());
-					sliceSlider1.setMaximum(panel1.getSliceMax());
-					currentSlice1 = panel1.getSlice();
-					sliceSliderLabel1
-							.setText(String.format("%d/%d", sliceSlider1.getValue(), sliceSlider1.getMaximum()));
-					sliceSlider2.setMinimum(panel2.getSliceMin());
-					sliceSlider2.setMaximum(panel2.getSliceMax());
-					currentSlice2 = panel2.getSlice();
-					sliceSliderLabel2
-							.setText(String.format("%d/%d", sliceSlider2.getValue(), sliceSlider2.getMaximum()));
-				} catch (InterruptedException iex) {
+	/**
+	 * Reads all slices except the given one in the background. Every decoded
+	 * slice is queued, and the loading timer writes the queued slices into the
+	 * displayed image.
+	 */
+	private void loadRemainingSlices(int loaded) {
+		final int depth = series.getVolume().getDepth();
+		final int[] order = loadingOrder(depth, loaded);
+		buttonApplyFilter.setEnabled(false);
+		buttonExport.setEnabled(false);
+		statusBar.setMessage(String.format("Loading series: %d/%d slices", loadedSlices.get(), depth));
+		loadingTimer.start();
+		SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+			@Override
+			public Void doInBackground() throws IOException {
+				seriesLoader.decode(series, order, new DicomSeriesLoader.SliceListener() {
+					@Override
+					public void sliceDecoded(int slice) {
+						decodedSlices.add(slice);
+						loadedSlices.incrementAndGet();
+					}
+				});
+				return null;
+			}
+
+			@Override
+			public void done() {
+				loadingTimer.stop();
+				try {
+					get();
+				} catch (InterruptedException ignore) {
+				} catch (java.util.concurrent.ExecutionException e) {
+					Throwable cause = e.getCause() != null ? e.getCause() : e;
+					statusBar.setMessage("Loading the series failed: " + cause.getMessage());
+					System.err.println("Error loading series: " + cause);
+					return;
 				}
+				showLoadedSlices();
+				// Only the changes of each filter are kept to undo them
+				history = new VolumeHistory(VtkVolumeConverter.toVolume(currentImageData), HISTORY_BUDGET_BYTES);
+				updateHistoryButtons();
+				updateThresholdRange();
+				buttonApplyFilter.setEnabled(true);
+				buttonExport.setEnabled(true);
+				String message = String.format("Ready (%s, first image after %s)", series,
+						firstImageMillis < 0 ? "?" : firstImageMillis + " ms");
+				statusBar.setMessage(message);
 			}
 		};
-		Thread initViewsDelayThread = new Thread(initViewsDelayRunnable);
-		initViewsDelayThread.start();
+		worker.execute();
+	}
+
+	/**
+	 * Returns the slices to read after the first one, coarse to fine: every
+	 * slice at a multiple of the largest power of two below the depth, then
+	 * at multiples of half of it, and so on.
+	 */
+	private static int[] loadingOrder(int depth, int first) {
+		int[] order = new int[depth - 1];
+		boolean[] taken = new boolean[depth];
+		taken[first] = true;
+		int n = 0;
+		for (int stride = Integer.highestOneBit(depth); stride >= 1; stride /= 2) {
+			for (int z = 0; z < depth; z += stride) {
+				if (!taken[z]) {
+					taken[z] = true;
+					order[n++] = z;
+				}
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Writes the slices read since the last call into the displayed image.
+	 * Called periodically by the loading timer.
+	 */
+	private void showLoadedSlices() {
+		int loaded = loadedSlices.get();
+		boolean written = false;
+		for (Integer z = decodedSlices.poll(); z != null; z = decodedSlices.poll()) {
+			VtkVolumeConverter.writePlane(series.getVolume().getPlane(Plane.XY, z), Plane.XY, z, currentImageData);
+			written = true;
+		}
+		if (written) {
+			if (viewsReady) {
+				panel0.render();
+				panel1.render();
+				panel2.render();
+			}
+		}
+		statusBar.setMessage(
+				String.format("Loading series: %d/%d slices", loaded, series.getVolume().getDepth()));
+	}
+
+	/**
+	 * Sets the range of the threshold sliders to the range of the image.
+	 */
+	private void updateThresholdRange() {
+		double[] range = currentImageData.GetScalarRange();
+		int rangeMin = (int) range[0];
+		int rangeMax = (int) range[1];
+		thresholdSliderLower.setMinimum(rangeMin);
+		thresholdSliderLower.setMaximum(rangeMax);
+		thresholdSliderLower.setValue(Math.max(rangeMin, Math.min(DEFAULT_LOWER_THRESHOLD, rangeMax)));
+		thresholdSliderUpper.setMinimum(rangeMin);
+		thresholdSliderUpper.setMaximum(rangeMax);
+		thresholdSliderUpper.setValue(Math.max(rangeMin, Math.min(DEFAULT_UPPER_THRESHOLD, rangeMax)));
 	}
 
 	public static void main(String s[]) {
@@ -245,25 +469,37 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 	public void stateChanged(ChangeEvent e) {
 		if (e.getSource().equals(sliceSlider0)) {
 			currentSlice0 = sliceSlider0.getValue();
-			if (crosshairsFlag) {
-				panel0.setInputData(currentImageData_backup);
+			if (slabMip != null) {
+				updateSlab(Plane.XY, currentSlice0);
+			} else if (crosshairsFlag && previousImageData != null) {
+				panel0.setInputData(previousImageData);
 			}
 			panel0.setSlice(currentSlice0);
 			sliceSliderLabel0.setText(String.format("%d/%d", sliceSlider0.getValue(), sliceSlider0.getMaximum()));
 		} else if (e.getSource().equals(sliceSlider1)) {
 			currentSlice1 = sliceSlider1.getValue();
-			if (crosshairsFlag) {
-				panel1.setInputData(currentImageData_backup);
+			if (slabMip != null) {
+				updateSlab(Plane.XZ, currentSlice1);
+			} else if (crosshairsFlag && previousImageData != null) {
+				panel1.setInputData(previousImageData);
 			}
 			panel1.setSlice(currentSlice1);
 			sliceSliderLabel1.setText(String.format("%d/%d", sliceSlider1.getValue(), sliceSlider1.getMaximum()));
 		} else if (e.getSource().equals(sliceSlider2)) {
 			currentSlice2 = sliceSlider2.getValue();
-			if (crosshairsFlag) {
-				panel2.setInputData(currentImageData_backup);
+			if (slabMip != null) {
+				updateSlab(Plane.YZ, currentSlice2);
+			} else if (crosshairsFlag && previousImageData != null) {
+				panel2.setInputData(previousImageData);
 			}
 			panel2.setSlice(currentSlice2);
 			sliceSliderLabel2.setText(String.format("%d/%d", sliceSlider2.getValue(), sliceSlider2.getMaximum()));
+		} else if (e.getSource().equals(thresholdSliderLower) || e.getSource().equals(thresholdSliderUpper)) {
+			thresholdSliderLabel.setText(
+					String.format("%d - %d", thresholdSliderLower.getValue(), thresholdSliderUpper.getValue()));
+			if (liveThreshold != null) {
+				updateThreshold();
+			}
 		}
 	}
 
@@ -271,29 +507,35 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 	public void actionPerformed(ActionEvent e) {
 		if (e.getSource().equals(buttonApplyFilter)) {
 			if (comboBoxFilterSelector.getSelectedItem().equals("Gradient XY")) {
-				if (comboBoxSliceSelector.getSelectedItem().equals("Active slice")) {
-					GradientFilter gradient = new GradientFilter();
-					gradient.setFilter(GradientFilter.Type.GradientXY);
+				GradientFilter gradient = new GradientFilter();
+				gradient.setFilter(GradientFilter.Type.GradientXY);
+				if (comboBoxSliceSelector.getSelectedItem().equals("All slices")) {
+					crosshairsFlag = gradient.setAllSlices(true);
+				} else {
 					crosshairsFlag = gradient.setAllSlices(false);
-					gradient.setSlice(panel0.getSlice(), panel1.getSlice(), panel2.getSlice());
-					applyFilter(gradient);
 				}
+				gradient.setSlice(panel0.getSlice(), panel1.getSlice(), panel2.getSlice());
+				applyFilter(gradient);
 			} else if (comboBoxFilterSelector.getSelectedItem().equals("Sobel")) {
-				if (comboBoxSliceSelector.getSelectedItem().equals("Active slice")) {
-					GradientFilter gradient = new GradientFilter();
-					gradient.setFilter(GradientFilter.Type.Sobel);
+				GradientFilter gradient = new GradientFilter();
+				gradient.setFilter(GradientFilter.Type.Sobel);
+				if (comboBoxSliceSelector.getSelectedItem().equals("All slices")) {
+					crosshairsFlag = gradient.setAllSlices(true);
+				} else {
 					crosshairsFlag = gradient.setAllSlices(false);
-					gradient.setSlice(panel0.getSlice(), panel1.getSlice(), panel2.getSlice());
-					applyFilter(gradient);
 				}
+				gradient.setSlice(panel0.getSlice(), panel1.getSlice(), panel2.getSlice());
+				applyFilter(gradient);
 			} else if (comboBoxFilterSelector.getSelectedItem().equals("Roberts")) {
-				if (comboBoxSliceSelector.getSelectedItem().equals("Active slice")) {
-					GradientFilter gradient = new GradientFilter();
-					gradient.setFilter(GradientFilter.Type.Roberts);
+				GradientFilter gradient = new GradientFilter();
+				gradient.setFilter(GradientFilter.Type.Roberts);
+				if (comboBoxSliceSelector.getSelectedItem().equals("All slices")) {
+					crosshairsFlag = gradient.setAllSlices(true);
+				} else {
 					crosshairsFlag = gradient.setAllSlices(false);
-					gradient.setSlice(panel0.getSlice(), panel1.getSlice(), panel2.getSlice());
-					applyFilter(gradient);
 				}
+				gradient.setSlice(panel0.getSlice(), panel1.getSlice(), panel2.getSlice());
+				applyFilter(gradient);
 			} else if (comboBoxFilterSelector.getSelectedItem().equals("Median")) {
 				MedianFilter median = new MedianFilter();
 				median.SetKernelSize(3, 3, 3);
@@ -311,20 +553,51 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 				} else {
 					crosshairsFlag = threshold.setAllSlices(false);
 				}
-				threshold.setUpperThreshold(1400.0);
-				threshold.setLowerThreshold(250.0);
+				threshold.setInteractive(true);
+				threshold.setUpperThreshold(thresholdSliderUpper.getValue());
+				threshold.setLowerThreshold(thresholdSliderLower.getValue());
 				threshold.setSlice(panel0.getSlice(), panel1.getSlice(), panel2.getSlice());
 				applyFilter(threshold);
-			} else if (comboBoxFilterSelector.getSelectedItem().equals("MIP")) {
+			} else if (comboBoxFilterSelector.getSelectedItem().equals("MIP")
+					|| comboBoxFilterSelector.getSelectedItem().equals("MinIP")
+					|| comboBoxFilterSelector.getSelectedItem().equals("AvgIP")) {
 				if (comboBoxSliceSelector.getSelectedItem().equals("Active slice")) {
 					MIP mip = new MIP();
+					if (comboBoxFilterSelector.getSelectedItem().equals("MinIP")) {
+						mip.setMode(MIP.Mode.MINIMUM);
+					} else if (comboBoxFilterSelector.getSelectedItem().equals("AvgIP")) {
+						mip.setMode(MIP.Mode.AVERAGE);
+					}
 					crosshairsFlag = true;
 					mip.setSlice(panel0.getSlice(), panel1.getSlice(), panel2.getSlice());
 					applyFilter(mip);
 				}
+			} else if (comboBoxFilterSelector.getSelectedItem().equals("Slab MIP")) {
+				if (comboBoxSliceSelector.getSelectedItem().equals("Active slice")) {
+					MIP mip = new MIP();
+					double[] spacing = currentImageData.GetSpacing();
+					mip.setSlabThickness(slabThickness(spacing[0]), slabThickness(spacing[1]),
+							slabThickness(spacing[2]));
+					crosshairsFlag = false;
+					mip.setSlice(panel0.getSlice(), panel1.getSlice(), panel2.getSlice());
+					applyFilter(mip);
+				}
+			}
+		} else if (e.getSource().equals(buttonCancelFilter)) {
+			if (runningFilter != null) {
+				runningFilter.cancel();
+				statusBar.setMessage("Cancelling filter " + runningFilter.getFilterName() + "...");
 			}
 		} else if (e.getSource().equals(buttonExport)) {
 			exportCurrentImage();
+		} else if (e.getSource().equals(progressTimer)) {
+			showProgress();
+		} else if (e.getSource().equals(loadingTimer)) {
+			showLoadedSlices();
+		} else if (e.getSource().equals(buttonUndo)) {
+			showHistoryState(history.undo());
+		} else if (e.getSource().equals(buttonRedo)) {
+			showHistoryState(history.redo());
 		} else if (e.getSource().equals(comboBoxSliceSelector)) {
 			if (comboBoxSliceSelector.getSelectedItem().equals("All slices")) {
 				comboBoxFilterSelector.removeAllItems();
@@ -340,26 +613,117 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 		}
 	}
 
-	private void applyFilter(final VtkJavaFilter filter) {
+	/**
+	 * Runs a filter on the displayed image in the background. A filter which
+	 * is still running is cancelled and superseded: it stops after its current
+	 * slab, and its result is discarded even if it completes in the meantime.
+	 * Both runs read the displayed image, which is replaced only by the result
+	 * of the latest run.
+	 */
+	private void applyFilter(final VolumeFilter filter) {
+		if (runningFilter != null) {
+			runningFilter.cancel();
+		}
 		setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+		// the image is read by the filter now and must neither be
+		// re-thresholded nor get a moved slab written into it
+		liveThreshold = null;
+		slabMip = null;
+		buttonUndo.setEnabled(false);
+		buttonRedo.setEnabled(false);
+		buttonCancelFilter.setEnabled(true);
+		final vtkImageData input = currentImageData;
 		statusBar.setMessage("Applying filter " + filter.getFilterName() + "...");
-		SwingWorker<VtkJavaFilter, Void> worker = new SwingWorker<VtkJavaFilter, Void>() {
-
-			private VtkJavaFilter algorithm;
+		runningFilter = filter;
+		progressTimer.start();
+		SwingWorker<FilterRun, Void> worker = new SwingWorker<FilterRun, Void>() {
 
 			@Override
-			public VtkJavaFilter doInBackground() {
-				algorithm = filter;
-				algorithm.applyFilter(currentImageData);
-				return algorithm;
+			public FilterRun doInBackground() {
+				if (filter.isActiveSliceMode() && !isLive(filter)) {
+					return filterPlanes();
+				}
+				// the only copy of the image, used for the fingerprint and
+				// handed to the filter, which may overwrite it
+				ShortVolume volume = VtkVolumeConverter.toVolume(input);
+				String cacheKey = filter.getCacheKey();
+				long fingerprint = 0;
+				if (cacheKey != null) {
+					fingerprint = volume.fingerprint();
+					ShortVolume cached = resultCache.get(fingerprint, cacheKey);
+					if (cached != null) {
+						return new FilterRun(createOutput(cached), history.prepare(cached, filter.getFilterName()),
+								true);
+					}
+				}
+				ShortVolume result = filter.applyFilter(volume);
+				if (filter.isCancelled()) {
+					// superseded after its last slab: neither copy the result
+					// nor hold the history's lock to compute a delta for it
+					throw new CancellationException(filter.getFilterName() + " has been cancelled.");
+				}
+				if (cacheKey != null) {
+					resultCache.put(fingerprint, cacheKey, result);
+				}
+				// the history takes ownership of its states, while live
+				// filters keep updating their result
+				ShortVolume state = isLive(filter) ? result.copy() : result;
+				// the delta is computed here, the step is committed in done()
+				// unless this run has been superseded
+				return new FilterRun(createOutput(result), history.prepare(state, filter.getFilterName()), false);
+			}
+
+			/**
+			 * Filters the active planes only. The image is not copied to the
+			 * heap: the filter reads the planes and their halo, the output is
+			 * a native copy of the image with the planes written into it, and
+			 * the history's delta is computed from the planes. Such cheap
+			 * runs are not cached.
+			 */
+			private FilterRun filterPlanes() {
+				PlaneEdit planes = filter.applyFilterToPlanes(input);
+				if (filter.isCancelled()) {
+					throw new CancellationException(filter.getFilterName() + " has been cancelled.");
+				}
+				vtkImageData output = new vtkImageData();
+				output.DeepCopy(input);
+				VtkVolumeConverter.writePlanes(planes, output);
+				return new FilterRun(output, history.prepare(planes, filter.getFilterName()), false);
+			}
+
+			/**
+			 * Copies a result into a new image, the displayed one is still
+			 * shown until the run is committed.
+			 */
+			private vtkImageData createOutput(ShortVolume result) {
+				vtkImageData output = new vtkImageData();
+				VtkVolumeConverter.toImageData(result, input, output);
+				return output;
 			}
 
 			@Override
 			public void done() {
+				if (runningFilter != filter) {
+					// superseded by a newer run, which owns the UI state now
+					return;
+				}
+				progressTimer.stop();
+				runningFilter = null;
+				buttonCancelFilter.setEnabled(false);
 				setCursor(Cursor.getDefaultCursor());
 				statusBar.setMessage("Ready");
 				try {
-					currentImageData = get().GetOutput();
+					FilterRun run = get();
+					history.commit(run.step);
+					currentImageData = run.output;
+					if (run.cached) {
+						statusBar.setMessage("Ready (" + filter.getFilterName() + " taken from cache)");
+					}
+					// shown instead of the result once the active slices move
+					previousImageData = crosshairsFlag ? input : null;
+					slabMip = isLive(filter) && filter instanceof MIP ? (MIP) filter : null;
+					liveThreshold = isLive(filter) && filter instanceof ThresholdFilter ? (ThresholdFilter) filter
+							: null;
 					panel0.setInputData(currentImageData);
 					panel1.setInputData(currentImageData);
 					panel2.setInputData(currentImageData);
@@ -368,20 +732,147 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 					panel2.render();
 				} catch (InterruptedException ignore) {
 				} catch (java.util.concurrent.ExecutionException e) {
-					String why = null;
 					Throwable cause = e.getCause();
-					if (cause != null) {
-						why = cause.getMessage();
+					if (cause instanceof CancellationException) {
+						statusBar.setMessage("Filter " + filter.getFilterName() + " cancelled");
 					} else {
-						why = e.getMessage();
+						String why = null;
+						if (cause != null) {
+							why = cause.getMessage();
+						} else {
+							why = e.getMessage();
+						}
+						System.err.println("Error applying filter: " + why);
 					}
-					System.err.println("Error applying filter: " + why);
 				}
+				updateHistoryButtons();
 			}
 		};
 		worker.execute();
 	}
 
+	/**
+	 * Returns true if the filter's result can still be changed interactively
+	 * once it is displayed: the slabs of a slab MIP follow the sliders, an
+	 * interactive threshold follows the threshold sliders.
+	 */
+	private static boolean isLive(VolumeFilter filter) {
+		if (filter instanceof MIP) {
+			return ((MIP) filter).isSlabMode();
+		}
+		return filter instanceof ThresholdFilter && ((ThresholdFilter) filter).isInteractive();
+	}
+
+	/**
+	 * The outcome of a filter run in the background.
+	 */
+	private static class FilterRun {
+		private final vtkImageData output;
+		private final VolumeHistory.PendingStep step;
+		private final boolean cached;
+
+		FilterRun(vtkImageData output, VolumeHistory.PendingStep step, boolean cached) {
+			this.output = output;
+			this.step = step;
+			this.cached = cached;
+		}
+	}
+
+	/**
+	 * Moves the slab of the current slab MIP to the given slice and writes the
+	 * updated projection into the displayed image. The slice the slab left
+	 * shows the unprojected image again. Undo reverts the MIP as displayed.
+	 */
+	private void updateSlab(Plane plane, int slice) {
+		int previous = slabMip.getSlabPosition(plane);
+		ShortVolume result = slabMip.moveSlab(plane, slice);
+		if (result == null) {
+			return;
+		}
+		if (previous != slice) {
+			VtkVolumeConverter.writePlane(result.getPlane(plane, previous), plane, previous, currentImageData);
+		}
+		VtkVolumeConverter.writePlane(result.getPlane(plane, slice), plane, slice, currentImageData);
+		// the moved slab replaces the MIP's step, as a dragged threshold does
+		history.amend(result);
+		updateHistoryButtons();
+	}
+
+	/**
+	 * Shows the progress of the running filter in the status bar. Called
+	 * periodically by the progress timer, so the filter's workers never post
+	 * to the event dispatch thread themselves.
+	 */
+	private void showProgress() {
+		if (runningFilter == null) {
+			return;
+		}
+		Progress progress = runningFilter.getProgress();
+		long remaining = progress.getRemainingMillis();
+		statusBar.setMessage(String.format("Applying %s Filter. Progress: %d%% (%.1f Mvoxel/s, %s remaining)",
+				runningFilter.getFilterName(), (int) (100 * progress.getFraction()),
+				progress.getThroughput() / 1e6, remaining < 0 ? "?" : (remaining + 999) / 1000 + " s"));
+	}
+
+	/**
+	 * Displays a state restored from the history. The displayed image is
+	 * overwritten in place.
+	 */
+	private void showHistoryState(ShortVolume state) {
+		if (state != null) {
+			VtkVolumeConverter.update(state, currentImageData);
+			slabMip = null;
+			liveThreshold = null;
+			crosshairsFlag = false;
+			previousImageData = null;
+			panel0.setInputData(currentImageData);
+			panel1.setInputData(currentImageData);
+			panel2.setInputData(currentImageData);
+			panel0.render();
+			panel1.render();
+			panel2.render();
+		}
+		updateHistoryButtons();
+	}
+
+	private void updateHistoryButtons() {
+		if (history == null) {
+			// still loading
+			buttonUndo.setEnabled(false);
+			buttonRedo.setEnabled(false);
+			return;
+		}
+		buttonUndo.setEnabled(history.canUndo());
+		buttonRedo.setEnabled(history.canRedo());
+		buttonUndo.setToolTipText(history.canUndo() ? "Undo " + history.getUndoLabel() : null);
+		buttonRedo.setToolTipText(history.canRedo() ? "Redo " + history.getRedoLabel() : null);
+	}
+
+	/**
+	 * Re-thresholds the last threshold result with the interval of the
+	 * threshold sliders. Only voxels whose membership changed are touched, and
+	 * only the slices containing them are written to the displayed image.
+	 */
+	private void updateThreshold() {
+		ShortVolume result = liveThreshold.updateInterval(thresholdSliderLower.getValue(),
+				thresholdSliderUpper.getValue());
+		for (int z : liveThreshold.getChangedSlices()) {
+			VtkVolumeConverter.writePlane(result.getPlane(Plane.XY, z), Plane.XY, z, currentImageData);
+		}
+		history.amend(result);
+		updateHistoryButtons();
+		panel0.render();
+		panel1.render();
+		panel2.render();
+	}
+
+	/**
+	 * Converts {@link #SLAB_THICKNESS_MM} to a number of slices.
+	 */
+	private static int slabThickness(double spacing) {
+		return Math.max(1, (int) Math.round(SLAB_THICKNESS_MM / spacing));
+	}
+
 	private void exportCurrentImage() {
 		final String msgTemplate = "Completed %d of %d slices.\n";
 		final int numberOfImagesToExport = currentImageData.GetDimensions()[2];
@@ -391,7 +882,9 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 			public Void doInBackground() {
 				DicomExporter exporter = new DicomExporter();
 				exporter.setChangeListener(this);
-				exporter.exportImageData(currentImageData, "data/output/test", dicomReader);
+				exporter.setRescale(series.getRescaleSlope(), series.getRescaleIntercept());
+				exporter.exportImageData(currentImageData, "data/output/test", series.getImageOrientationPatient(),
+						series.getImagePositionPatient());
 				return null;
 			}
 
@@ -426,21 +919,6 @@ public class VisMedVTK extends JPanel implements ChangeListener, ActionListener
 		task.execute();
 	}
 
-	/**
-	 * Sets the message displayed in the panel's status bar at the bottom. Can
-	 * be invoked safely from any thread.
-	 * 
-	 * @param status
-	 *            The message to display
-	 */
-	public static void setStatusBar(final String status) {
-		SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				statusBar.setMessage(status);
-			}
-		});
-	}
-
 	// Load VTK library and print which library was not properly loaded
 	static {
 		if (!vtkNativeLibrary.LoadAllNativeLibraries()) {
@@ -1,19 +1,39 @@
 package vismed2.group3.dicom;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.io.DicomOutputStream;
 import org.dcm4che3.util.UIDUtils;
 
+import vismed2.group3.volume.MappedVolume;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.VtkVolumeConverter;
 import vtk.vtkDICOMImageReader;
 import vtk.vtkImageData;
 
@@ -51,6 +71,29 @@ import vtk.vtkImageData;
  * columns as well as the smallest and largest occurring pixel value are set
  * automatically depending on the currently processed instance.
  * 
+ * <h4>Parallel Export</h4> By default, the slices are converted and written
+ * by several threads, see {@link #setParallelism(int)}. The datasets of all
+ * slices are copies of a template holding the modules shared by the series,
+ * so the threads do not share any mutable state. Registered
+ * {@link ChangeListener}s are still informed in slice order on the thread
+ * calling the export.
+ * 
+ * <h4>Multi-frame Export</h4> Instead of one CT image per slice, the whole
+ * volume can be written as a single Enhanced CT image (C.8.15.2) with one
+ * frame per slice, see {@link #setMultiFrame(boolean)}. The attributes of the
+ * Image Plane Module are then stored in the shared and per-frame functional
+ * groups. The pixel data is streamed to the file frame by frame.
+ * 
+ * <h4>Compression</h4> The pixel data can optionally be compressed with the
+ * RLE Lossless transfer syntax, see {@link #setTransferSyntax(String)}, which
+ * pays off for thresholded or masked volumes with large uniform areas.
+ * 
+ * <h4>Output</h4> Only the headers are encoded with dcm4che. The pixel data is
+ * written through a {@link java.nio.channels.FileChannel} from direct
+ * buffers, and every file is set to its final length before it is written.
+ * Whether the files are forced to the storage device is controlled by
+ * {@link #setSync(boolean)}.
+ * 
  * 
  * @author Sebastian Haas
  * @author Alexander Tatowsky
@@ -68,8 +111,112 @@ import vtk.vtkImageData;
  */
 public class DicomExporter {
 
+	/**
+	 * Number of slices per worker thread which may be converted and written
+	 * ahead of the last slice reported as written.
+	 */
+	private static final int SLICES_PER_THREAD = 4;
+
+	private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "dicom-exporter-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	/**
+	 * Reads a slice of the volume to export.
+	 */
+	private interface SliceSource {
+		/**
+		 * Copies the voxels of slice z in x-fastest order into dst. Must be
+		 * safe to call from several threads for different slices.
+		 */
+		void read(int z, short[] dst);
+	}
+
+	/**
+	 * The voxels of a slice and its pixel data, reused for all slices written
+	 * by the same thread. The pixel data is held in direct buffers, which
+	 * file channels write without copying them first.
+	 */
+	private static final class SliceBuffer {
+		private final int width;
+		private final int height;
+		final short[] voxels;
+		final ByteBuffer pixelData;
+		private final ShortBuffer pixels;
+		private final short[] row;
+		private ByteBuffer compressed;
+		// the pixel data as stored in the file, from its position to its
+		// limit, and its length
+		ByteBuffer frame;
+		int length;
+
+		SliceBuffer(int width, int height) {
+			this.width = width;
+			this.height = height;
+			voxels = new short[width * height];
+			pixelData = ByteBuffer.allocateDirect(2 * voxels.length).order(ByteOrder.LITTLE_ENDIAN);
+			pixels = pixelData.asShortBuffer();
+			row = new short[width];
+		}
+
+		/**
+		 * Fills the pixel data from the voxels, adding the offset, and
+		 * compresses it with the given transfer syntax.
+		 */
+		void encode(short offset, String transferSyntax) {
+			pixels.clear();
+			// rows are written top to bottom, VTK stores them bottom up
+			for (int y = height - 1; y >= 0; y--) {
+				int start = y * width;
+				for (int x = 0; x < width; x++) {
+					row[x] = (short) (voxels[start + x] + offset);
+				}
+				// one bulk copy instead of a checked put per pixel
+				pixels.put(row);
+			}
+
+			if (transferSyntax.equals(UID.RLELossless)) {
+				if (compressed == null) {
+					compressed = ByteBuffer.allocateDirect(RleEncoder.getMaxLength(width, height));
+				}
+				// the limit of the previous frame
+				compressed.clear();
+				length = RleEncoder.encode(pixelData, width, height, compressed);
+				frame = compressed;
+			} else {
+				length = pixelData.capacity();
+				frame = pixelData;
+			}
+			frame.clear();
+			frame.limit(length);
+		}
+	}
+
+	/**
+	 * The largest pixel data of a single file, its length is stored in 32
+	 * bits with 0xFFFFFFFF reserved for undefined lengths.
+	 */
+	private static final long MAX_PIXEL_DATA_BYTES = 0xFFFFFFFEL;
+
 	private Attributes dataset;
 	private ChangeListener listener;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private ExecutorService executor;
+	private boolean multiFrame = false;
+	private String transferSyntax = UID.ExplicitVRLittleEndian;
+	private boolean sync = false;
+	private double rescaleSlope = 1;
+	private double rescaleIntercept = 0;
+	// progress of the current export
+	private long bytesWritten;
+	private long uncompressedBytes;
 
 	private Attributes createDataset() {
 		Attributes ds = new Attributes();
@@ -86,8 +233,20 @@ public class DicomExporter {
 	 */
 	public void setImagePixelModule(vtkImageData imageData) {
 		int[] dims = imageData.GetDimensions();
-		double[] range = imageData.GetScalarRange();
+		setImagePixelModule(dims[0], dims[1], imageData.GetScalarRange());
+	}
 
+	/**
+	 * C.7.6.3 Image Pixel Module
+	 * 
+	 * @param columns
+	 *            The number of pixels per row
+	 * @param rows
+	 *            The number of rows
+	 * @param range
+	 *            The smallest and largest value of the whole volume
+	 */
+	public void setImagePixelModule(int columns, int rows, double[] range) {
 		dataset.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
 		dataset.setInt(Tag.PixelRepresentation, VR.US, 0);
 		dataset.setInt(Tag.SamplesPerPixel, VR.US, 1);
@@ -96,8 +255,8 @@ public class DicomExporter {
 		dataset.setInt(Tag.BitsStored, VR.US, 12);
 		dataset.setInt(Tag.HighBit, VR.US, 11);
 
-		dataset.setInt(Tag.Columns, VR.US, dims[0]);
-		dataset.setInt(Tag.Rows, VR.US, dims[1]);
+		dataset.setInt(Tag.Columns, VR.US, columns);
+		dataset.setInt(Tag.Rows, VR.US, rows);
 		dataset.setInt(Tag.SmallestImagePixelValue, VR.US, 0);
 		dataset.setInt(Tag.LargestImagePixelValue, VR.US, (short) (range[1] + Math.abs(range[0])));
 	}
@@ -118,12 +277,17 @@ public class DicomExporter {
 	 */
 	public void setImagePlaneModule(int[] imageOrientationPatient, double[] imagePositionPatient, int sliceLocation,
 			int sliceThickness) {
+		setImagePlaneModule(dataset, imageOrientationPatient, imagePositionPatient, sliceLocation, sliceThickness);
+	}
+
+	private static void setImagePlaneModule(Attributes ds, int[] imageOrientationPatient,
+			double[] imagePositionPatient, int sliceLocation, int sliceThickness) {
 		imagePositionPatient[2] = sliceLocation * -1;
-		dataset.setFloat(Tag.SliceThickness, VR.DS, sliceThickness);
-		dataset.setString(Tag.PixelSpacing, VR.DS, "0.6640625\\0.6640625");
-		dataset.setString(Tag.ImageOrientationPatient, VR.DS, toDicomCollectionString(imageOrientationPatient));
-		dataset.setString(Tag.ImagePositionPatient, VR.DS, toDicomCollectionString(imagePositionPatient));
-		dataset.setFloat(Tag.SliceLocation, VR.DS, sliceLocation);
+		ds.setFloat(Tag.SliceThickness, VR.DS, sliceThickness);
+		ds.setString(Tag.PixelSpacing, VR.DS, "0.6640625\\0.6640625");
+		ds.setString(Tag.ImageOrientationPatient, VR.DS, toDicomCollectionString(imageOrientationPatient));
+		ds.setString(Tag.ImagePositionPatient, VR.DS, toDicomCollectionString(imagePositionPatient));
+		ds.setFloat(Tag.SliceLocation, VR.DS, sliceLocation);
 	}
 
 	/**
@@ -178,11 +342,15 @@ public class DicomExporter {
 	 * C.7.6.1 General Image Module
 	 */
 	public void setGeneralImageModule(String instanceNumber) {
+		setGeneralImageModule(dataset, instanceNumber);
+	}
+
+	private static void setGeneralImageModule(Attributes ds, String instanceNumber) {
 		Date now = new Date();
-		dataset.setString(Tag.InstanceNumber, VR.SH, instanceNumber);
-		dataset.setDate(Tag.ContentDate, VR.DA, now);
-		dataset.setDate(Tag.ContentTime, VR.DA, now);
-		dataset.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+		ds.setString(Tag.InstanceNumber, VR.SH, instanceNumber);
+		ds.setDate(Tag.ContentDate, VR.DA, now);
+		ds.setDate(Tag.ContentTime, VR.DA, now);
+		ds.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
 	}
 
 	/**
@@ -203,6 +371,132 @@ public class DicomExporter {
 		listener = null;
 	}
 
+	/**
+	 * Sets the number of threads converting and writing slices. Defaults to
+	 * the number of available processors. With a parallelism of 1, all slices
+	 * are written one after another on the calling thread. The progress is
+	 * reported in slice order regardless of this setting.
+	 *
+	 * @param parallelism
+	 *            The number of threads, at least 1
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism + ".");
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the executor to convert and write slices on with a parallelism
+	 * above 1. If none is set, threads are created for each export. The
+	 * executor is not shut down, only the tasks of a failed export are
+	 * cancelled.
+	 *
+	 * @param executor
+	 *            The executor to use, or null
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets whether all slices are written as frames of a single Enhanced CT
+	 * image, named <code>filePathAndBaseName.dcm</code>, instead of one CT
+	 * image per slice named <code>filePathAndBaseName-0000.dcm</code> and so
+	 * on. A single file saves creating, describing and closing hundreds of
+	 * files, which is slow on network file systems in particular. Defaults to
+	 * false, since not all viewers support multi-frame images.
+	 * 
+	 * @param multiFrame
+	 *            true to write a single multi-frame file
+	 */
+	public void setMultiFrame(boolean multiFrame) {
+		this.multiFrame = multiFrame;
+	}
+
+	public boolean isMultiFrame() {
+		return multiFrame;
+	}
+
+	/**
+	 * Sets the transfer syntax of the files, either
+	 * {@link UID#ExplicitVRLittleEndian} (the default) for uncompressed pixel
+	 * data or {@link UID#RLELossless}. RLE compresses large areas of the same
+	 * value, e.g. the background of thresholded or masked volumes, at little
+	 * cost; the slices are compressed by the threads converting them. The
+	 * compression ratio is reported by the {@link ExportProgressEvent}s sent
+	 * to the {@link ChangeListener}.
+	 * 
+	 * @param transferSyntax
+	 *            The UID of the transfer syntax
+	 */
+	public void setTransferSyntax(String transferSyntax) {
+		if (!transferSyntax.equals(UID.ExplicitVRLittleEndian) && !transferSyntax.equals(UID.RLELossless)) {
+			throw new IllegalArgumentException("Unsupported transfer syntax " + transferSyntax + ".");
+		}
+		this.transferSyntax = transferSyntax;
+	}
+
+	public String getTransferSyntax() {
+		return transferSyntax;
+	}
+
+	/**
+	 * Sets whether the files are forced to the storage device before the
+	 * export returns, e.g. before a series is handed over to an archive. Every
+	 * file is forced through the channel it has been written with, before it
+	 * is closed; with several threads, the files of different slices are
+	 * forced concurrently. Java 6 offers no way to batch the flushes of a
+	 * series, as it can neither force a whole file system nor open a
+	 * directory, so every file costs a flush of its own, and the new
+	 * directory entries are not forced. A multi-frame file is forced once.
+	 * Defaults to false.
+	 * 
+	 * @param sync
+	 *            true to force the files to the device
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	public boolean isSync() {
+		return sync;
+	}
+
+	/**
+	 * Sets the rescale which maps the exported values to HU, e.g. that of the
+	 * series the values were read from, see
+	 * {@link DicomSeries#getRescaleSlope()}. The RescaleIntercept written to
+	 * the files also accounts for the offset added to make the stored values
+	 * positive. Defaults to a slope of 1 and an intercept of 0, i.e. values in
+	 * HU.
+	 * 
+	 * @param slope
+	 *            The RescaleSlope of the exported values, not 0
+	 * @param intercept
+	 *            The RescaleIntercept of the exported values
+	 */
+	public void setRescale(double slope, double intercept) {
+		if (slope == 0) {
+			throw new IllegalArgumentException("Rescale slope must not be 0.");
+		}
+		this.rescaleSlope = slope;
+		this.rescaleIntercept = intercept;
+	}
+
+	public double getRescaleSlope() {
+		return rescaleSlope;
+	}
+
+	public double getRescaleIntercept() {
+		return rescaleIntercept;
+	}
+
 	/**
 	 * Exports the given image data to the location specified. Any previously
 	 * registered {@link ChangeListener} will be informed about the progress.
@@ -216,66 +510,586 @@ public class DicomExporter {
 	 *            The DICOM reader used to retrieve the given image data
 	 */
 	public void exportImageData(vtkImageData imageData, String filePathAndBaseName, vtkDICOMImageReader dicomReader) {
+		exportImageData(imageData, filePathAndBaseName, dicomReader.GetImageOrientationPatient(),
+				dicomReader.GetImagePositionPatient());
+	}
+
+	/**
+	 * Exports the given image data to the location specified, e.g. for a
+	 * series which has not been read by a {@link vtkDICOMImageReader}. Any
+	 * previously registered {@link ChangeListener} will be informed about the
+	 * progress.
+	 * 
+	 * @param imageData
+	 *            The data to write to DICOM
+	 * @param filePathAndBaseName
+	 *            The location of the DICOM file(s) to write. Must be an
+	 *            existing and writable location.
+	 * @param orientation
+	 *            The ImageOrientationPatient of the original series
+	 * @param position
+	 *            The ImagePositionPatient of the original series' first slice
+	 */
+	public void exportImageData(vtkImageData imageData, String filePathAndBaseName, double[] orientation,
+			double[] position) {
 		try {
-			// Create and fill attributes for modules
-			dataset = createDataset();
-			setPatientModule();
-			setGeneralStudyModule();
-			setGeneralSeriesModule();
-			setSCEquipmentModule();
-
-			int[] dims = imageData.GetDimensions();
-			double[] orientation = dicomReader.GetImageOrientationPatient();
-			double[] imagePositionPatient = dicomReader.GetImagePositionPatient();
-			final int[] imageOrientationPatient = new int[orientation.length];
-			for (int i = 0; i < imageOrientationPatient.length; ++i)
-				imageOrientationPatient[i] = (int) orientation[i];
-			for (int z = 0; z < dims[2]; z++) {
-
-				// Append instance-specific attributes and create file meta
-				// information
+			export(imageData, filePathAndBaseName, orientation, position);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Exports the given image data like
+	 * {@link #exportImageData(vtkImageData, String, double[], double[])}, but
+	 * lets the caller handle a failed export, e.g. to report it in an exit
+	 * code.
+	 * 
+	 * @param imageData
+	 *            The data to write to DICOM
+	 * @param filePathAndBaseName
+	 *            The location of the DICOM file(s) to write. Must be an
+	 *            existing and writable location.
+	 * @param orientation
+	 *            The ImageOrientationPatient of the original series
+	 * @param imagePositionPatient
+	 *            The ImagePositionPatient of the original series' first slice
+	 * @throws IOException
+	 *             If a file could not be written
+	 */
+	public void export(final vtkImageData imageData, String filePathAndBaseName, double[] orientation,
+			double[] imagePositionPatient) throws IOException {
+		final int[] dims = imageData.GetDimensions();
+		// one slice per JNI call instead of a copy of the whole image on the
+		// heap; the workers must not use the VTK object concurrently, so they
+		// take turns reading their slices
+		export(new SliceSource() {
+			@Override
+			public void read(int z, short[] dst) {
+				ShortVolume slice;
+				synchronized (imageData) {
+					slice = VtkVolumeConverter.readRegion(imageData, new int[] { 0, 0, z },
+							new int[] { dims[0] - 1, dims[1] - 1, z });
+				}
+				System.arraycopy(slice.getData(), 0, dst, 0, dst.length);
+			}
+		}, dims[0], dims[1], dims[2], imageData.GetScalarRange(), orientation, imagePositionPatient,
+				filePathAndBaseName);
+	}
+
+	/**
+	 * Exports a volume held on the heap, e.g. one read by
+	 * {@link DicomSeriesLoader} and filtered without VTK. The workers read the
+	 * slices straight from the volume's array; otherwise this is the same as
+	 * {@link #export(vtkImageData, String, double[], double[])}.
+	 * 
+	 * @param volume
+	 *            The volume to write to DICOM
+	 * @param filePathAndBaseName
+	 *            The location of the DICOM file(s) to write. Must be an
+	 *            existing and writable location.
+	 * @param orientation
+	 *            The ImageOrientationPatient of the original series
+	 * @param imagePositionPatient
+	 *            The ImagePositionPatient of the original series' first slice
+	 * @throws IOException
+	 *             If a file could not be written
+	 */
+	public void exportVolume(final ShortVolume volume, String filePathAndBaseName, double[] orientation,
+			double[] imagePositionPatient) throws IOException {
+		int[] range = volume.getRange();
+		export(new SliceSource() {
+			@Override
+			public void read(int z, short[] dst) {
+				System.arraycopy(volume.getData(), z * volume.getSliceSize(), dst, 0, dst.length);
+			}
+		}, volume.getWidth(), volume.getHeight(), volume.getDepth(), new double[] { range[0], range[1] },
+				orientation, imagePositionPatient, filePathAndBaseName);
+	}
+
+	/**
+	 * Exports a volume stored in a memory-mapped file, e.g. one too large for
+	 * the heap. Only the slices currently being written are held in memory;
+	 * otherwise this is the same as
+	 * {@link #export(vtkImageData, String, double[], double[])}.
+	 * 
+	 * @param volume
+	 *            The volume to write to DICOM
+	 * @param filePathAndBaseName
+	 *            The location of the DICOM file(s) to write. Must be an
+	 *            existing and writable location.
+	 * @param orientation
+	 *            The ImageOrientationPatient of the original series
+	 * @param imagePositionPatient
+	 *            The ImagePositionPatient of the original series' first slice
+	 * @throws IOException
+	 *             If a file could not be written
+	 */
+	public void exportVolume(final MappedVolume volume, String filePathAndBaseName, double[] orientation,
+			double[] imagePositionPatient) throws IOException {
+		int[] range = volume.getRange();
+		export(new SliceSource() {
+			@Override
+			public void read(int z, short[] dst) {
+				volume.readSlices(z, z, dst, 0);
+			}
+		}, volume.getWidth(), volume.getHeight(), volume.getDepth(), new double[] { range[0], range[1] },
+				orientation, imagePositionPatient, filePathAndBaseName);
+	}
+
+	private void export(SliceSource source, int width, int height, int depth, double[] range, double[] orientation,
+			double[] position, String filePathAndBaseName) throws IOException {
+		bytesWritten = 0;
+		uncompressedBytes = 0;
+		if (multiFrame) {
+			exportFrames(source, width, height, depth, range, orientation, position, filePathAndBaseName);
+		} else {
+			exportSlices(source, width, height, depth, range, orientation, position, filePathAndBaseName);
+		}
+	}
+
+	/**
+	 * Writes one file per slice. The modules shared by all instances are
+	 * filled once into a template, which is not modified afterwards; the
+	 * dataset of each slice is a copy of it with the instance-specific
+	 * attributes added. With a parallelism above 1, converting and writing the
+	 * slices is done by a pool of worker threads, at most
+	 * {@link #SLICES_PER_THREAD} slices per thread ahead of the last one
+	 * reported. The progress is reported in slice order on the calling
+	 * thread either way.
+	 */
+	private void exportSlices(final SliceSource source, final int width, final int height, int depth,
+			double[] range, double[] orientation, double[] position, String filePathAndBaseName) throws IOException {
+		createSeriesDataset();
+		setImagePixelModule(width, height, range);
+		final short offset = (short) Math.abs(range[0]);
+		setRescale(dataset, rescaleSlope, rescaleIntercept - offset * rescaleSlope);
+		Attributes template = dataset;
+		int[] imageOrientationPatient = toImageOrientationPatient(orientation);
+		final String syntax = transferSyntax;
+		final boolean force = sync;
+
+		if (parallelism == 1) {
+			SliceBuffer buffer = new SliceBuffer(width, height);
+			for (int z = 0; z < depth; z++) {
 				String instanceId = String.format("%04d", z);
-				setGeneralImageModule(instanceId);
-				setImagePixelModule(imageData);
-				setImagePlaneModule(imageOrientationPatient, imagePositionPatient, z, 2);
-				Attributes fileMetaInformation = dataset.createFileMetaInformation(UID.ExplicitVRLittleEndian);
-
-				// Open file stream
-				DicomOutputStream out = new DicomOutputStream(
-						new File(filePathAndBaseName + "-" + instanceId + ".dcm"));
-				out.writeDataset(fileMetaInformation, dataset);
-
-				// Prepare pixel data buffer and normalizing
-				int slicePixelDataSizeBytes = (dims[0] * dims[1] * Short.SIZE) / 8;
-				out.writeHeader(Tag.PixelData, VR.OW, slicePixelDataSizeBytes);
-				double[] range = imageData.GetScalarRange();
-				short vtkOffset = (short) Math.abs(range[0]);
-				byte[] buffer = new byte[slicePixelDataSizeBytes];
-				int i = 0;
-
-				// Iterate over the image and store values in the buffer
-				for (int y = dims[1] - 1; y >= 0; y--) {
-					for (int x = 0; x < dims[0]; x++) {
-						short val = (short) (imageData.GetScalarComponentAsDouble(x, y, z, 0) + vtkOffset);
-						buffer[i] = (byte) (val & 0xff);
-						buffer[i + 1] = (byte) ((val >> 8) & 0xff);
-						i = i + 2;
-					}
+				Attributes ds = createSliceDataset(template, instanceId, imageOrientationPatient, position, z);
+				File file = new File(filePathAndBaseName + "-" + instanceId + ".dcm");
+				int length = writeSlice(source, z, offset, syntax, force, buffer, ds, file);
+				sliceWritten(z + 1, depth, length, buffer.pixelData.capacity());
+			}
+			return;
+		}
+
+		ExecutorService threads = createThreads();
+		// buffers of finished slices, reused by the next ones; at most one
+		// per thread is ever created
+		final Queue<SliceBuffer> buffers = new ConcurrentLinkedQueue<SliceBuffer>();
+		// slices submitted but not yet reported, in slice order
+		Queue<Future<Integer>> pending = new ArrayDeque<Future<Integer>>();
+		try {
+			int submitted = 0;
+			for (int z = 0; z < depth; z++) {
+				while (submitted < depth && submitted < z + parallelism * SLICES_PER_THREAD) {
+					final int slice = submitted++;
+					String instanceId = String.format("%04d", slice);
+					// created here, the template is only read by this thread
+					final Attributes ds = createSliceDataset(template, instanceId, imageOrientationPatient,
+							position, slice);
+					final File file = new File(filePathAndBaseName + "-" + instanceId + ".dcm");
+					pending.add(threads.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() throws IOException {
+							SliceBuffer buffer = buffers.poll();
+							if (buffer == null) {
+								buffer = new SliceBuffer(width, height);
+							}
+							try {
+								return writeSlice(source, slice, offset, syntax, force, buffer, ds, file);
+							} finally {
+								buffers.add(buffer);
+							}
+						}
+					}));
 				}
+				sliceWritten(z + 1, depth, get(pending.remove()), 2 * width * height);
+			}
+		} finally {
+			release(threads, pending);
+		}
+	}
 
-				// Write buffer and close file stream
-				out.write(buffer, 0, slicePixelDataSizeBytes);
-				out.finish();
-				out.close();
+	/**
+	 * Returns the executor set by {@link #setExecutor(ExecutorService)}, or a
+	 * new pool for a single call.
+	 */
+	private ExecutorService createThreads() {
+		return executor != null ? executor : Executors.newFixedThreadPool(parallelism, DAEMON_THREADS);
+	}
 
-				System.out.println(String.format("Wrote slice %d/%d to DICOM file.", z + 1, dims[2]));
-				if (listener != null) {
-					listener.stateChanged(new ChangeEvent(z + 1));
+	/**
+	 * Stops the tasks of a call which are not done yet and shuts the threads
+	 * down if they were created for the call.
+	 */
+	private void release(ExecutorService threads, Collection<? extends Future<?>> tasks) {
+		for (Future<?> task : tasks) {
+			task.cancel(true);
+		}
+		if (threads != executor) {
+			threads.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes all slices as frames of a single Enhanced CT image. The frames
+	 * are converted like the slices of {@link #exportSlices}, by worker
+	 * threads with a parallelism above 1, and written in order by the calling
+	 * thread as soon as they are done. Only the frames in progress are held
+	 * in memory.
+	 */
+	private void exportFrames(final SliceSource source, final int width, final int height, int depth,
+			double[] range, double[] orientation, double[] position, String filePathAndBaseName) throws IOException {
+		final String syntax = transferSyntax;
+		boolean encapsulated = syntax.equals(UID.RLELossless);
+		long pixelDataLength = 2L * width * height * depth;
+		if (!encapsulated && pixelDataLength > MAX_PIXEL_DATA_BYTES) {
+			throw new IllegalArgumentException(String.format(
+					"A volume of %dx%dx%d voxels is too large for a single file.", width, height, depth));
+		}
+		createSeriesDataset();
+		setImagePixelModule(width, height, range);
+		final short offset = (short) Math.abs(range[0]);
+		Attributes ds = new Attributes(dataset);
+		setGeneralImageModule(ds, "0000");
+		setMultiFrameModules(ds, toImageOrientationPatient(orientation), position, depth, rescaleSlope,
+				rescaleIntercept - offset * rescaleSlope);
+
+		ExecutorService threads = null;
+		final Queue<SliceBuffer> buffers = new ConcurrentLinkedQueue<SliceBuffer>();
+		// frames submitted but not yet written, in frame order
+		Queue<Future<SliceBuffer>> pending = new ArrayDeque<Future<SliceBuffer>>();
+		ByteBuffer header = ByteBuffer.wrap(createHeader(ds, syntax, (int) pixelDataLength));
+		RandomAccessFile file = new RandomAccessFile(filePathAndBaseName + ".dcm", "rw");
+		try {
+			// the length of compressed pixel data is not known in advance
+			file.setLength(encapsulated ? 0 : header.remaining() + pixelDataLength);
+			FileChannel channel = file.getChannel();
+			write(channel, header);
+			if (parallelism == 1) {
+				SliceBuffer buffer = new SliceBuffer(width, height);
+				for (int z = 0; z < depth; z++) {
+					source.read(z, buffer.voxels);
+					buffer.encode(offset, syntax);
+					writeFrame(channel, buffer, encapsulated);
+					sliceWritten(z + 1, depth, buffer.length, buffer.pixelData.capacity());
+				}
+			} else {
+				threads = createThreads();
+				int submitted = 0;
+				for (int z = 0; z < depth; z++) {
+					while (submitted < depth && submitted < z + parallelism * SLICES_PER_THREAD) {
+						final int frame = submitted++;
+						pending.add(threads.submit(new Callable<SliceBuffer>() {
+							@Override
+							public SliceBuffer call() {
+								SliceBuffer buffer = buffers.poll();
+								if (buffer == null) {
+									buffer = new SliceBuffer(width, height);
+								}
+								source.read(frame, buffer.voxels);
+								buffer.encode(offset, syntax);
+								return buffer;
+							}
+						}));
+					}
+					SliceBuffer buffer = get(pending.remove());
+					writeFrame(channel, buffer, encapsulated);
+					buffers.add(buffer);
+					sliceWritten(z + 1, depth, buffer.length, buffer.pixelData.capacity());
 				}
 			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			if (encapsulated) {
+				write(channel, createItemHeader(Tag.SequenceDelimitationItem, 0));
+			}
+			if (sync) {
+				channel.force(true);
+			}
+		} finally {
+			if (threads != null) {
+				release(threads, pending);
+			}
+			file.close();
+		}
+	}
+
+	private static void writeFrame(FileChannel channel, SliceBuffer buffer, boolean encapsulated)
+			throws IOException {
+		if (encapsulated) {
+			write(channel, createItemHeader(Tag.Item, buffer.length), buffer.frame);
+		} else {
+			write(channel, buffer.frame);
+		}
+	}
+
+	/**
+	 * C.8.15.2 Enhanced CT Image Module, C.7.5.2 Enhanced General Equipment
+	 * Module, C.7.6.16 Multi-frame Functional Groups Module and C.7.6.17
+	 * Multi-frame Dimension Module. The pixel spacing, slice thickness,
+	 * orientation, rescaling and frame type are shared by all frames, each
+	 * frame has its own position. The frames are indexed by
+	 * their position along the stack.
+	 * 
+	 * @param ds
+	 *            The dataset to add the modules to
+	 * @param imageOrientationPatient
+	 *            The orientation of all frames
+	 * @param position
+	 *            The position of the first frame
+	 * @param frames
+	 *            The number of frames
+	 * @param slope
+	 *            The RescaleSlope of the stored values
+	 * @param intercept
+	 *            The RescaleIntercept of the stored values
+	 */
+	private static void setMultiFrameModules(Attributes ds, int[] imageOrientationPatient, double[] position,
+			int frames, double slope, double intercept) {
+		ds.setString(Tag.SOPClassUID, VR.UI, UID.EnhancedCTImageStorage);
+		ds.setString(Tag.ImageType, VR.CS, "DERIVED", "PRIMARY", "VOLUME", "NONE");
+		setFrameType(ds);
+		ds.setString(Tag.ContentQualification, VR.CS, "PRODUCT");
+		ds.setString(Tag.BurnedInAnnotation, VR.CS, "NO");
+		ds.setString(Tag.PresentationLUTShape, VR.CS, "IDENTITY");
+		ds.setInt(Tag.NumberOfFrames, VR.IS, frames);
+		ds.setString(Tag.Manufacturer, VR.LO, "VisMed2 Group 3");
+		ds.setString(Tag.ManufacturerModelName, VR.LO, "VisMedVTK");
+		ds.setString(Tag.DeviceSerialNumber, VR.LO, "1");
+		ds.setString(Tag.SoftwareVersions, VR.LO, "1.0");
+
+		Attributes shared = new Attributes();
+		Attributes pixelMeasures = new Attributes();
+		pixelMeasures.setString(Tag.PixelSpacing, VR.DS, "0.6640625\\0.6640625");
+		pixelMeasures.setFloat(Tag.SliceThickness, VR.DS, 2);
+		shared.newSequence(Tag.PixelMeasuresSequence, 1).add(pixelMeasures);
+		Attributes planeOrientation = new Attributes();
+		planeOrientation.setString(Tag.ImageOrientationPatient, VR.DS,
+				toDicomCollectionString(imageOrientationPatient));
+		shared.newSequence(Tag.PlaneOrientationSequence, 1).add(planeOrientation);
+		Attributes pixelValueTransformation = new Attributes();
+		setRescale(pixelValueTransformation, slope, intercept);
+		shared.newSequence(Tag.PixelValueTransformationSequence, 1).add(pixelValueTransformation);
+		Attributes frameType = new Attributes();
+		frameType.setString(Tag.FrameType, VR.CS, "DERIVED", "PRIMARY", "VOLUME", "NONE");
+		setFrameType(frameType);
+		shared.newSequence(Tag.CTImageFrameTypeSequence, 1).add(frameType);
+		ds.newSequence(Tag.SharedFunctionalGroupsSequence, 1).add(shared);
+
+		String dimensionOrganizationUID = UIDUtils.createUID();
+		Attributes dimensionOrganization = new Attributes();
+		dimensionOrganization.setString(Tag.DimensionOrganizationUID, VR.UI, dimensionOrganizationUID);
+		ds.newSequence(Tag.DimensionOrganizationSequence, 1).add(dimensionOrganization);
+		ds.setString(Tag.DimensionOrganizationType, VR.CS, "3D");
+		Attributes dimensionIndex = new Attributes();
+		dimensionIndex.setString(Tag.DimensionOrganizationUID, VR.UI, dimensionOrganizationUID);
+		dimensionIndex.setInt(Tag.DimensionIndexPointer, VR.AT, Tag.ImagePositionPatient);
+		dimensionIndex.setInt(Tag.FunctionalGroupPointer, VR.AT, Tag.PlanePositionSequence);
+		ds.newSequence(Tag.DimensionIndexSequence, 1).add(dimensionIndex);
+
+		Sequence perFrame = ds.newSequence(Tag.PerFrameFunctionalGroupsSequence, frames);
+		double[] imagePositionPatient = position.clone();
+		for (int z = 0; z < frames; z++) {
+			// same positions as the Image Plane Module of separate slices
+			imagePositionPatient[2] = z * -1;
+			Attributes frameContent = new Attributes();
+			frameContent.setInt(Tag.DimensionIndexValues, VR.UL, z + 1);
+			Attributes planePosition = new Attributes();
+			planePosition.setString(Tag.ImagePositionPatient, VR.DS, toDicomCollectionString(imagePositionPatient));
+			Attributes frame = new Attributes();
+			frame.newSequence(Tag.FrameContentSequence, 1).add(frameContent);
+			frame.newSequence(Tag.PlanePositionSequence, 1).add(planePosition);
+			perFrame.add(frame);
+		}
+	}
+
+	/**
+	 * The attributes describing the frames of an Enhanced CT image, given
+	 * both for the image and in the CT Image Frame Type functional group
+	 * (C.8.15.3.1): grayscale frames of a volume, not computed from other
+	 * frames.
+	 */
+	private static void setFrameType(Attributes ds) {
+		ds.setString(Tag.PixelPresentation, VR.CS, "MONOCHROME");
+		ds.setString(Tag.VolumetricProperties, VR.CS, "VOLUME");
+		ds.setString(Tag.VolumeBasedCalculationTechnique, VR.CS, "NONE");
+	}
+
+	/**
+	 * The rescale of the CT Image Module (C.8.2.1) or the Pixel Value
+	 * Transformation functional group (C.7.6.16.2.9).
+	 */
+	private static void setRescale(Attributes ds, double slope, double intercept) {
+		ds.setDouble(Tag.RescaleIntercept, VR.DS, intercept);
+		ds.setDouble(Tag.RescaleSlope, VR.DS, slope);
+		ds.setString(Tag.RescaleType, VR.LO, "HU");
+	}
+
+	/**
+	 * Returns a copy of the template with the General Image and Image Plane
+	 * modules of the given slice.
+	 */
+	private static Attributes createSliceDataset(Attributes template, String instanceId,
+			int[] imageOrientationPatient, double[] position, int z) {
+		Attributes ds = new Attributes(template);
+		setGeneralImageModule(ds, instanceId);
+		setImagePlaneModule(ds, imageOrientationPatient, position.clone(), z, 2);
+		return ds;
+	}
+
+	/**
+	 * Converts a slice to pixel data, offset to be positive, and writes it
+	 * with the given dataset.
+	 * 
+	 * @param sync
+	 *            true to force the file to the device
+	 * @return The length of the pixel data as stored in the file
+	 */
+	private static int writeSlice(SliceSource source, int z, short offset, String transferSyntax, boolean sync,
+			SliceBuffer buffer, Attributes ds, File file) throws IOException {
+		source.read(z, buffer.voxels);
+		buffer.encode(offset, transferSyntax);
+		writeFile(file, ds, transferSyntax, buffer.frame, sync);
+		return buffer.length;
+	}
+
+	private void sliceWritten(int count, int total, int length, int uncompressedLength) {
+		bytesWritten += length;
+		uncompressedBytes += uncompressedLength;
+		if (listener != null) {
+			listener.stateChanged(new ExportProgressEvent(count, total, bytesWritten, uncompressedBytes));
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting the series.", e);
+		}
+	}
+
+	/**
+	 * Creates the dataset and fills the modules shared by all instances of
+	 * the series.
+	 */
+	private void createSeriesDataset() {
+		dataset = createDataset();
+		setPatientModule();
+		setGeneralStudyModule();
+		setGeneralSeriesModule();
+		setSCEquipmentModule();
+	}
+
+	private static int[] toImageOrientationPatient(double[] orientation) {
+		int[] imageOrientationPatient = new int[orientation.length];
+		for (int i = 0; i < imageOrientationPatient.length; ++i)
+			imageOrientationPatient[i] = (int) orientation[i];
+		return imageOrientationPatient;
+	}
+
+	/**
+	 * Writes the dataset followed by the pixel data into a file. The file is
+	 * set to its final length before writing, so it does not grow with every
+	 * write.
+	 * 
+	 * @param pixelData
+	 *            The pixel data from the buffer's position to its limit
+	 * @param sync
+	 *            true to force the file to the device through the channel it
+	 *            was written with, before closing it
+	 */
+	private static void writeFile(File file, Attributes ds, String transferSyntax, ByteBuffer pixelData,
+			boolean sync) throws IOException {
+		int length = pixelData.remaining();
+		ByteBuffer header = ByteBuffer.wrap(createHeader(ds, transferSyntax, length));
+		ByteBuffer[] buffers;
+		if (transferSyntax.equals(UID.RLELossless)) {
+			buffers = new ByteBuffer[] { header, createItemHeader(Tag.Item, length), pixelData,
+					createItemHeader(Tag.SequenceDelimitationItem, 0) };
+		} else {
+			buffers = new ByteBuffer[] { header, pixelData };
+		}
+		long fileLength = 0;
+		for (ByteBuffer buffer : buffers) {
+			fileLength += buffer.remaining();
+		}
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(fileLength);
+			FileChannel channel = out.getChannel();
+			write(channel, buffers);
+			if (sync) {
+				channel.force(true);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Encodes the file meta information, the dataset and the header of the
+	 * pixel data element. Compressed pixel data has an undefined length
+	 * (PS3.5 A.4) and is followed by one fragment per frame and a sequence
+	 * delimiter; its basic offset table is left empty.
+	 * 
+	 * @param pixelDataLength
+	 *            The length of uncompressed pixel data, ignored for
+	 *            compressed pixel data
+	 */
+	private static byte[] createHeader(Attributes ds, String transferSyntax, int pixelDataLength)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DicomOutputStream out = new DicomOutputStream(bytes, UID.ExplicitVRLittleEndian);
+		out.writeDataset(ds.createFileMetaInformation(transferSyntax), ds);
+		if (transferSyntax.equals(UID.RLELossless)) {
+			out.writeHeader(Tag.PixelData, VR.OB, -1);
+			out.writeHeader(Tag.Item, null, 0);
+		} else {
+			out.writeHeader(Tag.PixelData, VR.OW, pixelDataLength);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Returns the header of an item or delimiter, which has no VR.
+	 */
+	private static ByteBuffer createItemHeader(int tag, int length) {
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		header.putShort((short) (tag >>> 16)).putShort((short) tag).putInt(length);
+		header.flip();
+		return header;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer... buffers) throws IOException {
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
 		}
 	}
 
@@ -0,0 +1,152 @@
+package vismed2.group3.dicom;
+
+import java.util.List;
+
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * A series of DICOM slices read by {@link DicomSeriesLoader}: the voxels as a
+ * {@link ShortVolume} in the same layout {@link vtk.vtkDICOMImageReader}
+ * produces (rows bottom up, slices sorted along the slice normal, stored
+ * values), the rescale to HU, the geometry of the series and the time spent in
+ * each phase of loading. Until
+ * all slices have been decoded, the missing slices of the volume are 0. A
+ * series returned by {@link DicomSeriesLoader#scan(java.io.File)} has no
+ * volume; its slices are decoded into a
+ * {@link vismed2.group3.volume.MappedVolume} instead.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public final class DicomSeries {
+
+	private final ShortVolume volume;
+	// the headers of the files, sorted like the volume's slices
+	private final List<DicomSeriesLoader.Slice> slices;
+	private final double[] spacing;
+	private final double[] imagePositionPatient;
+	private final double[] imageOrientationPatient;
+	private final double rescaleSlope;
+	private final double rescaleIntercept;
+	private final long headerNanos;
+	private final long assemblyNanos;
+	private long decodeNanos = 0;
+
+	DicomSeries(ShortVolume volume, List<DicomSeriesLoader.Slice> slices, double[] spacing,
+			double[] imagePositionPatient, double[] imageOrientationPatient, double rescaleSlope,
+			double rescaleIntercept, long headerNanos, long assemblyNanos) {
+		this.volume = volume;
+		this.slices = slices;
+		this.spacing = spacing;
+		this.imagePositionPatient = imagePositionPatient;
+		this.imageOrientationPatient = imageOrientationPatient;
+		this.rescaleSlope = rescaleSlope;
+		this.rescaleIntercept = rescaleIntercept;
+		this.headerNanos = headerNanos;
+		this.assemblyNanos = assemblyNanos;
+	}
+
+	DicomSeriesLoader.Slice getSlice(int z) {
+		return slices.get(z);
+	}
+
+	synchronized void addDecodeNanos(long nanos) {
+		decodeNanos += nanos;
+	}
+
+	/**
+	 * Returns the voxels, or null if the series has been scanned only.
+	 */
+	public ShortVolume getVolume() {
+		return volume;
+	}
+
+	public int getWidth() {
+		return slices.get(0).columns;
+	}
+
+	public int getHeight() {
+		return slices.get(0).rows;
+	}
+
+	public int getDepth() {
+		return slices.size();
+	}
+
+	/**
+	 * Returns the distance between voxels along x, y and z in mm.
+	 */
+	public double[] getSpacing() {
+		return spacing.clone();
+	}
+
+	/**
+	 * Returns the position of the first slice's first transmitted pixel in
+	 * patient coordinates, as in the slice's ImagePositionPatient.
+	 */
+	public double[] getImagePositionPatient() {
+		return imagePositionPatient.clone();
+	}
+
+	/**
+	 * Returns the direction cosines of the rows and columns, as in the
+	 * slices' ImageOrientationPatient.
+	 */
+	public double[] getImageOrientationPatient() {
+		return imageOrientationPatient.clone();
+	}
+
+	/**
+	 * Returns the RescaleSlope which maps the volume's values to HU: HU =
+	 * value * slope + intercept.
+	 */
+	public double getRescaleSlope() {
+		return rescaleSlope;
+	}
+
+	/**
+	 * Returns the RescaleIntercept which maps the volume's values to HU.
+	 */
+	public double getRescaleIntercept() {
+		return rescaleIntercept;
+	}
+
+	/**
+	 * Returns the time spent parsing the headers of all files in ms.
+	 */
+	public double getHeaderMillis() {
+		return headerNanos / 1e6;
+	}
+
+	/**
+	 * Returns the time spent reading and converting the pixel data in ms.
+	 */
+	public synchronized double getDecodeMillis() {
+		return decodeNanos / 1e6;
+	}
+
+	/**
+	 * Returns the time spent sorting the slices, checking their consistency
+	 * and allocating the volume in ms.
+	 */
+	public double getAssemblyMillis() {
+		return assemblyNanos / 1e6;
+	}
+
+	/**
+	 * Returns the time spent in all phases in ms.
+	 */
+	public double getTotalMillis() {
+		return getHeaderMillis() + getDecodeMillis() + getAssemblyMillis();
+	}
+
+	/**
+	 * Describes the series' size and the time spent in each phase.
+	 */
+	@Override
+	public String toString() {
+		return String.format("%dx%dx%d voxels loaded in %.0f ms (headers %.0f ms, decode %.0f ms, assembly %.0f ms)",
+				getWidth(), getHeight(), getDepth(), getTotalMillis(), getHeaderMillis(),
+				getDecodeMillis(), getAssemblyMillis());
+	}
+}
@@ -0,0 +1,555 @@
+package vismed2.group3.dicom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+
+import vismed2.group3.volume.MappedVolume;
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * Reads a directory of single-frame DICOM files into a {@link ShortVolume}
+ * in pure Java with dcm4che, as a replacement for
+ * {@link vtk.vtkDICOMImageReader}, which parses the whole series on a single
+ * thread. Loading is done in three phases:
+ * <ol>
+ * <li>The headers of all files are parsed in parallel, up to the pixel data,
+ * whose position within the file is remembered.</li>
+ * <li>The slices are sorted by their ImagePositionPatient along the slice
+ * normal (by InstanceNumber if there is no position), checked for a common
+ * size and the volume is allocated (assembly).</li>
+ * <li>The pixel data of all files is read in parallel and converted straight
+ * into the slices of the volume (decode).</li>
+ * </ol>
+ * The time of every phase is reported by the returned {@link DicomSeries}.
+ * Just like the VTK reader, rows are stored bottom up and the stored values
+ * are kept, so the result can be used in place of the reader's output.
+ * Unsigned values above 32767 are saturated. The rescale slope and intercept
+ * which map the stored values to HU are those of the first slice, see
+ * {@link DicomSeries#getRescaleSlope()}; slices with a different rescale are
+ * converted to it while decoding.<br>
+ * <br>
+ * {@link #load(File)} runs all phases. To show a series before all of it has
+ * been read, {@link #open(File)} only runs the first two phases, and
+ * {@link #decode(DicomSeries, int[], SliceListener)} reads the slices in any
+ * order, e.g. the visible ones first. Series larger than the heap are
+ * {@link #scan(File) scanned} without allocating a volume and decoded slice by
+ * slice into a {@link MappedVolume} by
+ * {@link #decode(DicomSeries, MappedVolume)}.<br>
+ * <br>
+ * Only uncompressed 16 bit monochrome images in little or big endian transfer
+ * syntaxes are supported. Files which are no DICOM files or contain no pixel
+ * data (e.g. a DICOMDIR) are skipped.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class DicomSeriesLoader {
+
+	private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "dicom-loader-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private ExecutorService executor;
+
+	/**
+	 * Informed whenever a slice has been decoded, on the thread which decoded
+	 * it.
+	 */
+	public interface SliceListener {
+		/**
+		 * @param slice
+		 *            The position of the slice in the volume
+		 */
+		void sliceDecoded(int slice);
+	}
+
+	/**
+	 * The header of a single file, up to its pixel data.
+	 */
+	static final class Slice {
+		final File file;
+		int rows;
+		int columns;
+		int bitsAllocated;
+		boolean signed;
+		boolean bigEndian;
+		double slope;
+		double intercept;
+		double[] position;
+		double[] orientation;
+		double[] pixelSpacing;
+		double thickness;
+		int instanceNumber;
+		long pixelOffset;
+		int pixelLength;
+		// position along the slice normal, used for sorting
+		double location;
+
+		Slice(File file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Sets the number of threads reading files. Defaults to the number of
+	 * available processors.
+	 *
+	 * @param parallelism
+	 *            The number of threads, at least 1
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism + ".");
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the executor to read files on. If none is set, threads are created
+	 * for each call. The executor is not shut down, only the tasks of a
+	 * failed call are cancelled.
+	 *
+	 * @param executor
+	 *            The executor to use, or null
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Loads all DICOM files of a directory as one series.
+	 *
+	 * @param directory
+	 *            The directory containing the slices
+	 * @return The series
+	 * @throws IOException
+	 *             If a file can not be read, the directory contains no
+	 *             images or the images do not form a volume
+	 */
+	public DicomSeries load(File directory) throws IOException {
+		DicomSeries series = open(directory);
+		int[] all = new int[series.getVolume().getDepth()];
+		for (int z = 0; z < all.length; z++) {
+			all[z] = z;
+		}
+		decode(series, all, null);
+		return series;
+	}
+
+	/**
+	 * Parses the headers of all DICOM files of a directory and allocates the
+	 * volume, without reading any pixel data yet.
+	 *
+	 * @param directory
+	 *            The directory containing the slices
+	 * @return The series with all voxels set to 0
+	 * @throws IOException
+	 *             If a file can not be read, the directory contains no
+	 *             images or the images do not form a volume
+	 */
+	public DicomSeries open(File directory) throws IOException {
+		return open(directory, true);
+	}
+
+	/**
+	 * Parses the headers of all DICOM files of a directory like
+	 * {@link #open(File)}, but does not allocate a volume, e.g. for a series
+	 * too large for the heap. The slices can then be read by
+	 * {@link #decode(DicomSeries, MappedVolume)}.
+	 *
+	 * @param directory
+	 *            The directory containing the slices
+	 * @return The series without volume
+	 * @throws IOException
+	 *             If a file can not be read, the directory contains no
+	 *             images or the images do not form a volume
+	 */
+	public DicomSeries scan(File directory) throws IOException {
+		return open(directory, false);
+	}
+
+	private DicomSeries open(File directory, boolean allocate) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Could not list the files of " + directory + ".");
+		}
+		ExecutorService threads = createThreads();
+		try {
+			long start = System.nanoTime();
+			List<Slice> slices = readHeaders(files, threads);
+			long headersDone = System.nanoTime();
+
+			if (slices.isEmpty()) {
+				throw new IOException("No DICOM images found in " + directory + ".");
+			}
+			sort(slices);
+			Slice first = slices.get(0);
+			for (Slice slice : slices) {
+				if (slice.rows != first.rows || slice.columns != first.columns) {
+					throw new IOException(String.format("Slice %s has %dx%d pixels, %s has %dx%d.", slice.file,
+							slice.columns, slice.rows, first.file, first.columns, first.rows));
+				}
+			}
+			ShortVolume volume = allocate ? new ShortVolume(first.columns, first.rows, slices.size()) : null;
+			long assemblyDone = System.nanoTime();
+
+			return new DicomSeries(volume, slices, spacing(slices), first.position.clone(),
+					first.orientation.clone(), first.slope, first.intercept, headersDone - start,
+					assemblyDone - headersDone);
+		} finally {
+			// the header tasks are stopped by readHeaders
+			if (threads != executor) {
+				threads.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Returns the executor set by {@link #setExecutor(ExecutorService)}, or a
+	 * new pool for a single call.
+	 */
+	private ExecutorService createThreads() {
+		return executor != null ? executor : Executors.newFixedThreadPool(parallelism, DAEMON_THREADS);
+	}
+
+	/**
+	 * Stops the tasks of a call which are not done yet and shuts the threads
+	 * down if they were created for the call.
+	 */
+	private void release(ExecutorService threads, Collection<? extends Future<?>> tasks) {
+		cancel(tasks);
+		if (threads != executor) {
+			threads.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stops the tasks of a call which are not done yet.
+	 */
+	private static void cancel(Collection<? extends Future<?>> tasks) {
+		for (Future<?> task : tasks) {
+			task.cancel(true);
+		}
+	}
+
+	/**
+	 * Reads the pixel data of the given slices in parallel into the series'
+	 * volume. The slices are started in the given order and the method
+	 * returns once all of them are done.
+	 *
+	 * @param series
+	 *            A series returned by {@link #open(File)}
+	 * @param slices
+	 *            The positions of the slices to read
+	 * @param listener
+	 *            Informed about every decoded slice, may be null
+	 * @throws IOException
+	 *             If a file can not be read
+	 */
+	public void decode(final DicomSeries series, int[] slices, final SliceListener listener) throws IOException {
+		final ShortVolume volume = series.getVolume();
+		long start = System.nanoTime();
+		ExecutorService threads = createThreads();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(slices.length);
+		try {
+			for (final int z : slices) {
+				final Slice slice = series.getSlice(z);
+				futures.add(threads.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						decode(slice, series, volume.getData(), z * volume.getSliceSize());
+						if (listener != null) {
+							listener.sliceDecoded(z);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				get(future);
+			}
+		} finally {
+			release(threads, futures);
+			series.addDecodeNanos(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Reads the pixel data of all slices in parallel into a memory-mapped
+	 * volume. Every slice is converted into a buffer of its own and written
+	 * to the volume as a whole, so the heap only holds the slices in
+	 * progress.
+	 *
+	 * @param series
+	 *            A series returned by {@link #scan(File)} or
+	 *            {@link #open(File)}
+	 * @param volume
+	 *            The volume to write the slices to, with the dimensions of
+	 *            the series
+	 * @throws IOException
+	 *             If a file can not be read
+	 */
+	public void decode(final DicomSeries series, final MappedVolume volume) throws IOException {
+		if (volume.getWidth() != series.getWidth() || volume.getHeight() != series.getHeight()
+				|| volume.getDepth() != series.getDepth()) {
+			throw new IllegalArgumentException(String.format("Volume of %dx%dx%d voxels for a series of %dx%dx%d.",
+					volume.getWidth(), volume.getHeight(), volume.getDepth(), series.getWidth(),
+					series.getHeight(), series.getDepth()));
+		}
+		long start = System.nanoTime();
+		ExecutorService threads = createThreads();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(volume.getDepth());
+		try {
+			for (int z = 0; z < volume.getDepth(); z++) {
+				final int slice = z;
+				futures.add(threads.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						short[] voxels = new short[volume.getSliceSize()];
+						decode(series.getSlice(slice), series, voxels, 0);
+						volume.writeSlices(slice, slice, voxels, 0);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				get(future);
+			}
+		} finally {
+			release(threads, futures);
+			series.addDecodeNanos(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Parses the headers of all files in parallel.
+	 */
+	private List<Slice> readHeaders(File[] files, ExecutorService threads) throws IOException {
+		List<Future<Slice>> futures = new ArrayList<Future<Slice>>(files.length);
+		for (final File file : files) {
+			if (!file.isFile()) {
+				continue;
+			}
+			futures.add(threads.submit(new Callable<Slice>() {
+				@Override
+				public Slice call() throws IOException {
+					return readHeader(file);
+				}
+			}));
+		}
+		List<Slice> slices = new ArrayList<Slice>(futures.size());
+		try {
+			for (Future<Slice> future : futures) {
+				Slice slice = get(future);
+				if (slice != null) {
+					slices.add(slice);
+				}
+			}
+		} finally {
+			// the threads may be shared, stop parsing after a failure
+			cancel(futures);
+		}
+		return slices;
+	}
+
+	/**
+	 * Parses the header of a file.
+	 *
+	 * @return The header, or null if the file is no DICOM image
+	 */
+	private static Slice readHeader(File file) throws IOException {
+		DicomInputStream in;
+		try {
+			in = new DicomInputStream(file);
+		} catch (IOException e) {
+			// not a DICOM file
+			return null;
+		}
+		try {
+			Attributes attributes;
+			try {
+				attributes = in.readDataset(-1, Tag.PixelData);
+			} catch (IOException e) {
+				return null;
+			}
+			if (in.tag() != Tag.PixelData) {
+				return null;
+			}
+			if (in.length() == -1) {
+				throw new IOException(
+						"Compressed pixel data (" + in.getTransferSyntax() + ") of " + file + " is not supported.");
+			}
+			Slice slice = new Slice(file);
+			slice.rows = attributes.getInt(Tag.Rows, 0);
+			slice.columns = attributes.getInt(Tag.Columns, 0);
+			slice.bitsAllocated = attributes.getInt(Tag.BitsAllocated, 16);
+			if (attributes.getInt(Tag.SamplesPerPixel, 1) != 1 || slice.bitsAllocated != 16) {
+				throw new IOException("Only monochrome images with 16 bits per pixel are supported, " + file
+						+ " has " + slice.bitsAllocated + ".");
+			}
+			slice.signed = attributes.getInt(Tag.PixelRepresentation, 0) == 1;
+			slice.bigEndian = in.bigEndian();
+			slice.slope = attributes.getDouble(Tag.RescaleSlope, 1);
+			slice.intercept = attributes.getDouble(Tag.RescaleIntercept, 0);
+			if (slice.slope == 0) {
+				throw new IOException("The RescaleSlope of " + file + " is 0.");
+			}
+			slice.position = attributes.getDoubles(Tag.ImagePositionPatient);
+			slice.orientation = attributes.getDoubles(Tag.ImageOrientationPatient);
+			slice.pixelSpacing = attributes.getDoubles(Tag.PixelSpacing);
+			slice.thickness = attributes.getDouble(Tag.SliceThickness, 0);
+			slice.instanceNumber = attributes.getInt(Tag.InstanceNumber, 0);
+			slice.pixelOffset = in.getPosition();
+			slice.pixelLength = in.length();
+			if (slice.pixelLength < 2L * slice.rows * slice.columns) {
+				throw new IOException("Pixel data of " + file + " is too short.");
+			}
+			return slice;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Sorts the slices by their location along the normal of the first
+	 * slice, or by instance number if a slice has no position.
+	 */
+	private static void sort(List<Slice> slices) {
+		Slice first = slices.get(0);
+		boolean positioned = first.orientation != null && first.orientation.length == 6;
+		for (Slice slice : slices) {
+			positioned &= slice.position != null && slice.position.length == 3;
+		}
+		if (!positioned) {
+			for (Slice slice : slices) {
+				slice.position = new double[] { 0, 0, 0 };
+				slice.orientation = new double[] { 1, 0, 0, 0, 1, 0 };
+			}
+			Collections.sort(slices, new Comparator<Slice>() {
+				@Override
+				public int compare(Slice a, Slice b) {
+					return a.instanceNumber < b.instanceNumber ? -1 : (a.instanceNumber == b.instanceNumber ? 0 : 1);
+				}
+			});
+			return;
+		}
+		double[] o = first.orientation;
+		double[] normal = { o[1] * o[5] - o[2] * o[4], o[2] * o[3] - o[0] * o[5], o[0] * o[4] - o[1] * o[3] };
+		for (Slice slice : slices) {
+			slice.location = slice.position[0] * normal[0] + slice.position[1] * normal[1]
+					+ slice.position[2] * normal[2];
+		}
+		Collections.sort(slices, new Comparator<Slice>() {
+			@Override
+			public int compare(Slice a, Slice b) {
+				return Double.compare(a.location, b.location);
+			}
+		});
+	}
+
+	/**
+	 * Returns the spacing along x, y and z. Along z, the distance between the
+	 * first two slices is used, falling back to the slice thickness.
+	 */
+	private static double[] spacing(List<Slice> slices) {
+		Slice first = slices.get(0);
+		double[] spacing = { 1, 1, 1 };
+		if (first.pixelSpacing != null && first.pixelSpacing.length == 2) {
+			// PixelSpacing is given as row spacing (y) \ column spacing (x)
+			spacing[0] = first.pixelSpacing[1];
+			spacing[1] = first.pixelSpacing[0];
+		}
+		if (slices.size() > 1 && slices.get(1).location != first.location) {
+			spacing[2] = Math.abs(slices.get(1).location - first.location);
+		} else if (first.thickness > 0) {
+			spacing[2] = first.thickness;
+		}
+		return spacing;
+	}
+
+	/**
+	 * Reads the pixel data of a slice and converts it into the volume's
+	 * slice, flipping the rows. The stored values are kept if the slice has
+	 * the series' rescale, and converted to it otherwise.
+	 */
+	private static void decode(Slice slice, DicomSeries series, short[] dst, int offset) throws IOException {
+		int rowBytes = 2 * slice.columns;
+		byte[] bytes = new byte[rowBytes * slice.rows];
+		RandomAccessFile file = new RandomAccessFile(slice.file, "r");
+		try {
+			file.seek(slice.pixelOffset);
+			file.readFully(bytes);
+		} finally {
+			file.close();
+		}
+		int lo = slice.bigEndian ? 1 : 0;
+		int hi = 1 - lo;
+		double seriesSlope = series.getRescaleSlope();
+		double seriesIntercept = series.getRescaleIntercept();
+		boolean identity = slice.slope == seriesSlope && slice.intercept == seriesIntercept;
+		// stored value * scale + shift, the same HU under the series' rescale
+		double scale = slice.slope / seriesSlope;
+		double shift = (slice.intercept - seriesIntercept) / seriesSlope;
+		for (int row = 0; row < slice.rows; row++) {
+			// the first transmitted row is the top one, VTK stores it last
+			int i = offset + (slice.rows - 1 - row) * slice.columns;
+			for (int b = row * rowBytes, end = b + rowBytes; b < end; b += 2, i++) {
+				int raw = (bytes[b + lo] & 0xff) | (bytes[b + hi] << 8);
+				int value = slice.signed ? (short) raw : raw & 0xffff;
+				dst[i] = identity ? ShortVolume.saturate(value)
+						: ShortVolume.saturate(value * scale + shift);
+			}
+		}
+	}
+
+	/**
+	 * Waits for a task, rethrowing its exceptions.
+	 */
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading the series.", e);
+		}
+	}
+}
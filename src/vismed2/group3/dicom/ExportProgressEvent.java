@@ -0,0 +1,65 @@
+package vismed2.group3.dicom;
+
+import javax.swing.event.ChangeEvent;
+
+/**
+ * Sent by {@link DicomExporter} to its {@link javax.swing.event.ChangeListener}
+ * whenever a slice has been written. As for any other change event of the
+ * exporter, the source is the number of slices written so far as
+ * {@link Integer}. In addition, the event tells how much pixel data has been
+ * written, which is less than the uncompressed pixel data if a compressed
+ * transfer syntax is used.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class ExportProgressEvent extends ChangeEvent {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int sliceCount;
+	private final long bytesWritten;
+	private final long uncompressedBytes;
+
+	/**
+	 * @param slicesWritten
+	 *            The number of slices written so far
+	 * @param sliceCount
+	 *            The number of slices to write
+	 * @param bytesWritten
+	 *            The length of the pixel data written so far, as stored in
+	 *            the files
+	 * @param uncompressedBytes
+	 *            The length of the pixel data written so far, uncompressed
+	 */
+	public ExportProgressEvent(int slicesWritten, int sliceCount, long bytesWritten, long uncompressedBytes) {
+		super(slicesWritten);
+		this.sliceCount = sliceCount;
+		this.bytesWritten = bytesWritten;
+		this.uncompressedBytes = uncompressedBytes;
+	}
+
+	public int getSlicesWritten() {
+		return (Integer) getSource();
+	}
+
+	public int getSliceCount() {
+		return sliceCount;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes;
+	}
+
+	/**
+	 * Returns the uncompressed length of the pixel data written so far
+	 * divided by its stored length, 1 for uncompressed pixel data.
+	 */
+	public double getCompressionRatio() {
+		return bytesWritten > 0 ? (double) uncompressedBytes / bytesWritten : 1;
+	}
+}
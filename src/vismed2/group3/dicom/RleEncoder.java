@@ -0,0 +1,144 @@
+package vismed2.group3.dicom;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes 16 bit monochrome pixel data with the RLE Lossless transfer syntax
+ * (PS3.5 Annex G). A frame is split into two byte segments, the most
+ * significant bytes of all pixels followed by the least significant ones.
+ * Each segment is compressed row by row with the PackBits scheme: a header
+ * byte n of 0 to 127 is followed by n + 1 literal bytes, a header byte of -1
+ * to -127 by a single byte repeated 1 - n times. The encoded frame starts
+ * with the RLE header of 64 bytes holding the number of segments and their
+ * offsets.<br>
+ * <br>
+ * Runs of 3 or more equal bytes are replicated, shorter ones are part of a
+ * literal run. The encoded frame is therefore at most a byte per 128 bytes of
+ * a row plus the header larger than the input, see
+ * {@link #getMaxLength(int, int)}, while large areas of a single value, e.g.
+ * masked regions, shrink to 2 bytes per 128. The buffers are accessed by
+ * index only, so they may be direct buffers, and their positions and limits
+ * are left alone.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+final class RleEncoder {
+
+	private static final int HEADER_LENGTH = 64;
+	private static final int MAX_RUN = 128;
+	// shorter runs of equal bytes do not save anything
+	private static final int MIN_REPLICATE_RUN = 3;
+
+	private RleEncoder() {
+	}
+
+	/**
+	 * Returns the largest possible length of an encoded frame.
+	 *
+	 * @param columns
+	 *            The number of pixels per row
+	 * @param rows
+	 *            The number of rows
+	 */
+	static int getMaxLength(int columns, int rows) {
+		int segment = rows * (columns + (columns + MAX_RUN - 1) / MAX_RUN);
+		// each segment may need a byte of padding
+		return HEADER_LENGTH + 2 * (segment + 1);
+	}
+
+	/**
+	 * Encodes a frame.
+	 *
+	 * @param pixelData
+	 *            The frame's pixel data from index 0, 2 bytes per pixel in
+	 *            little-endian order, rows top to bottom
+	 * @param columns
+	 *            The number of pixels per row
+	 * @param rows
+	 *            The number of rows
+	 * @param dst
+	 *            The buffer to write the encoded frame to from index 0, at
+	 *            least {@link #getMaxLength(int, int)} bytes
+	 * @return The length of the encoded frame, always even
+	 */
+	static int encode(ByteBuffer pixelData, int columns, int rows, ByteBuffer dst) {
+		int pos = HEADER_LENGTH;
+		int[] offsets = new int[2];
+		// the most significant bytes first
+		for (int segment = 0; segment < 2; segment++) {
+			offsets[segment] = pos;
+			int start = 1 - segment;
+			for (int y = 0; y < rows; y++) {
+				// runs must not cross the end of a row
+				pos = encodeRow(pixelData, start + 2 * y * columns, columns, dst, pos);
+			}
+			if ((pos & 1) != 0) {
+				dst.put(pos++, (byte) 0);
+			}
+		}
+
+		for (int i = 0; i < HEADER_LENGTH; i++) {
+			dst.put(i, (byte) 0);
+		}
+		writeInt(dst, 0, offsets.length);
+		for (int segment = 0; segment < offsets.length; segment++) {
+			writeInt(dst, 4 + 4 * segment, offsets[segment]);
+		}
+		return pos;
+	}
+
+	/**
+	 * Encodes every second byte of src, starting at the given index, with
+	 * PackBits.
+	 *
+	 * @return The position in dst after the encoded row
+	 */
+	private static int encodeRow(ByteBuffer src, int start, int count, ByteBuffer dst, int pos) {
+		int i = 0;
+		while (i < count) {
+			byte value = src.get(start + 2 * i);
+			int run = 1;
+			while (i + run < count && run < MAX_RUN && src.get(start + 2 * (i + run)) == value) {
+				run++;
+			}
+			if (run >= MIN_REPLICATE_RUN) {
+				dst.put(pos++, (byte) (1 - run));
+				dst.put(pos++, value);
+				i += run;
+				continue;
+			}
+
+			// a literal run up to the next run worth replicating
+			int header = pos++;
+			int literal = 0;
+			while (i < count && literal < MAX_RUN && !isReplicateRun(src, start, i, count)) {
+				dst.put(pos++, src.get(start + 2 * i));
+				i++;
+				literal++;
+			}
+			dst.put(header, (byte) (literal - 1));
+		}
+		return pos;
+	}
+
+	private static boolean isReplicateRun(ByteBuffer src, int start, int i, int count) {
+		if (i + MIN_REPLICATE_RUN > count) {
+			return false;
+		}
+		byte value = src.get(start + 2 * i);
+		for (int j = 1; j < MIN_REPLICATE_RUN; j++) {
+			if (src.get(start + 2 * (i + j)) != value) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeInt(ByteBuffer dst, int index, int value) {
+		dst.put(index, (byte) value);
+		dst.put(index + 1, (byte) (value >> 8));
+		dst.put(index + 2, (byte) (value >> 16));
+		dst.put(index + 3, (byte) (value >> 24));
+	}
+}
@@ -0,0 +1,241 @@
+package vismed2.group3.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.VolumePool;
+
+/**
+ * Chains several filters into a single filter, which is applied to all slices.
+ * Instead of running each filter on its own, which converts and copies the
+ * whole volume once per filter, the stages are compiled into an execution
+ * plan:
+ * <ul>
+ * <li>Point-wise stages ({@link ThresholdFilter}, {@link WindowLevelFilter})
+ * are composed into a single lookup table and fused into the preceding
+ * stencil stage: each slab is mapped right after it has been computed, while
+ * it is still in the cache. Point-wise stages at the beginning of the chain
+ * are applied in place to the input.</li>
+ * <li>Stencil stages ({@link MedianFilter}, {@link GradientFilter}) are run
+ * slab by slab in parallel, reading from one buffer and writing to another.
+ * Buffers are taken from a {@link VolumePool} and returned as soon as the next
+ * stage has consumed them.</li>
+ * </ul>
+ * When applied through {@link #applyFilter(vtk.vtkImageData)} the converted
+ * input is reused as a buffer, so at most two volumes are held at any time,
+ * regardless of the length of the chain. {@link #filter(ShortVolume)} keeps
+ * its input and needs one more volume.<br>
+ * <br>
+ * Stages which support neither (e.g. {@link MIP}) are run on their own through
+ * {@link VolumeFilter#filter(ShortVolume)}. The settings of the stages
+ * concerning the active slices are ignored.<br>
+ * <br>
+ * When the pipeline is cancelled, it stops after the current slab and returns
+ * its buffers to the pool.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class FilterPipeline extends VolumeFilter {
+
+	private final List<VolumeFilter> stages = new ArrayList<VolumeFilter>();
+	private VolumePool pool = new VolumePool(1);
+
+	/**
+	 * A stencil stage and the point-wise stages fused into it. Point-wise
+	 * stages at the beginning of the chain form a step without stencil.
+	 */
+	private static class Step {
+		private final VolumeFilter stencil;
+		private ValueLut lut;
+
+		private Step(VolumeFilter stencil, ValueLut lut) {
+			this.stencil = stencil;
+			this.lut = lut;
+		}
+	}
+
+	/**
+	 * Appends a stage to the pipeline.
+	 *
+	 * @param stage
+	 *            The filter to apply after all previously added stages
+	 * @return This pipeline
+	 */
+	public FilterPipeline add(VolumeFilter stage) {
+		if (stage == null) {
+			throw new IllegalArgumentException("Stage must not be null.");
+		}
+		stages.add(stage);
+		return this;
+	}
+
+	/**
+	 * Sets the pool to take intermediate buffers from. Pipelines may share a
+	 * pool.
+	 *
+	 * @param pool
+	 *            The pool to use
+	 */
+	public void setPool(VolumePool pool) {
+		if (pool == null) {
+			throw new IllegalArgumentException("Pool must not be null.");
+		}
+		this.pool = pool;
+	}
+
+	@Override
+	public ShortVolume filter(ShortVolume in) {
+		return run(in, false);
+	}
+
+	@Override
+	protected ShortVolume filterOwned(ShortVolume input) {
+		return run(input, true);
+	}
+
+	@Override
+	protected void released(ShortVolume result) {
+		pool.release(result);
+	}
+
+	/**
+	 * Compiles the stages into steps.
+	 */
+	private List<Step> plan() {
+		List<Step> plan = new ArrayList<Step>();
+		Step current = null;
+		for (VolumeFilter stage : stages) {
+			ValueLut lut = stage.getValueLut();
+			if (lut == null) {
+				current = new Step(stage, null);
+				plan.add(current);
+			} else if (current == null) {
+				current = new Step(null, lut);
+				plan.add(current);
+			} else {
+				current.lut = current.lut == null ? lut : current.lut.then(lut);
+			}
+		}
+		return plan;
+	}
+
+	private ShortVolume run(final ShortVolume in, boolean ownsInput) {
+		List<Step> plan = plan();
+		ShortVolume current = in;
+		boolean owned = ownsInput;
+
+		for (Step next : plan) {
+			ShortVolume result = null;
+			try {
+				checkCancelled();
+				if (next.stencil == null) {
+					result = owned ? current : acquire(current);
+					map(current, result, next.lut);
+				} else if (next.stencil.canFilterSlices()) {
+					result = acquire(current);
+					stencil(current, result, next.stencil, next.lut);
+				} else {
+					// the stage itself is not cancelled, only the steps after it
+					result = next.stencil.filter(current);
+					if (next.lut != null) {
+						map(result, result, next.lut);
+					} else {
+						getProgress().advance(result.size());
+					}
+				}
+			} catch (RuntimeException e) {
+				// e.g. cancelled: hand the buffers back for the next run
+				if (result != null && result != current) {
+					pool.release(result);
+				}
+				if (owned) {
+					pool.release(current);
+				}
+				throw e;
+			}
+			if (owned && result != current) {
+				pool.release(current);
+			}
+			current = result;
+			owned = true;
+		}
+		return owned ? current : current.copy();
+	}
+
+	private ShortVolume acquire(ShortVolume like) {
+		return pool.acquire(like.getWidth(), like.getHeight(), like.getDepth());
+	}
+
+	/**
+	 * Runs a stencil stage slab by slab and maps each slab through the fused
+	 * table right after it has been computed.
+	 */
+	private void stencil(final ShortVolume in, final ShortVolume out, final VolumeFilter stencil,
+			final ValueLut lut) {
+		final int sliceSize = in.getSliceSize();
+		final short[] dst = out.getData();
+		forEachSlab(in, new SlabExecutor.SlabTask() {
+			@Override
+			public void process(int first, int last) {
+				stencil.filterSlices(in, out, first, last);
+				if (lut != null) {
+					lut.apply(dst, dst, first * sliceSize, (last + 1) * sliceSize);
+				}
+			}
+		});
+	}
+
+	private void map(ShortVolume in, ShortVolume out, final ValueLut lut) {
+		final int sliceSize = in.getSliceSize();
+		final short[] src = in.getData();
+		final short[] dst = out.getData();
+		forEachSlab(in, new SlabExecutor.SlabTask() {
+			@Override
+			public void process(int first, int last) {
+				lut.apply(src, dst, first * sliceSize, (last + 1) * sliceSize);
+			}
+		});
+	}
+
+	/**
+	 * Every step processes the whole volume once.
+	 */
+	@Override
+	protected long estimateWork(ShortVolume in) {
+		return (long) plan().size() * in.size();
+	}
+
+	/**
+	 * The pipeline's result can be cached if the results of all stages can.
+	 */
+	@Override
+	protected String getParameters() {
+		StringBuilder parameters = new StringBuilder();
+		for (VolumeFilter stage : stages) {
+			String stageParameters = stage.getParameters();
+			if (stageParameters == null) {
+				return null;
+			}
+			if (parameters.length() > 0) {
+				parameters.append(" > ");
+			}
+			parameters.append(stage.getClass().getSimpleName()).append('(').append(stageParameters)
+					.append(')');
+		}
+		return parameters.toString();
+	}
+
+	@Override
+	public String getFilterName() {
+		StringBuilder name = new StringBuilder();
+		for (VolumeFilter stage : stages) {
+			if (name.length() > 0) {
+				name.append(" > ");
+			}
+			name.append(stage.getFilterName());
+		}
+		return name.length() > 0 ? name.toString() : "Pipeline";
+	}
+}
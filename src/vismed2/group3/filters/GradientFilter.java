@@ -1,441 +1,235 @@
-package vismed2.group3.filters;
-
-import vismed2.group3.VisMedVTK;
-import vtk.vtkImageData;
-
-/**
- * @author Sebastian Haas
- * @author Alexander Tatowsky
- * <br>
- *         The gradient (=first order deviation) of a image intensity function
- *         is the difference between the intensity of two neighboring pixels.
- * 
- *         Depending on which direction the difference is measured there are
- *         different Kernels:
- * 
- *         GradientXY: Difference in the horizontal and vertical direction:
- * 
- *         <pre>
- * {@code
- *  1 -1        -1 -1
- *  1 -1   and   1  1
- * }
- *         </pre>
- * 
- *         Roberts' cross Operator:
- * 
- *         <pre>
- * {@code
- *  0 1 | 1 0 
- * -1 0 | 0 -1
- * }
- *         </pre>
- * 
- *         Sobel Filter:
- * 
- *         <pre>
- * {@code
- *  1 0 -1 |  1  2  1 
- *  2 0 -2 |  0  0  0 
- *  1 0 -1 | -1 -2 -1
- *}
- *         </pre>
- * 
- *         The functionality of this filter is only guaranteed for monochrome
- *         DICOM data.
- */
-public class GradientFilter implements VtkJavaFilter {
-
-	private final vtkImageData out;
-
-	private Type filterType = Type.Roberts;
-	private int sliceAlong_X = 0;
-	private int sliceAlong_Y = 0;
-	private int sliceAlong_Z = 0;
-	private boolean doAllSlices = false;
-
-	public enum Type {
-		GradientXY, Roberts, Sobel
-	};
-
-	public GradientFilter() {
-		out = new vtkImageData();
-	}
-
-	/**
-	 * Give information about the active slices. Active slices are the slices
-	 * which are shown at the moment of pressing the filter button.
-	 * 
-	 * @param sliceYZ
-	 *            - along the X achsis
-	 * @param sliceXZ
-	 *            - along the Y achsis
-	 * @param sliceYX
-	 *            - along the Z achsis
-	 */
-	public void setSlice(int sliceYZ, int sliceXZ, int sliceYX) {
-		this.sliceAlong_X = sliceYZ;
-		this.sliceAlong_Y = sliceXZ;
-		this.sliceAlong_Z = sliceYX;
-	}
-
-	@Override
-	public void applyFilter(vtkImageData imgData) {
-		if (this.filterType.equals(Type.Roberts)) {
-			doRoberts(imgData);
-		} else if (filterType.equals(Type.Sobel)) {
-			doSobel(imgData);
-		} else if (filterType.equals(Type.GradientXY)) {
-			doGradient(imgData);
-		} else
-			System.err.println("Unknown Gradient Algorithm!");
-	}
-
-	/**
-	 * GradientXY: Difference in the horizontal and vertical direction:
-	 * 
-	 * <pre>
-	 * {@code
-	 *  1 -1        -1 -1
-	 *  1 -1   and   1  1
-	 * }
-	 * </pre>
-	 * 
-	 * @param imgData
-	 */
-	private void doGradient(vtkImageData imgData) {
-		// Prepare output data
-		int[] dims = imgData.GetDimensions();
-		out.Initialize();
-		out.CopyStructure(imgData);
-		out.CopyAttributes(imgData);
-		out.DeepCopy(imgData);
-
-		double[] pixelValue1 = new double[12];
-		double pixelValue;
-		int progress = 0;
-
-		if (doAllSlices) { // iterate through the image/ through all slices
-			System.err.println("Not available for this algorithm.");
-		} else { // only do active slice
-			for (int slice = 0; slice < dims[2]; slice++) {
-				progress = (int) ((double) 100 / dims[1] * slice);
-				VisMedVTK.setStatusBar(
-						String.format("Applying %s Filter. Progress: %d%%", String.valueOf(filterType), progress));
-				for (int width = 0; width < dims[1]; width++) {
-					for (int height = 0; height < dims[0]; height++) {
-						if (slice == sliceAlong_X) { // along X
-							int value = 0;
-
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, sliceAlong_X, 0);
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 1, width, sliceAlong_X,
-									0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height, width + 1, sliceAlong_X,
-									0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height + 1, width + 1,
-									sliceAlong_X, 0);
-
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, sliceAlong_X, 0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height + 1, width, sliceAlong_X,
-									0);
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width + 1, sliceAlong_X,
-									0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height + 1, width + 1,
-									sliceAlong_X, 0);
-
-							double sumValues = 0;
-							for (int i = 0; i < pixelValue1.length; i++) {
-								sumValues += pixelValue1[i];
-							}
-							pixelValue = (sumValues);
-							out.SetScalarComponentFromDouble(height, width, sliceAlong_X, 0, pixelValue);
-						}
-						if (width == sliceAlong_Y) {
-							int value = 0;
-
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, slice + 1, 0);
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 1, width, slice + 1, 0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height, width, slice, 0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height + 1, width, slice, 0);
-
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, slice + 1, 0);
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, slice, 0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height + 1, width, slice + 1, 0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height + 1, width, slice, 0);
-
-							double sumValues = 0;
-							for (int i = 0; i < pixelValue1.length; i++) {
-								sumValues += pixelValue1[i];
-							}
-							pixelValue = (sumValues);
-							out.SetScalarComponentFromDouble(height, sliceAlong_Y, slice, 0, pixelValue);
-						}
-						if (height == sliceAlong_Z) {
-							int value = 0;
-
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, slice, 0);
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, slice + 1, 0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height, width + 1, slice, 0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height, width + 1, slice + 1, 0);
-
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, slice, 0);
-							pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width + 1, slice, 0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height, width, slice + 1, 0);
-							pixelValue1[value++] = -imgData.GetScalarComponentAsDouble(height, width + 1, slice + 1, 0);
-
-							double sumValues = 0;
-							for (int i = 0; i < pixelValue1.length; i++) {
-								sumValues += pixelValue1[i];
-							}
-							pixelValue = (sumValues);
-							out.SetScalarComponentFromDouble(sliceAlong_Z, width, slice, 0, pixelValue);
-						}
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * Roberts' cross Operator:
-	 * 
-	 * <pre>
-	 * {@code
-	 *  0 1 | 1 0 
-	 * -1 0 | 0 -1
-	 * }
-	 * </pre>
-	 */
-	private void doRoberts(vtkImageData imgData) {
-		// Prepare output data
-		int[] dims = imgData.GetDimensions();
-		out.Initialize();
-		out.CopyStructure(imgData);
-		out.CopyAttributes(imgData);
-		out.DeepCopy(imgData);
-
-		double pixelValue1;
-		double pixelValue2;
-		double pixelValue3;
-		double pixelValue4;
-		double pixelValue;
-		int progress = 0;
-
-		if (doAllSlices) { // iterate through the image/ through all slices
-			System.err.println("Not available for this algorithm.");
-		} else { // only do active slice
-			for (int slice = 0; slice < dims[2]; slice++) {
-				progress = (int) ((double) 100 / dims[1] * slice);
-				VisMedVTK.setStatusBar(
-						String.format("Applying %s Filter. Progress: %d%%", String.valueOf(filterType), progress));
-				for (int width = 0; width < dims[1]; width++) {
-					for (int height = 0; height < dims[0]; height++) {
-						if (slice == sliceAlong_X) { // along X
-							pixelValue1 = imgData.GetScalarComponentAsDouble(height, width + 1, sliceAlong_X, 0);
-							pixelValue2 = imgData.GetScalarComponentAsDouble(height + 1, width, sliceAlong_X, 0) * (-1);
-
-							pixelValue3 = imgData.GetScalarComponentAsDouble(height, width, sliceAlong_X, 0);
-							pixelValue4 = imgData.GetScalarComponentAsDouble(height + 1, width + 1, sliceAlong_X, 0)
-									* (-1);
-
-							pixelValue = (pixelValue1 + pixelValue2 + pixelValue3 + pixelValue4);
-							out.SetScalarComponentFromDouble(height, width, sliceAlong_X, 0, pixelValue);
-						}
-						if (width == sliceAlong_Y) {
-							pixelValue1 = imgData.GetScalarComponentAsDouble(height, sliceAlong_Y, slice, 0);
-							pixelValue2 = imgData.GetScalarComponentAsDouble(height + 1, sliceAlong_Y, slice + 1, 0)
-									* (-1);
-
-							pixelValue3 = imgData.GetScalarComponentAsDouble(height + 1, sliceAlong_Y, slice, 0);
-							pixelValue4 = imgData.GetScalarComponentAsDouble(height, sliceAlong_Y, slice + 1, 0) * (-1);
-
-							pixelValue = (pixelValue1 + pixelValue2 + pixelValue3 + pixelValue4);
-							out.SetScalarComponentFromDouble(height, sliceAlong_Y, slice, 0, pixelValue);
-						}
-						if (height == sliceAlong_Z) {
-							pixelValue = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width, slice, 0);
-							pixelValue1 = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width + 1, slice, 0);
-							pixelValue2 = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width, slice + 1, 0) * (-1);
-
-							pixelValue3 = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width, slice, 0);
-							pixelValue4 = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width + 1, slice + 1, 0)
-									* (-1);
-
-							pixelValue = (pixelValue1 + pixelValue2 + pixelValue3 + pixelValue4);
-							out.SetScalarComponentFromDouble(sliceAlong_Z, width, slice, 0, pixelValue);
-						}
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * Sobel Filter:
-	 * 
-	 * <pre>
-	 * {@code
-	 *  1 0 -1 |  1  2  1 
-	 *  2 0 -2 |  0  0  0 
-	 *  1 0 -1 | -1 -2 -1
-	 *}
-	 * </pre>
-	 */
-	public void doSobel(vtkImageData imgData) {
-		// Prepare output data
-		int[] dims = imgData.GetDimensions();
-		out.Initialize();
-		out.CopyStructure(imgData);
-		out.CopyAttributes(imgData);
-		out.DeepCopy(imgData);
-
-		double[] pixelValue1 = new double[12];
-		double pixelValue;
-		int progress = 0;
-
-		for (int slice = 0; slice < dims[2] - 3; slice++) {
-			progress = (int) ((double) 100 / dims[1] * slice);
-			VisMedVTK.setStatusBar(
-					String.format("Applying %s Filter. Progress: %d%%", String.valueOf(filterType), progress));
-			for (int width = 0; width < dims[1] - 3; width++) {
-				for (int height = 0; height < dims[0] - 3; height++) {
-					if (slice == sliceAlong_X) { // along X
-						int value = 0;
-						// Kernel 1
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, sliceAlong_X, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 1, width, sliceAlong_X, 0)
-								* 2;
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, width, sliceAlong_X, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width + 2, sliceAlong_X, 0)
-								* (-1);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 1, width + 2, sliceAlong_X,
-								0) * (-2);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, width + 2, sliceAlong_X,
-								0) * (-1);
-
-						// Kernel 2
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width, sliceAlong_X, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width + 1, sliceAlong_X, 0)
-								* 2;
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, width + 2, sliceAlong_X, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, width, sliceAlong_X, 0)
-								* (-1);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2 + 1, width + 1,
-								sliceAlong_X, 0) * (-2);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2 + 2, width + 2,
-								sliceAlong_X, 0) * (-1);
-
-						double sumValues = 0;
-						for (int i = 0; i < pixelValue1.length; i++) {
-							sumValues += pixelValue1[i];
-						}
-						pixelValue = (sumValues);
-						out.SetScalarComponentFromDouble(height, width, sliceAlong_X, 0, pixelValue);
-					}
-					if (width == sliceAlong_Y) {
-						int value = 0;
-						// Kernel 1
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, sliceAlong_Y, slice + 2, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 1, sliceAlong_Y, slice + 2,
-								0) * 2;
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, sliceAlong_Y, slice + 2,
-								0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, sliceAlong_Y, slice, 0)
-								* (-1);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, sliceAlong_Y, slice + 1,
-								0) * (-2);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, sliceAlong_Y, slice + 2,
-								0) * (-1);
-
-						// Kernel 2
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, sliceAlong_Y, slice, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, sliceAlong_Y, slice + 1, 0)
-								* 2;
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height, sliceAlong_Y, slice + 2, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, sliceAlong_Y, slice, 0)
-								* (-1);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, sliceAlong_Y, slice + 1,
-								0) * (-2);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(height + 2, sliceAlong_Y, slice + 2,
-								0) * (-1);
-
-						double sumValues = 0;
-						for (int i = 0; i < pixelValue1.length; i++) {
-							sumValues += pixelValue1[i];
-						}
-						pixelValue = (sumValues);
-						out.SetScalarComponentFromDouble(height, sliceAlong_Y, slice, 0, pixelValue);
-					}
-					if (height == sliceAlong_Z) {
-						int value = 0;
-						// Kernel 1
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width, slice, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width, slice + 1, 0)
-								* 2;
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width, slice + 2, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width + 2, slice, 0)
-								* (-1);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width + 2, slice + 1, 0)
-								* (-2);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width + 2, slice + 2, 0)
-								* (-1);
-
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width, slice, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width + 1, slice, 0)
-								* 2;
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width + 2, slice, 0);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width, slice + 2, 0)
-								* (-1);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width + 1, slice + 2, 0)
-								* (-2);
-						pixelValue1[value++] = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width + 2, slice + 2, 0)
-								* (-1);
-
-						double sumValues = 0;
-						for (int i = 0; i < pixelValue1.length; i++) {
-							sumValues += pixelValue1[i];
-						}
-						pixelValue = (sumValues);
-						out.SetScalarComponentFromDouble(sliceAlong_Z, width, slice, 0, pixelValue);
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * set which type of gradient filter shall be applied. Possible filter types
-	 * are: GradientXY, Roberts, Sobel.
-	 * 
-	 * @param filterType
-	 */
-	public void setFilter(Type filterType) {
-		this.filterType = filterType;
-	}
-
-	/**
-	 * Set the flag whether all slices should be filtered or just the active
-	 * slices
-	 * 
-	 * @param doAllSlices
-	 * @return oposite of set boolean
-	 */
-	public boolean setAllSlices(boolean doAllSlices) {
-		this.doAllSlices = doAllSlices;
-		if (doAllSlices)
-			return false;
-		else
-			return true;
-	}
-
-	@Override
-	public String getFilterName() {
-		return String.valueOf(filterType);
-	}
-
-	@Override
-	public vtkImageData GetOutput() {
-		return out;
-	}
-
-}
+package vismed2.group3.filters;
+
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ * <br>
+ *         The gradient (=first order deviation) of a image intensity function
+ *         is the difference between the intensity of two neighboring pixels.
+ * 
+ *         Depending on which direction the difference is measured there are
+ *         different Kernels:
+ * 
+ *         GradientXY: Difference in the horizontal and vertical direction:
+ * 
+ *         <pre>
+ * {@code
+ *  1 -1        -1 -1
+ *  1 -1   and   1  1
+ * }
+ *         </pre>
+ * 
+ *         Roberts' cross Operator:
+ * 
+ *         <pre>
+ * {@code
+ *  0 1 | 1 0 
+ * -1 0 | 0 -1
+ * }
+ *         </pre>
+ * 
+ *         Sobel Filter:
+ * 
+ *         <pre>
+ * {@code
+ *  1 0 -1 |  1  2  1 
+ *  2 0 -2 |  0  0  0 
+ *  1 0 -1 | -1 -2 -1
+ *}
+ *         </pre>
+ * 
+ *         In active-slice mode the operators are applied within each of the
+ *         three active planes. In all-slices mode every XY slice is filtered,
+ *         using separable passes where possible and processing slabs of
+ *         slices in parallel. The operators stay two-dimensional in this
+ *         mode: each slice is filtered on its own, there is no derivative
+ *         along z, and the result equals running the active-slice mode on
+ *         the XY plane of every slice.
+ * 
+ *         The functionality of this filter is only guaranteed for monochrome
+ *         DICOM data.
+ */
+public class GradientFilter extends VolumeFilter {
+
+	private Type filterType = Type.Roberts;
+	private boolean doAllSlices = false;
+
+	public enum Type {
+		GradientXY, Roberts, Sobel
+	};
+
+	@Override
+	public ShortVolume filter(final ShortVolume in) {
+		if (!doAllSlices) { // only do active slice
+			return filterOwned(in.copy());
+		}
+
+		// Prepare output data
+		final ShortVolume out = new ShortVolume(in.getWidth(), in.getHeight(), in.getDepth());
+		// iterate through the image/ through all slices
+		forEachSlab(in, new SlabExecutor.SlabTask() {
+			@Override
+			public void process(int first, int last) {
+				filterSlices(in, out, first, last);
+			}
+		});
+		return out;
+	}
+
+	@Override
+	protected boolean canFilterSlices() {
+		return true;
+	}
+
+	@Override
+	protected void filterSlices(ShortVolume in, ShortVolume out, int first, int last) {
+		int[] diff = new int[in.getSliceSize()];
+		int[] sum = new int[in.getSliceSize()];
+		for (int slice = first; slice <= last; slice++) {
+			int offset = slice * in.getSliceSize();
+			filterImage(in.getData(), out.getData(), offset, in.getWidth(), in.getHeight(), diff, sum);
+		}
+	}
+
+	/**
+	 * Applies the operator to a whole image, e.g. an XY slice. As before the
+	 * port, the kernels are anchored at the pixel, i.e. the pixel is the
+	 * kernel's top left sample, samples outside of the image count as 0 and
+	 * the result is the signed sum of both kernels' responses. GradientXY and
+	 * Sobel are separable: a first pass along each row computes the
+	 * differences and smoothed sums along x, a second pass combines three
+	 * (Sobel) or two (GradientXY) neighbouring rows of these. Both passes walk
+	 * the image in memory order. Roberts' 2x2 cross only needs two neighbouring
+	 * rows and is computed directly.
+	 *
+	 * @param src
+	 *            The array to read the image from
+	 * @param dst
+	 *            The array to write the result to
+	 * @param offset
+	 *            The index of the image's first pixel in both arrays
+	 * @param w
+	 *            The width of the image, its rows are stored contiguously
+	 * @param h
+	 *            The height of the image
+	 * @param diff
+	 *            Scratch space for w * h values
+	 * @param sum
+	 *            Scratch space for w * h values
+	 */
+	private void filterImage(short[] src, short[] dst, int offset, int w, int h, int[] diff, int[] sum) {
+
+		if (filterType.equals(Type.Roberts)) {
+			for (int y = 0; y < h; y++) {
+				int row = offset + y * w;
+				int next = row + w;
+				boolean lastRow = y + 1 >= h;
+				for (int x = 0; x < w; x++) {
+					boolean lastColumn = x + 1 >= w;
+					int right = lastColumn ? 0 : src[row + x + 1];
+					int below = lastRow ? 0 : src[next + x];
+					int belowRight = lastRow || lastColumn ? 0 : src[next + x + 1];
+					dst[row + x] = ShortVolume.saturate(right - below + src[row + x] - belowRight);
+				}
+			}
+			return;
+		}
+
+		boolean sobel = filterType.equals(Type.Sobel);
+		// Pass 1: along x
+		for (int y = 0; y < h; y++) {
+			int row = offset + y * w;
+			int i = y * w;
+			for (int x = 0; x < w; x++, i++) {
+				int right = x + 1 < w ? src[row + x + 1] : 0;
+				if (sobel) {
+					int right2 = x + 2 < w ? src[row + x + 2] : 0;
+					diff[i] = src[row + x] - right2;
+					sum[i] = src[row + x] + 2 * right + right2;
+				} else {
+					diff[i] = src[row + x] - right;
+					sum[i] = src[row + x] + right;
+				}
+			}
+		}
+		// Pass 2: along y, rows below the image count as 0
+		for (int y = 0; y < h; y++) {
+			int row = y * w;
+			int next = (y + 1) * w;
+			int next2 = (y + 2) * w;
+			boolean hasNext = y + 1 < h;
+			boolean hasNext2 = y + 2 < h;
+			for (int x = 0; x < w; x++) {
+				int g1;
+				int g2;
+				if (sobel) {
+					g1 = diff[row + x] + (hasNext ? 2 * diff[next + x] : 0) + (hasNext2 ? diff[next2 + x] : 0);
+					g2 = sum[row + x] - (hasNext2 ? sum[next2 + x] : 0);
+				} else {
+					g1 = diff[row + x] + (hasNext ? diff[next + x] : 0);
+					g2 = (hasNext ? sum[next + x] : 0) - sum[row + x];
+				}
+				dst[offset + row + x] = ShortVolume.saturate(g1 + g2);
+			}
+		}
+	}
+
+	/**
+	 * Gathers the plane into a contiguous image first, so XZ and YZ planes
+	 * are read from the volume once instead of once per kernel sample, and
+	 * applies the operator as to an XY slice.
+	 */
+	@Override
+	protected short[] filterPlane(ShortVolume in, Plane plane, int position) {
+		int uSize = in.getDimension(plane.getUAxis());
+		int vSize = in.getDimension(plane.getVAxis());
+		short[] image = in.getPlane(plane, position);
+		short[] values = new short[image.length];
+		filterImage(image, values, 0, uSize, vSize, new int[image.length], new int[image.length]);
+		return values;
+	}
+
+	@Override
+	public boolean isActiveSliceMode() {
+		return !doAllSlices;
+	}
+
+	/**
+	 * set which type of gradient filter shall be applied. Possible filter types
+	 * are: GradientXY, Roberts, Sobel.
+	 * 
+	 * @param filterType
+	 */
+	public void setFilter(Type filterType) {
+		this.filterType = filterType;
+	}
+
+	/**
+	 * Set the flag whether all slices should be filtered or just the active
+	 * slices
+	 * 
+	 * @param doAllSlices
+	 * @return oposite of set boolean
+	 */
+	public boolean setAllSlices(boolean doAllSlices) {
+		this.doAllSlices = doAllSlices;
+		if (doAllSlices)
+			return false;
+		else
+			return true;
+	}
+
+	@Override
+	protected String getParameters() {
+		return "type=" + filterType + " all=" + doAllSlices;
+	}
+
+	@Override
+	public String getFilterName() {
+		return String.valueOf(filterType);
+	}
+
+}
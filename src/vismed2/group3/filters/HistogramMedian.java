@@ -0,0 +1,283 @@
+package vismed2.group3.filters;
+
+import java.util.Arrays;
+
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * Computes the median of a box-shaped neighbourhood for every voxel of a
+ * plane using sliding histograms instead of sorting the kernel for each voxel.
+ * <br>
+ * <br>
+ * The implementation follows Perreault and Hebert ("Median Filtering in
+ * Constant Time", 2007), extended to three dimensions:
+ * <ul>
+ * <li>For every column u of the plane a histogram of the kernel's
+ * cross-section (the v and normal extent of the kernel) is kept. Moving to
+ * the next row only removes and adds one line of voxels per column.</li>
+ * <li>The kernel histogram is the sum of the column histograms in the kernel's
+ * u-range. Moving along u adds one column histogram and removes another.</li>
+ * <li>Histograms are split into coarse and fine levels. Only the coarse level
+ * is kept up to date while sliding; a fine bucket is brought up to date lazily
+ * when the median search actually enters it.</li>
+ * </ul>
+ * The cost per voxel is therefore independent of the kernel's extent within
+ * the plane and only grows with its extent along the plane's normal.<br>
+ * <br>
+ * Voxel values are mapped to dense ranks before binning, so the histogram size
+ * depends on the number of distinct grey levels (e.g. 4096 for CT data) rather
+ * than on the value range. Kernel positions outside of the volume are clamped
+ * to the border. Instances are not thread-safe.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+final class HistogramMedian {
+
+	private static final int INVALID = Integer.MIN_VALUE;
+
+	private final ShortVolume in;
+	private final int[] kernelSize;
+
+	// value <-> rank mapping
+	private final int[] ranks = new int[1 << 16];
+	private final short[] values;
+
+	// histogram layout
+	private final int fineBits;
+	private final int fineSize;
+	private final int coarseSize;
+	private final int binCount;
+
+	// per column histograms of the current row
+	private char[] columnFine = new char[0];
+	private char[] columnCoarse = new char[0];
+
+	// kernel histogram at the current position
+	private final int[] coarse;
+	private final int[] fine;
+	private final int[] fineValidAt;
+
+	/**
+	 * Prepares the median computation for the given volume. Only voxel values
+	 * occurring within the given range of slices along the given axis are
+	 * indexed; all kernels evaluated later must lie within this range.
+	 *
+	 * @param in
+	 *            The volume to read from
+	 * @param kernelSize
+	 *            The kernel size along the x, y and z axis
+	 * @param axis
+	 *            The axis the range refers to
+	 * @param from
+	 *            The first slice along the axis that kernels may touch
+	 * @param to
+	 *            The last slice along the axis that kernels may touch
+	 */
+	HistogramMedian(ShortVolume in, int[] kernelSize, int axis, int from, int to) {
+		this.in = in;
+		this.kernelSize = kernelSize.clone();
+
+		// Collect all occurring values and assign them ascending ranks
+		boolean[] present = new boolean[1 << 16];
+		short[] data = in.getData();
+		int uAxis = axis == 0 ? 1 : 0;
+		int vAxis = axis == 2 ? 1 : 2;
+		int uSize = in.getDimension(uAxis);
+		int vSize = in.getDimension(vAxis);
+		int uStride = in.getStride(uAxis);
+		int vStride = in.getStride(vAxis);
+		from = Math.max(from, 0);
+		to = Math.min(to, in.getDimension(axis) - 1);
+		for (int p = from; p <= to; p++) {
+			for (int v = 0; v < vSize; v++) {
+				int i = p * in.getStride(axis) + v * vStride;
+				for (int u = 0; u < uSize; u++, i += uStride) {
+					present[data[i] - Short.MIN_VALUE] = true;
+				}
+			}
+		}
+		int count = 0;
+		for (int i = 0; i < present.length; i++) {
+			if (present[i]) {
+				count++;
+			}
+		}
+		values = new short[count];
+		count = 0;
+		for (int i = 0; i < present.length; i++) {
+			if (present[i]) {
+				values[count] = (short) (i + Short.MIN_VALUE);
+				ranks[i] = count++;
+			}
+		}
+
+		// Split the histogram into roughly sqrt(count) coarse and fine bins
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(count - 1, 0));
+		fineBits = (bits + 1) / 2;
+		fineSize = 1 << fineBits;
+		coarseSize = (count + fineSize - 1) >> fineBits;
+		binCount = coarseSize << fineBits;
+
+		coarse = new int[coarseSize];
+		fine = new int[binCount];
+		fineValidAt = new int[coarseSize];
+	}
+
+	/**
+	 * Writes the median of every voxel of the given plane to the output.
+	 *
+	 * @param dst
+	 *            The array to write to, indexed offset + u + v * (size along
+	 *            u). For an XY plane this is the layout of a slice within a
+	 *            volume.
+	 * @param offset
+	 *            The index of the plane's first voxel within dst
+	 * @param plane
+	 *            The orientation of the plane
+	 * @param position
+	 *            The position of the plane along its normal axis
+	 */
+	void filterPlane(short[] dst, int offset, Plane plane, int position) {
+		int uAxis = plane.getUAxis();
+		int vAxis = plane.getVAxis();
+		int nAxis = plane.getNormalAxis();
+		int uSize = in.getDimension(uAxis);
+		int vSize = in.getDimension(vAxis);
+		int uStride = in.getStride(uAxis);
+		int vStride = in.getStride(vAxis);
+		int nStride = in.getStride(nAxis);
+		int uLo = kernelSize[uAxis] / 2;
+		int uHi = kernelSize[uAxis] - 1 - uLo;
+		int vLo = kernelSize[vAxis] / 2;
+		int vHi = kernelSize[vAxis] - 1 - vLo;
+		int nLo = kernelSize[nAxis] / 2;
+		int total = kernelSize[0] * kernelSize[1] * kernelSize[2];
+
+		short[] src = in.getData();
+
+		// Offsets of the kernel's slices along the normal axis
+		int[] nOffsets = new int[kernelSize[nAxis]];
+		for (int k = 0; k < nOffsets.length; k++) {
+			nOffsets[k] = clamp(position - nLo + k, in.getDimension(nAxis)) * nStride;
+		}
+
+		// Column histograms for the first row
+		if (columnFine.length < uSize * binCount) {
+			columnFine = new char[uSize * binCount];
+			columnCoarse = new char[uSize * coarseSize];
+		} else {
+			Arrays.fill(columnFine, 0, uSize * binCount, (char) 0);
+			Arrays.fill(columnCoarse, 0, uSize * coarseSize, (char) 0);
+		}
+		for (int j = -vLo; j <= vHi; j++) {
+			updateColumns(src, clamp(j, vSize) * vStride, nOffsets, uSize, uStride, 1);
+		}
+
+		for (int v = 0; v < vSize; v++) {
+			if (v > 0) {
+				updateColumns(src, clamp(v - 1 - vLo, vSize) * vStride, nOffsets, uSize, uStride, -1);
+				updateColumns(src, clamp(v + vHi, vSize) * vStride, nOffsets, uSize, uStride, 1);
+			}
+
+			// Kernel histogram at the beginning of the row
+			Arrays.fill(coarse, 0);
+			Arrays.fill(fineValidAt, INVALID);
+			for (int i = -uLo; i <= uHi; i++) {
+				addCoarse(clamp(i, uSize), 1);
+			}
+
+			int p = offset + v * uSize;
+			for (int u = 0; u < uSize; u++, p++) {
+				if (u > 0) {
+					addCoarse(clamp(u + uHi, uSize), 1);
+					addCoarse(clamp(u - 1 - uLo, uSize), -1);
+				}
+				if (total % 2 == 0) { // even kernel size
+					int lower = select(total / 2 - 1, u, uSize, uLo, uHi);
+					int upper = select(total / 2, u, uSize, uLo, uHi);
+					dst[p] = ShortVolume.saturate((lower + upper) / 2.0);
+				} else { // uneven kernel size
+					dst[p] = (short) select(total / 2, u, uSize, uLo, uHi);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds (delta = 1) or removes (delta = -1) one line of voxels, given by its
+	 * offset along v and the kernel's offsets along the normal, to or from
+	 * every column histogram.
+	 */
+	private void updateColumns(short[] src, int vOffset, int[] nOffsets, int uSize, int uStride, int delta) {
+		for (int k = 0; k < nOffsets.length; k++) {
+			int i = vOffset + nOffsets[k];
+			for (int u = 0; u < uSize; u++, i += uStride) {
+				int bin = ranks[src[i] - Short.MIN_VALUE];
+				columnFine[u * binCount + bin] += delta;
+				columnCoarse[u * coarseSize + (bin >> fineBits)] += delta;
+			}
+		}
+	}
+
+	private void addCoarse(int column, int delta) {
+		int offset = column * coarseSize;
+		for (int c = 0; c < coarseSize; c++) {
+			coarse[c] += delta * columnCoarse[offset + c];
+		}
+	}
+
+	private void addFine(int column, int base, int delta) {
+		int offset = column * binCount + base;
+		for (int f = 0; f < fineSize; f++) {
+			fine[base + f] += delta * columnFine[offset + f];
+		}
+	}
+
+	/**
+	 * Returns the value with the given rank (0 based) within the kernel
+	 * currently centered at u.
+	 */
+	private int select(int rank, int u, int uSize, int uLo, int uHi) {
+		int c = 0;
+		int sum = 0;
+		while (sum + coarse[c] <= rank) {
+			sum += coarse[c++];
+		}
+		updateFine(c, u, uSize, uLo, uHi);
+		int bin = c << fineBits;
+		while (sum + fine[bin] <= rank) {
+			sum += fine[bin++];
+		}
+		return values[bin];
+	}
+
+	/**
+	 * Brings the fine bucket of the given coarse bin up to date for the kernel
+	 * centered at u, either incrementally or by summing up all columns.
+	 */
+	private void updateFine(int c, int u, int uSize, int uLo, int uHi) {
+		int last = fineValidAt[c];
+		if (last == u) {
+			return;
+		}
+		int base = c << fineBits;
+		if (last == INVALID || u - last > uLo + uHi + 1) {
+			Arrays.fill(fine, base, base + fineSize, 0);
+			for (int i = u - uLo; i <= u + uHi; i++) {
+				addFine(clamp(i, uSize), base, 1);
+			}
+		} else {
+			for (int s = last + 1; s <= u; s++) {
+				addFine(clamp(s + uHi, uSize), base, 1);
+				addFine(clamp(s - 1 - uLo, uSize), base, -1);
+			}
+		}
+		fineValidAt[c] = u;
+	}
+
+	private static int clamp(int value, int size) {
+		return value < 0 ? 0 : (value >= size ? size - 1 : value);
+	}
+}
@@ -0,0 +1,176 @@
+package vismed2.group3.filters;
+
+import java.util.Arrays;
+
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * Thresholds a whole volume and allows changing the interval afterwards at a
+ * cost proportional to the number of voxels whose membership changes, rather
+ * than to the size of the volume.<br>
+ * <br>
+ * On construction all voxel indices are sorted by value (counting sort). When
+ * the interval changes from [a, b] to [c, d], only voxels with values between
+ * a and c or between b and d can change, and these are found as contiguous
+ * ranges within the sorted index. All voxels are mapped through a
+ * {@link ValueLut}. The slices whose voxels changed are tracked, so a caller
+ * showing the output only needs to transfer those, see
+ * {@link #getChangedSlices()}.<br>
+ * <br>
+ * The index takes 4 bytes per voxel in addition to the output volume.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class InteractiveThreshold {
+
+	private final ShortVolume in;
+	private final ShortVolume out;
+	private final int min;
+	private final int max;
+
+	// Voxel indices sorted by value; the voxels of value v are found at
+	// order[start[v - min]] to order[start[v - min + 1] - 1]
+	private final int[] order;
+	private final int[] start;
+
+	// Currently applied interval in integer values
+	private boolean applied = false;
+	private int lower;
+	private int upper;
+	private int changedVoxels = 0;
+	private final boolean[] changedSlices;
+
+	/**
+	 * Indexes the given volume. The volume must not be modified afterwards.
+	 *
+	 * @param in
+	 *            The volume to threshold
+	 */
+	public InteractiveThreshold(ShortVolume in) {
+		this.in = in;
+		this.out = new ShortVolume(in.getWidth(), in.getHeight(), in.getDepth());
+		this.changedSlices = new boolean[in.getDepth()];
+		int[] range = in.getRange();
+		min = range[0];
+		max = range[1];
+
+		short[] src = in.getData();
+		start = new int[max - min + 2];
+		for (int i = 0; i < src.length; i++) {
+			start[src[i] - min + 1]++;
+		}
+		for (int v = 1; v < start.length; v++) {
+			start[v] += start[v - 1];
+		}
+		order = new int[src.length];
+		int[] next = start.clone();
+		for (int i = 0; i < src.length; i++) {
+			order[next[src[i] - min]++] = i;
+		}
+	}
+
+	/**
+	 * Sets the threshold interval and updates the output. Pixels outside of
+	 * the interval are set to background (0), pixels inside stay the same.
+	 * 
+	 * @param lowerThreshold
+	 *            The lower limit of the interval (inclusive)
+	 * @param upperThreshold
+	 *            The upper limit of the interval (inclusive)
+	 * @return The thresholded volume. The same instance is returned and
+	 *         updated by all calls.
+	 */
+	public ShortVolume setInterval(double lowerThreshold, double upperThreshold) {
+		ValueLut lut = ValueLut.threshold(min, max, lowerThreshold, upperThreshold);
+		// Integer interval within [min - 1, max + 1]
+		int newLower = (int) Math.max(Math.min(Math.ceil(lowerThreshold), max + 1), min - 1);
+		int newUpper = (int) Math.max(Math.min(Math.floor(upperThreshold), max + 1), min - 1);
+
+		if (!applied) {
+			lut.apply(in.getData(), out.getData(), 0, in.size());
+			changedVoxels = in.size();
+			Arrays.fill(changedSlices, true);
+		} else {
+			Arrays.fill(changedSlices, false);
+			// Values whose membership may have changed
+			int fromA = Math.min(lower, newLower);
+			int toA = Math.max(lower, newLower) - 1;
+			int fromB = Math.min(upper, newUpper) + 1;
+			int toB = Math.max(upper, newUpper);
+			changedVoxels = 0;
+			if (fromB <= toA + 1 && fromA <= toB) {
+				// Ranges overlap or touch, process them at once
+				update(lut, Math.min(fromA, fromB), Math.max(toA, toB));
+			} else {
+				update(lut, fromA, toA);
+				update(lut, fromB, toB);
+			}
+		}
+		lower = newLower;
+		upper = newUpper;
+		applied = true;
+		return out;
+	}
+
+	/**
+	 * Re-applies the table to all voxels with values from first to last.
+	 */
+	private void update(ValueLut lut, int first, int last) {
+		first = Math.max(first, min);
+		last = Math.min(last, max);
+		if (first > last) {
+			return;
+		}
+		short[] src = in.getData();
+		short[] dst = out.getData();
+		int sliceSize = in.getSliceSize();
+		int end = start[last - min + 1];
+		for (int k = start[first - min]; k < end; k++) {
+			int i = order[k];
+			short value = lut.apply(src[i]);
+			if (dst[i] != value) {
+				dst[i] = value;
+				changedSlices[i / sliceSize] = true;
+			}
+		}
+		changedVoxels += end - start[first - min];
+	}
+
+	/**
+	 * Returns the thresholded volume.
+	 */
+	public ShortVolume getOutput() {
+		return out;
+	}
+
+	/**
+	 * Returns the number of voxels visited by the last call to
+	 * {@link #setInterval(double, double)}.
+	 */
+	public int getChangedVoxels() {
+		return changedVoxels;
+	}
+
+	/**
+	 * Returns the z positions of the slices of which at least one voxel was
+	 * changed by the last call to {@link #setInterval(double, double)}, in
+	 * ascending order. The first call changes all slices.
+	 */
+	public int[] getChangedSlices() {
+		int count = 0;
+		for (boolean changed : changedSlices) {
+			if (changed) {
+				count++;
+			}
+		}
+		int[] slices = new int[count];
+		int n = 0;
+		for (int z = 0; z < changedSlices.length; z++) {
+			if (changedSlices[z]) {
+				slices[n++] = z;
+			}
+		}
+		return slices;
+	}
+}
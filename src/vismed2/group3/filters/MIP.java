@@ -1,95 +1,263 @@
-package vismed2.group3.filters;
-
-import vismed2.group3.VisMedVTK;
-import vtk.vtkImageData;
-
-/**
- * 
- * @author Sebastian Haas
- * @author Alexander Tatowsky
- * <br>
- * 
- * The Maximum Intensity Projection searches with scanlines along 
- * the orthogonal axis for the highest intensity on the scanline. 
- * This projection mexes the information about depth, so it is no 
- * longer possible to differ between layers on the scanline. 
- * 
- * Wit X-Rays however it is a good and simple method to detect bones, 
- * since bones have a much higher intensity as soft tisue. 
- * Also it is used for example for the detection of lung nodules in 
- * lung cancer screening programs which utilise computed tomography scans.
- */
-public class MIP implements VtkJavaFilter {
-
-	private final vtkImageData out;
-	private int sliceAlong_X;
-	private int sliceAlong_Y;
-	private int sliceAlong_Z;
-
-	public MIP() {
-		out = new vtkImageData();
-	}
-
-	@Override
-	public void applyFilter(vtkImageData imgData) {
-		// Prepare output data
-		int[] dims = imgData.GetDimensions();
-		out.Initialize();
-		out.CopyStructure(imgData);
-		out.CopyAttributes(imgData);
-		out.DeepCopy(imgData);
-		double pixelValue;
-		int progress = 0;
-
-		// scanline along X
-		for (int width = 0; width < dims[1]; width++) {
-			progress = (int) ((double) 100 / dims[1] * width);
-			VisMedVTK.setStatusBar("Applying MIP. Progress: " + progress + " %");
-			for (int height = 0; height < dims[0]; height++) {
-				for (int slice = 0; slice < dims[2]; slice++) {
-					// scanline along X
-					pixelValue = imgData.GetScalarComponentAsDouble(height, width, slice, 0);
-					if (pixelValue > out.GetScalarComponentAsDouble(height, width, sliceAlong_X, 0)) {
-						out.SetScalarComponentFromDouble(height, width, sliceAlong_X, 0, pixelValue);
-					}
-					// scanline along Y
-					if (pixelValue > out.GetScalarComponentAsDouble(height, sliceAlong_Y, slice, 0)) {
-						out.SetScalarComponentFromDouble(height, sliceAlong_Y, slice, 0, pixelValue);
-					}
-					// scanline along Z
-					if (pixelValue > out.GetScalarComponentAsDouble(sliceAlong_Z, width, slice, 0)) {
-						out.SetScalarComponentFromDouble(sliceAlong_Z, width, slice, 0, pixelValue);
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * Give information about the active slices. Active slices are the slices
-	 * which are shown at the moment of pressing the filter button.
-	 * 
-	 * @param sliceYZ
-	 *            - along the X achsis
-	 * @param sliceXZ
-	 *            - along the Y achsis
-	 * @param sliceYX
-	 *            - along the Z achsis
-	 */
-	public void setSlice(int sliceYZ, int sliceXZ, int sliceYX) {
-		this.sliceAlong_X = sliceYZ;
-		this.sliceAlong_Y = sliceXZ;
-		this.sliceAlong_Z = sliceYX;
-	}
-
-	@Override
-	public String getFilterName() {
-		return "Maximum Intensity Projection";
-	}
-
-	@Override
-	public vtkImageData GetOutput() {
-		return out;
-	}
-
-}
+package vismed2.group3.filters;
+
+import vismed2.group3.volume.CowVolume;
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * 
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ * <br>
+ * 
+ * The Maximum Intensity Projection searches with scanlines along 
+ * the orthogonal axis for the highest intensity on the scanline. 
+ * This projection mexes the information about depth, so it is no 
+ * longer possible to differ between layers on the scanline. 
+ * 
+ * Wit X-Rays however it is a good and simple method to detect bones, 
+ * since bones have a much higher intensity as soft tisue. 
+ * Also it is used for example for the detection of lung nodules in 
+ * lung cancer screening programs which utilise computed tomography scans.
+ * 
+ * Besides the maximum, the minimum (e.g. for airways) or the average
+ * intensity along the scanline can be projected, see {@link Mode}. All three
+ * projections are computed in a single parallel pass over the volume by
+ * {@link ProjectionEngine} and written to the active slices.
+ * 
+ * In slab mode (see {@link #setSlabThickness(int, int, int)}) only a slab of
+ * slices centered at each active slice is projected (thick-slab MIP). The
+ * slabs can then be moved slice by slice using
+ * {@link #moveSlab(Plane, int)}, which updates the projection incrementally.
+ */
+public class MIP extends VolumeFilter {
+
+	private Mode mode = Mode.MAXIMUM;
+	private int[] slabThickness = new int[3];
+	private final SlabProjection[] slabs = new SlabProjection[Plane.values().length];
+	// the unprojected volume and the result of the last slab mode run
+	private ShortVolume slabInput;
+	private ShortVolume slabResult;
+
+	public enum Mode {
+		MAXIMUM, MINIMUM, AVERAGE
+	};
+
+	@Override
+	public ShortVolume filter(ShortVolume in) {
+		ShortVolume out = in.copy();
+		filterActivePlanes(in).applyTo(out);
+		if (isSlabMode()) {
+			slabInput = in;
+			slabResult = out;
+		}
+		return out;
+	}
+
+	/**
+	 * Writes the projections into the input, except in slab mode: the slabs
+	 * keep reading the input when they are moved.
+	 */
+	@Override
+	protected ShortVolume filterOwned(ShortVolume input) {
+		if (isSlabMode()) {
+			return filter(input);
+		}
+		return super.filterOwned(input);
+	}
+
+	/**
+	 * The projections read the whole volume.
+	 */
+	@Override
+	protected int[] getPlaneHalo(Plane plane) {
+		return null;
+	}
+
+	/**
+	 * Writes the projections to the active slices.
+	 */
+	@Override
+	protected CowVolume filterActivePlanes(ShortVolume in) {
+		// Prepare output data
+		CowVolume out = new CowVolume(in);
+		if (isSlabMode()) {
+			projectSlabs(in, out);
+			return out;
+		}
+
+		final ProjectionEngine engine = new ProjectionEngine(in, mode);
+		forEachSlab(in, new SlabExecutor.SlabTask() {
+			@Override
+			public void process(int first, int last) {
+				engine.accumulate(first, last);
+			}
+		});
+
+		// scanline along X
+		if (sliceAlong_X >= 0 && sliceAlong_X < in.getDepth()) {
+			out.setPlane(Plane.XY, sliceAlong_X, engine.getProjectionZ());
+		}
+		// scanline along Y
+		if (sliceAlong_Y >= 0 && sliceAlong_Y < in.getHeight()) {
+			out.setPlane(Plane.XZ, sliceAlong_Y, engine.getProjectionY());
+		}
+		// scanline along Z
+		if (sliceAlong_Z >= 0 && sliceAlong_Z < in.getWidth()) {
+			out.setPlane(Plane.YZ, sliceAlong_Z, engine.getProjectionX());
+		}
+		return out;
+	}
+
+	@Override
+	public boolean isActiveSliceMode() {
+		return true;
+	}
+
+	/**
+	 * The whole volume is read once, or each slab in slab mode.
+	 */
+	@Override
+	protected long estimateWork(ShortVolume in) {
+		if (!isSlabMode()) {
+			return in.size();
+		}
+		long work = 0;
+		for (Plane plane : Plane.values()) {
+			work += slabWork(in, plane);
+		}
+		return work;
+	}
+
+	private long slabWork(ShortVolume in, Plane plane) {
+		int size = in.getDimension(plane.getNormalAxis());
+		return (long) in.size() / size * Math.min(getSlabThickness(in, plane), size);
+	}
+
+	private int getSlabThickness(ShortVolume in, Plane plane) {
+		int size = in.getDimension(plane.getNormalAxis());
+		int thickness = slabThickness[plane.getNormalAxis()];
+		// no slab along this axis: a slab covering the volume from anywhere
+		if (thickness <= 0 || thickness > size) {
+			thickness = 2 * size + 1;
+		}
+		return thickness;
+	}
+
+	private void projectSlabs(ShortVolume in, CowVolume out) {
+		slabInput = null;
+		slabResult = null;
+		Plane[] planes = Plane.values();
+		for (int i = 0; i < planes.length; i++) {
+			checkCancelled();
+			Plane plane = planes[i];
+			int size = in.getDimension(plane.getNormalAxis());
+			slabs[i] = new SlabProjection(in, plane, getSlabThickness(in, plane), mode);
+			int position = getActiveSlice(plane);
+			if (position >= 0 && position < size) {
+				out.setPlane(plane, position, slabs[i].moveTo(position));
+			}
+			getProgress().advance(slabWork(in, plane));
+		}
+	}
+
+	/**
+	 * Moves the slab projected onto the given plane to a new position, e.g.
+	 * after scrolling, and updates the result of the last call to
+	 * {@link #filter(ShortVolume)}: the plane at the slab's previous position
+	 * shows the unprojected volume again and the updated projection is
+	 * written at the new position. Moving by a few slices only touches the
+	 * slices entering and leaving the slab. Only available in slab mode after
+	 * the filter has been applied to a {@link ShortVolume}.
+	 * 
+	 * @param plane
+	 *            The plane the slab is projected onto
+	 * @param position
+	 *            The new center of the slab along the plane's normal
+	 * @return The updated result, the same instance as returned by the last
+	 *         call to {@link #filter(ShortVolume)}, or null if no slab has
+	 *         been projected onto the plane
+	 */
+	public ShortVolume moveSlab(Plane plane, int position) {
+		SlabProjection slab = slabs[plane.ordinal()];
+		if (slab == null || slabResult == null || slab.getPosition() < 0) {
+			return null;
+		}
+		int previous = slab.getPosition();
+		slab.moveTo(position);
+		if (previous != position) {
+			slabResult.setPlane(plane, previous, slabInput.getPlane(plane, previous));
+		}
+		// the projections cross the restored plane, write all of them in the
+		// order of the first run so their intersections look the same
+		for (SlabProjection projected : slabs) {
+			if (projected.getPosition() >= 0) {
+				slabResult.setPlane(projected.getPlane(), projected.getPosition(), projected.getProjection());
+			}
+		}
+		return slabResult;
+	}
+
+	/**
+	 * Returns the current center of the slab projected onto the given plane,
+	 * or -1 if no slab has been projected onto it.
+	 */
+	public int getSlabPosition(Plane plane) {
+		SlabProjection slab = slabs[plane.ordinal()];
+		return slab == null ? -1 : slab.getPosition();
+	}
+
+	/**
+	 * Enables slab mode and sets the thickness of the slabs in slices. Slabs
+	 * are centered at the active slices. A thickness of 0 projects the whole
+	 * volume along that axis; if all thicknesses are 0, slab mode is disabled.
+	 * 
+	 * @param alongX
+	 *            - slab thickness along the X achsis (YZ view)
+	 * @param alongY
+	 *            - slab thickness along the Y achsis (XZ view)
+	 * @param alongZ
+	 *            - slab thickness along the Z achsis (XY view)
+	 */
+	public void setSlabThickness(int alongX, int alongY, int alongZ) {
+		slabThickness = new int[] { alongX, alongY, alongZ };
+	}
+
+	/**
+	 * Returns whether a slab thickness has been set.
+	 */
+	public boolean isSlabMode() {
+		return slabThickness[0] > 0 || slabThickness[1] > 0 || slabThickness[2] > 0;
+	}
+
+	/**
+	 * Set which intensity is projected. Defaults to the maximum.
+	 * 
+	 * @param mode
+	 */
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Slab results are not cached: the slabs needed to move them afterwards
+	 * would be missing.
+	 */
+	@Override
+	protected String getParameters() {
+		return isSlabMode() ? null : "mode=" + mode;
+	}
+
+	@Override
+	public String getFilterName() {
+		switch (mode) {
+		case MINIMUM:
+			return "Minimum Intensity Projection";
+		case AVERAGE:
+			return "Average Intensity Projection";
+		default:
+			return "Maximum Intensity Projection";
+		}
+	}
+
+}
@@ -1,9 +1,8 @@
 package vismed2.group3.filters;
 
-import java.util.Arrays;
-
-import vismed2.group3.VisMedVTK;
-import vtk.vtkImageData;
+import vismed2.group3.volume.Brick;
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
 
 /**
  * @author Sebastian Haas
@@ -14,11 +13,24 @@ import vtk.vtkImageData;
  *         'setAllSlices(boolean doAllSlices)'. The convolution wors as follows:
  *         <ul>
  *         <li>Convolute the cube over the pictuure</li>
- *         <li>Fill the values of the picture into the cube</li>
- *         <li>sort the values in the cube</li>
- *         <li>determine the median of all pixel values</li>
+ *         <li>Keep a histogram of the values in the cube, which is updated
+ *         incrementally while the cube moves</li>
+ *         <li>determine the median of all pixel values from the histogram</li>
  *         <li>set the center of the kernel to the kernel's median</li>
  *         </ul>
+ *         See {@link HistogramMedian} for details.
+ *
+ *         The kernel is centred on the voxel and kernel positions outside of
+ *         the volume are clamped to the border, so every voxel is filtered
+ *         with a full kernel of the set size. Earlier versions placed the
+ *         kernel above and to the left of the voxel, only covered
+ *         2 * (depth / 2) slices, left a border of the kernel's size
+ *         unfiltered and mixed samples of the previous voxel into the sorted
+ *         kernel; their results are not reproduced.
+ * 
+ *         In all-slices mode the volume is split into slabs of slices which
+ *         are filtered in parallel, see {@link #setParallelism(int)}. The
+ *         result does not depend on the number of threads.
  * 
  *         The median filter is mainly used for noise reduction. Noise like salt
  *         & pepper can reduced very well but the image is softened and looses
@@ -27,32 +39,38 @@ import vtk.vtkImageData;
  *         The functionality of this filter is only guaranteed for grayvalue
  *         dicom data.
  */
-public class MedianFilter implements VtkJavaFilter {
+public class MedianFilter extends VolumeFilter {
 
-	private final vtkImageData out;
-	private int filter_height;
-	private int filter_width;
-	private int filter_depth;
-	private int sliceAlong_X = 0;
-	private int sliceAlong_Y = 0;
-	private int sliceAlong_Z = 0;
+	private int filter_height = 3;
+	private int filter_width = 3;
+	private int filter_depth = 3;
 	private boolean doAllSlices = false;
-
-	public MedianFilter() {
-		out = new vtkImageData();
-	}
+	private int brickSize = 0;
 
 	/**
 	 * Set the size of the kernel. Although it is possible to set a even kernel
 	 * size, an uneven kernel size makes more sense (especially with small
 	 * kernels) since there is no exact center of the kernel at an uneven
-	 * number.
+	 * number. The size of the kernel has little influence on the filter's
+	 * speed, so large kernels such as 11x11x5 are fine.
 	 * 
 	 * @param height
+	 *            - kernel size along the X achsis
 	 * @param width
+	 *            - kernel size along the Y achsis
 	 * @param depth
+	 *            - kernel size along the Z achsis
 	 */
 	public void SetKernelSize(int height, int width, int depth) {
+		if (height < 1 || width < 1 || depth < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid kernel size %dx%dx%d.", height, width, depth));
+		}
+		// Column histograms count the kernel's cross-section in a char
+		if (Math.max(height, width) * depth > Character.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					String.format("Kernel size %dx%dx%d is too large.", height, width, depth));
+		}
 		this.filter_height = height;
 		this.filter_width = width;
 		this.filter_depth = depth;
@@ -64,169 +82,137 @@ public class MedianFilter implements VtkJavaFilter {
 	 * doAllSlices.
 	 */
 	@Override
-	public void applyFilter(vtkImageData imgData) {
-		// Prepare output data
-		int[] dims = imgData.GetDimensions();
-		out.Initialize();
-		out.CopyStructure(imgData);
-		out.CopyAttributes(imgData);
-		out.DeepCopy(imgData);
+	public ShortVolume filter(final ShortVolume in) {
+		if (!doAllSlices) { // do only active slices
+			return filterOwned(in.copy());
+		}
 
-		// do actual filtering
-		double[] kernel = new double[filter_height * filter_width * filter_depth];
-		double pixelValue;
-		int progress = 0;
+		// Prepare output data
+		final ShortVolume out = new ShortVolume(in.getWidth(), in.getHeight(), in.getDepth());
+		// iterate through the image/ through all slices, split into slabs
+		// of slices which are processed in parallel
+		forEachSlab(in, new SlabExecutor.SlabTask() {
+			@Override
+			public void process(int first, int last) {
+				filterSlices(in, out, first, last);
+			}
+		});
+		return out;
+	}
 
-		if (doAllSlices) {
-			// iterate through the image/ through all slices
-			for (int slice = 0; slice < dims[2] - filter_depth; slice++) {
-				// show progress at GUI
-				progress = (int) ((double) 100 / dims[1] * slice);
-				VisMedVTK.setStatusBar("Applying Median Filter. Progress: " + progress + " %");
+	@Override
+	protected boolean canFilterSlices() {
+		return true;
+	}
 
-				for (int width = filter_width; width < dims[1] - filter_width; width++) {
-					for (int height = filter_height; height < dims[0] - filter_height; height++) {
+	/**
+	 * Filters a slab of slices. The slab reads the slices of the kernel
+	 * reaching beyond its borders (halo). It is computed slice by slice, or
+	 * brick by brick if enabled by {@link #setBrickSize(int)}.
+	 */
+	@Override
+	protected void filterSlices(ShortVolume in, ShortVolume out, int first, int last) {
+		if (brickSize > 0) {
+			filterBricks(in, out, first, last);
+			return;
+		}
+		int lo = filter_depth / 2;
+		int hi = filter_depth - 1 - lo;
+		HistogramMedian median = new HistogramMedian(in, getKernelSize(), 2, first - lo, last + hi);
+		for (int slice = first; slice <= last; slice++) {
+			median.filterPlane(out.getData(), slice * out.getSliceSize(), Plane.XY, slice);
+		}
+	}
 
-						// fill values into kernel
-						int count = 0;
-						for (int x = slice - filter_depth / 2; x < slice + filter_depth / 2; x++) {
-							for (int y = width - filter_width; y < width; y++) {
-								for (int z = height - filter_height; z < height; z++) {
-									// clipping
-									if (x < 0) { // kernel < first Slice
-										pixelValue = imgData.GetScalarComponentAsDouble(z, y, 0, 0);
-									} // kernel > last slice
-									else if (x > dims[1]) {
-										int lastSlice = sliceAlong_X - (sliceAlong_X - dims[2]);
-										pixelValue = imgData.GetScalarComponentAsDouble(z, y, lastSlice, 0);
-									} else {
-										pixelValue = imgData.GetScalarComponentAsDouble(z, y, x, 0);
-									}
-									kernel[count++] = pixelValue;
-								}
-							}
-						} // get medial by sorting the list of values and taking
-							// the one in the middle
-						Arrays.sort(kernel);
-						if (kernel.length % 2 == 0) { // even kernel size
-							pixelValue = ((kernel[kernel.length / 2 - 1]) + kernel[kernel.length / 2]) / 2;
-						} else { // uneven kernel size
-							pixelValue = kernel[kernel.length / 2];
+	/**
+	 * Filters a slab of slices brick by brick. Every brick is loaded together
+	 * with the halo its kernels reach into a small volume and filtered by the
+	 * same sliding histograms as a whole slice; as the halo is only cut off at
+	 * the volume's border, clamping to the small volume's border gives the
+	 * same result as clamping to the volume's.
+	 */
+	private void filterBricks(ShortVolume in, ShortVolume out, int first, int last) {
+		int[] kernelSize = getKernelSize();
+		int[] lo = new int[3];
+		int[] hi = new int[3];
+		for (int axis = 0; axis < 3; axis++) {
+			lo[axis] = kernelSize[axis] / 2;
+			hi[axis] = kernelSize[axis] - 1 - lo[axis];
+		}
+		Brick brick = new Brick(brickSize, lo, hi);
+		short[] values = new short[0];
+		for (int z = first; z <= last; z += brickSize) {
+			for (int y = 0; y < in.getHeight(); y += brickSize) {
+				for (int x = 0; x < in.getWidth(); x += brickSize) {
+					brick.load(in, x, y, z, last - z + 1);
+					ShortVolume region = brick.getRegion();
+					if (values.length != region.getSliceSize()) {
+						values = new short[region.getSliceSize()];
+					}
+					HistogramMedian median = new HistogramMedian(region, kernelSize, 2, 0, region.getDepth() - 1);
+					for (int k = 0; k < brick.getDepth(); k++) {
+						median.filterPlane(values, 0, Plane.XY, brick.getOffset(2) + k);
+						// copy the brick's rows, leaving out the halo
+						for (int j = 0; j < brick.getHeight(); j++) {
+							System.arraycopy(values, brick.getOffset(0) + (brick.getOffset(1) + j) * region.getWidth(),
+									out.getData(), out.index(x, y + j, z + k), brick.getWidth());
 						}
-						out.SetScalarComponentFromDouble(height, width, slice, 0, pixelValue);
 					}
 				}
 			}
-		} else { // do only active slices
-			for (int slice = 0; slice < dims[2]; slice++) {
-				progress = (int) ((double) 100 / dims[1] * slice);
-				VisMedVTK.setStatusBar("Applying Median Filter. Progress: " + progress + " %");
-				for (int width = filter_width; width < dims[1]; width++) {
-					for (int height = filter_height; height < dims[0]; height++) {
+		}
+	}
 
-						if (slice == sliceAlong_X) { // along X
-							// fill values into kernel
-							int count = 0;
-							for (int x = sliceAlong_X - filter_depth / 2; x < sliceAlong_X + filter_depth / 2; x++) {
-								for (int y = width - filter_width; y < width; y++) {
-									for (int z = height - filter_height; z < height; z++) {
-										// clipping
-										if (x < 0) { // kernel < first Slice
-											pixelValue = imgData.GetScalarComponentAsDouble(z, y, 0, 0);
-										} // kernel > last slice
-										else if (x > dims[1]) {
-											int lastSlice = sliceAlong_X - (sliceAlong_X - dims[2]);
-											pixelValue = imgData.GetScalarComponentAsDouble(z, y, lastSlice, 0);
-										} else {
-											pixelValue = imgData.GetScalarComponentAsDouble(z, y, x, 0);
-										}
-										kernel[count++] = pixelValue;
-									}
-								}
-							}
-							Arrays.sort(kernel);
-							if (kernel.length % 2 == 0) { // even kernel size
-								pixelValue = ((kernel[kernel.length / 2 - 1]) + kernel[kernel.length / 2]) / 2;
-							} else { // uneven kernel size
-								pixelValue = kernel[kernel.length / 2];
-							}
-							out.SetScalarComponentFromDouble(height, width, sliceAlong_X, 0, pixelValue);
-						}
+	@Override
+	protected int[] getPlaneHalo(Plane plane) {
+		int depth = getKernelSize()[plane.getNormalAxis()];
+		return new int[] { depth / 2, depth - 1 - depth / 2 };
+	}
 
-						if (width == sliceAlong_Y) { // along Y
-							// already done it at "along X"
-							if (slice != sliceAlong_X) {
-								// fill values into kernel
-								int count = 0;
-								for (int x = slice - filter_depth / 2; x < slice + filter_depth / 2; x++) {
-									for (int y = width - filter_width; y < width; y++) {
-										for (int z = height - filter_height; z < height; z++) {
-											// clipping
-											if (x < 0) { // kernel < first Slice
-												pixelValue = imgData.GetScalarComponentAsDouble(z, y, 0, 0);
-											} else if (x > dims[1]) { // kernel
-																		// >
-																		// last
-																		// Slice
-												int lastSlice = slice - (slice - dims[2]);
-												pixelValue = imgData.GetScalarComponentAsDouble(z, y, lastSlice, 0);
-											} else {
-												pixelValue = imgData.GetScalarComponentAsDouble(z, y, x, 0);
-											}
-											kernel[count++] = pixelValue;
-										}
-									}
-								}
-								Arrays.sort(kernel);
-								if (kernel.length % 2 == 0) { // even kernel
-																// size
-									pixelValue = ((kernel[kernel.length / 2 - 1]) + kernel[kernel.length / 2]) / 2;
-								} else { // uneven kernel size
-									pixelValue = kernel[kernel.length / 2];
-								}
-								out.SetScalarComponentFromDouble(height, sliceAlong_Y, slice, 0, pixelValue);
-							}
+	@Override
+	protected int[] getSliceHalo() {
+		int lo = filter_depth / 2;
+		return new int[] { lo, filter_depth - 1 - lo };
+	}
 
-						}
-						if (height == sliceAlong_Z) { // along Z
-							// already done it at "along X" and "along Y"
-							if (slice != sliceAlong_X && width != sliceAlong_Y) {
-								// fill values into kernel
-								int count = 0;
-								for (int x = slice - filter_depth / 2; x < slice + filter_depth / 2; x++) {
-									for (int y = width - filter_width; y < width; y++) {
-										for (int z = height - filter_height; z < height; z++) {
-											// clipping
-											if (x < 0) { // kernel < first Slice
-												pixelValue = imgData.GetScalarComponentAsDouble(z, y, 0, 0);
-											} else if (x > dims[1]) { // kernel
-																		// >
-																		// last
-																		// Slice
-												int lastSlice = slice - (slice - dims[2]);
-												pixelValue = imgData.GetScalarComponentAsDouble(z, y, lastSlice, 0);
-											} else {
-												pixelValue = imgData.GetScalarComponentAsDouble(z, y, x, 0);
-											}
-											kernel[count++] = pixelValue;
-										}
-									}
-								}
-								Arrays.sort(kernel);
-								if (kernel.length % 2 == 0) { // even kernel
-																// size
-									pixelValue = ((kernel[kernel.length / 2 - 1]) + kernel[kernel.length / 2]) / 2;
-								} else { // uneven kernel size
-									pixelValue = kernel[kernel.length / 2];
-								}
-								out.SetScalarComponentFromDouble(sliceAlong_Z, width, slice, 0, pixelValue);
-							}
+	@Override
+	protected short[] filterPlane(ShortVolume in, Plane plane, int position) {
+		int[] kernelSize = getKernelSize();
+		int depth = kernelSize[plane.getNormalAxis()];
+		HistogramMedian median = new HistogramMedian(in, kernelSize, plane.getNormalAxis(),
+				position - depth / 2, position - depth / 2 + depth - 1);
+		short[] values = new short[in.getDimension(plane.getUAxis()) * in.getDimension(plane.getVAxis())];
+		median.filterPlane(values, 0, plane, position);
+		return values;
+	}
 
-						}
-					}
-				}
-			}
+	@Override
+	public boolean isActiveSliceMode() {
+		return !doAllSlices;
+	}
+
+	private int[] getKernelSize() {
+		return new int[] { filter_height, filter_width, filter_depth };
+	}
+
+	/**
+	 * Set whether the volume is filtered in bricks of the given size, e.g. 16
+	 * or 32, which keeps the column histograms and the voxels they read
+	 * within the cache, or slice by slice in the volume's linear layout. Only
+	 * applies to all-slices mode; the result is the same either way. The
+	 * linear layout is used by default, as each brick has to index its grey
+	 * levels anew and the halo is read once per brick. FilterBenchmarks
+	 * compares both layouts.
+	 * 
+	 * @param brickSize
+	 *            The number of voxels per side of a brick, 0 for the linear
+	 *            layout
+	 */
+	public void setBrickSize(int brickSize) {
+		if (brickSize < 0) {
+			throw new IllegalArgumentException("Brick size must not be negative, got " + brickSize + ".");
 		}
+		this.brickSize = brickSize;
 	}
 
 	/**
@@ -244,30 +230,13 @@ public class MedianFilter implements VtkJavaFilter {
 			return true;
 	}
 
-	/**
-	 * Give information about the active slices. Active slices are the slices
-	 * which are shown at the moment of pressing the filter button.
-	 * 
-	 * @param sliceYZ
-	 *            - along the X achsis
-	 * @param sliceXZ
-	 *            - along the Y achsis
-	 * @param sliceYX
-	 *            - along the Z achsis
-	 */
-	public void setSlice(int sliceYZ, int sliceXZ, int sliceYX) {
-		this.sliceAlong_X = sliceYZ;
-		this.sliceAlong_Y = sliceXZ;
-		this.sliceAlong_Z = sliceYX;
+	@Override
+	protected String getParameters() {
+		return String.format("kernel=%dx%dx%d all=%b", filter_height, filter_width, filter_depth, doAllSlices);
 	}
 
 	@Override
 	public String getFilterName() {
 		return "Median";
 	}
-
-	@Override
-	public vtkImageData GetOutput() {
-		return out;
-	}
 }
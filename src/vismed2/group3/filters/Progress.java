@@ -0,0 +1,114 @@
+package vismed2.group3.filters;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a running filter, measured in voxels. Worker threads add the
+ * voxels they have processed with {@link #advance(long)}, which is a single
+ * atomic addition and does not block. Observers, such as a UI timer, sample
+ * the progress at their own rate and derive throughput and remaining time from
+ * it. No formatting or event dispatching happens on the workers' side.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class Progress {
+
+	private final AtomicLong done = new AtomicLong();
+	private volatile long total = 0;
+	private volatile long startNanos = 0;
+	private volatile long endNanos = 0;
+	private volatile boolean running = false;
+
+	/**
+	 * Starts a new run.
+	 *
+	 * @param total
+	 *            The number of voxels expected to be processed, or 0 if unknown
+	 */
+	public void begin(long total) {
+		done.set(0);
+		this.total = total;
+		startNanos = System.nanoTime();
+		endNanos = 0;
+		running = true;
+	}
+
+	/**
+	 * Adds processed voxels. May be called from any thread.
+	 */
+	public void advance(long voxels) {
+		done.addAndGet(voxels);
+	}
+
+	/**
+	 * Ends the current run.
+	 */
+	public void finish() {
+		endNanos = System.nanoTime();
+		running = false;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the number of voxels processed so far.
+	 */
+	public long getDone() {
+		return done.get();
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns the processed fraction from 0 to 1, or 0 if the total is
+	 * unknown.
+	 */
+	public double getFraction() {
+		long total = this.total;
+		if (total <= 0) {
+			return 0;
+		}
+		return Math.min(1.0, (double) done.get() / total);
+	}
+
+	/**
+	 * Returns the time since the run began in milliseconds.
+	 */
+	public long getElapsedMillis() {
+		if (startNanos == 0) {
+			return 0;
+		}
+		long end = running ? System.nanoTime() : endNanos;
+		return (end - startNanos) / 1000000;
+	}
+
+	/**
+	 * Returns the average number of voxels processed per second.
+	 */
+	public double getThroughput() {
+		long elapsed = getElapsedMillis();
+		if (elapsed <= 0) {
+			return 0;
+		}
+		return done.get() * 1000.0 / elapsed;
+	}
+
+	/**
+	 * Estimates the remaining time from the average throughput.
+	 *
+	 * @return The remaining time in milliseconds, or -1 if unknown
+	 */
+	public long getRemainingMillis() {
+		double throughput = getThroughput();
+		long total = this.total;
+		if (throughput <= 0 || total <= 0) {
+			return -1;
+		}
+		return (long) (Math.max(0, total - done.get()) * 1000 / throughput);
+	}
+}
@@ -0,0 +1,169 @@
+package vismed2.group3.filters;
+
+import java.util.Arrays;
+
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * Computes the projections of a volume along all three axes in a single pass
+ * over the voxels. The volume is read slice by slice and row by row in memory
+ * order:
+ * <ul>
+ * <li>the projection along x reduces each row to a single value,</li>
+ * <li>the projection along y reduces all rows of a slice into one row,</li>
+ * <li>the projection along z reduces all slices into one slice.</li>
+ * </ul>
+ * Slabs of slices can be accumulated concurrently by calling
+ * {@link #accumulate(int, int)} from several threads. The projections along x
+ * and y of different slices are independent; the projection along z is
+ * accumulated into a private array per slab and merged into the shared result
+ * afterwards. Since maximum, minimum and integer sums do not depend on the
+ * order of merging, the result is deterministic.<br>
+ * <br>
+ * Minimum projections are computed as maximum projections of the negated
+ * values, so the inner loops do not branch on the mode.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+final class ProjectionEngine {
+
+	private final ShortVolume in;
+	private final MIP.Mode mode;
+	private final int sign;
+
+	// Accumulators, indexed y + z * height, x + z * width and x + y * width
+	private final long[] alongX;
+	private final long[] alongY;
+	private final long[] alongZ;
+
+	/**
+	 * Prepares the projection of the given volume.
+	 *
+	 * @param in
+	 *            The volume to project
+	 * @param mode
+	 *            The projection to compute
+	 */
+	ProjectionEngine(ShortVolume in, MIP.Mode mode) {
+		this.in = in;
+		this.mode = mode;
+		this.sign = mode == MIP.Mode.MINIMUM ? -1 : 1;
+		alongX = new long[in.getHeight() * in.getDepth()];
+		alongY = new long[in.getWidth() * in.getDepth()];
+		alongZ = new long[in.getSliceSize()];
+		if (mode != MIP.Mode.AVERAGE) {
+			Arrays.fill(alongZ, Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Accumulates the slices first to last (inclusive). May be called
+	 * concurrently for disjoint ranges of slices.
+	 */
+	void accumulate(int first, int last) {
+		if (mode == MIP.Mode.AVERAGE) {
+			accumulateSum(first, last);
+		} else {
+			accumulateExtremum(first, last);
+		}
+	}
+
+	private void accumulateExtremum(int first, int last) {
+		short[] src = in.getData();
+		int width = in.getWidth();
+		int height = in.getHeight();
+		int[] slab = new int[in.getSliceSize()];
+		Arrays.fill(slab, Integer.MIN_VALUE);
+
+		for (int z = first; z <= last; z++) {
+			int i = z * in.getSliceSize();
+			int xzRow = z * width;
+			for (int x = 0; x < width; x++) {
+				alongY[xzRow + x] = Integer.MIN_VALUE;
+			}
+			for (int y = 0; y < height; y++) {
+				int rowMax = Integer.MIN_VALUE;
+				int xyRow = y * width;
+				for (int x = 0; x < width; x++, i++) {
+					int value = sign * src[i];
+					rowMax = Math.max(rowMax, value);
+					slab[xyRow + x] = Math.max(slab[xyRow + x], value);
+					alongY[xzRow + x] = Math.max(alongY[xzRow + x], value);
+				}
+				alongX[y + z * height] = rowMax;
+			}
+		}
+
+		synchronized (alongZ) {
+			for (int i = 0; i < slab.length; i++) {
+				alongZ[i] = Math.max(alongZ[i], slab[i]);
+			}
+		}
+	}
+
+	private void accumulateSum(int first, int last) {
+		short[] src = in.getData();
+		int width = in.getWidth();
+		int height = in.getHeight();
+		long[] slab = new long[in.getSliceSize()];
+
+		for (int z = first; z <= last; z++) {
+			int i = z * in.getSliceSize();
+			int xzRow = z * width;
+			for (int y = 0; y < height; y++) {
+				long rowSum = 0;
+				int xyRow = y * width;
+				for (int x = 0; x < width; x++, i++) {
+					int value = src[i];
+					rowSum += value;
+					slab[xyRow + x] += value;
+					alongY[xzRow + x] += value;
+				}
+				alongX[y + z * height] = rowSum;
+			}
+		}
+
+		synchronized (alongZ) {
+			for (int i = 0; i < slab.length; i++) {
+				alongZ[i] += slab[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the projection along x, indexed y + z * height. Only valid after
+	 * all slices have been accumulated.
+	 */
+	short[] getProjectionX() {
+		return finish(alongX, in.getWidth());
+	}
+
+	/**
+	 * Returns the projection along y, indexed x + z * width. Only valid after
+	 * all slices have been accumulated.
+	 */
+	short[] getProjectionY() {
+		return finish(alongY, in.getHeight());
+	}
+
+	/**
+	 * Returns the projection along z, indexed x + y * width. Only valid after
+	 * all slices have been accumulated.
+	 */
+	short[] getProjectionZ() {
+		return finish(alongZ, in.getDepth());
+	}
+
+	private short[] finish(long[] accumulator, int count) {
+		short[] result = new short[accumulator.length];
+		for (int i = 0; i < result.length; i++) {
+			if (mode == MIP.Mode.AVERAGE) {
+				result[i] = ShortVolume.saturate((double) accumulator[i] / count);
+			} else {
+				result[i] = (short) (sign * accumulator[i]);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,135 @@
+package vismed2.group3.filters;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * Caches filter results, so applying a filter again to the same input, e.g.
+ * when toggling between filters, does not recompute it. An entry is
+ * identified by the {@link ShortVolume#fingerprint() fingerprint} of the input
+ * volume and the {@link VtkJavaFilter#getCacheKey() cache key} of the filter,
+ * which describes the filter's type, parameters and active slices.<br>
+ * <br>
+ * The results are kept within a memory budget; when it is exceeded, the least
+ * recently used entries are evicted. Stored and returned volumes are copies,
+ * so callers may modify them freely.<br>
+ * <br>
+ * This class is thread-safe.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class ResultCache {
+
+	private final long budget;
+	// in access order, the least recently used entry first
+	private final LinkedHashMap<String, ShortVolume> entries = new LinkedHashMap<String, ShortVolume>(16, 0.75f,
+			true);
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param budget
+	 *            The maximum size of all cached results in bytes
+	 */
+	public ResultCache(long budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("Budget must not be negative, got " + budget + ".");
+		}
+		this.budget = budget;
+	}
+
+	private static String key(long fingerprint, String cacheKey) {
+		return Long.toHexString(fingerprint) + " " + cacheKey;
+	}
+
+	private static long bytes(ShortVolume volume) {
+		return 2L * volume.size();
+	}
+
+	/**
+	 * Looks up the result of a filter.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the filter's input
+	 * @param cacheKey
+	 *            The filter's cache key
+	 * @return A copy of the cached result, or null if there is none
+	 */
+	public ShortVolume get(long fingerprint, String cacheKey) {
+		ShortVolume result;
+		synchronized (this) {
+			result = entries.get(key(fingerprint, cacheKey));
+			if (result == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		// cached volumes are never modified, so they can be copied unlocked
+		return result.copy();
+	}
+
+	/**
+	 * Stores the result of a filter. Results larger than the budget are not
+	 * stored.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the filter's input
+	 * @param cacheKey
+	 *            The filter's cache key
+	 * @param result
+	 *            The result, which is copied
+	 */
+	public void put(long fingerprint, String cacheKey, ShortVolume result) {
+		if (bytes(result) > budget) {
+			return;
+		}
+		ShortVolume copy = result.copy();
+		synchronized (this) {
+			ShortVolume replaced = entries.put(key(fingerprint, cacheKey), copy);
+			if (replaced != null) {
+				bytes -= bytes(replaced);
+			}
+			bytes += bytes(copy);
+			Iterator<Map.Entry<String, ShortVolume>> eldest = entries.entrySet().iterator();
+			while (bytes > budget && eldest.hasNext()) {
+				bytes -= bytes(eldest.next().getValue());
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Returns the size of all cached results in bytes.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
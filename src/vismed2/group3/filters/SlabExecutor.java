@@ -0,0 +1,250 @@
+package vismed2.group3.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a range of slices into contiguous slabs and processes them in
+ * parallel. Each slab is handed to exactly one task, so tasks writing only to
+ * their own slices produce the same result regardless of the degree of
+ * parallelism. Tasks needing neighbouring slices (halo) simply read them from
+ * the shared input.<br>
+ * <br>
+ * Either an executor supplied by the caller is used, or a pool of daemon
+ * threads is created for each call to
+ * {@link #execute(int, SlabTask, SlabListener)} and shut down afterwards. With
+ * a parallelism of 1, slabs are processed one after another on the calling
+ * thread. Tasks may stop the execution between slabs by throwing an exception,
+ * e.g. when the work has been cancelled.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class SlabExecutor {
+
+	/**
+	 * Number of slabs per thread. More slabs than threads balance the load
+	 * if some slabs are more expensive than others.
+	 */
+	private static final int SLABS_PER_THREAD = 4;
+
+	private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "slab-worker-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	/**
+	 * The work to do for one slab.
+	 */
+	public interface SlabTask {
+		/**
+		 * Processes the slices first to last (inclusive).
+		 */
+		void process(int first, int last);
+	}
+
+	/**
+	 * Informed whenever a slab has been processed, on the thread which
+	 * processed it.
+	 */
+	public interface SlabListener {
+		/**
+		 * @param first
+		 *            The first slice of the slab
+		 * @param last
+		 *            The last slice of the slab
+		 */
+		void slabDone(int first, int last);
+	}
+
+	private final int parallelism;
+	private final ExecutorService executor;
+
+	/**
+	 * Creates an executor using its own threads.
+	 *
+	 * @param parallelism
+	 *            Number of threads to use
+	 */
+	public SlabExecutor(int parallelism) {
+		this(null, parallelism);
+	}
+
+	/**
+	 * Creates an executor submitting slabs to the given executor service.
+	 *
+	 * @param executor
+	 *            The executor service to use, or null to create threads on
+	 *            demand
+	 * @param parallelism
+	 *            Number of threads to use, determines the number of slabs
+	 */
+	public SlabExecutor(ExecutorService executor, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism + ".");
+		}
+		this.executor = executor;
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Processes the slices 0 to count - 1 and returns once all slabs are done.
+	 * Exceptions thrown by a task are rethrown on the calling thread; slabs
+	 * which have not been started at that time are skipped, slabs already
+	 * running are waited for. The same holds if the calling thread is
+	 * interrupted while waiting: the execution ends with an
+	 * {@link IllegalStateException} once the running slabs are done, and the
+	 * thread's interrupt status is set.
+	 *
+	 * @param count
+	 *            Number of slices
+	 * @param task
+	 *            The work to do per slab
+	 * @param listener
+	 *            Informed about processed slabs, may be null
+	 */
+	public void execute(final int count, final SlabTask task, final SlabListener listener) {
+		if (count <= 0) {
+			return;
+		}
+		final int slabCount = Math.min(count, parallelism * SLABS_PER_THREAD);
+		if (parallelism == 1) {
+			for (int i = 0; i < slabCount; i++) {
+				int first = (int) ((long) count * i / slabCount);
+				int last = (int) ((long) count * (i + 1) / slabCount) - 1;
+				task.process(first, last);
+				if (listener != null) {
+					listener.slabDone(first, last);
+				}
+			}
+			return;
+		}
+
+		// set by the first failing slab, slabs not yet started are skipped
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		// number of slabs being processed, guards the start of a slab
+		final int[] running = new int[1];
+		List<Callable<Void>> slabs = new ArrayList<Callable<Void>>(slabCount);
+		for (int i = 0; i < slabCount; i++) {
+			final int first = (int) ((long) count * i / slabCount);
+			final int last = (int) ((long) count * (i + 1) / slabCount) - 1;
+			slabs.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					synchronized (running) {
+						if (failed.get()) {
+							return null;
+						}
+						running[0]++;
+					}
+					try {
+						task.process(first, last);
+					} catch (RuntimeException e) {
+						failed.set(true);
+						throw e;
+					} catch (Error e) {
+						failed.set(true);
+						throw e;
+					} finally {
+						synchronized (running) {
+							running[0]--;
+							running.notifyAll();
+						}
+					}
+					if (listener != null) {
+						listener.slabDone(first, last);
+					}
+					return null;
+				}
+			});
+		}
+
+		ExecutorService service = executor;
+		if (service == null) {
+			service = Executors.newFixedThreadPool(Math.min(parallelism, slabCount), DAEMON_THREADS);
+		}
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(slabCount);
+		Throwable failure = null;
+		try {
+			for (Callable<Void> slab : slabs) {
+				futures.add(service.submit(slab));
+			}
+			// wait for all slabs, also after a failure: once this method
+			// returns, no task may still write into the caller's buffers
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// no slab may start from now on; pending ones are dropped, the
+			// running ones still have to finish before the caller may touch
+			// its buffers again
+			synchronized (running) {
+				failed.set(true);
+			}
+			for (Future<Void> future : futures) {
+				future.cancel(false);
+			}
+			awaitRunning(running);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for slabs to finish.", e);
+		} finally {
+			if (service != executor) {
+				service.shutdown();
+			}
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IllegalStateException(failure);
+		}
+	}
+
+	/**
+	 * Waits until no slab is being processed, ignoring interrupts.
+	 */
+	private static void awaitRunning(int[] running) {
+		synchronized (running) {
+			while (running[0] > 0) {
+				try {
+					running.wait();
+				} catch (InterruptedException e) {
+					// keep waiting, the caller restores the interrupt
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of processors available to the JVM, the default
+	 * parallelism.
+	 */
+	public static int defaultParallelism() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+}
@@ -0,0 +1,227 @@
+package vismed2.group3.filters;
+
+import java.util.Arrays;
+
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * Projects a slab of slices, centered at a movable position, onto a plane. The
+ * projection is kept up to date incrementally while the slab moves: moving by
+ * one slice only adds the slice entering and removes the slice leaving the
+ * slab, so scrolling costs one plane per step instead of a whole slab.<br>
+ * <br>
+ * For maximum (and minimum) projections a sliding-window maximum is kept per
+ * pixel together with the number of slices in the slab reaching that maximum.
+ * Only when the last of these slices leaves the slab the pixel is recomputed
+ * from the remaining slices. Unlike a monotonic queue this works for moving in
+ * both directions. Average projections keep a running sum.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class SlabProjection {
+
+	private final ShortVolume in;
+	private final Plane plane;
+	private final int sign;
+	private final int lo;
+	private final int hi;
+
+	private final int uSize;
+	private final int vSize;
+	private final int uStride;
+	private final int vStride;
+	private final int nStride;
+	private final int nSize;
+
+	// Current slab [first, last] along the normal, first > last if none yet
+	private int position = -1;
+	private int first = 0;
+	private int last = -1;
+
+	// Per pixel state, indexed u + v * uSize
+	private final int[] best;
+	private final int[] count;
+	private final long[] sum;
+	private final short[] projection;
+
+	/**
+	 * Prepares the slab projection.
+	 *
+	 * @param in
+	 *            The volume to project
+	 * @param plane
+	 *            The plane to project onto; the slab extends along its normal
+	 * @param thickness
+	 *            The thickness of the slab in slices
+	 * @param mode
+	 *            The projection to compute
+	 */
+	public SlabProjection(ShortVolume in, Plane plane, int thickness, MIP.Mode mode) {
+		if (thickness < 1) {
+			throw new IllegalArgumentException("Slab thickness must be at least 1, got " + thickness + ".");
+		}
+		this.in = in;
+		this.plane = plane;
+		this.sign = mode == MIP.Mode.MINIMUM ? -1 : 1;
+		this.lo = thickness / 2;
+		this.hi = thickness - 1 - lo;
+
+		uSize = in.getDimension(plane.getUAxis());
+		vSize = in.getDimension(plane.getVAxis());
+		uStride = in.getStride(plane.getUAxis());
+		vStride = in.getStride(plane.getVAxis());
+		nStride = in.getStride(plane.getNormalAxis());
+		nSize = in.getDimension(plane.getNormalAxis());
+
+		best = new int[uSize * vSize];
+		count = new int[uSize * vSize];
+		sum = mode == MIP.Mode.AVERAGE ? new long[uSize * vSize] : null;
+		projection = new short[uSize * vSize];
+	}
+
+	/**
+	 * Moves the slab's center to the given position and returns the updated
+	 * projection. Small moves are applied incrementally, larger jumps
+	 * recompute the slab.
+	 *
+	 * @param position
+	 *            The slab's center along the plane's normal
+	 * @return The projection, indexed u + v * uSize. The array is reused by
+	 *         subsequent calls.
+	 */
+	public short[] moveTo(int position) {
+		int newFirst = Math.max(position - lo, 0);
+		int newLast = Math.min(position + hi, nSize - 1);
+		if (first > last || newFirst > last || newLast < first
+				|| 2 * Math.abs(position - this.position) >= lo + hi + 1) {
+			// Updating would touch more slices than recomputing the slab
+			rebuild(newFirst, newLast);
+		} else {
+			// Add the slices entering the slab, then remove those leaving it
+			for (int slice = newFirst; slice < first; slice++) {
+				add(slice);
+			}
+			for (int slice = last + 1; slice <= newLast; slice++) {
+				add(slice);
+			}
+			int oldFirst = first;
+			int oldLast = last;
+			first = newFirst;
+			last = newLast;
+			for (int slice = oldFirst; slice < newFirst; slice++) {
+				remove(slice);
+			}
+			for (int slice = newLast + 1; slice <= oldLast; slice++) {
+				remove(slice);
+			}
+		}
+		this.position = position;
+		return finish();
+	}
+
+	/**
+	 * Returns the projection at the current position, the array returned by
+	 * the last call to {@link #moveTo(int)}.
+	 */
+	public short[] getProjection() {
+		return projection;
+	}
+
+	/**
+	 * Returns the plane this slab is projected onto.
+	 */
+	public Plane getPlane() {
+		return plane;
+	}
+
+	/**
+	 * Returns the current center of the slab.
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	private void rebuild(int newFirst, int newLast) {
+		Arrays.fill(best, Integer.MIN_VALUE);
+		Arrays.fill(count, 0);
+		if (sum != null) {
+			Arrays.fill(sum, 0);
+		}
+		first = newFirst;
+		last = newLast;
+		for (int slice = newFirst; slice <= newLast; slice++) {
+			add(slice);
+		}
+	}
+
+	private void add(int slice) {
+		short[] src = in.getData();
+		int p = 0;
+		for (int v = 0; v < vSize; v++) {
+			int i = slice * nStride + v * vStride;
+			for (int u = 0; u < uSize; u++, i += uStride, p++) {
+				if (sum != null) {
+					sum[p] += src[i];
+				} else {
+					int value = sign * src[i];
+					if (value > best[p]) {
+						best[p] = value;
+						count[p] = 1;
+					} else if (value == best[p]) {
+						count[p]++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes a slice that is no longer part of the current slab [first, last].
+	 */
+	private void remove(int slice) {
+		short[] src = in.getData();
+		int p = 0;
+		for (int v = 0; v < vSize; v++) {
+			int i = slice * nStride + v * vStride;
+			for (int u = 0; u < uSize; u++, i += uStride, p++) {
+				if (sum != null) {
+					sum[p] -= src[i];
+				} else if (sign * src[i] == best[p] && --count[p] == 0) {
+					recompute(p, u, v);
+				}
+			}
+		}
+	}
+
+	private void recompute(int p, int u, int v) {
+		short[] src = in.getData();
+		int max = Integer.MIN_VALUE;
+		int n = 0;
+		int i = first * nStride + v * vStride + u * uStride;
+		for (int slice = first; slice <= last; slice++, i += nStride) {
+			int value = sign * src[i];
+			if (value > max) {
+				max = value;
+				n = 1;
+			} else if (value == max) {
+				n++;
+			}
+		}
+		best[p] = max;
+		count[p] = n;
+	}
+
+	private short[] finish() {
+		int slices = last - first + 1;
+		for (int p = 0; p < projection.length; p++) {
+			if (sum != null) {
+				projection[p] = ShortVolume.saturate((double) sum[p] / slices);
+			} else {
+				projection[p] = (short) (sign * best[p]);
+			}
+		}
+		return projection;
+	}
+}
@@ -1,161 +1,197 @@
-package vismed2.group3.filters;
-
-import vismed2.group3.VisMedVTK;
-import vtk.vtkImageData;
-
-/**
- * @author Sebastian Haas
- * @author Alexander Tatowsky
- * <br>
- *         The ThresholdFilter sets all pixels outside of an Threshold- interval
- *         as background, all pixels inside the interval stay the original
- *         value. The result can be shown only on the active slice or can be
- *         applied to all slices by setting the boolean doAllSlices to true.
- * 
- *         The functionality of this filter is only guaranteed for grayvalue
- *         dicom data.
- */
-public class ThresholdFilter implements VtkJavaFilter {
-
-	private final vtkImageData out;
-	private double upperThreshold = 0;
-	private double lowerThreshold = 0;
-	private int sliceAlong_X = 0;
-	private int sliceAlong_Y = 0;
-	private int sliceAlong_Z = 0;
-	private boolean doAllSlices = false;
-
-	public ThresholdFilter() {
-		out = new vtkImageData();
-	}
-
-	/**
-	 * Apply the Threshold Filter. Pixels outside of the threshold- span are set
-	 * to background. Pixels inside of the threshold- interval stay the same.
-	 * This can either be applied to the active orthogonal slices or to the
-	 * whole dataset by setting the boolean doAllSlices.
-	 */
-	@Override
-	public void applyFilter(vtkImageData imgData) {
-		// Prepare output data
-		int[] dims = imgData.GetDimensions();
-		out.Initialize();
-		out.CopyStructure(imgData);
-		out.CopyAttributes(imgData);
-		out.DeepCopy(imgData);
-		double pixelValue;
-		int progress;
-
-		// iterate over all slices and set every pixel 0 which isn't bigger than
-		// the threshold
-		if (doAllSlices) {
-			for (int slice = 0; slice < dims[2]; slice++) {
-				progress = (int) ((double) 100 / dims[1] * slice);
-				VisMedVTK.setStatusBar("Applying Threshold Filter. Progress: " + progress + " %");
-				for (int width = 0; width < dims[1]; width++) {
-					for (int height = 0; height < dims[0]; height++) {
-						pixelValue = imgData.GetScalarComponentAsDouble(height, width, slice, 0);
-						if (pixelValue >= lowerThreshold && pixelValue <= upperThreshold) {
-							out.SetScalarComponentFromDouble(height, width, slice, 0, pixelValue);
-						} else {
-							out.SetScalarComponentFromDouble(height, width, slice, 0, 0);
-						}
-					}
-				}
-			}
-		} else {
-			// iterate over relevant slices and set every pixel 0 which isn't
-			// bigger than the threshold (YZ) -> Along X
-			for (int slice = 0; slice < dims[2]; slice++) {
-				progress = (int) ((double) 100 / dims[1] * slice);
-				VisMedVTK.setStatusBar("Applying Threshold Filter. Progress: " + progress + " %");
-				for (int width = 0; width < dims[1]; width++) {
-					for (int height = 0; height < dims[0]; height++) {
-						if (slice == sliceAlong_X) { // along X
-							pixelValue = imgData.GetScalarComponentAsDouble(height, width, sliceAlong_X, 0);
-							if (pixelValue >= lowerThreshold && pixelValue <= upperThreshold) {
-								out.SetScalarComponentFromDouble(height, width, sliceAlong_X, 0, pixelValue);
-							} else {
-								out.SetScalarComponentFromDouble(height, width, sliceAlong_X, 0, 0);
-							}
-						}
-						if (width == sliceAlong_Y) { // along Y
-							pixelValue = imgData.GetScalarComponentAsDouble(height, sliceAlong_Y, slice, 0);
-							if (pixelValue >= lowerThreshold && pixelValue <= upperThreshold) {
-								out.SetScalarComponentFromDouble(height, sliceAlong_Y, slice, 0, pixelValue);
-							} else {
-								out.SetScalarComponentFromDouble(height, sliceAlong_Y, slice, 0, 0);
-							}
-						}
-						if (height == sliceAlong_Z) { // along Z
-							pixelValue = imgData.GetScalarComponentAsDouble(sliceAlong_Z, width, slice, 0);
-							if (pixelValue >= lowerThreshold && pixelValue <= upperThreshold) {
-								out.SetScalarComponentFromDouble(sliceAlong_Z, width, slice, 0, pixelValue);
-							} else {
-								out.SetScalarComponentFromDouble(sliceAlong_Z, width, slice, 0, 0);
-							}
-						}
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * Set the flag whether all slices should be filtered or just the active
-	 * slices
-	 * 
-	 * @param doAllSlices
-	 * @return oposite of set boolean
-	 */
-	public boolean setAllSlices(boolean doAllSlices) {
-		this.doAllSlices = doAllSlices;
-		if (doAllSlices)
-			return false;
-		else
-			return true;
-	}
-
-	/**
-	 * Give information about the active slices. Active slices are the slices
-	 * which are shown at the moment of pressing the filter button.
-	 * 
-	 * @param sliceYZ - along the X achsis
-	 * @param sliceXZ - along the Y achsis
-	 * @param sliceYX - along the Z achsis
-	 */
-	public void setSlice(int sliceYZ, int sliceXZ, int sliceYX) {
-		this.sliceAlong_X = sliceYZ;
-		this.sliceAlong_Y = sliceXZ;
-		this.sliceAlong_Z = sliceYX;
-	}
-
-	/**
-	 * Set the upper limit if the threshold interval
-	 * 
-	 * @param threshold
-	 */
-	public void setUpperThreshold(double threshold) {
-		this.upperThreshold = threshold;
-	}
-
-	/**
-	 * Set the lower limit if the threshold interval
-	 * 
-	 * @param threshold
-	 */
-	public void setLowerThreshold(double threshold) {
-		this.lowerThreshold = threshold;
-	}
-
-	@Override
-	public String getFilterName() {
-		return "Threshold";
-	}
-
-	@Override
-	public vtkImageData GetOutput() {
-		return out;
-	}
-
-}
+package vismed2.group3.filters;
+
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ * <br>
+ *         The ThresholdFilter sets all pixels outside of an Threshold- interval
+ *         as background, all pixels inside the interval stay the original
+ *         value. The result can be shown only on the active slice or can be
+ *         applied to all slices by setting the boolean doAllSlices to true.
+ * 
+ *         The functionality of this filter is only guaranteed for grayvalue
+ *         dicom data.
+ */
+public class ThresholdFilter extends VolumeFilter {
+
+	private double upperThreshold = 0;
+	private double lowerThreshold = 0;
+	private boolean doAllSlices = false;
+	private boolean interactive = false;
+	private InteractiveThreshold interactiveThreshold;
+
+	/**
+	 * Apply the Threshold Filter. Pixels outside of the threshold- span are set
+	 * to background. Pixels inside of the threshold- interval stay the same.
+	 * This can either be applied to the active orthogonal slices or to the
+	 * whole dataset by setting the boolean doAllSlices.
+	 */
+	@Override
+	public ShortVolume filter(ShortVolume in) {
+		interactiveThreshold = null;
+		if (doAllSlices && interactive) {
+			// index the volume so the interval can be changed afterwards
+			interactiveThreshold = new InteractiveThreshold(in);
+			return interactiveThreshold.setInterval(lowerThreshold, upperThreshold);
+		}
+
+		if (!doAllSlices) {
+			// only the three planes shown at the moment are touched
+			return filterOwned(in.copy());
+		}
+
+		final short[] src = in.getData();
+		ShortVolume out = new ShortVolume(in.getWidth(), in.getHeight(), in.getDepth());
+		final short[] dst = out.getData();
+		// a table over the value range of the volume, for CT ~4096 entries
+		int[] range = in.getRange();
+		final ValueLut lut = ValueLut.threshold(range[0], range[1], lowerThreshold, upperThreshold);
+		final int sliceSize = in.getSliceSize();
+		forEachSlab(in, new SlabExecutor.SlabTask() {
+			@Override
+			public void process(int first, int last) {
+				lut.apply(src, dst, first * sliceSize, (last + 1) * sliceSize);
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Applies the threshold to every pixel of the given plane.
+	 */
+	@Override
+	protected short[] filterPlane(ShortVolume in, Plane plane, int position) {
+		ValueLut lut = getValueLut();
+		short[] src = in.getData();
+		int uSize = in.getDimension(plane.getUAxis());
+		int vSize = in.getDimension(plane.getVAxis());
+		int uStride = in.getStride(plane.getUAxis());
+		int vStride = in.getStride(plane.getVAxis());
+		int offset = position * in.getStride(plane.getNormalAxis());
+		short[] values = new short[uSize * vSize];
+		int p = 0;
+		for (int v = 0; v < vSize; v++) {
+			int i = offset + v * vStride;
+			for (int u = 0; u < uSize; u++, i += uStride) {
+				values[p++] = lut.apply(src[i]);
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public boolean isActiveSliceMode() {
+		return !doAllSlices;
+	}
+
+	@Override
+	ValueLut getValueLut() {
+		return ValueLut.threshold(lowerThreshold, upperThreshold);
+	}
+
+	/**
+	 * Changes the threshold interval of the last result without filtering the
+	 * whole volume again. Only available after filtering all slices in
+	 * interactive mode.
+	 * 
+	 * @param lowerThreshold
+	 *            The lower limit of the interval (inclusive)
+	 * @param upperThreshold
+	 *            The upper limit of the interval (inclusive)
+	 * @return The updated result, the same instance as returned by the last
+	 *         call to {@link #filter(ShortVolume)}
+	 */
+	public ShortVolume updateInterval(double lowerThreshold, double upperThreshold) {
+		if (interactiveThreshold == null) {
+			throw new IllegalStateException("No interactive threshold result to update.");
+		}
+		this.lowerThreshold = lowerThreshold;
+		this.upperThreshold = upperThreshold;
+		return interactiveThreshold.setInterval(lowerThreshold, upperThreshold);
+	}
+
+	/**
+	 * Returns the z positions of the slices changed by the last call to
+	 * {@link #updateInterval(double, double)}, see
+	 * {@link InteractiveThreshold#getChangedSlices()}.
+	 */
+	public int[] getChangedSlices() {
+		if (interactiveThreshold == null) {
+			throw new IllegalStateException("No interactive threshold result to update.");
+		}
+		return interactiveThreshold.getChangedSlices();
+	}
+
+	/**
+	 * Returns true if the last result can be updated with
+	 * {@link #updateInterval(double, double)}.
+	 */
+	public boolean isInteractive() {
+		return interactiveThreshold != null;
+	}
+
+	/**
+	 * Set whether filtering all slices should keep an index of the volume, so
+	 * the interval can be changed interactively afterwards. The index needs 4
+	 * bytes per voxel.
+	 * 
+	 * @param interactive
+	 */
+	public void setInteractive(boolean interactive) {
+		this.interactive = interactive;
+	}
+
+	/**
+	 * Set the flag whether all slices should be filtered or just the active
+	 * slices
+	 * 
+	 * @param doAllSlices
+	 * @return oposite of set boolean
+	 */
+	public boolean setAllSlices(boolean doAllSlices) {
+		this.doAllSlices = doAllSlices;
+		if (doAllSlices)
+			return false;
+		else
+			return true;
+	}
+
+	/**
+	 * Set the upper limit if the threshold interval
+	 * 
+	 * @param threshold
+	 */
+	public void setUpperThreshold(double threshold) {
+		this.upperThreshold = threshold;
+	}
+
+	/**
+	 * Set the lower limit if the threshold interval
+	 * 
+	 * @param threshold
+	 */
+	public void setLowerThreshold(double threshold) {
+		this.lowerThreshold = threshold;
+	}
+
+	/**
+	 * Interactive results are not cached: the index needed to change the
+	 * interval afterwards would be missing.
+	 */
+	@Override
+	protected String getParameters() {
+		if (interactive && doAllSlices) {
+			return null;
+		}
+		return "interval=" + lowerThreshold + ".." + upperThreshold + " all=" + doAllSlices;
+	}
+
+	@Override
+	public String getFilterName() {
+		return "Threshold";
+	}
+
+}
@@ -0,0 +1,110 @@
+package vismed2.group3.filters;
+
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * A lookup table mapping every value of a given range to a new value. Applying
+ * a table replaces the comparisons and branches of point-wise operations such
+ * as thresholding or window/level by a single array access per voxel. For CT
+ * data the value range, and therefore the table, holds about 4096 entries and
+ * fits into the L1 cache.<br>
+ * <br>
+ * Tables covering the whole range of a short can be composed with
+ * {@link #then(ValueLut)}, so a chain of point-wise operations costs a single
+ * lookup per voxel.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+final class ValueLut {
+
+	private final int offset;
+	private final short[] table;
+
+	private ValueLut(int min, short[] table) {
+		this.offset = min;
+		this.table = table;
+	}
+
+	/**
+	 * Creates a table for all values from min to max (inclusive) mapping each
+	 * value to itself if it lies within the threshold interval and to 0
+	 * (background) otherwise.
+	 *
+	 * @param min
+	 *            The smallest value the table is applied to
+	 * @param max
+	 *            The largest value the table is applied to
+	 * @param lowerThreshold
+	 *            The lower limit of the interval (inclusive)
+	 * @param upperThreshold
+	 *            The upper limit of the interval (inclusive)
+	 */
+	static ValueLut threshold(int min, int max, double lowerThreshold, double upperThreshold) {
+		short[] table = new short[max - min + 1];
+		for (int i = 0; i < table.length; i++) {
+			int value = i + min;
+			if (value >= lowerThreshold && value <= upperThreshold) {
+				table[i] = (short) value;
+			}
+		}
+		return new ValueLut(min, table);
+	}
+
+	/**
+	 * Creates a threshold table for the whole range of a short.
+	 */
+	static ValueLut threshold(double lowerThreshold, double upperThreshold) {
+		return threshold(Short.MIN_VALUE, Short.MAX_VALUE, lowerThreshold, upperThreshold);
+	}
+
+	/**
+	 * Creates a table for the whole range of a short mapping the window
+	 * [level - window / 2, level + window / 2] linearly to [outputMin,
+	 * outputMax]. Values below or above the window are mapped to outputMin or
+	 * outputMax.
+	 */
+	static ValueLut windowLevel(double window, double level, int outputMin, int outputMax) {
+		short[] table = new short[Short.MAX_VALUE - Short.MIN_VALUE + 1];
+		double low = level - window / 2;
+		double scale = (outputMax - outputMin) / window;
+		for (int i = 0; i < table.length; i++) {
+			double value = outputMin + (i + Short.MIN_VALUE - low) * scale;
+			table[i] = ShortVolume.saturate(Math.max(outputMin, Math.min(outputMax, value)));
+		}
+		return new ValueLut(Short.MIN_VALUE, table);
+	}
+
+	/**
+	 * Returns a table applying this table first and the given one afterwards.
+	 *
+	 * @param next
+	 *            A table covering the whole range of a short
+	 */
+	ValueLut then(ValueLut next) {
+		if (next.offset != Short.MIN_VALUE || next.table.length != Short.MAX_VALUE - Short.MIN_VALUE + 1) {
+			throw new IllegalArgumentException("Only tables covering all short values can be appended.");
+		}
+		short[] composed = new short[table.length];
+		for (int i = 0; i < table.length; i++) {
+			composed[i] = next.apply(table[i]);
+		}
+		return new ValueLut(offset, composed);
+	}
+
+	short apply(short value) {
+		return table[value - offset];
+	}
+
+	/**
+	 * Applies the table to the elements from (inclusive) to to (exclusive).
+	 * src and dst may be the same array.
+	 */
+	void apply(short[] src, short[] dst, int from, int to) {
+		short[] table = this.table;
+		int offset = this.offset;
+		for (int i = from; i < to; i++) {
+			dst[i] = table[src[i] - offset];
+		}
+	}
+}
@@ -0,0 +1,646 @@
+package vismed2.group3.filters;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+
+import vismed2.group3.filters.SlabExecutor.SlabListener;
+import vismed2.group3.filters.SlabExecutor.SlabTask;
+import vismed2.group3.volume.CowVolume;
+import vismed2.group3.volume.MappedVolume;
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.PlaneEdit;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.VtkVolumeConverter;
+import vtk.vtkImageData;
+
+/**
+ * Base class for filters working on a {@link ShortVolume} instead of accessing
+ * each voxel of a {@link vtk.vtkImageData} through JNI. The input image is
+ * copied into a volume once, filtered entirely in Java and copied back in bulk.
+ * <br>
+ * <br>
+ * Subclasses only implement {@link #filter(ShortVolume)}, which does not touch
+ * any native VTK code and can therefore be used without loading the VTK
+ * libraries. In active-slice mode only the active planes and their
+ * neighbourhood are copied, see {@link #applyFilter(vtkImageData)} and
+ * {@link #applyFilterToPlanes(vtkImageData)}. Filters
+ * working slab by slab can also process volumes larger than the heap, see
+ * {@link #filterMapped(MappedVolume, MappedVolume)}.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public abstract class VolumeFilter implements VtkJavaFilter {
+
+	/**
+	 * The size of the slabs read from a {@link MappedVolume} at once, without
+	 * halo, in bytes.
+	 */
+	private static final long MAPPED_SLAB_BYTES = 64L << 20;
+
+	protected int sliceAlong_X = 0;
+	protected int sliceAlong_Y = 0;
+	protected int sliceAlong_Z = 0;
+	private vtkImageData out;
+	private final Progress progress = new Progress();
+	private volatile boolean cancelled = false;
+	private int parallelism = SlabExecutor.defaultParallelism();
+	private ExecutorService executor;
+
+	/**
+	 * Filters the given volume. The input is not modified.
+	 *
+	 * @param input
+	 *            The volume to filter
+	 * @return A new volume containing the result
+	 */
+	public abstract ShortVolume filter(ShortVolume input);
+
+	/**
+	 * Filters a single plane of the volume. Filters supporting the
+	 * active-slice mode override this method and compute every voxel of the
+	 * given plane. Only the plane itself has to be visited, so the cost scales
+	 * with the plane size rather than the volume size.
+	 *
+	 * @param in
+	 *            The volume to filter
+	 * @param plane
+	 *            The orientation of the plane
+	 * @param position
+	 *            The position of the plane along its normal axis
+	 * @return The filtered plane, indexed u + v * (size along u)
+	 */
+	protected short[] filterPlane(ShortVolume in, Plane plane, int position) {
+		throw new UnsupportedOperationException(getFilterName() + " can not be applied to single planes.");
+	}
+
+	/**
+	 * Returns true if the filter is configured to change the active planes
+	 * only, in which case {@link #applyFilter(vtkImageData)} uses
+	 * {@link #filterActivePlanes(ShortVolume)} and only transfers these planes.
+	 */
+	public boolean isActiveSliceMode() {
+		return false;
+	}
+
+	/**
+	 * Returns true if the filter implements
+	 * {@link #filterSlices(ShortVolume, ShortVolume, int, int)} and can
+	 * therefore be run slab by slab within a {@link FilterPipeline}.
+	 */
+	protected boolean canFilterSlices() {
+		return false;
+	}
+
+	/**
+	 * Filters the XY slices first to last (inclusive) of the whole volume, as
+	 * in all-slices mode. Only these slices of the output are written, while
+	 * any slice of the input may be read. Must be safe to call concurrently
+	 * for disjoint ranges of slices.
+	 *
+	 * @param in
+	 *            The volume to filter
+	 * @param out
+	 *            The volume to write the result to
+	 * @param first
+	 *            The first slice to filter
+	 * @param last
+	 *            The last slice to filter
+	 */
+	protected void filterSlices(ShortVolume in, ShortVolume out, int first, int last) {
+		throw new UnsupportedOperationException(getFilterName() + " can not be applied to slabs of slices.");
+	}
+
+	/**
+	 * Returns the number of slices before and after a slab which
+	 * {@link #filterSlices(ShortVolume, ShortVolume, int, int)} reads, e.g.
+	 * half of the kernel along z. Filters working on each slice on its own
+	 * need none, which is the default.
+	 *
+	 * @return The slices before the slab at index 0, after it at index 1
+	 */
+	protected int[] getSliceHalo() {
+		return new int[] { 0, 0 };
+	}
+
+	/**
+	 * Returns a table covering the whole range of a short if this filter is a
+	 * point-wise operation on all slices, null otherwise. Point-wise filters
+	 * are fused into neighboring stages of a {@link FilterPipeline}.
+	 */
+	ValueLut getValueLut() {
+		return null;
+	}
+
+	/**
+	 * Runs {@link #filterPlane(ShortVolume, Plane, int)} for the XY, XZ and YZ
+	 * plane at the active slice positions. The planes are written to a
+	 * copy-on-write view of the input, so only the bricks touched by the
+	 * planes are copied. Filters in active-slice mode return
+	 * <code>filterOwned(in.copy())</code> from {@link #filter(ShortVolume)},
+	 * which writes these bricks into the copy.
+	 *
+	 * @param in
+	 *            The volume to filter
+	 * @return The input with the active planes replaced by the filtered ones
+	 */
+	protected CowVolume filterActivePlanes(ShortVolume in) {
+		CowVolume out = new CowVolume(in);
+		Plane[] planes = Plane.values();
+		for (int i = 0; i < planes.length; i++) {
+			checkCancelled();
+			int position = getActiveSlice(planes[i]);
+			if (isInside(in, planes[i], position)) {
+				out.setPlane(planes[i], position, filterPlane(in, planes[i], position));
+				progress.advance(planeSize(in, planes[i]));
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the number of planes before and after the given plane, along
+	 * its normal axis, which {@link #filterPlane(ShortVolume, Plane, int)}
+	 * reads, e.g. half of the kernel. Filters reading the plane only need
+	 * none, which is the default. Filters which need the whole volume for the
+	 * active planes return null.
+	 *
+	 * @return The planes before the plane at index 0, after it at index 1, or
+	 *         null
+	 */
+	protected int[] getPlaneHalo(Plane plane) {
+		return new int[] { 0, 0 };
+	}
+
+	private static long planeSize(ShortVolume in, Plane plane) {
+		return planeSize(in.getDimensions(), plane);
+	}
+
+	private static long planeSize(int[] dims, Plane plane) {
+		return (long) dims[plane.getUAxis()] * dims[plane.getVAxis()];
+	}
+
+	private static boolean isInside(ShortVolume in, Plane plane, int position) {
+		return isInside(in.getDimensions(), plane, position);
+	}
+
+	private static boolean isInside(int[] dims, Plane plane, int position) {
+		return position >= 0 && position < dims[plane.getNormalAxis()];
+	}
+
+	/**
+	 * Processes all slices of the given volume in parallel slabs using the
+	 * configured parallelism and executor. The voxels of each finished slab
+	 * are added to the filter's progress. If the filter is cancelled, no
+	 * further slabs are started.
+	 *
+	 * @param volume
+	 *            The volume whose slices are processed
+	 * @param task
+	 *            The work to do per slab
+	 */
+	protected void forEachSlab(ShortVolume volume, final SlabTask task) {
+		final long sliceSize = volume.getSliceSize();
+		SlabTask cancellable = new SlabTask() {
+			@Override
+			public void process(int first, int last) {
+				checkCancelled();
+				task.process(first, last);
+			}
+		};
+		new SlabExecutor(executor, parallelism).execute(volume.getDepth(), cancellable, new SlabListener() {
+			@Override
+			public void slabDone(int first, int last) {
+				progress.advance((last - first + 1) * sliceSize);
+			}
+		});
+	}
+
+	/**
+	 * Sets the number of threads used by filters supporting parallel
+	 * execution. Defaults to the number of available processors. The result
+	 * does not depend on this setting.
+	 *
+	 * @param parallelism
+	 *            The number of threads, at least 1
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism + ".");
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the executor to run parallel work on. If none is set, threads are
+	 * created for each filter run.
+	 *
+	 * @param executor
+	 *            The executor to use, or null
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Give information about the active slices. Active slices are the slices
+	 * which are shown at the moment of pressing the filter button.
+	 * 
+	 * @param sliceYZ
+	 *            - along the X achsis
+	 * @param sliceXZ
+	 *            - along the Y achsis
+	 * @param sliceYX
+	 *            - along the Z achsis
+	 */
+	public void setSlice(int sliceYZ, int sliceXZ, int sliceYX) {
+		this.sliceAlong_X = sliceYZ;
+		this.sliceAlong_Y = sliceXZ;
+		this.sliceAlong_Z = sliceYX;
+	}
+
+	/**
+	 * Returns the active slice position of the given plane along its normal
+	 * axis.
+	 */
+	protected int getActiveSlice(Plane plane) {
+		switch (plane) {
+		case XY:
+			return sliceAlong_X;
+		case XZ:
+			return sliceAlong_Y;
+		default:
+			return sliceAlong_Z;
+		}
+	}
+
+	/**
+	 * Filters the given image. In all-slices mode the image is copied into a
+	 * volume, filtered and the result is copied to {@link #GetOutput()}.<br>
+	 * <br>
+	 * In active-slice mode only the active planes and the planes around them
+	 * that the filter reads (see {@link #getPlaneHalo(Plane)}) are copied out
+	 * of the image. The image is copied natively to {@link #GetOutput()} and
+	 * the filtered planes are written into the copy, so the rest of the volume
+	 * is not copied to the heap. The given image is not modified either way.
+	 * Callers who can write the planes into an image of their own use
+	 * {@link #applyFilterToPlanes(vtkImageData)} instead.
+	 */
+	@Override
+	public void applyFilter(vtkImageData imgData) {
+		if (out == null) {
+			out = new vtkImageData();
+		}
+		if (isActiveSliceMode()) {
+			PlaneEdit planes;
+			try {
+				planes = filterActivePlanes(imgData);
+			} finally {
+				progress.finish();
+				cancelled = false;
+			}
+			out.DeepCopy(imgData);
+			VtkVolumeConverter.writePlanes(planes, out);
+			return;
+		}
+		ShortVolume input = VtkVolumeConverter.toVolume(imgData);
+		ShortVolume result;
+		progress.begin(estimateWork(input));
+		try {
+			checkCancelled();
+			result = filterOwned(input);
+			checkCancelled();
+		} finally {
+			progress.finish();
+			cancelled = false;
+		}
+		VtkVolumeConverter.toImageData(result, imgData, out);
+		released(result);
+	}
+
+	/**
+	 * Filters the active planes of the given image in active-slice mode,
+	 * without modifying or copying the image: only the planes and their halo
+	 * are read, see {@link #applyFilter(vtkImageData)}. The caller writes the
+	 * planes where they are needed, e.g. into a displayed image with
+	 * {@link VtkVolumeConverter#writePlanes(PlaneEdit, vtkImageData)} and
+	 * into an undo history. Progress is tracked and a cancelled run throws a
+	 * {@link CancellationException}, the cancel request is not reset, as by
+	 * {@link #applyFilter(ShortVolume)}.
+	 *
+	 * @param imgData
+	 *            The image to filter
+	 * @return The filtered planes, in the order they are to be written
+	 */
+	public PlaneEdit applyFilterToPlanes(vtkImageData imgData) {
+		if (!isActiveSliceMode()) {
+			throw new IllegalStateException(getFilterName() + " is not in active-slice mode.");
+		}
+		try {
+			return filterActivePlanes(imgData);
+		} finally {
+			progress.finish();
+		}
+	}
+
+	/**
+	 * Filters the active planes of the image. All planes are read before the
+	 * first one is written, since they intersect.
+	 */
+	private PlaneEdit filterActivePlanes(vtkImageData imgData) {
+		int[] dims = imgData.GetDimensions();
+		Plane[] planes = Plane.values();
+		short[][] results = new short[planes.length][];
+		if (needsWholeVolume()) {
+			ShortVolume input = VtkVolumeConverter.toVolume(imgData);
+			progress.begin(estimateWork(input));
+			checkCancelled();
+			CowVolume result = filterActivePlanes(input);
+			for (int i = 0; i < planes.length; i++) {
+				int position = getActiveSlice(planes[i]);
+				if (isInside(dims, planes[i], position)) {
+					results[i] = result.getPlane(planes[i], position);
+				}
+			}
+		} else {
+			long work = 0;
+			ShortVolume[] regions = new ShortVolume[planes.length];
+			int[] offsets = new int[planes.length];
+			for (int i = 0; i < planes.length; i++) {
+				int position = getActiveSlice(planes[i]);
+				if (isInside(dims, planes[i], position)) {
+					int axis = planes[i].getNormalAxis();
+					int[] halo = getPlaneHalo(planes[i]);
+					int[] from = new int[3];
+					int[] to = new int[] { dims[0] - 1, dims[1] - 1, dims[2] - 1 };
+					from[axis] = Math.max(0, position - halo[0]);
+					to[axis] = Math.min(dims[axis] - 1, position + halo[1]);
+					regions[i] = VtkVolumeConverter.readRegion(imgData, from, to);
+					offsets[i] = from[axis];
+					work += planeSize(dims, planes[i]);
+				}
+			}
+			progress.begin(work);
+			for (int i = 0; i < planes.length; i++) {
+				checkCancelled();
+				if (regions[i] != null) {
+					results[i] = filterPlane(regions[i], planes[i], getActiveSlice(planes[i]) - offsets[i]);
+					// the region is not needed anymore
+					regions[i] = null;
+					progress.advance(planeSize(dims, planes[i]));
+				}
+			}
+		}
+		checkCancelled();
+		PlaneEdit edit = new PlaneEdit();
+		for (int i = 0; i < planes.length; i++) {
+			if (results[i] != null) {
+				edit.add(planes[i], getActiveSlice(planes[i]), results[i]);
+			}
+		}
+		return edit;
+	}
+
+	private boolean needsWholeVolume() {
+		for (Plane plane : Plane.values()) {
+			if (getPlaneHalo(plane) == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Filters a volume owned by the caller, e.g. one that has just been copied
+	 * from an image, without copying it again. The input may be overwritten
+	 * and may be returned as the result. Progress is tracked as by
+	 * {@link #applyFilter(vtkImageData)}, and a cancelled run throws a
+	 * {@link CancellationException}. Unlike there, the cancel request is not
+	 * reset, so callers can check {@link #isCancelled()} before using the
+	 * result.
+	 *
+	 * @param input
+	 *            The volume to filter, owned by the filter from now on
+	 * @return The result
+	 */
+	public ShortVolume applyFilter(ShortVolume input) {
+		progress.begin(estimateWork(input));
+		try {
+			checkCancelled();
+			ShortVolume result = filterOwned(input);
+			checkCancelled();
+			return result;
+		} finally {
+			progress.finish();
+		}
+	}
+
+	/**
+	 * Filters a volume that was created for this call only. Filters may
+	 * overwrite or reuse the input to save memory. By default the active
+	 * planes are written into the input in active-slice mode, and
+	 * {@link #filter(ShortVolume)} is called otherwise.
+	 *
+	 * @param input
+	 *            The volume to filter, owned by the filter from now on
+	 * @return The result
+	 */
+	protected ShortVolume filterOwned(ShortVolume input) {
+		if (isActiveSliceMode()) {
+			filterActivePlanes(input).applyTo(input);
+			return input;
+		}
+		return filter(input);
+	}
+
+	/**
+	 * Called by {@link #applyFilter(vtkImageData)} once the result of
+	 * {@link #filterOwned(ShortVolume)} has been copied to the output image
+	 * and is not used anymore.
+	 *
+	 * @param result
+	 *            The result that was copied
+	 */
+	protected void released(ShortVolume result) {
+	}
+
+	@Override
+	public vtkImageData GetOutput() {
+		return out;
+	}
+
+	@Override
+	public Progress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Builds the key from the filter's class, its {@link #getParameters()
+	 * parameters} and, in active slice mode, the active slices.
+	 */
+	@Override
+	public String getCacheKey() {
+		String parameters = getParameters();
+		if (parameters == null) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder(getClass().getName()).append('(').append(parameters).append(')');
+		if (isActiveSliceMode()) {
+			key.append(" slices=").append(sliceAlong_X).append(',').append(sliceAlong_Y).append(',')
+					.append(sliceAlong_Z);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns a description of all settings affecting the result except the
+	 * active slices, or null if the result must not be cached. By default
+	 * results are not cached.
+	 */
+	protected String getParameters() {
+		return null;
+	}
+
+	/**
+	 * Requests the filter to stop. When called while
+	 * {@link #applyFilter(vtkImageData)} is running or before it is started,
+	 * the request is reset once applyFilter has thrown. A direct call of
+	 * {@link #filter(ShortVolume)} stays cancelled.
+	 */
+	@Override
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Throws a {@link CancellationException} if the filter has been
+	 * cancelled. Filters call this between units of work, e.g. slabs or
+	 * planes, so all buffers of a cancelled run can be released right away.
+	 */
+	protected void checkCancelled() {
+		if (cancelled) {
+			throw new CancellationException(getFilterName() + " has been cancelled.");
+		}
+	}
+
+	/**
+	 * Filters all slices of a memory-mapped volume. Slabs of about 64 MB and
+	 * their {@link #getSliceHalo() halo} are copied to the heap one after
+	 * another, filtered by
+	 * {@link #filterSlices(ShortVolume, ShortVolume, int, int)} (or the
+	 * filter's value table) with the configured parallelism and written to
+	 * the output. The heap therefore only holds two slabs, no matter how large
+	 * the volume is. The result equals that of {@link #filter(ShortVolume)} in
+	 * all-slices mode.
+	 *
+	 * @param in
+	 *            The volume to filter
+	 * @param out
+	 *            The volume to write the result to, of the same dimensions.
+	 *            May be the input itself for filters without halo.
+	 */
+	public void filterMapped(MappedVolume in, MappedVolume out) {
+		filterMapped(in, out, MAPPED_SLAB_BYTES);
+	}
+
+	/**
+	 * Filters a memory-mapped volume in slabs of at most the given size, e.g.
+	 * to test slab boundaries on small volumes.
+	 */
+	void filterMapped(MappedVolume in, MappedVolume out, long slabBytes) {
+		final ValueLut lut = getValueLut();
+		if (lut == null && !canFilterSlices()) {
+			throw new UnsupportedOperationException(getFilterName() + " can not be applied to mapped volumes.");
+		}
+		int[] dims = in.getDimensions();
+		if (!Arrays.equals(dims, out.getDimensions())) {
+			throw new IllegalArgumentException("Input and output volume must have the same dimensions.");
+		}
+		int[] halo = lut == null ? getSliceHalo() : new int[2];
+		if (in == out && (halo[0] > 0 || halo[1] > 0)) {
+			throw new IllegalArgumentException(getFilterName() + " can not overwrite its input.");
+		}
+		int depth = in.getDepth();
+		final int sliceSize = in.getSliceSize();
+		int slabDepth = (int) Math.max(1, slabBytes / (2L * sliceSize));
+
+		progress.begin(in.size());
+		try {
+			ShortVolume source = null;
+			ShortVolume target = null;
+			for (int first = 0; first < depth; first += slabDepth) {
+				checkCancelled();
+				int last = Math.min(depth, first + slabDepth) - 1;
+				// at the volume's borders the slab starts or ends with the
+				// volume, so clamping the kernel gives the same result
+				int from = Math.max(0, first - halo[0]);
+				int to = Math.min(depth - 1, last + halo[1]);
+				if (source == null || source.getDepth() != to - from + 1) {
+					source = new ShortVolume(dims[0], dims[1], to - from + 1);
+					target = new ShortVolume(dims[0], dims[1], to - from + 1);
+				}
+				in.readSlices(from, to, source.getData(), 0);
+				filterSlab(source, target, first - from, last - from, lut);
+				checkCancelled();
+				out.writeSlices(first, last, target.getData(), (first - from) * sliceSize);
+			}
+		} finally {
+			progress.finish();
+			cancelled = false;
+		}
+	}
+
+	/**
+	 * Filters the slices first to last of a slab read from a mapped volume in
+	 * parallel.
+	 */
+	private void filterSlab(final ShortVolume in, final ShortVolume out, final int first, int last,
+			final ValueLut lut) {
+		final int sliceSize = in.getSliceSize();
+		SlabTask task = new SlabTask() {
+			@Override
+			public void process(int from, int to) {
+				checkCancelled();
+				if (lut != null) {
+					lut.apply(in.getData(), out.getData(), (first + from) * sliceSize, (first + to + 1) * sliceSize);
+				} else {
+					filterSlices(in, out, first + from, first + to);
+				}
+			}
+		};
+		new SlabExecutor(executor, parallelism).execute(last - first + 1, task, new SlabListener() {
+			@Override
+			public void slabDone(int from, int to) {
+				progress.advance((long) (to - from + 1) * sliceSize);
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of voxels the filter is going to process for the
+	 * given input, used as the total of its progress. By default this is the
+	 * size of the active planes in active-slice mode and the size of the
+	 * volume otherwise.
+	 */
+	protected long estimateWork(ShortVolume in) {
+		if (!isActiveSliceMode()) {
+			return in.size();
+		}
+		long work = 0;
+		for (Plane plane : Plane.values()) {
+			if (isInside(in, plane, getActiveSlice(plane))) {
+				work += planeSize(in, plane);
+			}
+		}
+		return work;
+	}
+}
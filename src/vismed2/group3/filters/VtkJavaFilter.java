@@ -27,4 +27,27 @@ public interface VtkJavaFilter {
 	 * return the result of the filter
 	 */
 	public vtkImageData GetOutput();
+
+	/**
+	 * Return a key describing everything the filter's result depends on
+	 * besides the input: the filter's type, parameters and active slices.
+	 * Filters with equal keys produce equal results for equal inputs.
+	 * 
+	 * @return The key, or null if the result must not be cached
+	 */
+	public String getCacheKey();
+
+	/**
+	 * Request the running filter to stop. The filter stops at the next slab
+	 * of slices it would start, applyFilter then throws a
+	 * {@link java.util.concurrent.CancellationException}. Can be called from
+	 * any thread, also before the filter is started.
+	 */
+	public void cancel();
+
+	/**
+	 * Return the progress of the filter. It can be polled from any thread
+	 * while the filter is running.
+	 */
+	public Progress getProgress();
 }
@@ -0,0 +1,137 @@
+package vismed2.group3.filters;
+
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ * <br>
+ *         The WindowLevelFilter maps the gray values inside a window, given by
+ *         its center (level) and width, linearly onto the output range (0 to
+ *         255 by default). Values below or above the window are set to the
+ *         lowest or highest output value. Like the {@link ThresholdFilter} it
+ *         is a point-wise operation and applied through a lookup table.
+ * 
+ *         The functionality of this filter is only guaranteed for grayvalue
+ *         dicom data.
+ */
+public class WindowLevelFilter extends VolumeFilter {
+
+	private double window = 400;
+	private double level = 40;
+	private int outputMin = 0;
+	private int outputMax = 255;
+	private boolean doAllSlices = false;
+
+	@Override
+	public ShortVolume filter(ShortVolume in) {
+		if (!doAllSlices) {
+			return filterOwned(in.copy());
+		}
+
+		final short[] src = in.getData();
+		ShortVolume out = new ShortVolume(in.getWidth(), in.getHeight(), in.getDepth());
+		final short[] dst = out.getData();
+		final ValueLut lut = getValueLut();
+		final int sliceSize = in.getSliceSize();
+		forEachSlab(in, new SlabExecutor.SlabTask() {
+			@Override
+			public void process(int first, int last) {
+				lut.apply(src, dst, first * sliceSize, (last + 1) * sliceSize);
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Maps every pixel of the given plane.
+	 */
+	@Override
+	protected short[] filterPlane(ShortVolume in, Plane plane, int position) {
+		ValueLut lut = getValueLut();
+		short[] src = in.getData();
+		int uSize = in.getDimension(plane.getUAxis());
+		int vSize = in.getDimension(plane.getVAxis());
+		int uStride = in.getStride(plane.getUAxis());
+		int vStride = in.getStride(plane.getVAxis());
+		int offset = position * in.getStride(plane.getNormalAxis());
+		short[] values = new short[uSize * vSize];
+		int p = 0;
+		for (int v = 0; v < vSize; v++) {
+			int i = offset + v * vStride;
+			for (int u = 0; u < uSize; u++, i += uStride) {
+				values[p++] = lut.apply(src[i]);
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public boolean isActiveSliceMode() {
+		return !doAllSlices;
+	}
+
+	@Override
+	ValueLut getValueLut() {
+		return ValueLut.windowLevel(window, level, outputMin, outputMax);
+	}
+
+	/**
+	 * Set the window
+	 * 
+	 * @param window
+	 *            - the width of the window, must be positive
+	 * @param level
+	 *            - the center of the window
+	 */
+	public void setWindowLevel(double window, double level) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("Window must be positive, got " + window + ".");
+		}
+		this.window = window;
+		this.level = level;
+	}
+
+	/**
+	 * Set the range the window is mapped onto
+	 * 
+	 * @param min
+	 *            - the value for the lower end of the window
+	 * @param max
+	 *            - the value for the upper end of the window
+	 */
+	public void setOutputRange(int min, int max) {
+		if (min < Short.MIN_VALUE || max > Short.MAX_VALUE || min > max) {
+			throw new IllegalArgumentException(String.format("Invalid output range %d to %d.", min, max));
+		}
+		this.outputMin = min;
+		this.outputMax = max;
+	}
+
+	/**
+	 * Set the flag whether all slices should be filtered or just the active
+	 * slices
+	 * 
+	 * @param doAllSlices
+	 * @return oposite of set boolean
+	 */
+	public boolean setAllSlices(boolean doAllSlices) {
+		this.doAllSlices = doAllSlices;
+		if (doAllSlices)
+			return false;
+		else
+			return true;
+	}
+
+	@Override
+	protected String getParameters() {
+		return String.format("window=%s level=%s output=%d..%d all=%b", window, level, outputMin, outputMax,
+				doAllSlices);
+	}
+
+	@Override
+	public String getFilterName() {
+		return "Window/Level";
+	}
+}
@@ -0,0 +1,161 @@
+package vismed2.group3.volume;
+
+/**
+ * A cubic block of a {@link ShortVolume} together with a halo of neighbouring
+ * voxels, copied into a small volume of its own. Stencil kernels can process
+ * a volume brick by brick: every neighbourhood of a voxel within the brick is
+ * then found in the small volume, which fits into the L2 cache, instead of
+ * being spread over several slices megabytes apart in the volume's linear
+ * layout.<br>
+ * <br>
+ * The halo is cut off at the volume's border, so the small volume's border
+ * coincides with the volume's border wherever the halo is incomplete. Kernels
+ * which clamp positions to the border of their input therefore compute the
+ * same values on the brick as on the whole volume.<br>
+ * <br>
+ * A brick is meant to be reused for all bricks of a volume, e.g. one per
+ * thread; its small volume is only reallocated when the loaded region changes
+ * size.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public final class Brick {
+
+	private final int size;
+	private final int[] haloLo;
+	private final int[] haloHi;
+
+	// the brick within the volume, without halo
+	private final int[] origin = new int[3];
+	private final int[] extent = new int[3];
+	// the brick's origin within the loaded region
+	private final int[] offset = new int[3];
+	private ShortVolume region;
+
+	/**
+	 * Creates a brick buffer.
+	 *
+	 * @param size
+	 *            The number of voxels per side of the brick, without halo
+	 * @param haloLo
+	 *            The halo before the brick along the x, y and z axis
+	 * @param haloHi
+	 *            The halo after the brick along the x, y and z axis
+	 */
+	public Brick(int size, int[] haloLo, int[] haloHi) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Brick size must be at least 1, got " + size + ".");
+		}
+		for (int axis = 0; axis < 3; axis++) {
+			if (haloLo[axis] < 0 || haloHi[axis] < 0) {
+				throw new IllegalArgumentException("Halo must not be negative.");
+			}
+		}
+		this.size = size;
+		this.haloLo = haloLo.clone();
+		this.haloHi = haloHi.clone();
+	}
+
+	/**
+	 * Copies a brick and its halo from the volume. The brick is cut off at
+	 * the given depth and at the volume's border, the halo at the volume's
+	 * border.
+	 *
+	 * @param volume
+	 *            The volume to read from
+	 * @param x0
+	 *            The first x position of the brick
+	 * @param y0
+	 *            The first y position of the brick
+	 * @param z0
+	 *            The first z position of the brick
+	 * @param depth
+	 *            The number of slices to load, at most the brick size. Slabs
+	 *            of slices may end within a brick.
+	 */
+	public void load(ShortVolume volume, int x0, int y0, int z0, int depth) {
+		origin[0] = x0;
+		origin[1] = y0;
+		origin[2] = z0;
+		int[] from = new int[3];
+		int[] dims = new int[3];
+		for (int axis = 0; axis < 3; axis++) {
+			int volumeSize = volume.getDimension(axis);
+			int brickSize = axis == 2 ? Math.min(size, depth) : size;
+			extent[axis] = Math.min(brickSize, volumeSize - origin[axis]);
+			from[axis] = Math.max(origin[axis] - haloLo[axis], 0);
+			int to = Math.min(origin[axis] + extent[axis] + haloHi[axis], volumeSize);
+			offset[axis] = origin[axis] - from[axis];
+			dims[axis] = to - from[axis];
+		}
+		if (region == null || region.getWidth() != dims[0] || region.getHeight() != dims[1]
+				|| region.getDepth() != dims[2]) {
+			region = new ShortVolume(dims[0], dims[1], dims[2]);
+		}
+
+		short[] src = volume.getData();
+		short[] dst = region.getData();
+		int i = 0;
+		for (int z = 0; z < dims[2]; z++) {
+			for (int y = 0; y < dims[1]; y++) {
+				System.arraycopy(src, volume.index(from[0], from[1] + y, from[2] + z), dst, i, dims[0]);
+				i += dims[0];
+			}
+		}
+	}
+
+	/**
+	 * Returns the loaded brick and its halo as a volume of its own. The
+	 * brick's first voxel is at {@link #getOffset(int)} within it.
+	 */
+	public ShortVolume getRegion() {
+		return region;
+	}
+
+	/**
+	 * Returns the position of the brick's first voxel within
+	 * {@link #getRegion()} along the given axis, i.e. the halo actually
+	 * loaded before the brick.
+	 *
+	 * @param axis
+	 *            0, 1 or 2 for the x, y or z axis
+	 */
+	public int getOffset(int axis) {
+		return offset[axis];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the x position of the loaded brick within the volume.
+	 */
+	public int getX() {
+		return origin[0];
+	}
+
+	public int getY() {
+		return origin[1];
+	}
+
+	public int getZ() {
+		return origin[2];
+	}
+
+	/**
+	 * Returns the number of voxels of the loaded brick along x, without halo.
+	 */
+	public int getWidth() {
+		return extent[0];
+	}
+
+	public int getHeight() {
+		return extent[1];
+	}
+
+	public int getDepth() {
+		return extent[2];
+	}
+}
@@ -0,0 +1,265 @@
+package vismed2.group3.volume;
+
+/**
+ * A copy-on-write view of a {@link ShortVolume}. The volume is divided into
+ * cubic bricks of {@link #BRICK_SIZE} voxels per side. All bricks are shared
+ * with the base volume until a voxel within them is written, only then the
+ * brick is copied (materialized). Filters writing a few planes of a volume
+ * therefore need memory proportional to the planes touched instead of the
+ * whole volume.<br>
+ * <br>
+ * Slices would not be sufficient as unit, since planes perpendicular to the
+ * slices (XZ, YZ) touch every slice. With bricks a plane materializes a layer
+ * of {@link #BRICK_SIZE} planes.<br>
+ * <br>
+ * The base volume must not be modified while views on it are in use. This
+ * class is not thread-safe.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public final class CowVolume {
+
+	/** Number of voxels per side of a brick. */
+	public static final int BRICK_SIZE = 16;
+	private static final int BRICK_BITS = 4;
+	private static final int BRICK_MASK = BRICK_SIZE - 1;
+
+	private final ShortVolume base;
+	private final int bricksX;
+	private final int bricksY;
+	private final int bricksZ;
+	// Materialized bricks indexed bx + by * bricksX + bz * bricksX * bricksY,
+	// null while shared. Voxels within a brick are stored x-fastest.
+	private final short[][] bricks;
+	private int materialized = 0;
+
+	/**
+	 * Creates a view sharing all voxels with the given volume.
+	 *
+	 * @param base
+	 *            The volume to share
+	 */
+	public CowVolume(ShortVolume base) {
+		this.base = base;
+		bricksX = (base.getWidth() + BRICK_MASK) >> BRICK_BITS;
+		bricksY = (base.getHeight() + BRICK_MASK) >> BRICK_BITS;
+		bricksZ = (base.getDepth() + BRICK_MASK) >> BRICK_BITS;
+		bricks = new short[bricksX * bricksY * bricksZ][];
+	}
+
+	private int brickIndex(int x, int y, int z) {
+		return (x >> BRICK_BITS) + ((y >> BRICK_BITS) + (z >> BRICK_BITS) * bricksY) * bricksX;
+	}
+
+	private static int localIndex(int x, int y, int z) {
+		return (x & BRICK_MASK) | ((y & BRICK_MASK) << BRICK_BITS) | ((z & BRICK_MASK) << (2 * BRICK_BITS));
+	}
+
+	/**
+	 * Returns the voxel value at the given position.
+	 */
+	public short get(int x, int y, int z) {
+		short[] brick = bricks[brickIndex(x, y, z)];
+		if (brick == null) {
+			return base.get(x, y, z);
+		}
+		return brick[localIndex(x, y, z)];
+	}
+
+	/**
+	 * Sets the voxel value at the given position, materializing its brick if
+	 * necessary.
+	 */
+	public void set(int x, int y, int z, short value) {
+		int b = brickIndex(x, y, z);
+		short[] brick = bricks[b];
+		if (brick == null) {
+			brick = materialize(b, x >> BRICK_BITS, y >> BRICK_BITS, z >> BRICK_BITS);
+		}
+		brick[localIndex(x, y, z)] = value;
+	}
+
+	/**
+	 * Sets the voxel value at the given position. The value is rounded and
+	 * saturated to the range of a short.
+	 */
+	public void set(int x, int y, int z, double value) {
+		set(x, y, z, ShortVolume.saturate(value));
+	}
+
+	private short[] materialize(int b, int bx, int by, int bz) {
+		short[] brick = new short[BRICK_SIZE * BRICK_SIZE * BRICK_SIZE];
+		short[] src = base.getData();
+		int x0 = bx << BRICK_BITS;
+		int y0 = by << BRICK_BITS;
+		int z0 = bz << BRICK_BITS;
+		int w = Math.min(BRICK_SIZE, base.getWidth() - x0);
+		int h = Math.min(BRICK_SIZE, base.getHeight() - y0);
+		int d = Math.min(BRICK_SIZE, base.getDepth() - z0);
+		for (int z = 0; z < d; z++) {
+			for (int y = 0; y < h; y++) {
+				System.arraycopy(src, base.index(x0, y0 + y, z0 + z), brick, (z * BRICK_SIZE + y) * BRICK_SIZE, w);
+			}
+		}
+		bricks[b] = brick;
+		materialized++;
+		return brick;
+	}
+
+	/**
+	 * Overwrites a plane of this volume.
+	 *
+	 * @param plane
+	 *            The orientation of the plane
+	 * @param position
+	 *            The position of the plane along its normal axis
+	 * @param values
+	 *            The new values, indexed u + v * (size along u)
+	 */
+	public void setPlane(Plane plane, int position, short[] values) {
+		int[] pos = new int[3];
+		pos[plane.getNormalAxis()] = position;
+		int uSize = base.getDimension(plane.getUAxis());
+		int vSize = base.getDimension(plane.getVAxis());
+		int p = 0;
+		for (int v = 0; v < vSize; v++) {
+			pos[plane.getVAxis()] = v;
+			for (int u = 0; u < uSize; u++) {
+				pos[plane.getUAxis()] = u;
+				set(pos[0], pos[1], pos[2], values[p++]);
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of a plane of this volume.
+	 *
+	 * @param plane
+	 *            The orientation of the plane
+	 * @param position
+	 *            The position of the plane along its normal axis
+	 * @return The values, indexed u + v * (size along u)
+	 */
+	public short[] getPlane(Plane plane, int position) {
+		int[] pos = new int[3];
+		pos[plane.getNormalAxis()] = position;
+		int uSize = base.getDimension(plane.getUAxis());
+		int vSize = base.getDimension(plane.getVAxis());
+		short[] values = new short[uSize * vSize];
+		int p = 0;
+		for (int v = 0; v < vSize; v++) {
+			pos[plane.getVAxis()] = v;
+			for (int u = 0; u < uSize; u++) {
+				pos[plane.getUAxis()] = u;
+				values[p++] = get(pos[0], pos[1], pos[2]);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Copies the row of voxels at the given y and z position into dst, unless
+	 * none of the bricks along the row has been copied. The row then equals
+	 * the base's row, e.g. for computing the differences to the base row by
+	 * row.
+	 *
+	 * @return false if the row is shared with the base and has not been
+	 *         copied
+	 */
+	boolean copyRow(int y, int z, short[] dst) {
+		int first = ((y >> BRICK_BITS) + (z >> BRICK_BITS) * bricksY) * bricksX;
+		boolean copied = false;
+		for (int bx = 0; bx < bricksX && !copied; bx++) {
+			copied = bricks[first + bx] != null;
+		}
+		if (!copied) {
+			return false;
+		}
+		int width = base.getWidth();
+		for (int bx = 0; bx < bricksX; bx++) {
+			int x0 = bx << BRICK_BITS;
+			int w = Math.min(BRICK_SIZE, width - x0);
+			short[] brick = bricks[first + bx];
+			if (brick == null) {
+				System.arraycopy(base.getData(), base.index(x0, y, z), dst, x0, w);
+			} else {
+				System.arraycopy(brick, localIndex(0, y, z), dst, x0, w);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the bricks which have been copied into the given volume, so it
+	 * gets the content of this view wherever the view differs from the base.
+	 * Only the copied bricks are touched. Targeting the base itself is fine,
+	 * the view must not be used afterwards then.
+	 *
+	 * @param volume
+	 *            A volume with the content of the base and of the same
+	 *            dimensions, e.g. a copy of it or the base itself
+	 */
+	public void applyTo(ShortVolume volume) {
+		if (volume.getWidth() != base.getWidth() || volume.getHeight() != base.getHeight()
+				|| volume.getDepth() != base.getDepth()) {
+			throw new IllegalArgumentException("The volume must have the dimensions of the base volume.");
+		}
+		short[] dst = volume.getData();
+		for (int bz = 0; bz < bricksZ; bz++) {
+			for (int by = 0; by < bricksY; by++) {
+				for (int bx = 0; bx < bricksX; bx++) {
+					short[] brick = bricks[bx + (by + bz * bricksY) * bricksX];
+					if (brick == null) {
+						continue;
+					}
+					int x0 = bx << BRICK_BITS;
+					int y0 = by << BRICK_BITS;
+					int z0 = bz << BRICK_BITS;
+					int w = Math.min(BRICK_SIZE, base.getWidth() - x0);
+					int h = Math.min(BRICK_SIZE, base.getHeight() - y0);
+					int d = Math.min(BRICK_SIZE, base.getDepth() - z0);
+					for (int z = 0; z < d; z++) {
+						for (int y = 0; y < h; y++) {
+							System.arraycopy(brick, (z * BRICK_SIZE + y) * BRICK_SIZE, dst,
+									volume.index(x0, y0 + y, z0 + z), w);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the volume this view shares its unmodified voxels with.
+	 */
+	public ShortVolume getBase() {
+		return base;
+	}
+
+	/**
+	 * Returns the number of bricks which have been copied.
+	 */
+	public int getMaterializedBricks() {
+		return materialized;
+	}
+
+	/**
+	 * Returns the memory used by copied bricks in bytes.
+	 */
+	public long getMaterializedBytes() {
+		return 2L * materialized * BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+	}
+
+	public int getWidth() {
+		return base.getWidth();
+	}
+
+	public int getHeight() {
+		return base.getHeight();
+	}
+
+	public int getDepth() {
+		return base.getDepth();
+	}
+}
@@ -0,0 +1,298 @@
+package vismed2.group3.volume;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A volume stored in a memory-mapped scratch file instead of the Java heap,
+ * for series larger than the heap or even the physical memory. The voxels use
+ * the same x-fastest linear layout as {@link ShortVolume}, in little-endian
+ * byte order. The file is mapped in regions of whole slices of at most
+ * {@link #MAX_REGION_BYTES}, since a single mapping is limited to 2 GB.<br>
+ * <br>
+ * Pages are read from the file when they are first accessed and written back
+ * by the operating system, which also evicts them when memory gets scarce.
+ * Sequential slab-wise access, as in
+ * {@link vismed2.group3.filters.VolumeFilter#filterMapped(MappedVolume, MappedVolume)},
+ * therefore only keeps the slabs in use resident. Random access to voxels far
+ * apart may cause a page fault per access.<br>
+ * <br>
+ * Reading and writing disjoint slices is safe from several threads. The
+ * scratch file is deleted on {@link #close()}.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public final class MappedVolume implements Closeable {
+
+	/** The maximum size of a mapped region in bytes. */
+	public static final long MAX_REGION_BYTES = 1L << 30;
+
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final int sliceSize;
+	private final int slicesPerRegion;
+	private final File file;
+	private final RandomAccessFile access;
+	private final MappedByteBuffer[] mappings;
+	private final ShortBuffer[] regions;
+
+	/**
+	 * Creates a volume with all voxels set to 0 in a new scratch file.
+	 *
+	 * @param width
+	 *            Number of voxels along the x axis
+	 * @param height
+	 *            Number of voxels along the y axis
+	 * @param depth
+	 *            Number of voxels along the z axis (number of slices)
+	 * @param directory
+	 *            The directory to create the scratch file in, or null for the
+	 *            system's temporary directory
+	 * @throws IOException
+	 *             If the file can not be created or mapped
+	 */
+	public MappedVolume(int width, int height, int depth, File directory) throws IOException {
+		this(width, height, depth, directory, MAX_REGION_BYTES);
+	}
+
+	/**
+	 * Creates a volume mapped in regions of at most the given size, e.g. to
+	 * test region boundaries on small volumes.
+	 */
+	MappedVolume(int width, int height, int depth, File directory, long maxRegionBytes) throws IOException {
+		if (width <= 0 || height <= 0 || depth <= 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid volume dimensions %dx%dx%d.", width, height, depth));
+		}
+		long sliceBytes = 2L * width * height;
+		if (sliceBytes > maxRegionBytes) {
+			throw new IllegalArgumentException(
+					String.format("Slices of %dx%d voxels are too large to be mapped.", width, height));
+		}
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.sliceSize = width * height;
+		this.slicesPerRegion = (int) Math.min(depth, maxRegionBytes / sliceBytes);
+
+		file = File.createTempFile("volume", ".raw", directory);
+		file.deleteOnExit();
+		access = new RandomAccessFile(file, "rw");
+		try {
+			// a sparse file, pages are allocated when they are written
+			access.setLength(sliceBytes * depth);
+			FileChannel channel = access.getChannel();
+			int regionCount = (depth + slicesPerRegion - 1) / slicesPerRegion;
+			mappings = new MappedByteBuffer[regionCount];
+			regions = new ShortBuffer[regionCount];
+			for (int r = 0; r < regionCount; r++) {
+				int slices = Math.min(slicesPerRegion, depth - r * slicesPerRegion);
+				mappings[r] = channel.map(FileChannel.MapMode.READ_WRITE, r * slicesPerRegion * sliceBytes,
+						slices * sliceBytes);
+				mappings[r].order(ByteOrder.LITTLE_ENDIAN);
+				regions[r] = mappings[r].asShortBuffer();
+			}
+		} catch (IOException e) {
+			access.close();
+			file.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a scratch file holding a copy of the given volume.
+	 *
+	 * @param volume
+	 *            The volume to copy
+	 * @param directory
+	 *            The directory to create the scratch file in, or null for the
+	 *            system's temporary directory
+	 * @throws IOException
+	 *             If the file can not be created or mapped
+	 */
+	public static MappedVolume copyOf(ShortVolume volume, File directory) throws IOException {
+		MappedVolume mapped = new MappedVolume(volume.getWidth(), volume.getHeight(), volume.getDepth(), directory);
+		mapped.writeSlices(0, volume.getDepth() - 1, volume.getData(), 0);
+		return mapped;
+	}
+
+	/**
+	 * Returns the voxel value at the given position.
+	 */
+	public short get(int x, int y, int z) {
+		return regions[z / slicesPerRegion].get((z % slicesPerRegion) * sliceSize + x + y * width);
+	}
+
+	/**
+	 * Sets the voxel value at the given position.
+	 */
+	public void set(int x, int y, int z, short value) {
+		regions[z / slicesPerRegion].put((z % slicesPerRegion) * sliceSize + x + y * width, value);
+	}
+
+	/**
+	 * Copies the slices first to last (inclusive) into an array.
+	 *
+	 * @param first
+	 *            The first slice to read
+	 * @param last
+	 *            The last slice to read
+	 * @param dst
+	 *            The array to copy the voxels to, in x-fastest order
+	 * @param offset
+	 *            The index in the array to copy the first voxel to
+	 */
+	public void readSlices(int first, int last, short[] dst, int offset) {
+		checkSlices(first, last);
+		int z = first;
+		while (z <= last) {
+			// all slices within the same region at once
+			int count = Math.min(last + 1, (z / slicesPerRegion + 1) * slicesPerRegion) - z;
+			ShortBuffer region = regions[z / slicesPerRegion].duplicate();
+			region.position((z % slicesPerRegion) * sliceSize);
+			region.get(dst, offset, count * sliceSize);
+			offset += count * sliceSize;
+			z += count;
+		}
+	}
+
+	/**
+	 * Overwrites the slices first to last (inclusive) with the content of an
+	 * array.
+	 *
+	 * @param first
+	 *            The first slice to write
+	 * @param last
+	 *            The last slice to write
+	 * @param src
+	 *            The array to copy the voxels from, in x-fastest order
+	 * @param offset
+	 *            The index of the first voxel in the array
+	 */
+	public void writeSlices(int first, int last, short[] src, int offset) {
+		checkSlices(first, last);
+		int z = first;
+		while (z <= last) {
+			int count = Math.min(last + 1, (z / slicesPerRegion + 1) * slicesPerRegion) - z;
+			ShortBuffer region = regions[z / slicesPerRegion].duplicate();
+			region.position((z % slicesPerRegion) * sliceSize);
+			region.put(src, offset, count * sliceSize);
+			offset += count * sliceSize;
+			z += count;
+		}
+	}
+
+	private void checkSlices(int first, int last) {
+		if (first < 0 || last >= depth || first > last) {
+			throw new IllegalArgumentException(
+					String.format("Invalid slices %d to %d of a volume with %d slices.", first, last, depth));
+		}
+	}
+
+	/**
+	 * Returns a copy of the slices first to last (inclusive) as a volume.
+	 */
+	public ShortVolume readSlab(int first, int last) {
+		ShortVolume slab = new ShortVolume(width, height, last - first + 1);
+		readSlices(first, last, slab.getData(), 0);
+		return slab;
+	}
+
+	/**
+	 * Returns the smallest and largest voxel value of this volume. Reads the
+	 * whole file slice by slice.
+	 *
+	 * @return An array containing the minimum at index 0 and the maximum at
+	 *         index 1
+	 */
+	public int[] getRange() {
+		int min = Short.MAX_VALUE;
+		int max = Short.MIN_VALUE;
+		short[] slice = new short[sliceSize];
+		for (int z = 0; z < depth; z++) {
+			readSlices(z, z, slice, 0);
+			for (int i = 0; i < sliceSize; i++) {
+				int value = slice[i];
+				if (value < min) {
+					min = value;
+				}
+				if (value > max) {
+					max = value;
+				}
+			}
+		}
+		return new int[] { min, max };
+	}
+
+	/**
+	 * Writes all modified pages to the file. Not needed to read them again,
+	 * only to have the file complete on disk, e.g. before it is used by
+	 * another process.
+	 */
+	public void flush() {
+		for (MappedByteBuffer mapping : mappings) {
+			mapping.force();
+		}
+	}
+
+	/**
+	 * Closes and deletes the scratch file. The mappings are released by the
+	 * garbage collector, the volume must not be accessed anymore.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			access.close();
+		} finally {
+			// fails on systems not deleting mapped files, then deleted on exit
+			file.delete();
+		}
+	}
+
+	/**
+	 * Returns the scratch file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the dimensions of this volume in the same order as
+	 * {@link vtk.vtkImageData#GetDimensions()}.
+	 */
+	public int[] getDimensions() {
+		return new int[] { width, height, depth };
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getSliceSize() {
+		return sliceSize;
+	}
+
+	/**
+	 * Returns the total number of voxels, which may exceed the range of an
+	 * int.
+	 */
+	public long size() {
+		return (long) sliceSize * depth;
+	}
+}
@@ -0,0 +1,65 @@
+package vismed2.group3.volume;
+
+/**
+ * The three orthogonal plane orientations of a volume. Each plane is spanned
+ * by two in-plane axes (u and v) and positioned along its normal axis. Axes are
+ * numbered like VTK's dimensions: 0 = x, 1 = y, 2 = z.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public enum Plane {
+	/**
+	 * A plane of constant z, as shown by the XY view.
+	 */
+	XY(0, 1, 2),
+	/**
+	 * A plane of constant y, as shown by the XZ view.
+	 */
+	XZ(0, 2, 1),
+	/**
+	 * A plane of constant x, as shown by the YZ view.
+	 */
+	YZ(1, 2, 0);
+
+	private final int uAxis;
+	private final int vAxis;
+	private final int normalAxis;
+
+	private Plane(int uAxis, int vAxis, int normalAxis) {
+		this.uAxis = uAxis;
+		this.vAxis = vAxis;
+		this.normalAxis = normalAxis;
+	}
+
+	/**
+	 * Returns the first in-plane axis, which is also the faster varying one
+	 * in memory.
+	 */
+	public int getUAxis() {
+		return uAxis;
+	}
+
+	/**
+	 * Returns the second in-plane axis.
+	 */
+	public int getVAxis() {
+		return vAxis;
+	}
+
+	/**
+	 * Returns the axis perpendicular to the plane.
+	 */
+	public int getNormalAxis() {
+		return normalAxis;
+	}
+
+	/**
+	 * Returns a unit vector along the given axis.
+	 */
+	public static int[] unitVector(int axis) {
+		int[] unit = new int[3];
+		unit[axis] = 1;
+		return unit;
+	}
+}
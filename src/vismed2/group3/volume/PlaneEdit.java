@@ -0,0 +1,80 @@
+package vismed2.group3.volume;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * New values for a few planes of a volume, e.g. the active planes filtered in
+ * active-slice mode. An edit is small compared to the volume, so it can be
+ * computed from an image without copying the image, and be applied to the
+ * image, to a {@link CowVolume} or to an undo history afterwards. The planes
+ * are written in the order they were added; where they intersect, the last
+ * one wins.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public final class PlaneEdit {
+
+	private final List<Plane> planes = new ArrayList<Plane>();
+	private final List<Integer> positions = new ArrayList<Integer>();
+	private final List<short[]> values = new ArrayList<short[]>();
+
+	/**
+	 * Adds a plane to write.
+	 *
+	 * @param plane
+	 *            The orientation of the plane
+	 * @param position
+	 *            The position of the plane along its normal axis
+	 * @param values
+	 *            The new values, indexed u + v * (size along u). The edit
+	 *            takes ownership of the array.
+	 */
+	public void add(Plane plane, int position, short[] values) {
+		planes.add(plane);
+		positions.add(position);
+		this.values.add(values);
+	}
+
+	/**
+	 * Returns the number of planes.
+	 */
+	public int size() {
+		return planes.size();
+	}
+
+	public Plane getPlane(int i) {
+		return planes.get(i);
+	}
+
+	public int getPosition(int i) {
+		return positions.get(i);
+	}
+
+	/**
+	 * Returns the values of the i-th plane. The array is owned by the edit
+	 * and must not be modified.
+	 */
+	public short[] getValues(int i) {
+		return values.get(i);
+	}
+
+	/**
+	 * Writes all planes into the given view.
+	 */
+	public void applyTo(CowVolume volume) {
+		for (int i = 0; i < planes.size(); i++) {
+			volume.setPlane(planes.get(i), positions.get(i), values.get(i));
+		}
+	}
+
+	/**
+	 * Writes all planes into the given volume.
+	 */
+	public void applyTo(ShortVolume volume) {
+		for (int i = 0; i < planes.size(); i++) {
+			volume.setPlane(planes.get(i), positions.get(i), values.get(i));
+		}
+	}
+}
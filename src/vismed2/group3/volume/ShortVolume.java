@@ -0,0 +1,316 @@
+package vismed2.group3.volume;
+
+/**
+ * A pure Java representation of a monochrome image volume. The voxels are
+ * stored in a single primitive {@code short[]} using the same x-fastest linear
+ * layout VTK uses for its scalars, i.e. the voxel at (x, y, z) can be found at
+ * index {@code x + y * width + z * width * height}. <br>
+ * <br>
+ * This class does not depend on any native VTK code and can therefore be used
+ * (and tested) without loading the VTK libraries. Use
+ * {@link VtkVolumeConverter} to copy data from and to a
+ * {@link vtk.vtkImageData} in bulk.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public final class ShortVolume {
+
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final int sliceSize;
+	private final short[] data;
+
+	/**
+	 * Creates a new volume of the given dimensions with all voxels set to 0.
+	 *
+	 * @param width
+	 *            Number of voxels along the x axis
+	 * @param height
+	 *            Number of voxels along the y axis
+	 * @param depth
+	 *            Number of voxels along the z axis (number of slices)
+	 */
+	public ShortVolume(int width, int height, int depth) {
+		this(width, height, depth, new short[checkedSize(width, height, depth)]);
+	}
+
+	/**
+	 * Creates a new volume wrapping the given array. The array is not copied.
+	 *
+	 * @param width
+	 *            Number of voxels along the x axis
+	 * @param height
+	 *            Number of voxels along the y axis
+	 * @param depth
+	 *            Number of voxels along the z axis (number of slices)
+	 * @param data
+	 *            The voxel data in x-fastest linear order
+	 */
+	public ShortVolume(int width, int height, int depth, short[] data) {
+		if (data.length != checkedSize(width, height, depth)) {
+			throw new IllegalArgumentException(String.format("Expected %d voxels for a %dx%dx%d volume, got %d.",
+					(long) width * height * depth, width, height, depth, data.length));
+		}
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.sliceSize = width * height;
+		this.data = data;
+	}
+
+	private static int checkedSize(int width, int height, int depth) {
+		if (width <= 0 || height <= 0 || depth <= 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid volume dimensions %dx%dx%d.", width, height, depth));
+		}
+		long size = (long) width * height * depth;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					String.format("Volume of %dx%dx%d voxels is too large.", width, height, depth));
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Returns the voxel value at the given position. No bounds checking is
+	 * performed apart from the array's own.
+	 */
+	public short get(int x, int y, int z) {
+		return data[x + y * width + z * sliceSize];
+	}
+
+	/**
+	 * Returns the voxel value at the given position. Positions outside the
+	 * volume are clamped to the nearest border voxel.
+	 */
+	public short getClamped(int x, int y, int z) {
+		x = x < 0 ? 0 : (x >= width ? width - 1 : x);
+		y = y < 0 ? 0 : (y >= height ? height - 1 : y);
+		z = z < 0 ? 0 : (z >= depth ? depth - 1 : z);
+		return data[x + y * width + z * sliceSize];
+	}
+
+	/**
+	 * Sets the voxel value at the given position.
+	 */
+	public void set(int x, int y, int z, short value) {
+		data[x + y * width + z * sliceSize] = value;
+	}
+
+	/**
+	 * Sets the voxel value at the given position. The value is rounded and
+	 * saturated to the range of a short.
+	 */
+	public void set(int x, int y, int z, double value) {
+		data[x + y * width + z * sliceSize] = saturate(value);
+	}
+
+	/**
+	 * Returns the linear index of the given position within
+	 * {@link #getData()}.
+	 */
+	public int index(int x, int y, int z) {
+		return x + y * width + z * sliceSize;
+	}
+
+	/**
+	 * Overwrites a plane of this volume.
+	 *
+	 * @param plane
+	 *            The orientation of the plane
+	 * @param position
+	 *            The position of the plane along its normal axis
+	 * @param values
+	 *            The new values, indexed u + v * (size along u)
+	 */
+	public void setPlane(Plane plane, int position, short[] values) {
+		int uSize = getDimension(plane.getUAxis());
+		int vSize = getDimension(plane.getVAxis());
+		int uStride = getStride(plane.getUAxis());
+		int vStride = getStride(plane.getVAxis());
+		int offset = position * getStride(plane.getNormalAxis());
+		int p = 0;
+		for (int v = 0; v < vSize; v++) {
+			int i = offset + v * vStride;
+			if (uStride == 1) {
+				System.arraycopy(values, p, data, i, uSize);
+				p += uSize;
+			} else {
+				for (int u = 0; u < uSize; u++, i += uStride) {
+					data[i] = values[p++];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of a plane of this volume.
+	 *
+	 * @param plane
+	 *            The orientation of the plane
+	 * @param position
+	 *            The position of the plane along its normal axis
+	 * @return The values, indexed u + v * (size along u)
+	 */
+	public short[] getPlane(Plane plane, int position) {
+		int uSize = getDimension(plane.getUAxis());
+		int vSize = getDimension(plane.getVAxis());
+		int uStride = getStride(plane.getUAxis());
+		int vStride = getStride(plane.getVAxis());
+		int offset = position * getStride(plane.getNormalAxis());
+		short[] values = new short[uSize * vSize];
+		int p = 0;
+		for (int v = 0; v < vSize; v++) {
+			int i = offset + v * vStride;
+			if (uStride == 1) {
+				System.arraycopy(data, i, values, p, uSize);
+				p += uSize;
+			} else {
+				for (int u = 0; u < uSize; u++, i += uStride) {
+					values[p++] = data[i];
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the underlying array. Changes to the array are reflected in this
+	 * volume and vice versa.
+	 */
+	public short[] getData() {
+		return data;
+	}
+
+	/**
+	 * Creates a deep copy of this volume.
+	 */
+	public ShortVolume copy() {
+		return new ShortVolume(width, height, depth, data.clone());
+	}
+
+	/**
+	 * Returns the smallest and largest voxel value of this volume.
+	 *
+	 * @return An array containing the minimum at index 0 and the maximum at
+	 *         index 1
+	 */
+	public int[] getRange() {
+		int min = Short.MAX_VALUE;
+		int max = Short.MIN_VALUE;
+		for (int i = 0; i < data.length; i++) {
+			int value = data[i];
+			if (value < min) {
+				min = value;
+			}
+			if (value > max) {
+				max = value;
+			}
+		}
+		return new int[] { min, max };
+	}
+
+	/**
+	 * Computes a 64 bit hash of the dimensions and all voxel values. Equal
+	 * volumes have equal fingerprints; different volumes have different ones
+	 * with overwhelming probability, so the fingerprint can identify the
+	 * content of a volume, e.g. as key of a cache. Four voxels are hashed in
+	 * independent lanes at a time, so this takes about as long as copying the
+	 * volume.
+	 */
+	public long fingerprint() {
+		final long prime = 0x9E3779B97F4A7C15L;
+		long h0 = width;
+		long h1 = height;
+		long h2 = depth;
+		long h3 = 0;
+		int i = 0;
+		for (int end = data.length - 3; i < end; i += 4) {
+			h0 = (h0 + data[i]) * prime;
+			h1 = (h1 + data[i + 1]) * prime;
+			h2 = (h2 + data[i + 2]) * prime;
+			h3 = (h3 + data[i + 3]) * prime;
+		}
+		for (; i < data.length; i++) {
+			h3 = (h3 + data[i]) * prime;
+		}
+		long hash = ((h0 * prime + h1) * prime + h2) * prime + h3;
+		// final mix so every lane affects all bits
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Returns the dimensions of this volume in the same order as
+	 * {@link vtk.vtkImageData#GetDimensions()}.
+	 */
+	public int[] getDimensions() {
+		return new int[] { width, height, depth };
+	}
+
+	/**
+	 * Returns the number of voxels along the given axis (0 = x, 1 = y, 2 = z).
+	 */
+	public int getDimension(int axis) {
+		return axis == 0 ? width : (axis == 1 ? height : depth);
+	}
+
+	/**
+	 * Returns the distance in {@link #getData()} between two neighboring voxels
+	 * along the given axis (0 = x, 1 = y, 2 = z).
+	 */
+	public int getStride(int axis) {
+		return axis == 0 ? 1 : (axis == 1 ? width : sliceSize);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getSliceSize() {
+		return sliceSize;
+	}
+
+	/**
+	 * Returns the total number of voxels.
+	 */
+	public int size() {
+		return data.length;
+	}
+
+	/**
+	 * Rounds and clamps the given value to the range of a short.
+	 */
+	public static short saturate(double value) {
+		if (value >= Short.MAX_VALUE) {
+			return Short.MAX_VALUE;
+		} else if (value <= Short.MIN_VALUE) {
+			return Short.MIN_VALUE;
+		}
+		return (short) Math.round(value);
+	}
+
+	/**
+	 * Clamps the given value to the range of a short.
+	 */
+	public static short saturate(int value) {
+		if (value > Short.MAX_VALUE) {
+			return Short.MAX_VALUE;
+		} else if (value < Short.MIN_VALUE) {
+			return Short.MIN_VALUE;
+		}
+		return (short) value;
+	}
+}
@@ -0,0 +1,260 @@
+package vismed2.group3.volume;
+
+/**
+ * The difference between two states of a volume, stored per slice. Slices
+ * which did not change are not stored at all. Changed slices store the
+ * difference of every voxel to its predecessor, encoded as alternating runs of
+ * unchanged voxels and of changed voxels:
+ *
+ * <pre>
+ * {@code
+ * [unchanged run length] [changed run length] [difference]... ...
+ * }
+ * </pre>
+ *
+ * All numbers are variable length integers (7 bits per byte), differences are
+ * zigzag encoded so small changes of either sign take a single byte. Filters
+ * which only touch a few planes therefore produce tiny deltas, and smoothing
+ * filters, which change most voxels by small amounts, still compress to about
+ * half the size of a slice.<br>
+ * <br>
+ * Differences are computed modulo 2^16, so applying a delta restores the exact
+ * voxel values.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+final class VolumeDelta {
+
+	private final String label;
+	private final int width;
+	private final int height;
+	private final int depth;
+	// Encoded differences per slice, null if unchanged
+	private final byte[][] slices;
+	private final long bytes;
+
+	private VolumeDelta(String label, ShortVolume volume, byte[][] slices) {
+		this.label = label;
+		this.width = volume.getWidth();
+		this.height = volume.getHeight();
+		this.depth = volume.getDepth();
+		this.slices = slices;
+		long bytes = 0;
+		for (byte[] slice : slices) {
+			if (slice != null) {
+				bytes += slice.length;
+			}
+		}
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Computes the delta leading from one state to the next.
+	 *
+	 * @param before
+	 *            The previous state
+	 * @param after
+	 *            The new state, must have the same dimensions
+	 * @param label
+	 *            A description of the change
+	 */
+	static VolumeDelta between(ShortVolume before, ShortVolume after, String label) {
+		if (before.getWidth() != after.getWidth() || before.getHeight() != after.getHeight()
+				|| before.getDepth() != after.getDepth()) {
+			throw new IllegalArgumentException("Deltas can only be computed between volumes of the same dimensions.");
+		}
+		short[] src = before.getData();
+		short[] dst = after.getData();
+		int sliceSize = before.getSliceSize();
+		byte[][] slices = new byte[before.getDepth()][];
+		Encoder encoder = new Encoder();
+		for (int z = 0; z < slices.length; z++) {
+			int offset = z * sliceSize;
+			int end = offset + sliceSize;
+			int i = offset;
+			while (i < end && src[i] == dst[i]) {
+				i++;
+			}
+			if (i == end) {
+				continue;
+			}
+			encoder.reset();
+			i = offset;
+			while (i < end) {
+				int unchanged = i;
+				while (i < end && src[i] == dst[i]) {
+					i++;
+				}
+				int changed = i;
+				while (i < end && src[i] != dst[i]) {
+					i++;
+				}
+				encoder.write(changed - unchanged);
+				encoder.write(i - changed);
+				for (int k = changed; k < i; k++) {
+					int difference = (short) (dst[k] - src[k]);
+					encoder.write((difference << 1) ^ (difference >> 31));
+				}
+			}
+			slices[z] = encoder.toByteArray();
+		}
+		return new VolumeDelta(label, before, slices);
+	}
+
+	/**
+	 * Computes the delta leading from a volume to a copy-on-write view of it.
+	 * Only the rows of the bricks copied by the view are compared, so a view
+	 * with a few planes written costs time proportional to these planes.
+	 *
+	 * @param before
+	 *            The previous state
+	 * @param after
+	 *            The new state, a view on the previous state
+	 * @param label
+	 *            A description of the change
+	 */
+	static VolumeDelta between(ShortVolume before, CowVolume after, String label) {
+		if (after.getBase() != before) {
+			throw new IllegalArgumentException("The view must be based on the previous state.");
+		}
+		short[] src = before.getData();
+		int width = before.getWidth();
+		short[] row = new short[width];
+		byte[][] slices = new byte[before.getDepth()][];
+		Encoder encoder = new Encoder();
+		for (int z = 0; z < slices.length; z++) {
+			encoder.reset();
+			boolean changedSlice = false;
+			// unchanged voxels since the last changed run, in slice order
+			int unchanged = 0;
+			for (int y = 0; y < before.getHeight(); y++) {
+				if (!after.copyRow(y, z, row)) {
+					unchanged += width;
+					continue;
+				}
+				int offset = before.index(0, y, z);
+				int x = 0;
+				while (x < width) {
+					int start = x;
+					while (x < width && src[offset + x] == row[x]) {
+						x++;
+					}
+					unchanged += x - start;
+					if (x == width) {
+						break;
+					}
+					int changed = x;
+					while (x < width && src[offset + x] != row[x]) {
+						x++;
+					}
+					encoder.write(unchanged);
+					encoder.write(x - changed);
+					for (int k = changed; k < x; k++) {
+						int difference = (short) (row[k] - src[offset + k]);
+						encoder.write((difference << 1) ^ (difference >> 31));
+					}
+					unchanged = 0;
+					changedSlice = true;
+				}
+			}
+			if (changedSlice) {
+				slices[z] = encoder.toByteArray();
+			}
+		}
+		return new VolumeDelta(label, before, slices);
+	}
+
+	/**
+	 * Turns the previous state into the new state.
+	 */
+	void redo(ShortVolume volume) {
+		apply(volume, 1);
+	}
+
+	/**
+	 * Turns the new state back into the previous state.
+	 */
+	void undo(ShortVolume volume) {
+		apply(volume, -1);
+	}
+
+	private void apply(ShortVolume volume, int sign) {
+		if (volume.getWidth() != width || volume.getHeight() != height || volume.getDepth() != depth) {
+			throw new IllegalArgumentException("Delta does not match the volume's dimensions.");
+		}
+		short[] data = volume.getData();
+		int sliceSize = volume.getSliceSize();
+		for (int z = 0; z < slices.length; z++) {
+			byte[] encoded = slices[z];
+			if (encoded == null) {
+				continue;
+			}
+			int[] position = { 0 };
+			int i = z * sliceSize;
+			while (position[0] < encoded.length) {
+				i += read(encoded, position);
+				int changed = read(encoded, position);
+				for (int k = 0; k < changed; k++, i++) {
+					int zigzag = read(encoded, position);
+					int difference = (zigzag >>> 1) ^ -(zigzag & 1);
+					data[i] = (short) (data[i] + sign * difference);
+				}
+			}
+		}
+	}
+
+	private static int read(byte[] encoded, int[] position) {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = encoded[position[0]++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	String getLabel() {
+		return label;
+	}
+
+	/**
+	 * Returns the size of the encoded differences in bytes.
+	 */
+	long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * A growable buffer for variable length integers, reused for all slices.
+	 */
+	private static final class Encoder {
+		private byte[] buffer = new byte[4096];
+		private int size = 0;
+
+		void reset() {
+			size = 0;
+		}
+
+		void write(int value) {
+			if (size + 5 > buffer.length) {
+				byte[] grown = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, grown, 0, size);
+				buffer = grown;
+			}
+			while ((value & ~0x7F) != 0) {
+				buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[size];
+			System.arraycopy(buffer, 0, result, 0, size);
+			return result;
+		}
+	}
+}
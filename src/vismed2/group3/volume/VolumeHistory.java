@@ -0,0 +1,284 @@
+package vismed2.group3.volume;
+
+import java.util.LinkedList;
+
+/**
+ * An undo/redo history of a volume. Only the current state is kept as a whole
+ * volume; every step is stored as a {@link VolumeDelta} against its
+ * predecessor, which contains the changed slices only. The deltas are kept
+ * within a memory budget: when it is exceeded, the oldest steps are dropped
+ * first.<br>
+ * <br>
+ * This class is thread-safe.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class VolumeHistory {
+
+	private final long budget;
+	private final LinkedList<VolumeDelta> undoSteps = new LinkedList<VolumeDelta>();
+	private final LinkedList<VolumeDelta> redoSteps = new LinkedList<VolumeDelta>();
+	private ShortVolume current;
+	private long bytes = 0;
+	// Incremented whenever the current state changes
+	private int version = 0;
+
+	// State of the last step while it is being amended, see amend()
+	private ShortVolume amendBase;
+	private ShortVolume amended;
+	private String amendLabel;
+
+	/**
+	 * Creates a history.
+	 *
+	 * @param initial
+	 *            The initial state. The history takes ownership of the volume,
+	 *            it must not be modified by the caller afterwards.
+	 * @param budget
+	 *            The maximum size of all stored deltas in bytes
+	 */
+	public VolumeHistory(ShortVolume initial, long budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("Budget must not be negative, got " + budget + ".");
+		}
+		this.current = initial;
+		this.budget = budget;
+	}
+
+	/**
+	 * A step which has been prepared but not yet added, see
+	 * {@link VolumeHistory#prepare(ShortVolume, String)} and
+	 * {@link VolumeHistory#prepare(PlaneEdit, String)}.
+	 */
+	public static final class PendingStep {
+		private final VolumeDelta delta;
+		// the new state, or a view on the current state holding it
+		private final ShortVolume next;
+		private final CowVolume edited;
+		private final int version;
+
+		private PendingStep(VolumeDelta delta, ShortVolume next, CowVolume edited, int version) {
+			this.delta = delta;
+			this.next = next;
+			this.edited = edited;
+			this.version = version;
+		}
+
+		public String getLabel() {
+			return delta.getLabel();
+		}
+	}
+
+	/**
+	 * Adds a new step. All steps which have been undone are discarded.
+	 *
+	 * @param next
+	 *            The new state, with the same dimensions as the current one.
+	 *            The history takes ownership of the volume, it must not be
+	 *            modified by the caller afterwards.
+	 * @param label
+	 *            A description of the step, e.g. the filter's name
+	 */
+	public synchronized void commit(ShortVolume next, String label) {
+		commit(prepare(next, label));
+	}
+
+	/**
+	 * Computes the delta of a new step without adding it. This is the
+	 * expensive part of {@link #commit(ShortVolume, String)} and can be done
+	 * in the background, while the step is committed or dropped later, e.g.
+	 * once it is known whether the result is still wanted.
+	 *
+	 * @param next
+	 *            The new state, with the same dimensions as the current one.
+	 *            The history takes ownership of the volume if the step is
+	 *            committed.
+	 * @param label
+	 *            A description of the step, e.g. the filter's name
+	 * @return The step to pass to {@link #commit(PendingStep)}
+	 */
+	public synchronized PendingStep prepare(ShortVolume next, String label) {
+		flushAmend();
+		return new PendingStep(VolumeDelta.between(current, next, label), next, null, version);
+	}
+
+	/**
+	 * Computes the delta of a step changing a few planes of the current
+	 * state, e.g. of a filter run in active-slice mode. Neither this nor
+	 * committing the step copies the current state: the planes are written
+	 * into a copy-on-write view of it, and only the bricks they touch are
+	 * compared and, on commit, written back.
+	 *
+	 * @param edit
+	 *            The planes to write, of the current state's dimensions. The
+	 *            edit must not be modified afterwards.
+	 * @param label
+	 *            A description of the step, e.g. the filter's name
+	 * @return The step to pass to {@link #commit(PendingStep)}
+	 */
+	public synchronized PendingStep prepare(PlaneEdit edit, String label) {
+		flushAmend();
+		CowVolume edited = new CowVolume(current);
+		edit.applyTo(edited);
+		return new PendingStep(VolumeDelta.between(current, edited, label), null, edited, version);
+	}
+
+	/**
+	 * Adds a prepared step. All steps which have been undone are discarded.
+	 *
+	 * @param step
+	 *            The step to add
+	 * @throws IllegalStateException
+	 *             If the history has changed since the step was prepared
+	 */
+	public synchronized void commit(PendingStep step) {
+		flushAmend();
+		if (step.version != version) {
+			throw new IllegalStateException("History has changed since the step was prepared.");
+		}
+		for (VolumeDelta redo : redoSteps) {
+			bytes -= redo.getBytes();
+		}
+		redoSteps.clear();
+		undoSteps.addLast(step.delta);
+		bytes += step.delta.getBytes();
+		if (step.next != null) {
+			current = step.next;
+		} else {
+			// the view's base is the current state, which is unchanged
+			step.edited.applyTo(current);
+		}
+		version++;
+		evict();
+	}
+
+	/**
+	 * Replaces the result of the last step, e.g. while the parameters of the
+	 * last filter are adjusted interactively. Computing the step's delta is
+	 * deferred until the history is used otherwise, so this can be called
+	 * for every change.
+	 *
+	 * @param next
+	 *            The new result of the last step. The volume may still be
+	 *            modified by the caller until the next call of this method;
+	 *            the history copies it when needed.
+	 */
+	public synchronized void amend(ShortVolume next) {
+		if (amended == null) {
+			// steps undone before are based on the replaced result
+			for (VolumeDelta step : redoSteps) {
+				bytes -= step.getBytes();
+			}
+			redoSteps.clear();
+			amendLabel = null;
+			if (!undoSteps.isEmpty()) {
+				VolumeDelta last = undoSteps.removeLast();
+				bytes -= last.getBytes();
+				last.undo(current);
+				amendLabel = last.getLabel();
+			}
+			amendBase = current;
+		}
+		amended = next;
+		version++;
+	}
+
+	private void flushAmend() {
+		if (amended == null) {
+			return;
+		}
+		VolumeDelta delta = VolumeDelta.between(amendBase, amended, amendLabel);
+		undoSteps.addLast(delta);
+		bytes += delta.getBytes();
+		// reuse the base's array for the amended state
+		System.arraycopy(amended.getData(), 0, amendBase.getData(), 0, amended.size());
+		current = amendBase;
+		amendBase = null;
+		amended = null;
+		amendLabel = null;
+		evict();
+	}
+
+	/**
+	 * Drops the oldest steps until the deltas fit into the budget.
+	 */
+	private void evict() {
+		while (bytes > budget && !undoSteps.isEmpty()) {
+			bytes -= undoSteps.removeFirst().getBytes();
+		}
+		while (bytes > budget && !redoSteps.isEmpty()) {
+			bytes -= redoSteps.removeLast().getBytes();
+		}
+	}
+
+	/**
+	 * Reverts the last step.
+	 *
+	 * @return The previous state, or null if there is no step to undo. The
+	 *         volume is owned by the history and must not be modified.
+	 */
+	public synchronized ShortVolume undo() {
+		flushAmend();
+		if (undoSteps.isEmpty()) {
+			return null;
+		}
+		VolumeDelta step = undoSteps.removeLast();
+		step.undo(current);
+		redoSteps.addFirst(step);
+		version++;
+		return current;
+	}
+
+	/**
+	 * Re-applies the last step which has been undone.
+	 *
+	 * @return The new state, or null if there is no step to redo. The volume
+	 *         is owned by the history and must not be modified.
+	 */
+	public synchronized ShortVolume redo() {
+		flushAmend();
+		if (redoSteps.isEmpty()) {
+			return null;
+		}
+		VolumeDelta step = redoSteps.removeFirst();
+		step.redo(current);
+		undoSteps.addLast(step);
+		version++;
+		return current;
+	}
+
+	public synchronized boolean canUndo() {
+		return !undoSteps.isEmpty() || amended != null;
+	}
+
+	public synchronized boolean canRedo() {
+		return !redoSteps.isEmpty();
+	}
+
+	/**
+	 * Returns the description of the step {@link #undo()} would revert, or
+	 * null.
+	 */
+	public synchronized String getUndoLabel() {
+		if (amended != null) {
+			return amendLabel;
+		}
+		return undoSteps.isEmpty() ? null : undoSteps.getLast().getLabel();
+	}
+
+	/**
+	 * Returns the description of the step {@link #redo()} would re-apply, or
+	 * null.
+	 */
+	public synchronized String getRedoLabel() {
+		return redoSteps.isEmpty() ? null : redoSteps.getFirst().getLabel();
+	}
+
+	/**
+	 * Returns the size of all stored deltas in bytes.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,71 @@
+package vismed2.group3.volume;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A pool of volume buffers. Filters chained in a pipeline acquire their
+ * intermediate buffers from a pool and release them as soon as the next stage
+ * has consumed them, so a chain of any length only needs two buffers. Buffers
+ * kept in the pool are reused by subsequent runs.<br>
+ * <br>
+ * This class is thread-safe.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class VolumePool {
+
+	private final int maxRetained;
+	private final LinkedList<short[]> free = new LinkedList<short[]>();
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param maxRetained
+	 *            The maximum number of released buffers to keep for reuse.
+	 *            Further buffers are left to the garbage collector.
+	 */
+	public VolumePool(int maxRetained) {
+		if (maxRetained < 0) {
+			throw new IllegalArgumentException("Number of retained buffers must not be negative, got " + maxRetained
+					+ ".");
+		}
+		this.maxRetained = maxRetained;
+	}
+
+	/**
+	 * Returns a volume of the given dimensions. Its content is undefined.
+	 */
+	public synchronized ShortVolume acquire(int width, int height, int depth) {
+		long size = (long) width * height * depth;
+		for (Iterator<short[]> it = free.iterator(); it.hasNext();) {
+			short[] data = it.next();
+			if (data.length == size) {
+				it.remove();
+				return new ShortVolume(width, height, depth, data);
+			}
+		}
+		return new ShortVolume(width, height, depth);
+	}
+
+	/**
+	 * Returns a volume to the pool. The volume must not be used afterwards.
+	 */
+	public synchronized void release(ShortVolume volume) {
+		if (maxRetained == 0) {
+			return;
+		}
+		if (free.size() >= maxRetained) {
+			free.removeFirst();
+		}
+		free.addLast(volume.getData());
+	}
+
+	/**
+	 * Drops all retained buffers.
+	 */
+	public synchronized void clear() {
+		free.clear();
+	}
+}
@@ -0,0 +1,241 @@
+package vismed2.group3.volume;
+
+import vtk.vtkDataArray;
+import vtk.vtkImageData;
+import vtk.vtkShortArray;
+import vtk.vtkUnsignedShortArray;
+
+/**
+ * Copies voxel data between {@link vtk.vtkImageData} and {@link ShortVolume}.
+ * For short and unsigned short scalars, which is what
+ * {@link vtk.vtkDICOMImageReader} produces for CT data, the whole scalar array
+ * is transferred with a single native call. Other scalar types fall back to
+ * per-voxel access and are converted to short. Unsigned values above
+ * {@link Short#MAX_VALUE} are saturated rather than wrapped to negative
+ * values, and negative values are written to unsigned images as 0.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public final class VtkVolumeConverter {
+
+	// Scalar type constants as defined in vtkType.h
+	private static final int VTK_SHORT = 4;
+	private static final int VTK_UNSIGNED_SHORT = 5;
+
+	private VtkVolumeConverter() {
+	}
+
+	/**
+	 * Copies the scalars of the given image data into a new volume.
+	 *
+	 * @param imgData
+	 *            A single component image
+	 * @return A new volume holding a copy of the image's scalars
+	 */
+	public static ShortVolume toVolume(vtkImageData imgData) {
+		int[] dims = imgData.GetDimensions();
+		vtkDataArray scalars = imgData.GetPointData().GetScalars();
+		int scalarType = imgData.GetScalarType();
+
+		if (scalarType == VTK_SHORT && scalars instanceof vtkShortArray) {
+			return new ShortVolume(dims[0], dims[1], dims[2], ((vtkShortArray) scalars).GetJavaArray());
+		} else if (scalarType == VTK_UNSIGNED_SHORT && scalars instanceof vtkUnsignedShortArray) {
+			return new ShortVolume(dims[0], dims[1], dims[2],
+					fromUnsigned(((vtkUnsignedShortArray) scalars).GetJavaArray()));
+		}
+
+		// Slow path for any other scalar type
+		ShortVolume volume = new ShortVolume(dims[0], dims[1], dims[2]);
+		for (int z = 0; z < dims[2]; z++) {
+			for (int y = 0; y < dims[1]; y++) {
+				for (int x = 0; x < dims[0]; x++) {
+					volume.set(x, y, z, imgData.GetScalarComponentAsDouble(x, y, z, 0));
+				}
+			}
+		}
+		return volume;
+	}
+
+	/**
+	 * Writes the given volume into the output image. The output will get the
+	 * same structure (dimensions, spacing, origin) and scalar type as the
+	 * template image; its previous content is discarded.
+	 *
+	 * @param volume
+	 *            The volume to copy
+	 * @param template
+	 *            The image to take structure and attributes from, usually the
+	 *            filter's input
+	 * @param out
+	 *            The image to write to
+	 */
+	public static void toImageData(ShortVolume volume, vtkImageData template, vtkImageData out) {
+		int scalarType = template.GetScalarType();
+		out.Initialize();
+		out.CopyStructure(template);
+		out.CopyAttributes(template);
+		out.AllocateScalars(scalarType, 1);
+		update(volume, out);
+	}
+
+	/**
+	 * Creates an image of short scalars holding a copy of the given volume,
+	 * e.g. for a series which has not been read by VTK.
+	 *
+	 * @param volume
+	 *            The volume to copy
+	 * @param spacing
+	 *            The distance between voxels along x, y and z
+	 * @param origin
+	 *            The position of the first voxel
+	 * @return A new image
+	 */
+	public static vtkImageData createImageData(ShortVolume volume, double[] spacing, double[] origin) {
+		vtkImageData out = new vtkImageData();
+		out.SetDimensions(volume.getWidth(), volume.getHeight(), volume.getDepth());
+		out.SetSpacing(spacing[0], spacing[1], spacing[2]);
+		out.SetOrigin(origin[0], origin[1], origin[2]);
+		out.AllocateScalars(VTK_SHORT, 1);
+		update(volume, out);
+		return out;
+	}
+
+	/**
+	 * Overwrites the scalars of an image that already has the structure of the
+	 * given volume, without reallocating them.
+	 *
+	 * @param volume
+	 *            The volume to copy
+	 * @param out
+	 *            The image to write to
+	 */
+	public static void update(ShortVolume volume, vtkImageData out) {
+		int scalarType = out.GetScalarType();
+		vtkDataArray scalars = out.GetPointData().GetScalars();
+		if (scalarType == VTK_SHORT && scalars instanceof vtkShortArray) {
+			((vtkShortArray) scalars).SetJavaArray(volume.getData());
+		} else if (scalarType == VTK_UNSIGNED_SHORT && scalars instanceof vtkUnsignedShortArray) {
+			((vtkUnsignedShortArray) scalars).SetJavaArray(toUnsigned(volume.getData()));
+		} else {
+			// Slow path for any other scalar type
+			for (int z = 0; z < volume.getDepth(); z++) {
+				for (int y = 0; y < volume.getHeight(); y++) {
+					for (int x = 0; x < volume.getWidth(); x++) {
+						out.SetScalarComponentFromDouble(x, y, z, 0, volume.get(x, y, z));
+					}
+				}
+			}
+		}
+		out.Modified();
+	}
+
+	/**
+	 * Copies a box-shaped region of the given image into a new volume. The
+	 * region is copied natively, so only its voxels cross JNI, whatever the
+	 * size of the image. Scalars of other types than short are cast, unsigned
+	 * short scalars are saturated like by {@link #toVolume(vtkImageData)}.
+	 *
+	 * @param imgData
+	 *            A single component image
+	 * @param from
+	 *            The region's first voxel along x, y and z
+	 * @param to
+	 *            The region's last voxel along x, y and z (inclusive)
+	 * @return A new volume holding a copy of the region
+	 */
+	public static ShortVolume readRegion(vtkImageData imgData, int[] from, int[] to) {
+		vtkImageData region = createRegion(from, to);
+		region.CopyAndCastFrom(imgData, from[0], to[0], from[1], to[1], from[2], to[2]);
+		short[] values = ((vtkShortArray) region.GetPointData().GetScalars()).GetJavaArray();
+		region.Delete();
+		if (imgData.GetScalarType() == VTK_UNSIGNED_SHORT) {
+			// the cast keeps the bits of values above Short.MAX_VALUE
+			fromUnsigned(values);
+		}
+		return new ShortVolume(to[0] - from[0] + 1, to[1] - from[1] + 1, to[2] - from[2] + 1, values);
+	}
+
+	/**
+	 * Overwrites a single plane of the given image. The plane is transferred
+	 * with a single native call and copied into the image natively.
+	 *
+	 * @param values
+	 *            The new values, indexed u + v * (size along u)
+	 * @param plane
+	 *            The orientation of the plane
+	 * @param position
+	 *            The position of the plane along its normal axis
+	 * @param out
+	 *            The image to write to
+	 */
+	public static void writePlane(short[] values, Plane plane, int position, vtkImageData out) {
+		int[] dims = out.GetDimensions();
+		int[] from = new int[3];
+		int[] to = new int[3];
+		for (int axis = 0; axis < 3; axis++) {
+			to[axis] = dims[axis] - 1;
+		}
+		from[plane.getNormalAxis()] = position;
+		to[plane.getNormalAxis()] = position;
+		// u is the faster varying axis, so the plane is already in the
+		// region's memory layout
+		vtkImageData region = createRegion(from, to);
+		short[] scalars = out.GetScalarType() == VTK_UNSIGNED_SHORT ? toUnsigned(values) : values;
+		((vtkShortArray) region.GetPointData().GetScalars()).SetJavaArray(scalars);
+		out.CopyAndCastFrom(region, from[0], to[0], from[1], to[1], from[2], to[2]);
+		region.Delete();
+		out.Modified();
+	}
+
+	/**
+	 * Writes all planes of an edit into the given image, see
+	 * {@link #writePlane(short[], Plane, int, vtkImageData)}.
+	 *
+	 * @param edit
+	 *            The planes to write
+	 * @param out
+	 *            The image to write to
+	 */
+	public static void writePlanes(PlaneEdit edit, vtkImageData out) {
+		for (int i = 0; i < edit.size(); i++) {
+			writePlane(edit.getValues(i), edit.getPlane(i), edit.getPosition(i), out);
+		}
+	}
+
+	/**
+	 * Converts unsigned short scalars, handed out by VTK as the bits of a
+	 * short, in place to shorts, saturating values above
+	 * {@link Short#MAX_VALUE}.
+	 *
+	 * @return The given array
+	 */
+	static short[] fromUnsigned(short[] values) {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = ShortVolume.saturate(values[i] & 0xffff);
+		}
+		return values;
+	}
+
+	/**
+	 * Returns a copy of the given values as unsigned short scalars, with
+	 * negative values clamped to 0.
+	 */
+	static short[] toUnsigned(short[] values) {
+		short[] unsigned = new short[values.length];
+		for (int i = 0; i < values.length; i++) {
+			unsigned[i] = values[i] < 0 ? 0 : values[i];
+		}
+		return unsigned;
+	}
+
+	/**
+	 * Creates an image of short scalars covering the given extent.
+	 */
+	private static vtkImageData createRegion(int[] from, int[] to) {
+		vtkImageData region = new vtkImageData();
+		region.SetExtent(from[0], to[0], from[1], to[1], from[2], to[2]);
+		region.AllocateScalars(VTK_SHORT, 1);
+		return region;
+	}
+}
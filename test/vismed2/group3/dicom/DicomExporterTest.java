@@ -0,0 +1,186 @@
+package vismed2.group3.dicom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import vismed2.group3.volume.MappedVolume;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Exports a volume and reads the files back with dcm4che.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class DicomExporterTest {
+
+	private static final double[] ORIENTATION = { 1, 0, 0, 0, 1, 0 };
+	private static final double[] POSITION = { -10, 20, 0 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ShortVolume volume;
+	private MappedVolume mapped;
+
+	@Before
+	public void setUp() throws IOException {
+		volume = TestVolumes.random(9, 7, 11, 3000, 1);
+		mapped = MappedVolume.copyOf(volume, null);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mapped.close();
+	}
+
+	private static Attributes read(File file) throws IOException {
+		DicomInputStream in = new DicomInputStream(file);
+		try {
+			return in.readDataset(-1, -1);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the stored pixel data of slice z: rows top down, offset by the
+	 * volume's minimum to be positive, little endian.
+	 */
+	private byte[] expectedPixelData(int z) {
+		int offset = -volume.getRange()[0];
+		byte[] bytes = new byte[2 * volume.getSliceSize()];
+		int i = 0;
+		for (int y = volume.getHeight() - 1; y >= 0; y--) {
+			for (int x = 0; x < volume.getWidth(); x++, i += 2) {
+				int value = volume.get(x, y, z) + offset;
+				bytes[i] = (byte) value;
+				bytes[i + 1] = (byte) (value >> 8);
+			}
+		}
+		return bytes;
+	}
+
+	private File export(int parallelism) throws IOException {
+		File directory = folder.newFolder();
+		DicomExporter exporter = new DicomExporter();
+		exporter.setParallelism(parallelism);
+		// forcing the files must not change them
+		exporter.setSync(parallelism > 1);
+		exporter.exportVolume(mapped, new File(directory, "out").getPath(), ORIENTATION, POSITION);
+		return directory;
+	}
+
+	@Test
+	public void writesOneFilePerSlice() throws IOException {
+		for (int parallelism : new int[] { 1, 3 }) {
+			File directory = export(parallelism);
+			assertEquals(volume.getDepth(), directory.list().length);
+			for (int z = 0; z < volume.getDepth(); z++) {
+				Attributes ds = read(new File(directory, String.format("out-%04d.dcm", z)));
+				assertEquals(volume.getWidth(), ds.getInt(Tag.Columns, 0));
+				assertEquals(volume.getHeight(), ds.getInt(Tag.Rows, 0));
+				assertEquals(String.format("%04d", z), ds.getString(Tag.InstanceNumber));
+				assertArrayEquals(new double[] { -10, 20, -z }, ds.getDoubles(Tag.ImagePositionPatient), 1e-9);
+				assertArrayEquals("slice " + z + " with " + parallelism + " threads", expectedPixelData(z),
+						ds.getBytes(Tag.PixelData));
+			}
+		}
+	}
+
+	@Test
+	public void reportsTheProgressInSliceOrder() throws IOException {
+		final List<Object> reported = new ArrayList<Object>();
+		DicomExporter exporter = new DicomExporter();
+		exporter.setParallelism(3);
+		exporter.setChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				reported.add(e.getSource());
+			}
+		});
+		exporter.exportVolume(mapped, new File(folder.newFolder(), "out").getPath(), ORIENTATION, POSITION);
+		assertEquals(volume.getDepth(), reported.size());
+		for (int z = 0; z < volume.getDepth(); z++) {
+			assertEquals(z + 1, reported.get(z));
+		}
+	}
+
+	@Test
+	public void writesTheRescaleOfTheOffsetValues() throws IOException {
+		File directory = folder.newFolder();
+		DicomExporter exporter = new DicomExporter();
+		exporter.setRescale(0.5, -1024);
+		exporter.exportVolume(volume, new File(directory, "out").getPath(), ORIENTATION, POSITION);
+		int offset = -volume.getRange()[0];
+		for (int z = 0; z < volume.getDepth(); z++) {
+			Attributes ds = read(new File(directory, String.format("out-%04d.dcm", z)));
+			assertEquals(0.5, ds.getDouble(Tag.RescaleSlope, 0), 0);
+			assertEquals(-1024 - 0.5 * offset, ds.getDouble(Tag.RescaleIntercept, 0), 1e-9);
+			assertArrayEquals(expectedPixelData(z), ds.getBytes(Tag.PixelData));
+		}
+	}
+
+	@Test
+	public void writesOneFramePerSlice() throws IOException {
+		for (int parallelism : new int[] { 1, 3 }) {
+			File directory = folder.newFolder();
+			DicomExporter exporter = new DicomExporter();
+			exporter.setParallelism(parallelism);
+			exporter.setMultiFrame(true);
+			exporter.exportVolume(mapped, new File(directory, "out").getPath(), ORIENTATION, POSITION);
+			assertArrayEquals(new String[] { "out.dcm" }, directory.list());
+
+			Attributes ds = read(new File(directory, "out.dcm"));
+			assertEquals(volume.getDepth(), ds.getInt(Tag.NumberOfFrames, 0));
+			assertEquals("MONOCHROME", ds.getString(Tag.PixelPresentation));
+			assertEquals("VOLUME", ds.getString(Tag.VolumetricProperties));
+			assertEquals("NONE", ds.getString(Tag.VolumeBasedCalculationTechnique));
+			Attributes shared = ds.getNestedDataset(Tag.SharedFunctionalGroupsSequence);
+			Attributes frameType = shared.getNestedDataset(Tag.CTImageFrameTypeSequence);
+			assertArrayEquals(new String[] { "DERIVED", "PRIMARY", "VOLUME", "NONE" },
+					frameType.getStrings(Tag.FrameType));
+			Sequence frames = ds.getSequence(Tag.PerFrameFunctionalGroupsSequence);
+			assertEquals(volume.getDepth(), frames.size());
+
+			byte[] pixelData = ds.getBytes(Tag.PixelData);
+			int frameLength = 2 * volume.getSliceSize();
+			assertEquals(volume.getDepth() * frameLength, pixelData.length);
+			for (int z = 0; z < volume.getDepth(); z++) {
+				Attributes position = frames.get(z).getNestedDataset(Tag.PlanePositionSequence);
+				assertArrayEquals(new double[] { -10, 20, -z }, position.getDoubles(Tag.ImagePositionPatient),
+						1e-9);
+				assertArrayEquals("frame " + z + " with " + parallelism + " threads", expectedPixelData(z),
+						Arrays.copyOfRange(pixelData, z * frameLength, (z + 1) * frameLength));
+			}
+		}
+	}
+
+	@Test
+	public void doesNotModifyThePosition() throws IOException {
+		double[] position = POSITION.clone();
+		new DicomExporter().exportVolume(mapped, new File(folder.newFolder(), "out").getPath(), ORIENTATION,
+				position);
+		assertArrayEquals(POSITION, position, 0);
+	}
+}
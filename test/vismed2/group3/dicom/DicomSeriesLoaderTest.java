@@ -0,0 +1,278 @@
+package vismed2.group3.dicom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import vismed2.group3.volume.MappedVolume;
+import vismed2.group3.volume.ShortVolume;
+
+/**
+ * Loads series written with dcm4che, with the files named in a different
+ * order than their positions, and compares them with the volume
+ * {@link vtk.vtkDICOMImageReader} would produce.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class DicomSeriesLoaderTest {
+
+	private static final int WIDTH = 7;
+	private static final int HEIGHT = 5;
+	private static final int DEPTH = 6;
+	private static final double SPACING = 2.5;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Returns the stored value of a pixel, given in transmission order (top
+	 * row first).
+	 */
+	private static int stored(int x, int row, int z, boolean signed) {
+		int value = (x * 131 + row * 17 + z * 1009) % 3000;
+		return signed ? value - 1000 : value + 20000;
+	}
+
+	/**
+	 * Writes slice z of the test series. The slices' positions descend along
+	 * the normal, so the file of slice 0 ends up last in the volume.
+	 */
+	private static void writeSlice(File file, int z, boolean signed, boolean bigEndian, double slope,
+			double intercept) throws IOException {
+		Attributes ds = new Attributes();
+		ds.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+		ds.setString(Tag.SOPInstanceUID, VR.UI, "2.25.1" + z);
+		ds.setInt(Tag.InstanceNumber, VR.IS, z + 1);
+		ds.setInt(Tag.Rows, VR.US, HEIGHT);
+		ds.setInt(Tag.Columns, VR.US, WIDTH);
+		ds.setInt(Tag.SamplesPerPixel, VR.US, 1);
+		ds.setInt(Tag.BitsAllocated, VR.US, 16);
+		ds.setInt(Tag.BitsStored, VR.US, 16);
+		ds.setInt(Tag.PixelRepresentation, VR.US, signed ? 1 : 0);
+		ds.setDouble(Tag.ImagePositionPatient, VR.DS, -10, 20, SPACING * (DEPTH - 1 - z));
+		ds.setDouble(Tag.ImageOrientationPatient, VR.DS, 1, 0, 0, 0, 1, 0);
+		ds.setDouble(Tag.PixelSpacing, VR.DS, 0.5, 0.75);
+		ds.setDouble(Tag.RescaleSlope, VR.DS, slope);
+		ds.setDouble(Tag.RescaleIntercept, VR.DS, intercept);
+		byte[] pixels = new byte[2 * WIDTH * HEIGHT];
+		int lo = bigEndian ? 1 : 0;
+		for (int row = 0, i = 0; row < HEIGHT; row++) {
+			for (int x = 0; x < WIDTH; x++, i += 2) {
+				int value = stored(x, row, z, signed);
+				pixels[i + lo] = (byte) value;
+				pixels[i + 1 - lo] = (byte) (value >> 8);
+			}
+		}
+		String syntax = bigEndian ? UID.ExplicitVRBigEndianRetired : UID.ExplicitVRLittleEndian;
+		DicomOutputStream out = new DicomOutputStream(file);
+		try {
+			out.writeDataset(ds.createFileMetaInformation(syntax), ds);
+			out.writeHeader(Tag.PixelData, VR.OW, pixels.length);
+			out.write(pixels);
+			out.finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	private File writeSeries(boolean signed, boolean bigEndian, double slope, double intercept) throws IOException {
+		File directory = folder.newFolder();
+		for (int z = 0; z < DEPTH; z++) {
+			// names sort in neither slice nor position order
+			writeSlice(new File(directory, "im" + ((z * 4) % DEPTH) + "-" + z), z, signed, bigEndian, slope,
+					intercept);
+		}
+		return directory;
+	}
+
+	/**
+	 * Returns the volume as vtkDICOMImageReader stores it: sorted by position,
+	 * rows bottom up, stored values.
+	 */
+	private static ShortVolume expected(boolean signed) {
+		ShortVolume volume = new ShortVolume(WIDTH, HEIGHT, DEPTH);
+		for (int z = 0; z < DEPTH; z++) {
+			for (int row = 0; row < HEIGHT; row++) {
+				for (int x = 0; x < WIDTH; x++) {
+					volume.set(x, HEIGHT - 1 - row, DEPTH - 1 - z, stored(x, row, z, signed));
+				}
+			}
+		}
+		return volume;
+	}
+
+	private static DicomSeries load(File directory, int threads) throws IOException {
+		DicomSeriesLoader loader = new DicomSeriesLoader();
+		loader.setParallelism(threads);
+		return loader.load(directory);
+	}
+
+	@Test
+	public void loadsSignedSeries() throws IOException {
+		File directory = writeSeries(true, false, 1, 0);
+		for (int threads = 1; threads <= 4; threads++) {
+			assertArrayEquals(expected(true).getData(), load(directory, threads).getVolume().getData());
+		}
+	}
+
+	@Test
+	public void keepsTheStoredValuesOfRescaledSeries() throws IOException {
+		DicomSeries series = load(writeSeries(false, false, 0.5, -16000), 2);
+		assertArrayEquals(expected(false).getData(), series.getVolume().getData());
+		assertEquals(0.5, series.getRescaleSlope(), 0);
+		assertEquals(-16000, series.getRescaleIntercept(), 0);
+	}
+
+	@Test
+	public void convertsSlicesToTheRescaleOfTheFirstSlice() throws IOException {
+		File directory = writeSeries(true, false, 2, -1000);
+		// slice 2 of the files ends up at z = 3, in HU it is 200 above
+		writeSlice(new File(directory, "im" + ((2 * 4) % DEPTH) + "-" + 2), 2, true, false, 1, -800);
+		DicomSeries series = load(directory, 2);
+		assertEquals(2, series.getRescaleSlope(), 0);
+		assertEquals(-1000, series.getRescaleIntercept(), 0);
+
+		ShortVolume expected = expected(true);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				// stored * 1 - 800 = converted * 2 - 1000
+				expected.set(x, y, DEPTH - 1 - 2, (expected.get(x, y, DEPTH - 1 - 2) + 200) / 2.0);
+			}
+		}
+		assertArrayEquals(expected.getData(), series.getVolume().getData());
+	}
+
+	@Test
+	public void loadsBigEndianSeries() throws IOException {
+		File directory = writeSeries(true, true, 1, 0);
+		assertArrayEquals(expected(true).getData(), load(directory, 2).getVolume().getData());
+	}
+
+	@Test
+	public void reportsTheGeometry() throws IOException {
+		DicomSeries series = load(writeSeries(true, false, 1, 0), 2);
+		// PixelSpacing is row \ column spacing
+		assertArrayEquals(new double[] { 0.75, 0.5, SPACING }, series.getSpacing(), 1e-9);
+		assertArrayEquals(new double[] { -10, 20, 0 }, series.getImagePositionPatient(), 1e-9);
+		assertArrayEquals(new double[] { 1, 0, 0, 0, 1, 0 }, series.getImageOrientationPatient(), 1e-9);
+	}
+
+	@Test
+	public void skipsFilesWhichAreNoDicomImages() throws IOException {
+		File directory = writeSeries(true, false, 1, 0);
+		FileOutputStream out = new FileOutputStream(new File(directory, "README"));
+		try {
+			out.write("not a DICOM file".getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		assertEquals(DEPTH, load(directory, 2).getVolume().getDepth());
+	}
+
+	@Test
+	public void runsOnAGivenExecutor() throws IOException {
+		File directory = writeSeries(true, false, 1, 0);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			DicomSeriesLoader loader = new DicomSeriesLoader();
+			loader.setParallelism(3);
+			loader.setExecutor(executor);
+			assertArrayEquals(expected(true).getData(), loader.load(directory).getVolume().getData());
+			assertArrayEquals(expected(true).getData(), loader.load(directory).getVolume().getData());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void decodesSlicesInTheGivenOrder() throws IOException {
+		File directory = writeSeries(true, false, 1, 0);
+		DicomSeriesLoader loader = new DicomSeriesLoader();
+		loader.setParallelism(1);
+		DicomSeries series = loader.open(directory);
+		assertArrayEquals(new short[series.getVolume().size()], series.getVolume().getData());
+
+		final List<Integer> decoded = Collections.synchronizedList(new ArrayList<Integer>());
+		DicomSeriesLoader.SliceListener listener = new DicomSeriesLoader.SliceListener() {
+			@Override
+			public void sliceDecoded(int slice) {
+				decoded.add(slice);
+			}
+		};
+		loader.decode(series, new int[] { 3, 0, 5 }, listener);
+		assertEquals(Arrays.asList(3, 0, 5), decoded);
+		ShortVolume expected = expected(true);
+		for (int z = 0; z < DEPTH; z++) {
+			short[] slice = Arrays.copyOfRange(series.getVolume().getData(), z * expected.getSliceSize(),
+					(z + 1) * expected.getSliceSize());
+			short[] reference = decoded.contains(z) ? Arrays.copyOfRange(expected.getData(),
+					z * expected.getSliceSize(), (z + 1) * expected.getSliceSize()) : new short[slice.length];
+			assertArrayEquals("slice " + z, reference, slice);
+		}
+
+		loader.decode(series, new int[] { 1, 2, 4 }, listener);
+		assertArrayEquals(expected.getData(), series.getVolume().getData());
+	}
+
+	@Test
+	public void decodesScannedSeriesIntoMappedVolumes() throws IOException {
+		File directory = writeSeries(false, false, 0.5, -16000);
+		DicomSeriesLoader loader = new DicomSeriesLoader();
+		loader.setParallelism(3);
+		DicomSeries series = loader.scan(directory);
+		assertNull(series.getVolume());
+		MappedVolume volume = new MappedVolume(series.getWidth(), series.getHeight(), series.getDepth(), null);
+		try {
+			loader.decode(series, volume);
+			assertArrayEquals(expected(false).getData(), volume.readSlab(0, DEPTH - 1).getData());
+		} finally {
+			volume.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsSlicesOfDifferentSizes() throws IOException {
+		File directory = writeSeries(true, false, 1, 0);
+		Attributes ds = new Attributes();
+		ds.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+		ds.setString(Tag.SOPInstanceUID, VR.UI, "2.25.2");
+		ds.setInt(Tag.Rows, VR.US, 1);
+		ds.setInt(Tag.Columns, VR.US, 1);
+		ds.setInt(Tag.BitsAllocated, VR.US, 16);
+		DicomOutputStream out = new DicomOutputStream(new File(directory, "small"));
+		try {
+			out.writeDataset(ds.createFileMetaInformation(UID.ExplicitVRLittleEndian), ds);
+			out.writeHeader(Tag.PixelData, VR.OW, 2);
+			out.write(new byte[2]);
+			out.finish();
+		} finally {
+			out.close();
+		}
+		load(directory, 2);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsDirectoriesWithoutImages() throws IOException {
+		load(folder.newFolder(), 2);
+	}
+}
@@ -0,0 +1,120 @@
+package vismed2.group3.dicom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Decodes frames encoded by {@link RleEncoder} as described in PS3.5 Annex G
+ * and compares them with the input.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class RleEncoderTest {
+
+	/**
+	 * Decodes a frame of 16 bit pixels into little-endian pixel data.
+	 */
+	private static byte[] decode(ByteBuffer encoded, int length, int columns, int rows) {
+		ByteBuffer header = encoded.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(2, header.getInt(0));
+		int pixels = columns * rows;
+		byte[] pixelData = new byte[2 * pixels];
+		for (int segment = 0; segment < 2; segment++) {
+			int pos = header.getInt(4 + 4 * segment);
+			int end = segment == 0 ? header.getInt(8) : length;
+			// the most significant bytes first
+			int i = 1 - segment;
+			int decoded = 0;
+			while (decoded < pixels) {
+				assertTrue("Segment " + segment + " ends early.", pos < end);
+				int n = encoded.get(pos++);
+				if (n >= 0) {
+					for (int k = 0; k <= n; k++, decoded++) {
+						pixelData[i + 2 * decoded] = encoded.get(pos++);
+					}
+				} else if (n != -128) {
+					byte value = encoded.get(pos++);
+					for (int k = 0; k < 1 - n; k++, decoded++) {
+						pixelData[i + 2 * decoded] = value;
+					}
+				}
+			}
+			assertEquals(pixels, decoded);
+			// at most a byte of padding
+			assertTrue(end - pos <= 1);
+		}
+		return pixelData;
+	}
+
+	private static void assertRoundTrip(short[] pixels, int columns, int rows) {
+		ByteBuffer pixelData = ByteBuffer.allocate(2 * pixels.length).order(ByteOrder.LITTLE_ENDIAN);
+		pixelData.asShortBuffer().put(pixels);
+		ByteBuffer encoded = ByteBuffer.allocateDirect(RleEncoder.getMaxLength(columns, rows));
+		int length = RleEncoder.encode(pixelData, columns, rows, encoded);
+		assertEquals(0, length % 2);
+		assertTrue(length <= RleEncoder.getMaxLength(columns, rows));
+		assertArrayEquals(pixelData.array(), decode(encoded, length, columns, rows));
+	}
+
+	@Test
+	public void restoresRandomPixels() {
+		Random random = new Random(1);
+		short[] pixels = new short[301 * 7];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) random.nextInt(1 << 16);
+		}
+		assertRoundTrip(pixels, 301, 7);
+	}
+
+	@Test
+	public void restoresUniformPixels() {
+		short[] pixels = new short[300 * 5];
+		assertRoundTrip(pixels, 300, 5);
+		Arrays.fill(pixels, (short) -1234);
+		assertRoundTrip(pixels, 300, 5);
+	}
+
+	@Test
+	public void restoresMixedRuns() {
+		Random random = new Random(2);
+		int columns = 257;
+		int rows = 9;
+		short[] pixels = new short[columns * rows];
+		int i = 0;
+		while (i < pixels.length) {
+			// runs of 1 to 300 pixels, some crossing rows
+			int run = 1 + random.nextInt(random.nextBoolean() ? 3 : 300);
+			short value = (short) (random.nextInt(5) * 0x0101);
+			for (int k = 0; k < run && i < pixels.length; k++, i++) {
+				pixels[i] = value;
+			}
+		}
+		assertRoundTrip(pixels, columns, rows);
+	}
+
+	@Test
+	public void restoresSmallFrames() {
+		assertRoundTrip(new short[] { 7 }, 1, 1);
+		assertRoundTrip(new short[] { 1, 1, 2 }, 3, 1);
+		assertRoundTrip(new short[] { 1, 2, 2, 2, 3, 3 }, 2, 3);
+	}
+
+	@Test
+	public void compressesUniformAreas() {
+		int columns = 512;
+		int rows = 512;
+		ByteBuffer pixelData = ByteBuffer.allocate(2 * columns * rows).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer encoded = ByteBuffer.allocate(RleEncoder.getMaxLength(columns, rows));
+		int length = RleEncoder.encode(pixelData, columns, rows, encoded);
+		assertTrue("Encoded " + length + " bytes.", length < pixelData.capacity() / 50);
+	}
+}
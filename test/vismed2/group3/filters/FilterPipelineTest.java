@@ -0,0 +1,111 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Compares the fused {@link FilterPipeline} with running its stages one after
+ * another.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class FilterPipelineTest {
+
+	private static ThresholdFilter threshold(double lower, double upper) {
+		ThresholdFilter threshold = new ThresholdFilter();
+		threshold.setLowerThreshold(lower);
+		threshold.setUpperThreshold(upper);
+		threshold.setAllSlices(true);
+		return threshold;
+	}
+
+	private static WindowLevelFilter windowLevel(double window, double level) {
+		WindowLevelFilter windowLevel = new WindowLevelFilter();
+		windowLevel.setWindowLevel(window, level);
+		windowLevel.setOutputRange(-500, 1500);
+		windowLevel.setAllSlices(true);
+		return windowLevel;
+	}
+
+	private static MedianFilter median() {
+		MedianFilter median = new MedianFilter();
+		median.SetKernelSize(3, 3, 3);
+		median.setAllSlices(true);
+		return median;
+	}
+
+	private static GradientFilter gradient(GradientFilter.Type type) {
+		GradientFilter gradient = new GradientFilter();
+		gradient.setFilter(type);
+		gradient.setAllSlices(true);
+		return gradient;
+	}
+
+	/**
+	 * Creates the same stages on every call, so the pipeline and the
+	 * sequential run do not share any state. The sequential run filters all
+	 * slices; the pipeline ignores the setting.
+	 */
+	private static VolumeFilter[] stages() {
+		MIP mip = new MIP();
+		mip.setMode(MIP.Mode.AVERAGE);
+		return new VolumeFilter[] { windowLevel(1200, 200), threshold(-300, 1200), median(),
+				threshold(0, 1000), windowLevel(800, 400), gradient(GradientFilter.Type.Sobel),
+				windowLevel(2000, 0), mip, threshold(-100, 800) };
+	}
+
+	private static ShortVolume sequential(ShortVolume in, VolumeFilter[] stages) {
+		ShortVolume current = in;
+		for (VolumeFilter stage : stages) {
+			current = stage.filter(current);
+		}
+		return current;
+	}
+
+	private static ShortVolume pipeline(ShortVolume in, VolumeFilter[] stages, int parallelism) {
+		FilterPipeline pipeline = new FilterPipeline();
+		pipeline.setParallelism(parallelism);
+		for (VolumeFilter stage : stages) {
+			pipeline.add(stage);
+		}
+		return pipeline.filter(in);
+	}
+
+	@Test
+	public void matchesTheStagesRunOneAfterAnother() {
+		ShortVolume in = TestVolumes.random(13, 9, 11, 4000, 1);
+		short[] original = in.getData().clone();
+		short[] expected = sequential(in, stages()).getData();
+		assertArrayEquals(expected, pipeline(in, stages(), 1).getData());
+		assertArrayEquals(expected, pipeline(in, stages(), 7).getData());
+		assertArrayEquals("input was modified", original, in.getData());
+	}
+
+	@Test
+	public void fusesLeadingPointwiseStages() {
+		ShortVolume in = TestVolumes.random(6, 5, 4, 4000, 2);
+		VolumeFilter[] stages = { threshold(-100, 900), windowLevel(500, 300), threshold(0, 1000) };
+		assertArrayEquals(sequential(in, stages).getData(), pipeline(in, stages, 3).getData());
+	}
+
+	@Test
+	public void matchesForStencilStagesOnly() {
+		ShortVolume in = TestVolumes.random(8, 7, 9, 4000, 3);
+		VolumeFilter[] stages = { median(), gradient(GradientFilter.Type.Roberts), median() };
+		assertArrayEquals(sequential(in, stages).getData(), pipeline(in, stages, 4).getData());
+	}
+
+	@Test
+	public void returnsACopyWithoutStages() {
+		ShortVolume in = TestVolumes.random(4, 3, 2, 100, 4);
+		ShortVolume out = new FilterPipeline().filter(in);
+		assertArrayEquals(in.getData(), out.getData());
+		out.set(0, 0, 0, (short) 1000);
+		assertArrayEquals(TestVolumes.random(4, 3, 2, 100, 4).getData(), in.getData());
+	}
+}
@@ -0,0 +1,106 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Compares {@link GradientFilter} with applying the documented kernels voxel
+ * by voxel: anchored at the voxel, samples outside of the volume count as 0,
+ * and the result is the signed sum of both kernels.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class GradientFilterTest {
+
+	/**
+	 * Returns the value at the given position, moved by i along u and j along
+	 * v of the plane, or 0 outside of the volume.
+	 */
+	private static int sample(ShortVolume in, Plane plane, int x, int y, int z, int i, int j) {
+		int[] p = { x, y, z };
+		p[plane.getUAxis()] += i;
+		p[plane.getVAxis()] += j;
+		for (int axis = 0; axis < 3; axis++) {
+			if (p[axis] < 0 || p[axis] >= in.getDimension(axis)) {
+				return 0;
+			}
+		}
+		return in.get(p[0], p[1], p[2]);
+	}
+
+	private static TestVolumes.Reference kernels(final ShortVolume in, final GradientFilter.Type type,
+			final Plane plane) {
+		return new TestVolumes.Reference() {
+			@Override
+			public short valueAt(int x, int y, int z) {
+				int[][] k1;
+				int[][] k2;
+				// indexed [v][u]
+				if (type == GradientFilter.Type.Roberts) {
+					k1 = new int[][] { { 0, 1 }, { -1, 0 } };
+					k2 = new int[][] { { 1, 0 }, { 0, -1 } };
+				} else if (type == GradientFilter.Type.Sobel) {
+					k1 = new int[][] { { 1, 0, -1 }, { 2, 0, -2 }, { 1, 0, -1 } };
+					k2 = new int[][] { { 1, 2, 1 }, { 0, 0, 0 }, { -1, -2, -1 } };
+				} else {
+					k1 = new int[][] { { 1, -1 }, { 1, -1 } };
+					k2 = new int[][] { { -1, -1 }, { 1, 1 } };
+				}
+				int sum = 0;
+				for (int j = 0; j < k1.length; j++) {
+					for (int i = 0; i < k1[j].length; i++) {
+						sum += (k1[j][i] + k2[j][i]) * sample(in, plane, x, y, z, i, j);
+					}
+				}
+				return ShortVolume.saturate(sum);
+			}
+		};
+	}
+
+	@Test
+	public void filtersAllSlicesWithTheDocumentedKernels() {
+		ShortVolume in = TestVolumes.random(11, 9, 5, 1 << 16, 1);
+		for (GradientFilter.Type type : GradientFilter.Type.values()) {
+			GradientFilter gradient = new GradientFilter();
+			gradient.setFilter(type);
+			gradient.setAllSlices(true);
+			gradient.setParallelism(3);
+			ShortVolume out = gradient.filter(in);
+			for (int z = 0; z < in.getDepth(); z++) {
+				assertArrayEquals(type + " slice " + z, TestVolumes.plane(in, Plane.XY, z, kernels(in, type, Plane.XY)),
+						TestVolumes.plane(out, Plane.XY, z));
+			}
+		}
+	}
+
+	@Test
+	public void filtersTheActivePlanesWithTheDocumentedKernels() {
+		ShortVolume in = TestVolumes.random(8, 7, 6, 1000, 2);
+		int[] positions = { 5, 6, 7 };
+		for (GradientFilter.Type type : GradientFilter.Type.values()) {
+			for (Plane plane : Plane.values()) {
+				// one plane at a time, the planes overwrite each other where
+				// they intersect
+				int[] slices = { -1, -1, -1 };
+				slices[plane.ordinal()] = positions[plane.ordinal()];
+				GradientFilter gradient = new GradientFilter();
+				gradient.setFilter(type);
+				gradient.setSlice(slices[0], slices[1], slices[2]);
+				ShortVolume out = gradient.filter(in);
+				int position = gradient.getActiveSlice(plane);
+				assertArrayEquals(type + " " + plane,
+						TestVolumes.plane(in, plane, position, kernels(in, type, plane)),
+						TestVolumes.plane(out, plane, position));
+				// the voxels off the active plane are kept
+				int other = position == 0 ? 1 : 0;
+				assertArrayEquals(TestVolumes.plane(in, plane, other), TestVolumes.plane(out, plane, other));
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Compares {@link HistogramMedian} with sorting the clamped kernel of every
+ * voxel.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class HistogramMedianTest {
+
+	/**
+	 * Returns the median of the kernel centred at each voxel, the mean of
+	 * both middle values for an even number of samples.
+	 */
+	private static TestVolumes.Reference bruteForce(final ShortVolume in, final int[] kernelSize) {
+		return new TestVolumes.Reference() {
+			@Override
+			public short valueAt(int x, int y, int z) {
+				short[] samples = new short[kernelSize[0] * kernelSize[1] * kernelSize[2]];
+				int n = 0;
+				for (int k = -kernelSize[2] / 2; k < kernelSize[2] - kernelSize[2] / 2; k++) {
+					for (int j = -kernelSize[1] / 2; j < kernelSize[1] - kernelSize[1] / 2; j++) {
+						for (int i = -kernelSize[0] / 2; i < kernelSize[0] - kernelSize[0] / 2; i++) {
+							samples[n++] = in.getClamped(x + i, y + j, z + k);
+						}
+					}
+				}
+				Arrays.sort(samples);
+				if (n % 2 == 1) {
+					return samples[n / 2];
+				}
+				return ShortVolume.saturate((samples[n / 2 - 1] + samples[n / 2]) / 2.0);
+			}
+		};
+	}
+
+	private static void assertMatchesBruteForce(ShortVolume in, int[] kernelSize) {
+		TestVolumes.Reference reference = bruteForce(in, kernelSize);
+		for (Plane plane : Plane.values()) {
+			int nAxis = plane.getNormalAxis();
+			for (int position = 0; position < in.getDimension(nAxis); position++) {
+				int from = position - kernelSize[nAxis] / 2;
+				HistogramMedian median = new HistogramMedian(in, kernelSize, nAxis, from,
+						from + kernelSize[nAxis] - 1);
+				short[] out = new short[in.getDimension(plane.getUAxis()) * in.getDimension(plane.getVAxis()) + 1];
+				median.filterPlane(out, 1, plane, position);
+				assertArrayEquals(plane + " " + position + " kernel " + Arrays.toString(kernelSize),
+						TestVolumes.plane(in, plane, position, reference), Arrays.copyOfRange(out, 1, out.length));
+			}
+		}
+	}
+
+	@Test
+	public void matchesBruteForceForCubicKernels() {
+		ShortVolume in = TestVolumes.random(9, 7, 6, 50, 1);
+		assertMatchesBruteForce(in, new int[] { 3, 3, 3 });
+		assertMatchesBruteForce(in, new int[] { 5, 5, 5 });
+	}
+
+	@Test
+	public void matchesBruteForceForEvenAndAnisotropicKernels() {
+		ShortVolume in = TestVolumes.random(8, 6, 5, 50, 2);
+		assertMatchesBruteForce(in, new int[] { 2, 2, 2 });
+		assertMatchesBruteForce(in, new int[] { 5, 3, 1 });
+		assertMatchesBruteForce(in, new int[] { 1, 4, 3 });
+	}
+
+	@Test
+	public void matchesBruteForceForManyGreyLevels() {
+		// spans several coarse bins and the whole range of a short
+		assertMatchesBruteForce(TestVolumes.random(7, 6, 4, 1 << 16, 3), new int[] { 3, 3, 3 });
+	}
+
+	@Test
+	public void matchesBruteForceForKernelsLargerThanTheVolume() {
+		assertMatchesBruteForce(TestVolumes.random(3, 2, 2, 20, 4), new int[] { 7, 5, 5 });
+	}
+}
@@ -0,0 +1,95 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Compares the incrementally updated {@link InteractiveThreshold} with
+ * thresholding the whole volume through a fresh {@link ValueLut} after every
+ * change of the interval.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class InteractiveThresholdTest {
+
+	private static short[] threshold(ShortVolume in, double lower, double upper) {
+		short[] expected = new short[in.size()];
+		ValueLut.threshold(lower, upper).apply(in.getData(), expected, 0, expected.length);
+		return expected;
+	}
+
+	/**
+	 * Returns the slices in which the two volumes differ.
+	 */
+	private static int[] differingSlices(short[] before, short[] after, int sliceSize) {
+		List<Integer> slices = new ArrayList<Integer>();
+		for (int z = 0; z < before.length / sliceSize; z++) {
+			for (int i = z * sliceSize; i < (z + 1) * sliceSize; i++) {
+				if (before[i] != after[i]) {
+					slices.add(z);
+					break;
+				}
+			}
+		}
+		int[] result = new int[slices.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = slices.get(i);
+		}
+		return result;
+	}
+
+	private static void assertMatchesFreshThreshold(ShortVolume in, double[][] intervals) {
+		InteractiveThreshold threshold = new InteractiveThreshold(in);
+		short[] before = null;
+		for (double[] interval : intervals) {
+			String message = interval[0] + ".." + interval[1];
+			short[] result = threshold.setInterval(interval[0], interval[1]).getData().clone();
+			assertArrayEquals(message, threshold(in, interval[0], interval[1]), result);
+			if (before != null) {
+				assertArrayEquals(message, differingSlices(before, result, in.getSliceSize()),
+						threshold.getChangedSlices());
+			}
+			before = result;
+		}
+	}
+
+	@Test
+	public void matchesAFreshThresholdWhileDragging() {
+		ShortVolume in = TestVolumes.random(11, 9, 13, 200, 1);
+		// both limits moved up and down by small steps
+		assertMatchesFreshThreshold(in, new double[][] { { -20, 20 }, { -19, 20 }, { -18, 21 }, { -18, 25 },
+				{ -25, 25 }, { -25, 24 }, { 0, 24 }, { 0, 0 } });
+	}
+
+	@Test
+	public void matchesAFreshThresholdAfterJumps() {
+		ShortVolume in = TestVolumes.random(11, 9, 13, 200, 2);
+		// swapped, fractional, empty and out of range intervals
+		assertMatchesFreshThreshold(in, new double[][] { { -100, 99 }, { 50, -50 }, { -10.5, 10.5 },
+				{ 80, 1000 }, { -1000, -80 }, { -1000, 1000 }, { 3, 3 } });
+	}
+
+	@Test
+	public void changesOnlyTheSlicesOfChangedVoxels() {
+		ShortVolume in = new ShortVolume(4, 3, 5);
+		in.set(1, 1, 1, (short) 10);
+		in.set(2, 0, 3, (short) 20);
+		InteractiveThreshold threshold = new InteractiveThreshold(in);
+		threshold.setInterval(0, 100);
+		assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, threshold.getChangedSlices());
+		threshold.setInterval(15, 100);
+		assertArrayEquals(new int[] { 1 }, threshold.getChangedSlices());
+		threshold.setInterval(16, 100);
+		assertArrayEquals(new int[0], threshold.getChangedSlices());
+		threshold.setInterval(-5, 5);
+		assertArrayEquals(new int[] { 3 }, threshold.getChangedSlices());
+	}
+}
@@ -0,0 +1,86 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import vismed2.group3.volume.MappedVolume;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Compares {@link VolumeFilter#filterMapped(MappedVolume, MappedVolume)} with
+ * filtering all slices on the heap, using slabs of two slices so the halo
+ * crosses slab boundaries.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class MappedFilterTest {
+
+	private ShortVolume in;
+	private MappedVolume mappedIn;
+	private MappedVolume mappedOut;
+
+	@Before
+	public void setUp() throws IOException {
+		in = TestVolumes.random(6, 5, 9, 200, 1);
+		mappedIn = MappedVolume.copyOf(in, null);
+		mappedOut = new MappedVolume(in.getWidth(), in.getHeight(), in.getDepth(), null);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mappedIn.close();
+		mappedOut.close();
+	}
+
+	private void assertMatchesHeap(VolumeFilter filter, int threads) {
+		filter.setParallelism(threads);
+		filter.filterMapped(mappedIn, mappedOut, 2L * 2 * in.getSliceSize());
+		assertArrayEquals(filter.getFilterName(), filter.filter(in).getData(),
+				mappedOut.readSlab(0, in.getDepth() - 1).getData());
+	}
+
+	@Test
+	public void medianMatchesHeap() {
+		for (int depth = 1; depth <= 5; depth++) {
+			MedianFilter median = new MedianFilter();
+			median.SetKernelSize(3, 3, depth);
+			median.setAllSlices(true);
+			assertMatchesHeap(median, 1);
+			assertMatchesHeap(median, 3);
+		}
+	}
+
+	@Test
+	public void thresholdMatchesHeap() {
+		ThresholdFilter threshold = new ThresholdFilter();
+		threshold.setLowerThreshold(-20);
+		threshold.setUpperThreshold(50);
+		threshold.setAllSlices(true);
+		assertMatchesHeap(threshold, 2);
+	}
+
+	@Test
+	public void pointwiseFiltersMayOverwriteTheirInput() {
+		ThresholdFilter threshold = new ThresholdFilter();
+		threshold.setLowerThreshold(-20);
+		threshold.setUpperThreshold(50);
+		threshold.setAllSlices(true);
+		short[] expected = threshold.filter(in).getData();
+		threshold.filterMapped(mappedIn, mappedIn, 2L * 2 * in.getSliceSize());
+		assertArrayEquals(expected, mappedIn.readSlab(0, in.getDepth() - 1).getData());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void stencilsMustNotOverwriteTheirInput() {
+		MedianFilter median = new MedianFilter();
+		median.setAllSlices(true);
+		median.filterMapped(mappedIn, mappedIn);
+	}
+}
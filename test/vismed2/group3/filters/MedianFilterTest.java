@@ -0,0 +1,56 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Compares the bricked layout of the {@link MedianFilter} with the linear
+ * one.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class MedianFilterTest {
+
+	private static ShortVolume filter(ShortVolume in, int[] kernelSize, int brickSize, int threads) {
+		MedianFilter median = new MedianFilter();
+		median.SetKernelSize(kernelSize[0], kernelSize[1], kernelSize[2]);
+		median.setAllSlices(true);
+		median.setBrickSize(brickSize);
+		median.setParallelism(threads);
+		return median.filter(in);
+	}
+
+	private static void assertBricksMatchSlices(ShortVolume in, int[] kernelSize) {
+		short[] linear = filter(in, kernelSize, 0, 1).getData();
+		for (int brickSize : new int[] { 1, 3, 4, 16 }) {
+			for (int threads : new int[] { 1, 3 }) {
+				assertArrayEquals("brick " + brickSize + " threads " + threads, linear,
+						filter(in, kernelSize, brickSize, threads).getData());
+			}
+		}
+	}
+
+	@Test
+	public void bricksMatchSlicesForPartialBricks() {
+		// no dimension is a multiple of the brick sizes
+		ShortVolume in = TestVolumes.random(11, 9, 7, 50, 1);
+		assertBricksMatchSlices(in, new int[] { 3, 3, 3 });
+		assertBricksMatchSlices(in, new int[] { 5, 3, 1 });
+		assertBricksMatchSlices(in, new int[] { 2, 4, 3 });
+	}
+
+	@Test
+	public void bricksMatchSlicesForKernelsLargerThanTheBrick() {
+		assertBricksMatchSlices(TestVolumes.random(10, 6, 5, 1 << 16, 2), new int[] { 7, 5, 5 });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeBrickSizes() {
+		new MedianFilter().setBrickSize(-1);
+	}
+}
@@ -0,0 +1,89 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Compares the single-pass {@link ProjectionEngine} with projecting along
+ * each axis voxel by voxel.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class ProjectionEngineTest {
+
+	/**
+	 * Projects the line through each voxel along the plane's normal.
+	 */
+	private static TestVolumes.Reference bruteForce(final ShortVolume in, final Plane plane, final MIP.Mode mode) {
+		return new TestVolumes.Reference() {
+			@Override
+			public short valueAt(int x, int y, int z) {
+				int[] p = { x, y, z };
+				int axis = plane.getNormalAxis();
+				long sum = 0;
+				int max = Integer.MIN_VALUE;
+				int min = Integer.MAX_VALUE;
+				for (p[axis] = 0; p[axis] < in.getDimension(axis); p[axis]++) {
+					int value = in.get(p[0], p[1], p[2]);
+					sum += value;
+					max = Math.max(max, value);
+					min = Math.min(min, value);
+				}
+				if (mode == MIP.Mode.AVERAGE) {
+					return ShortVolume.saturate((double) sum / in.getDimension(axis));
+				}
+				return (short) (mode == MIP.Mode.MAXIMUM ? max : min);
+			}
+		};
+	}
+
+	private static void assertMatchesBruteForce(ShortVolume in, ProjectionEngine engine, MIP.Mode mode) {
+		assertArrayEquals(mode + " along z", TestVolumes.plane(in, Plane.XY, 0, bruteForce(in, Plane.XY, mode)),
+				engine.getProjectionZ());
+		assertArrayEquals(mode + " along y", TestVolumes.plane(in, Plane.XZ, 0, bruteForce(in, Plane.XZ, mode)),
+				engine.getProjectionY());
+		assertArrayEquals(mode + " along x", TestVolumes.plane(in, Plane.YZ, 0, bruteForce(in, Plane.YZ, mode)),
+				engine.getProjectionX());
+	}
+
+	@Test
+	public void matchesBruteForceInASinglePass() {
+		ShortVolume in = TestVolumes.random(9, 7, 5, 1 << 16, 1);
+		for (MIP.Mode mode : MIP.Mode.values()) {
+			ProjectionEngine engine = new ProjectionEngine(in, mode);
+			engine.accumulate(0, in.getDepth() - 1);
+			assertMatchesBruteForce(in, engine, mode);
+		}
+	}
+
+	@Test
+	public void matchesBruteForceForSlabsInAnyOrder() {
+		ShortVolume in = TestVolumes.random(6, 8, 11, 300, 2);
+		for (MIP.Mode mode : MIP.Mode.values()) {
+			ProjectionEngine engine = new ProjectionEngine(in, mode);
+			engine.accumulate(7, 10);
+			engine.accumulate(0, 2);
+			engine.accumulate(3, 6);
+			assertMatchesBruteForce(in, engine, mode);
+		}
+	}
+
+	@Test
+	public void projectsUniformVolumes() {
+		ShortVolume in = new ShortVolume(3, 4, 5);
+		Arrays.fill(in.getData(), Short.MIN_VALUE);
+		for (MIP.Mode mode : MIP.Mode.values()) {
+			ProjectionEngine engine = new ProjectionEngine(in, mode);
+			engine.accumulate(0, in.getDepth() - 1);
+			assertMatchesBruteForce(in, engine, mode);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Tests lookup, eviction and isolation of the {@link ResultCache}, and the
+ * filters' cache keys.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class ResultCacheTest {
+
+	private static ShortVolume result(long seed) {
+		return TestVolumes.random(6, 5, 4, 1000, seed);
+	}
+
+	private static long bytes(ShortVolume volume) {
+		return 2L * volume.size();
+	}
+
+	@Test
+	public void findsResultsByFingerprintAndKey() {
+		ResultCache cache = new ResultCache(Long.MAX_VALUE);
+		cache.put(1, "median", result(1));
+		cache.put(2, "median", result(2));
+		cache.put(1, "sobel", result(3));
+
+		assertArrayEquals(result(1).getData(), cache.get(1, "median").getData());
+		assertArrayEquals(result(2).getData(), cache.get(2, "median").getData());
+		assertArrayEquals(result(3).getData(), cache.get(1, "sobel").getData());
+		assertNull(cache.get(2, "sobel"));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void storesAndReturnsCopies() {
+		ResultCache cache = new ResultCache(Long.MAX_VALUE);
+		ShortVolume stored = result(1);
+		cache.put(1, "median", stored);
+		stored.set(0, 0, 0, (short) 5000);
+		cache.get(1, "median").set(1, 0, 0, (short) 5000);
+		assertArrayEquals(result(1).getData(), cache.get(1, "median").getData());
+	}
+
+	@Test
+	public void replacesEntriesWithTheSameKey() {
+		ResultCache cache = new ResultCache(Long.MAX_VALUE);
+		cache.put(1, "median", result(1));
+		cache.put(1, "median", result(2));
+		assertEquals(1, cache.size());
+		assertEquals(bytes(result(2)), cache.getBytes());
+		assertArrayEquals(result(2).getData(), cache.get(1, "median").getData());
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsedEntries() {
+		ResultCache cache = new ResultCache(2 * bytes(result(0)));
+		cache.put(1, "a", result(1));
+		cache.put(2, "b", result(2));
+		// makes "b" the eldest entry
+		assertNotNull(cache.get(1, "a"));
+		cache.put(3, "c", result(3));
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get(2, "b"));
+		assertNotNull(cache.get(1, "a"));
+		assertNotNull(cache.get(3, "c"));
+	}
+
+	@Test
+	public void skipsResultsLargerThanTheBudget() {
+		ResultCache cache = new ResultCache(bytes(result(0)) - 1);
+		cache.put(1, "median", result(1));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+	}
+
+	@Test
+	public void keysDependOnParametersAndActiveSlices() {
+		MedianFilter median = new MedianFilter();
+		median.SetKernelSize(3, 3, 3);
+		String key = median.getCacheKey();
+		median.setSlice(1, 2, 3);
+		assertFalse(key.equals(median.getCacheKey()));
+		median.setSlice(0, 0, 0);
+		assertEquals(key, median.getCacheKey());
+		median.SetKernelSize(5, 3, 3);
+		assertFalse(key.equals(median.getCacheKey()));
+
+		// all-slices results do not depend on the active slices
+		median.setAllSlices(true);
+		key = median.getCacheKey();
+		median.setSlice(1, 2, 3);
+		assertEquals(key, median.getCacheKey());
+		assertFalse(key.equals(new GradientFilter().getCacheKey()));
+	}
+
+	@Test
+	public void liveResultsAreNotCached() {
+		MIP mip = new MIP();
+		assertNotNull(mip.getCacheKey());
+		mip.setSlabThickness(3, 3, 3);
+		assertNull(mip.getCacheKey());
+		assertNull(new FilterPipeline().add(new MedianFilter()).add(mip).getCacheKey());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeBudgets() {
+		new ResultCache(-1);
+	}
+}
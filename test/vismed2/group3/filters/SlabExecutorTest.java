@@ -0,0 +1,106 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Tests that {@link SlabExecutor} processes every slice once and that
+ * filters running on it do not depend on the number of threads.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class SlabExecutorTest {
+
+	private static void assertProcessesEverySliceOnce(SlabExecutor executor, int count) {
+		final AtomicIntegerArray processed = new AtomicIntegerArray(count);
+		executor.execute(count, new SlabExecutor.SlabTask() {
+			@Override
+			public void process(int first, int last) {
+				for (int slice = first; slice <= last; slice++) {
+					processed.incrementAndGet(slice);
+				}
+			}
+		}, null);
+		for (int slice = 0; slice < count; slice++) {
+			assertEquals("Slice " + slice, 1, processed.get(slice));
+		}
+	}
+
+	@Test
+	public void processesEverySliceOnce() {
+		for (int parallelism : new int[] { 1, 2, 3, 7 }) {
+			for (int count : new int[] { 1, 2, 5, 13, 100 }) {
+				assertProcessesEverySliceOnce(new SlabExecutor(parallelism), count);
+			}
+		}
+	}
+
+	@Test
+	public void processesEverySliceOnceOnAGivenExecutor() {
+		ExecutorService threads = Executors.newFixedThreadPool(3);
+		try {
+			assertProcessesEverySliceOnce(new SlabExecutor(threads, 5), 37);
+			// the executor is still usable
+			assertProcessesEverySliceOnce(new SlabExecutor(threads, 2), 11);
+		} finally {
+			threads.shutdown();
+		}
+	}
+
+	@Test
+	public void rethrowsOnceRunningSlabsAreDone() {
+		final AtomicInteger running = new AtomicInteger();
+		try {
+			new SlabExecutor(4).execute(64, new SlabExecutor.SlabTask() {
+				@Override
+				public void process(int first, int last) {
+					running.incrementAndGet();
+					try {
+						if (first == 0) {
+							throw new IllegalArgumentException("first slab");
+						}
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						running.decrementAndGet();
+					}
+				}
+			}, null);
+			fail("The exception of the first slab was not rethrown.");
+		} catch (IllegalArgumentException e) {
+			assertEquals("first slab", e.getMessage());
+		}
+		assertEquals(0, running.get());
+	}
+
+	@Test
+	public void medianDoesNotDependOnTheThreadCount() {
+		ShortVolume in = TestVolumes.random(23, 17, 29, 200, 1);
+		short[] expected = null;
+		for (int parallelism : new int[] { 1, 2, 3, 7 }) {
+			MedianFilter median = new MedianFilter();
+			median.SetKernelSize(3, 5, 3);
+			median.setAllSlices(true);
+			median.setParallelism(parallelism);
+			short[] actual = median.filter(in).getData();
+			if (expected == null) {
+				expected = actual;
+			} else {
+				assertArrayEquals(parallelism + " threads", expected, actual);
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package vismed2.group3.filters;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import vismed2.group3.volume.Plane;
+import vismed2.group3.volume.ShortVolume;
+import vismed2.group3.volume.TestVolumes;
+
+/**
+ * Compares the incrementally updated {@link SlabProjection} with projecting
+ * the slab from scratch after every move.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class SlabProjectionTest {
+
+	/**
+	 * Projects the slab centred at the given position voxel by voxel.
+	 */
+	private static TestVolumes.Reference bruteForce(final ShortVolume in, final Plane plane, final int thickness,
+			final MIP.Mode mode, final int position) {
+		return new TestVolumes.Reference() {
+			@Override
+			public short valueAt(int x, int y, int z) {
+				int axis = plane.getNormalAxis();
+				int first = Math.max(position - thickness / 2, 0);
+				int last = Math.min(position + thickness - 1 - thickness / 2, in.getDimension(axis) - 1);
+				int[] p = { x, y, z };
+				long sum = 0;
+				int max = Integer.MIN_VALUE;
+				int min = Integer.MAX_VALUE;
+				for (p[axis] = first; p[axis] <= last; p[axis]++) {
+					int value = in.get(p[0], p[1], p[2]);
+					sum += value;
+					max = Math.max(max, value);
+					min = Math.min(min, value);
+				}
+				if (mode == MIP.Mode.AVERAGE) {
+					return ShortVolume.saturate((double) sum / (last - first + 1));
+				}
+				return (short) (mode == MIP.Mode.MAXIMUM ? max : min);
+			}
+		};
+	}
+
+	private static void assertMatchesBruteForce(ShortVolume in, int thickness, int[] positions) {
+		for (MIP.Mode mode : MIP.Mode.values()) {
+			for (Plane plane : Plane.values()) {
+				SlabProjection slab = new SlabProjection(in, plane, thickness, mode);
+				for (int position : positions) {
+					position = Math.min(position, in.getDimension(plane.getNormalAxis()) - 1);
+					short[] projection = slab.moveTo(position);
+					assertEquals(position, slab.getPosition());
+					assertArrayEquals(mode + " " + plane + " at " + position,
+							TestVolumes.plane(in, plane, 0, bruteForce(in, plane, thickness, mode, position)),
+							projection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Few grey levels, so several slices share a pixel's maximum.
+	 */
+	private static ShortVolume createVolume(long seed) {
+		return TestVolumes.random(7, 6, 11, 8, seed);
+	}
+
+	@Test
+	public void matchesBruteForceWhileScrolling() {
+		// one slice at a time in both directions, across both borders
+		int[] positions = { 5, 6, 7, 8, 9, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1, 0, 1, 2 };
+		ShortVolume in = createVolume(1);
+		assertMatchesBruteForce(in, 1, positions);
+		assertMatchesBruteForce(in, 4, positions);
+		assertMatchesBruteForce(in, 5, positions);
+	}
+
+	@Test
+	public void matchesBruteForceAfterJumps() {
+		int[] positions = { 0, 10, 3, 5, 4, 9, 1, 2, 8, 6 };
+		ShortVolume in = createVolume(2);
+		assertMatchesBruteForce(in, 3, positions);
+		assertMatchesBruteForce(in, 7, positions);
+	}
+
+	@Test
+	public void matchesBruteForceForSlabsThickerThanTheVolume() {
+		assertMatchesBruteForce(createVolume(3), 25, new int[] { 0, 3, 10, 2 });
+	}
+
+	@Test
+	public void movedMipSlabsMatchAFreshRun() {
+		ShortVolume in = createVolume(4);
+		MIP mip = new MIP();
+		mip.setSlabThickness(3, 2, 5);
+		mip.setSlice(4, 3, 2);
+		mip.filter(in);
+		mip.moveSlab(Plane.XY, 5);
+		mip.moveSlab(Plane.XY, 9);
+		mip.moveSlab(Plane.XZ, 0);
+		ShortVolume moved = mip.moveSlab(Plane.YZ, 6);
+
+		MIP fresh = new MIP();
+		fresh.setSlabThickness(3, 2, 5);
+		fresh.setSlice(9, 0, 6);
+		assertArrayEquals(fresh.filter(in).getData(), moved.getData());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptySlabs() {
+		new SlabProjection(createVolume(5), Plane.XY, 0, MIP.Mode.MAXIMUM);
+	}
+}
@@ -0,0 +1,106 @@
+package vismed2.group3.volume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Compares a {@link CowVolume} with the same planes written into a copy of its
+ * base, and checks that only the bricks touched by the planes are copied.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class CowVolumeTest {
+
+	/**
+	 * Not a multiple of the brick size along any axis.
+	 */
+	private static ShortVolume createVolume(long seed) {
+		return TestVolumes.random(37, 21, 19, 1 << 16, seed);
+	}
+
+	private static PlaneEdit createEdit(ShortVolume volume, int x, int y, int z, long seed) {
+		PlaneEdit edit = new PlaneEdit();
+		int[] positions = { z, y, x };
+		for (Plane plane : Plane.values()) {
+			int size = volume.getDimension(plane.getUAxis()) * volume.getDimension(plane.getVAxis());
+			short[] values = TestVolumes.random(size, 1, 1, 1 << 16, seed + plane.ordinal()).getData();
+			edit.add(plane, positions[plane.ordinal()], values);
+		}
+		return edit;
+	}
+
+	@Test
+	public void readsTheBaseUntilWritten() {
+		ShortVolume base = createVolume(1);
+		CowVolume view = new CowVolume(base);
+		for (Plane plane : Plane.values()) {
+			assertArrayEquals(base.getPlane(plane, 3), view.getPlane(plane, 3));
+		}
+		assertEquals(0, view.getMaterializedBricks());
+		assertEquals(base.get(36, 20, 18), view.get(36, 20, 18));
+	}
+
+	@Test
+	public void matchesACopyWithThePlanesWritten() {
+		ShortVolume base = createVolume(2);
+		short[] original = base.getData().clone();
+		PlaneEdit edit = createEdit(base, 35, 17, 18, 3);
+		CowVolume view = new CowVolume(base);
+		edit.applyTo(view);
+		ShortVolume expected = base.copy();
+		edit.applyTo(expected);
+
+		for (Plane plane : Plane.values()) {
+			for (int position = 0; position < base.getDimension(plane.getNormalAxis()); position++) {
+				assertArrayEquals(plane + " " + position, expected.getPlane(plane, position),
+						view.getPlane(plane, position));
+			}
+		}
+		// the base is shared, not written
+		assertArrayEquals(original, base.getData());
+
+		ShortVolume target = base.copy();
+		view.applyTo(target);
+		assertArrayEquals(expected.getData(), target.getData());
+	}
+
+	@Test
+	public void copiesOnlyTheBricksOfTheWrittenPlanes() {
+		ShortVolume base = createVolume(4);
+		CowVolume view = new CowVolume(base);
+		// bricks of 16: 3 x 2 x 2
+		view.setPlane(Plane.XY, 5, base.getPlane(Plane.XY, 5));
+		assertEquals(3 * 2, view.getMaterializedBricks());
+		view.setPlane(Plane.XZ, 20, base.getPlane(Plane.XZ, 20));
+		assertEquals(3 * 2 + 3, view.getMaterializedBricks());
+		view.set(36, 0, 18, (short) 7);
+		assertEquals(3 * 2 + 3 + 1, view.getMaterializedBricks());
+		assertEquals(2L * view.getMaterializedBricks() * 16 * 16 * 16, view.getMaterializedBytes());
+	}
+
+	@Test
+	public void copiesRowsOfCopiedBricksOnly() {
+		ShortVolume base = createVolume(5);
+		CowVolume view = new CowVolume(base);
+		view.set(20, 3, 17, (short) 1234);
+		short[] row = new short[base.getWidth()];
+		assertFalse(view.copyRow(3, 5, row));
+		assertFalse(view.copyRow(16, 17, row));
+		assertTrue(view.copyRow(3, 17, row));
+		short[] expected = Arrays.copyOfRange(base.getPlane(Plane.XY, 17), 3 * base.getWidth(), 4 * base.getWidth());
+		expected[20] = 1234;
+		assertArrayEquals(expected, row);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTargetsOfOtherDimensions() {
+		new CowVolume(createVolume(6)).applyTo(new ShortVolume(37, 21, 18));
+	}
+}
@@ -0,0 +1,132 @@
+package vismed2.group3.volume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link MappedVolume} with regions of three slices, so bulk accesses
+ * cross region boundaries.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class MappedVolumeTest {
+
+	private static final int WIDTH = 5;
+	private static final int HEIGHT = 4;
+	private static final int DEPTH = 8;
+	private static final int SLICES_PER_REGION = 3;
+
+	private ShortVolume reference;
+	private MappedVolume volume;
+
+	@Before
+	public void setUp() throws IOException {
+		reference = new ShortVolume(WIDTH, HEIGHT, DEPTH);
+		short[] data = reference.getData();
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (short) (i * 101 - 3000);
+		}
+		volume = new MappedVolume(WIDTH, HEIGHT, DEPTH, null, 2L * WIDTH * HEIGHT * SLICES_PER_REGION);
+		volume.writeSlices(0, DEPTH - 1, reference.getData(), 0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		volume.close();
+	}
+
+	@Test
+	public void readsAllSlicesAcrossRegions() {
+		short[] data = new short[reference.size()];
+		volume.readSlices(0, DEPTH - 1, data, 0);
+		assertArrayEquals(reference.getData(), data);
+	}
+
+	@Test
+	public void readsSlabsAroundRegionBoundaries() {
+		for (int first = 0; first < DEPTH; first++) {
+			for (int last = first; last < DEPTH; last++) {
+				ShortVolume slab = volume.readSlab(first, last);
+				for (int z = first; z <= last; z++) {
+					assertArrayEquals(reference.getPlane(Plane.XY, z), slab.getPlane(Plane.XY, z - first));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void writesSlicesAcrossRegionBoundaries() {
+		int first = SLICES_PER_REGION - 1;
+		int last = 2 * SLICES_PER_REGION;
+		short[] slices = new short[(last - first + 1) * reference.getSliceSize()];
+		for (int i = 0; i < slices.length; i++) {
+			slices[i] = (short) -i;
+		}
+		// at an offset, with a guard value in front
+		short[] src = new short[slices.length + 1];
+		src[0] = Short.MAX_VALUE;
+		System.arraycopy(slices, 0, src, 1, slices.length);
+		volume.writeSlices(first, last, src, 1);
+		System.arraycopy(slices, 0, reference.getData(), first * reference.getSliceSize(), slices.length);
+
+		short[] data = new short[reference.size()];
+		volume.readSlices(0, DEPTH - 1, data, 0);
+		assertArrayEquals(reference.getData(), data);
+	}
+
+	@Test
+	public void accessesVoxelsInEveryRegion() {
+		for (int z = 0; z < DEPTH; z++) {
+			assertEquals(reference.get(0, 0, z), volume.get(0, 0, z));
+			assertEquals(reference.get(WIDTH - 1, HEIGHT - 1, z), volume.get(WIDTH - 1, HEIGHT - 1, z));
+			volume.set(WIDTH - 1, HEIGHT - 1, z, (short) z);
+			assertEquals(z, volume.get(WIDTH - 1, HEIGHT - 1, z));
+		}
+	}
+
+	@Test
+	public void findsTheRange() {
+		assertArrayEquals(reference.getRange(), volume.getRange());
+	}
+
+	@Test
+	public void copiesAHeapVolume() throws IOException {
+		MappedVolume copy = MappedVolume.copyOf(reference, null);
+		try {
+			assertArrayEquals(reference.getData(), copy.readSlab(0, DEPTH - 1).getData());
+			assertEquals(reference.size(), copy.size());
+		} finally {
+			copy.close();
+		}
+	}
+
+	@Test
+	public void deletesTheFileOnClose() throws IOException {
+		MappedVolume scratch = new MappedVolume(2, 2, 2, null);
+		File file = scratch.getFile();
+		scratch.close();
+		// may only be deleted on exit where mapped files can not be deleted
+		if (!System.getProperty("os.name").startsWith("Windows")) {
+			assertFalse(file.exists());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsSlicesOutsideTheVolume() {
+		volume.readSlices(DEPTH - 2, DEPTH, new short[3 * reference.getSliceSize()], 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsSlicesLargerThanARegion() throws IOException {
+		new MappedVolume(WIDTH, HEIGHT, 1, null, 2L * WIDTH * HEIGHT - 1);
+	}
+}
@@ -0,0 +1,90 @@
+package vismed2.group3.volume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+import org.junit.Test;
+
+/**
+ * Tests the layout and helpers of {@link ShortVolume}.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class ShortVolumeTest {
+
+	@Test
+	public void storesVoxelsXFastest() {
+		ShortVolume volume = new ShortVolume(4, 3, 2);
+		volume.set(1, 2, 1, (short) 42);
+		assertEquals(1 + 2 * 4 + 1 * 12, volume.index(1, 2, 1));
+		assertEquals(42, volume.getData()[volume.index(1, 2, 1)]);
+		assertEquals(42, volume.get(1, 2, 1));
+		assertEquals(12, volume.getSliceSize());
+		assertEquals(24, volume.size());
+		assertArrayEquals(new int[] { 4, 3, 2 }, volume.getDimensions());
+		assertEquals(3, volume.getDimension(1));
+		assertEquals(1, volume.getStride(0));
+		assertEquals(4, volume.getStride(1));
+		assertEquals(12, volume.getStride(2));
+	}
+
+	@Test
+	public void clampsPositionsOutsideTheVolume() {
+		ShortVolume volume = TestVolumes.random(4, 3, 2, 1000, 1);
+		assertEquals(volume.get(0, 0, 0), volume.getClamped(-1, -5, -1));
+		assertEquals(volume.get(3, 2, 1), volume.getClamped(4, 3, 7));
+		assertEquals(volume.get(2, 0, 1), volume.getClamped(2, -1, 2));
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		ShortVolume volume = TestVolumes.random(3, 3, 3, 1000, 2);
+		ShortVolume copy = volume.copy();
+		assertNotSame(volume.getData(), copy.getData());
+		assertArrayEquals(volume.getData(), copy.getData());
+		copy.set(1, 1, 1, (short) (volume.get(1, 1, 1) + 1));
+		assertFalse(volume.get(1, 1, 1) == copy.get(1, 1, 1));
+	}
+
+	@Test
+	public void fingerprintDependsOnContentAndDimensions() {
+		ShortVolume volume = TestVolumes.random(4, 3, 5, 1000, 3);
+		assertEquals(volume.fingerprint(), volume.copy().fingerprint());
+		ShortVolume changed = volume.copy();
+		changed.set(3, 2, 4, (short) (changed.get(3, 2, 4) + 1));
+		assertFalse(volume.fingerprint() == changed.fingerprint());
+		ShortVolume reshaped = new ShortVolume(3, 4, 5, volume.getData());
+		assertFalse(volume.fingerprint() == reshaped.fingerprint());
+	}
+
+	@Test
+	public void findsTheRange() {
+		ShortVolume volume = new ShortVolume(2, 2, 2);
+		volume.set(1, 0, 1, (short) -7);
+		volume.set(0, 1, 0, (short) 1234);
+		assertArrayEquals(new int[] { -7, 1234 }, volume.getRange());
+	}
+
+	@Test
+	public void saturatesToTheRangeOfAShort() {
+		assertEquals(Short.MAX_VALUE, ShortVolume.saturate(40000));
+		assertEquals(Short.MIN_VALUE, ShortVolume.saturate(-40000));
+		assertEquals(123, ShortVolume.saturate(123));
+		assertEquals(Short.MAX_VALUE, ShortVolume.saturate(1e9));
+		assertEquals(Short.MIN_VALUE, ShortVolume.saturate(-1e9));
+		assertEquals(3, ShortVolume.saturate(2.5));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidDimensions() {
+		new ShortVolume(0, 1, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsDataOfTheWrongLength() {
+		new ShortVolume(2, 2, 2, new short[7]);
+	}
+}
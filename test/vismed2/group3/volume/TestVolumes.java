@@ -0,0 +1,85 @@
+package vismed2.group3.volume;
+
+import java.util.Random;
+
+/**
+ * Creates volumes for the tests.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public final class TestVolumes {
+
+	/**
+	 * Computes the expected value of a voxel, e.g. by brute force.
+	 */
+	public interface Reference {
+		short valueAt(int x, int y, int z);
+	}
+
+	private TestVolumes() {
+	}
+
+	/**
+	 * Creates a volume of random values.
+	 *
+	 * @param levels
+	 *            The number of distinct values, centred around 0. Few levels
+	 *            make equal values likely, 1 << 16 covers the whole range of
+	 *            a short.
+	 * @param seed
+	 *            The seed of the values
+	 */
+	public static ShortVolume random(int width, int height, int depth, int levels, long seed) {
+		Random random = new Random(seed);
+		ShortVolume volume = new ShortVolume(width, height, depth);
+		short[] data = volume.getData();
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (short) (random.nextInt(levels) - levels / 2);
+		}
+		return volume;
+	}
+
+	/**
+	 * Computes a plane voxel by voxel.
+	 *
+	 * @param volume
+	 *            The volume the plane lies in
+	 * @param plane
+	 *            The orientation of the plane
+	 * @param position
+	 *            The position of the plane along its normal axis
+	 * @param reference
+	 *            The expected value of each voxel
+	 * @return The values, indexed u + v * (size along u)
+	 */
+	public static short[] plane(ShortVolume volume, Plane plane, int position, Reference reference) {
+		int uSize = volume.getDimension(plane.getUAxis());
+		int vSize = volume.getDimension(plane.getVAxis());
+		short[] values = new short[uSize * vSize];
+		int[] p = new int[3];
+		p[plane.getNormalAxis()] = position;
+		for (int v = 0; v < vSize; v++) {
+			p[plane.getVAxis()] = v;
+			for (int u = 0; u < uSize; u++) {
+				p[plane.getUAxis()] = u;
+				values[u + v * uSize] = reference.valueAt(p[0], p[1], p[2]);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Reads a plane voxel by voxel.
+	 *
+	 * @return The values, indexed u + v * (size along u)
+	 */
+	public static short[] plane(final ShortVolume volume, Plane plane, int position) {
+		return plane(volume, plane, position, new Reference() {
+			@Override
+			public short valueAt(int x, int y, int z) {
+				return volume.get(x, y, z);
+			}
+		});
+	}
+}
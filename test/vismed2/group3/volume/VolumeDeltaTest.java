@@ -0,0 +1,112 @@
+package vismed2.group3.volume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link VolumeDelta}s restore both states exactly.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class VolumeDeltaTest {
+
+	private static ShortVolume createVolume(long seed) {
+		return TestVolumes.random(13, 7, 5, 1 << 16, seed);
+	}
+
+	private static void assertRoundTrip(ShortVolume before, ShortVolume after) {
+		VolumeDelta delta = VolumeDelta.between(before, after, "test");
+		ShortVolume volume = before.copy();
+		delta.redo(volume);
+		assertArrayEquals(after.getData(), volume.getData());
+		delta.undo(volume);
+		assertArrayEquals(before.getData(), volume.getData());
+	}
+
+	@Test
+	public void restoresSmallChanges() {
+		ShortVolume before = createVolume(1);
+		ShortVolume after = before.copy();
+		short[] data = after.getData();
+		short[] noise = TestVolumes.random(13, 7, 5, 5, 5).getData();
+		for (int i = 0; i < data.length; i += 3) {
+			data[i] += noise[i];
+		}
+		assertRoundTrip(before, after);
+	}
+
+	@Test
+	public void restoresChangesWrappingAround() {
+		ShortVolume before = new ShortVolume(4, 4, 2);
+		ShortVolume after = before.copy();
+		before.set(0, 0, 0, Short.MIN_VALUE);
+		after.set(0, 0, 0, Short.MAX_VALUE);
+		before.set(3, 3, 1, Short.MAX_VALUE);
+		after.set(3, 3, 1, Short.MIN_VALUE);
+		assertRoundTrip(before, after);
+	}
+
+	@Test
+	public void restoresUnrelatedStates() {
+		assertRoundTrip(createVolume(2), createVolume(3));
+	}
+
+	@Test
+	public void restoresChangesAtSliceBorders() {
+		ShortVolume before = createVolume(4);
+		ShortVolume after = before.copy();
+		int sliceSize = after.getSliceSize();
+		after.getData()[sliceSize - 1]++;
+		after.getData()[sliceSize]--;
+		after.getData()[after.size() - 1] ^= 0x5555;
+		assertRoundTrip(before, after);
+	}
+
+	@Test
+	public void restoresPlanesWrittenIntoAView() {
+		ShortVolume before = createVolume(6);
+		CowVolume view = new CowVolume(before);
+		ShortVolume after = before.copy();
+		for (Plane plane : Plane.values()) {
+			short[] values = before.getPlane(plane, 2);
+			for (int i = 0; i < values.length; i += 2) {
+				values[i] ^= 0x0101;
+			}
+			view.setPlane(plane, 2, values);
+			after.setPlane(plane, 2, values);
+		}
+		// a changed run at the end of one row and the start of the next
+		view.set(12, 0, 4, (short) (before.get(12, 0, 4) + 1));
+		after.set(12, 0, 4, (short) (before.get(12, 0, 4) + 1));
+		view.set(0, 1, 4, (short) (before.get(0, 1, 4) - 1));
+		after.set(0, 1, 4, (short) (before.get(0, 1, 4) - 1));
+
+		VolumeDelta delta = VolumeDelta.between(before, view, "view");
+		assertEquals(VolumeDelta.between(before, after, "copy").getBytes(), delta.getBytes(), 2 * after.getDepth());
+		ShortVolume volume = before.copy();
+		delta.redo(volume);
+		assertArrayEquals(after.getData(), volume.getData());
+		delta.undo(volume);
+		assertArrayEquals(before.getData(), volume.getData());
+	}
+
+	@Test
+	public void storesOnlyChangedSlices() {
+		ShortVolume before = createVolume(5);
+		assertEquals(0, VolumeDelta.between(before, before.copy(), "none").getBytes());
+
+		ShortVolume after = before.copy();
+		after.set(6, 3, 2, (short) (after.get(6, 3, 2) + 1));
+		long bytes = VolumeDelta.between(before, after, "one voxel").getBytes();
+		assertTrue("A single changed voxel took " + bytes + " bytes.", bytes > 0 && bytes <= 8);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsDifferentDimensions() {
+		VolumeDelta.between(new ShortVolume(2, 2, 2), new ShortVolume(2, 2, 3), "invalid");
+	}
+}
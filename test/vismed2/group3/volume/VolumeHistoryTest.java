@@ -0,0 +1,165 @@
+package vismed2.group3.volume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests undo, redo, amending and eviction of a {@link VolumeHistory}.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class VolumeHistoryTest {
+
+	private static final long UNLIMITED = Long.MAX_VALUE;
+
+	private static ShortVolume state(long seed) {
+		return TestVolumes.random(9, 6, 4, 1 << 16, seed);
+	}
+
+	@Test
+	public void undoesAndRedoesCommittedSteps() {
+		VolumeHistory history = new VolumeHistory(state(0), UNLIMITED);
+		assertFalse(history.canUndo());
+		history.commit(state(1), "first");
+		history.commit(state(2), "second");
+
+		assertEquals("second", history.getUndoLabel());
+		assertArrayEquals(state(1).getData(), history.undo().getData());
+		assertEquals("second", history.getRedoLabel());
+		assertArrayEquals(state(0).getData(), history.undo().getData());
+		assertNull(history.undo());
+		assertFalse(history.canUndo());
+
+		assertArrayEquals(state(1).getData(), history.redo().getData());
+		assertArrayEquals(state(2).getData(), history.redo().getData());
+		assertNull(history.redo());
+	}
+
+	@Test
+	public void commitDiscardsUndoneSteps() {
+		VolumeHistory history = new VolumeHistory(state(0), UNLIMITED);
+		history.commit(state(1), "first");
+		history.commit(state(2), "second");
+		history.undo();
+		history.commit(state(3), "third");
+
+		assertFalse(history.canRedo());
+		assertEquals("third", history.getUndoLabel());
+		assertArrayEquals(state(1).getData(), history.undo().getData());
+		assertArrayEquals(state(3).getData(), history.redo().getData());
+	}
+
+	@Test
+	public void undoesAndRedoesPlaneSteps() {
+		ShortVolume initial = state(0);
+		VolumeHistory history = new VolumeHistory(initial.copy(), UNLIMITED);
+		PlaneEdit edit = new PlaneEdit();
+		edit.add(Plane.XY, 1, state(1).getPlane(Plane.XY, 1));
+		edit.add(Plane.YZ, 8, state(2).getPlane(Plane.YZ, 8));
+		ShortVolume edited = initial.copy();
+		edit.applyTo(edited);
+
+		history.commit(history.prepare(edit, "planes"));
+		assertEquals("planes", history.getUndoLabel());
+		assertArrayEquals(initial.getData(), history.undo().getData());
+		assertArrayEquals(edited.getData(), history.redo().getData());
+		history.commit(state(3), "volume");
+		assertArrayEquals(edited.getData(), history.undo().getData());
+		assertArrayEquals(initial.getData(), history.undo().getData());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsPlaneStepsPreparedBeforeAChange() {
+		VolumeHistory history = new VolumeHistory(state(0), UNLIMITED);
+		PlaneEdit edit = new PlaneEdit();
+		edit.add(Plane.XZ, 0, state(1).getPlane(Plane.XZ, 0));
+		VolumeHistory.PendingStep step = history.prepare(edit, "planes");
+		history.commit(state(2), "volume");
+		history.commit(step);
+	}
+
+	@Test
+	public void amendReplacesTheLastStep() {
+		VolumeHistory history = new VolumeHistory(state(0), UNLIMITED);
+		history.commit(state(1), "threshold");
+		history.undo();
+		history.redo();
+
+		// the caller may keep changing the amended volume
+		ShortVolume live = state(2);
+		history.amend(live);
+		assertFalse(history.canRedo());
+		assertTrue(history.canUndo());
+		assertEquals("threshold", history.getUndoLabel());
+		System.arraycopy(state(3).getData(), 0, live.getData(), 0, live.size());
+		history.amend(live);
+
+		assertArrayEquals(state(0).getData(), history.undo().getData());
+		assertNull(history.undo());
+		assertArrayEquals(state(3).getData(), history.redo().getData());
+	}
+
+	@Test
+	public void amendWithoutStepsReplacesTheInitialState() {
+		VolumeHistory history = new VolumeHistory(state(0), UNLIMITED);
+		history.amend(state(1));
+		assertNull(history.getUndoLabel());
+		history.commit(state(2), "next");
+		assertArrayEquals(state(1).getData(), history.undo().getData());
+	}
+
+	@Test
+	public void commitsPreparedSteps() {
+		VolumeHistory history = new VolumeHistory(state(0), UNLIMITED);
+		VolumeHistory.PendingStep step = history.prepare(state(1), "prepared");
+		assertEquals("prepared", step.getLabel());
+		assertFalse(history.canUndo());
+		history.commit(step);
+
+		assertEquals("prepared", history.getUndoLabel());
+		assertArrayEquals(state(0).getData(), history.undo().getData());
+		assertArrayEquals(state(1).getData(), history.redo().getData());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsStepsPreparedAgainstAStaleState() {
+		VolumeHistory history = new VolumeHistory(state(0), UNLIMITED);
+		history.commit(state(1), "first");
+		VolumeHistory.PendingStep step = history.prepare(state(2), "stale");
+		history.undo();
+		history.commit(step);
+	}
+
+	@Test
+	public void evictsTheOldestStepsFirst() {
+		long stepBytes = VolumeDelta.between(state(0), state(1), "").getBytes();
+		VolumeHistory history = new VolumeHistory(state(0), 2 * stepBytes);
+		history.commit(state(1), "first");
+		history.commit(state(2), "second");
+		history.commit(state(3), "third");
+
+		assertTrue(history.getBytes() <= 2 * stepBytes);
+		assertArrayEquals(state(2).getData(), history.undo().getData());
+		assertArrayEquals(state(1).getData(), history.undo().getData());
+		assertNull(history.undo());
+	}
+
+	@Test
+	public void storesNothingWithoutBudget() {
+		VolumeHistory history = new VolumeHistory(state(0), 0);
+		history.commit(state(1), "first");
+		assertFalse(history.canUndo());
+		assertEquals(0, history.getBytes());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeBudgets() {
+		new VolumeHistory(state(0), -1);
+	}
+}
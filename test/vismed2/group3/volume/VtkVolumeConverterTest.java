@@ -0,0 +1,41 @@
+package vismed2.group3.volume;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the conversion between unsigned short scalars and the signed values
+ * of a {@link ShortVolume}.
+ *
+ * @author Sebastian Haas
+ * @author Alexander Tatowsky
+ */
+public class VtkVolumeConverterTest {
+
+	@Test
+	public void saturatesUnsignedValuesAboveTheShortRange() {
+		// 32768, 40000 and 65535 have the bits of negative shorts
+		short[] unsigned = { 0, 1000, Short.MAX_VALUE, (short) 32768, (short) 40000, (short) 65535 };
+		short[] expected = { 0, 1000, Short.MAX_VALUE, Short.MAX_VALUE, Short.MAX_VALUE, Short.MAX_VALUE };
+		assertArrayEquals(expected, VtkVolumeConverter.fromUnsigned(unsigned));
+	}
+
+	@Test
+	public void clampsNegativeValuesOfUnsignedImages() {
+		short[] values = { -1024, -1, 0, 1000, Short.MAX_VALUE };
+		assertArrayEquals(new short[] { 0, 0, 0, 1000, Short.MAX_VALUE }, VtkVolumeConverter.toUnsigned(values));
+		// the volume's values are left alone
+		assertArrayEquals(new short[] { -1024, -1, 0, 1000, Short.MAX_VALUE }, values);
+	}
+
+	@Test
+	public void keepsValuesWithinBothRanges() {
+		short[] values = TestVolumes.random(9, 4, 3, Short.MAX_VALUE + 1, 1).getData();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (short) Math.abs(values[i]);
+		}
+		short[] copy = values.clone();
+		assertArrayEquals(copy, VtkVolumeConverter.fromUnsigned(VtkVolumeConverter.toUnsigned(values)));
+	}
+}